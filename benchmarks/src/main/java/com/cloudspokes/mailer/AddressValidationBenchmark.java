@@ -0,0 +1,96 @@
+package com.cloudspokes.mailer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost per address of EmailAddresses against a typical validation regex, and of validating and de-duplicating the
+ * recipients of a message with 50 to, 50 cc and 50 bcc addresses of which a third are repeated.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AddressValidationBenchmark {
+	private static final int ADDRESSES = 150;
+	private static final Pattern REGEX = Pattern.compile(
+			"^[A-Za-z0-9!#$%&'*+/=?^_`{|}~-]+(\\.[A-Za-z0-9!#$%&'*+/=?^_`{|}~-]+)*@"
+			+ "([A-Za-z0-9]([A-Za-z0-9-]{0,61}[A-Za-z0-9])?\\.)+[A-Za-z0-9]([A-Za-z0-9-]{0,61}[A-Za-z0-9])?$");
+
+	private String[] addresses;
+	private List<String> toEmail;
+	private List<String> ccEmail;
+	private List<String> bccEmail;
+	private String html;
+
+	@Setup
+	public void setUp() {
+		toEmail = Payloads.emails(50, "to");
+		ccEmail = mixedCase(Payloads.emails(50, "cc"), toEmail);
+		bccEmail = mixedCase(Payloads.emails(50, "bcc"), ccEmail);
+		List<String> all = new ArrayList<String>(toEmail);
+		all.addAll(ccEmail);
+		all.addAll(bccEmail);
+		addresses = all.toArray(new String[ADDRESSES]);
+		html = Payloads.html(1024);
+	}
+
+	/**
+	 * @return the addresses with every third replaced by an upper case address of repeated
+	 */
+	private static List<String> mixedCase(List<String> addresses, List<String> repeated) {
+		for (int i = 0; i < addresses.size(); i += 3) {
+			addresses.set(i, repeated.get(i).toUpperCase(Locale.ROOT));
+		}
+		return (addresses);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ADDRESSES)
+	public void isValid(Blackhole blackhole) {
+		for (String address : addresses) {
+			blackhole.consume(EmailAddresses.isValid(address));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ADDRESSES)
+	public void normalize(Blackhole blackhole) {
+		for (String address : addresses) {
+			blackhole.consume(EmailAddresses.normalize(address));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ADDRESSES)
+	public void regex(Blackhole blackhole) {
+		for (String address : addresses) {
+			blackhole.consume(REGEX.matcher(address).matches());
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ADDRESSES)
+	public MailInfoDTO buildWithDuplicates() throws MailerException {
+		return (ImmutableMailInfoDTO.builder().htmlEmailContent(html).subject("Subject").fromName("Sender")
+				.fromEmail("sender@example.com").toEmail(toEmail).ccEmail(ccEmail).bccEmail(bccEmail).build());
+	}
+}
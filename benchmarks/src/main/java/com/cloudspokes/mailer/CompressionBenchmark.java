@@ -0,0 +1,73 @@
+package com.cloudspokes.mailer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * CPU cost of gzip request compression on the full sendMail path, against an in-process stub which decompresses
+ * the body. Loopback has practically unlimited bandwidth, so the time per send only shows what compression costs;
+ * the compression ratio printed at the end of each trial gives what it saves. Compression pays off when the bytes
+ * saved take longer to upload than the extra time per send. Level "none" sends uncompressed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompressionBenchmark {
+	@Param({ "102400", "512000" })
+	public int bodySize;
+
+	@Param({ "none", "1", "6", "9" })
+	public String level;
+
+	private StubStsServer server;
+	private PooledHttpTransport transport;
+	private CompressingHttpTransport compressing;
+	private AmazonSESMailChimpMailer mailer;
+	private MailInfoDTO message;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		server = new StubStsServer();
+		transport = new PooledHttpTransport();
+		HttpTransport sending = transport;
+		if (!"none".equals(level)) {
+			compressing = new CompressingHttpTransport(transport, 0, Integer.parseInt(level));
+			sending = compressing;
+		}
+		mailer = server.newMailer(sending);
+		message = Payloads.message(bodySize, 1);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (compressing != null && compressing.getCompressedCount() > 0) {
+			System.out.printf("%nlevel %s: %d -> %d bytes per send (%.1f%%)%n", level,
+					compressing.getUncompressedBytes() / compressing.getCompressedCount(),
+					compressing.getCompressedBytes() / compressing.getCompressedCount(),
+					100.0 * compressing.getCompressedBytes() / compressing.getUncompressedBytes());
+		}
+		transport.close();
+		server.stop();
+	}
+
+	@Benchmark
+	public String sendMail() throws MailerException {
+		return (mailer.sendMail(message));
+	}
+}
@@ -0,0 +1,73 @@
+package com.cloudspokes.mailer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of a 1 KB post to an in-process stub of the SendEmail endpoint over a kept-alive pooled connection and
+ * over a new connection for every request. Sample time mode reports the p50 and p99 of both.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConnectionReuseBenchmark {
+	private static final ResponseHandler<Integer> STATUS = new ResponseHandler<Integer>() {
+		@Override
+		public Integer handleResponse(int statusCode, String reasonPhrase, InputStream body) throws IOException {
+			byte[] buffer = new byte[512];
+			while (body.read(buffer) != -1) {
+				//Read to the end so the connection can be reused
+			}
+			return (statusCode);
+		}
+	};
+
+	@Param({ "pooled", "unpooled" })
+	public String connections;
+
+	private StubStsServer server;
+	private PooledHttpTransport transport;
+	private URL url;
+	private RequestBody body;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		server = new StubStsServer();
+		//An idle timeout of zero disables keep-alive
+		transport = "pooled".equals(connections) ? new PooledHttpTransport()
+				: new PooledHttpTransport(4, 0, 1000, 5000, 5000);
+		url = server.getSendEmailUrl();
+		body = new ByteArrayRequestBody("application/x-www-form-urlencoded",
+				("message[html]=" + Payloads.html(1024) + "&").getBytes("UTF-8"));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		transport.close();
+		server.stop();
+	}
+
+	@Benchmark
+	public int post() throws IOException {
+		return (transport.post(url, body, STATUS));
+	}
+}
@@ -0,0 +1,67 @@
+package com.cloudspokes.mailer;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The post data serialization used before FormUrlEncoder, kept as the baseline of PostSerializationBenchmark.
+ */
+final class LegacyPostSerializer {
+	private static final String SINGLE_PARM_VALUE_PATTERN = "%s=%s&";
+
+	private LegacyPostSerializer() {
+	}
+
+	static String getPostString(MailInfoDTO mailData, String apiKey) throws UnsupportedEncodingException {
+		Map<String, String> stringData = new HashMap<String, String>();
+		Map<String, List<String>> listData = new HashMap<String, List<String>>();
+
+		stringData.put("apikey", apiKey);
+		stringData.put("message[html]", mailData.getHtmlEmailContent());
+		stringData.put("message[text]", mailData.getTextEmailContent());
+		stringData.put("message[subject]", mailData.getSubject());
+		stringData.put("message[from_name]", mailData.getFromName());
+		stringData.put("message[from_email]", mailData.getFromEmail());
+		stringData.put("message[autogen_html]", String.valueOf(mailData.isAutogenHtml()));
+		stringData.put("track_opens", String.valueOf(mailData.isTrackOpens()));
+		stringData.put("track_clicks", String.valueOf(mailData.isTrackClicks()));
+
+		listData.put("message[reply_to]", mailData.getReplyTo());
+		listData.put("message[to_email]", mailData.getToEmail());
+		listData.put("message[to_name]", mailData.getToName());
+		listData.put("message[cc_email]", mailData.getCcEmail());
+		listData.put("message[cc_name]", mailData.getCcName());
+		listData.put("message[bcc_email]", mailData.getBccEmail());
+		listData.put("message[bcc_name]", mailData.getBccName());
+		listData.put("tags", mailData.getTags());
+
+		return (processStringParms(stringData) + processListParms(listData));
+	}
+
+	private static String processStringParms(Map<String, String> stringData) throws UnsupportedEncodingException {
+		StringBuilder sb = new StringBuilder();
+		for (String key : stringData.keySet()) {
+			if (stringData.get(key) != null) {
+				sb.append(String.format(SINGLE_PARM_VALUE_PATTERN, key, URLEncoder.encode(stringData.get(key), "UTF-8")));
+			}
+		}
+		return (sb.toString());
+	}
+
+	private static String processListParms(Map<String, List<String>> listData) throws UnsupportedEncodingException {
+		StringBuilder sb = new StringBuilder();
+		for (String key : listData.keySet()) {
+			List<String> data = listData.get(key);
+			if (data != null) {
+				for (int i = 0; i < data.size(); i++) {
+					sb.append(String.format(SINGLE_PARM_VALUE_PATTERN, key + "[" + i + "]",
+							URLEncoder.encode(data.get(i), "UTF-8")));
+				}
+			}
+		}
+		return (sb.toString());
+	}
+}
@@ -0,0 +1,425 @@
+package com.cloudspokes.mailer;
+
+import java.io.PrintStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Command line load generator measuring how many messages per second one node sends and how long they take.
+ * <pre>
+ *   java -cp benchmarks/target/benchmarks.jar com.cloudspokes.mailer.LoadDriver --mode open --rate 2000
+ * </pre>
+ * In the closed loop mode, --threads senders each send one message after the other, which finds the highest
+ * throughput. In the open loop mode messages are started at --rate per second whether or not earlier ones have
+ * completed, and are sent by up to --threads senders. The response time of a message is taken from the time it
+ * was due to start rather than from the time a sender picked it up, so time spent waiting behind slow messages is
+ * counted (there is no coordinated omission), and the service time from the pick up is reported next to it.
+ * <p>
+ * By default the messages go to an in-process {@link StsSimulator}, whose latency and failures can be set; --target
+ * takes the base URL of another endpoint instead, or mailchimp for the STS host of MAILCHIMP_API_KEY. Without that
+ * variable a placeholder key is used, which only the simulator and stubs accept. Percentiles are reported in the
+ * layout of HdrHistogram from a {@link Histogram}.
+ */
+public final class LoadDriver {
+	private static final String PLACEHOLDER_KEY = "load-test-key-us2";
+	private static final int PERCENTILE_TICKS_PER_HALF_DISTANCE = 5;
+	private static final double NANOS_PER_MILLI = 1e6;
+
+	private final Map<String, String> options;
+	private final PrintStream out;
+
+	private LoadDriver(Map<String, String> options, PrintStream out) {
+		this.options = options;
+		this.out = out;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		options.put("mode", "closed");
+		options.put("threads", "16");
+		options.put("rate", "1000");
+		options.put("duration", "30");
+		options.put("warmup", "5");
+		options.put("connections", "0");
+		options.put("body-size", "10240");
+		options.put("to", "1");
+		options.put("cc", "0");
+		options.put("bcc", "0");
+		options.put("tags", "3");
+		options.put("distinct", "100");
+		options.put("target", "stub");
+		options.put("stub-latency", "0");
+		options.put("stub-error-rate", "0");
+		options.put("stub-reset-rate", "0");
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String name = args[i];
+				if ("--help".equals(name) || "-h".equals(name)) {
+					usage(System.out, options);
+					return;
+				}
+				if (!name.startsWith("--") || !options.containsKey(name.substring(2)) || i + 1 == args.length) {
+					throw new IllegalArgumentException("Unknown option or missing value: " + name);
+				}
+				options.put(name.substring(2), args[++i]);
+			}
+			new LoadDriver(options, System.out).run();
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			usage(System.err, options);
+			System.exit(2);
+		}
+	}
+
+	private static void usage(PrintStream out, Map<String, String> defaults) {
+		out.println("Usage: LoadDriver [--option value]...");
+		out.println("  --mode         closed: --threads senders back to back; open: --rate messages per second");
+		out.println("  --threads      senders, in the open loop the most messages in flight");
+		out.println("  --rate         messages per second started in the open loop");
+		out.println("  --duration     seconds measured, after --warmup seconds which are not");
+		out.println("  --connections  pooled connections, 0 for one per sender");
+		out.println("  --body-size    characters of HTML per message");
+		out.println("  --to, --cc, --bcc, --tags  recipients and tags per message");
+		out.println("  --distinct     different messages sent in turn");
+		out.println("  --target       stub, mailchimp or the base URL of an endpoint such as http://host:8080");
+		out.println("  --stub-latency median,p99 in milliseconds of a log-normal delay, or a fixed delay");
+		out.println("  --stub-error-rate, --stub-reset-rate  share of stub requests failing, 0 to 1");
+		out.println("Defaults: " + defaults);
+	}
+
+	private void run() throws Exception {
+		boolean open = "open".equals(options.get("mode"));
+		if (!open && !"closed".equals(options.get("mode"))) {
+			throw new IllegalArgumentException("mode must be open or closed: " + options.get("mode"));
+		}
+		int threads = intOption("threads", 1);
+		double rate = open ? doubleOption("rate") : 0;
+		if (open && !(rate > 0)) {
+			throw new IllegalArgumentException("rate must be positive: " + rate);
+		}
+		int connections = intOption("connections", 0);
+		List<MailInfoDTO> messages = messages();
+
+		StsSimulator simulator = null;
+		PooledHttpTransport transport = new PooledHttpTransport(connections == 0 ? threads : connections,
+				PooledHttpTransport.DEFAULT_IDLE_TIMEOUT_MILLIS, PooledHttpTransport.DEFAULT_CONNECT_TIMEOUT_MILLIS,
+				PooledHttpTransport.DEFAULT_READ_TIMEOUT_MILLIS, PooledHttpTransport.DEFAULT_ACQUIRE_TIMEOUT_MILLIS);
+		try {
+			String target = options.get("target");
+			String apiKey = System.getenv(EnvironmentCredentialProvider.DEFAULT_VARIABLE);
+			if ("mailchimp".equals(target) && apiKey == null) {
+				throw new IllegalArgumentException("Set MAILCHIMP_API_KEY to send to Mail Chimp");
+			}
+			AmazonSESMailChimpMailerImpl mailer = new AmazonSESMailChimpMailerImpl(transport,
+					MailerExecutors.defaultExecutor(), threads, MailerMetrics.NOOP, null,
+					AmazonSESMailChimpMailerImpl.BodyMode.BUFFERED,
+					new InMemoryCredentialProvider(apiKey == null ? PLACEHOLDER_KEY : apiKey));
+			if ("stub".equals(target)) {
+				simulator = simulator();
+				mailer = mailer.withBaseUrl(simulator.getBaseUrl());
+			} else if (!"mailchimp".equals(target)) {
+				mailer = mailer.withBaseUrl(new URL(target));
+			}
+
+			out.printf(Locale.ROOT, "%s loop, %s%d senders, %d connections, %s s after %s s of warm-up%n",
+					open ? "Open" : "Closed", open ? options.get("rate") + " messages/s, " : "", threads,
+					connections == 0 ? threads : connections, options.get("duration"), options.get("warmup"));
+			out.printf(Locale.ROOT, "Messages of %s chars, %s to, %s cc, %s bcc, %s tags, sent to %s%n",
+					options.get("body-size"), options.get("to"), options.get("cc"), options.get("bcc"),
+					options.get("tags"), simulator == null ? target : "the stub at " + simulator.getBaseUrl());
+
+			long warmupNanos = TimeUnit.SECONDS.toNanos(intOption("warmup", 0));
+			if (warmupNanos > 0) {
+				Stats warmup = new Stats();
+				phase(mailer, messages, open, threads, rate, warmupNanos, warmup, null);
+				out.printf(Locale.ROOT, "Warm-up: %d messages%n", warmup.completed());
+			}
+			Stats stats = new Stats();
+			long elapsed = phase(mailer, messages, open, threads, rate,
+					TimeUnit.SECONDS.toNanos(intOption("duration", 1)), stats, out);
+			report(stats, open, elapsed);
+		} finally {
+			transport.close();
+			if (simulator != null) {
+				simulator.close();
+			}
+		}
+	}
+
+	/**
+	 * Sends messages for durationNanos and then waits for those in flight.
+	 * @param progress - receives a line every second, may be null
+	 * @return nanoseconds from the start until the last message completed
+	 */
+	private long phase(final AmazonSESMailChimpMailer mailer, final List<MailInfoDTO> messages, boolean open,
+			int threads, double rate, long durationNanos, final Stats stats, final PrintStream progress)
+			throws InterruptedException {
+		final long start = System.nanoTime();
+		final long end = start + durationNanos;
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(
+				MailerExecutors.daemonThreadFactory("load-progress"));
+		if (progress != null) {
+			reporter.scheduleAtFixedRate(new Runnable() {
+				private long last;
+				private int second;
+
+				@Override
+				public void run() {
+					long completed = stats.completed();
+					progress.printf(Locale.ROOT, "[%4d s] %8d messages/s, %d failed, %d in flight%n", ++second,
+							completed - last, stats.failed.sum(), stats.inFlight.get());
+					last = completed;
+				}
+			}, 1, 1, TimeUnit.SECONDS);
+		}
+		try {
+			if (open) {
+				openLoop(mailer, messages, threads, rate, start, end, stats);
+			} else {
+				closedLoop(mailer, messages, threads, end, stats);
+			}
+		} finally {
+			reporter.shutdownNow();
+		}
+		return (System.nanoTime() - start);
+	}
+
+	private void closedLoop(final AmazonSESMailChimpMailer mailer, final List<MailInfoDTO> messages, int threads,
+			final long end, final Stats stats) throws InterruptedException {
+		final AtomicLong next = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int i = 0; i < threads; i++) {
+			Thread sender = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (System.nanoTime() - end < 0) {
+							MailInfoDTO message = messages.get((int)(next.getAndIncrement() % messages.size()));
+							stats.inFlight.incrementAndGet();
+							long start = System.nanoTime();
+							stats.send(mailer, message, start, start);
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "closed-loop-sender-" + i);
+			sender.setDaemon(true);
+			sender.start();
+		}
+		done.await();
+	}
+
+	/**
+	 * Hands each message to the senders at its due time, start + i / rate. A sender that is late does not delay
+	 * the messages after it, which queue up and are measured from their due time.
+	 */
+	private void openLoop(final AmazonSESMailChimpMailer mailer, final List<MailInfoDTO> messages, int threads,
+			double rate, long start, long end, final Stats stats) throws InterruptedException {
+		ThreadPoolExecutor senders = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), MailerExecutors.daemonThreadFactory("open-loop-sender"));
+		try {
+			double intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+			for (long i = 0;; i++) {
+				final long due = start + (long)(i * intervalNanos);
+				if (due - end >= 0) {
+					break;
+				}
+				long wait;
+				while ((wait = due - System.nanoTime()) > 0) {
+					LockSupport.parkNanos(wait);
+				}
+				final MailInfoDTO message = messages.get((int)(i % messages.size()));
+				stats.inFlight.incrementAndGet();
+				senders.execute(new Runnable() {
+					@Override
+					public void run() {
+						stats.send(mailer, message, due, System.nanoTime());
+					}
+				});
+			}
+		} finally {
+			senders.shutdown();
+			senders.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+
+	private void report(Stats stats, boolean open, long elapsedNanos) {
+		double seconds = elapsedNanos / 1e9;
+		out.println();
+		out.printf(Locale.ROOT, "Completed %d messages in %.2f s: %d accepted, %d rejected, %d failed%n",
+				stats.completed(), seconds, stats.accepted.sum(), stats.rejected.sum(), stats.failed.sum());
+		out.printf(Locale.ROOT, "Throughput: %.1f messages/s%n", stats.completed() / seconds);
+		if (open) {
+			out.printf(Locale.ROOT, "Most messages in flight: %d%n", stats.maxInFlight.get());
+			out.println();
+			out.println("Response time from the due time of each message (ms):");
+			percentiles(stats.responseTime);
+			out.println();
+			out.println("Service time from the start of each send (ms):");
+		} else {
+			out.println();
+			out.println("Latency (ms):");
+		}
+		percentiles(stats.serviceTime);
+	}
+
+	/**
+	 * Prints the percentile distribution of the histogram like HdrHistogram's outputPercentileDistribution: the
+	 * percentiles halve their distance to 100 every PERCENTILE_TICKS_PER_HALF_DISTANCE lines.
+	 */
+	private void percentiles(Histogram histogram) {
+		long total = histogram.getCount();
+		out.printf(Locale.ROOT, "%12s %14s %10s %14s%n%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)");
+		if (total == 0) {
+			return;
+		}
+		double percentile = 0;
+		while (true) {
+			long value = histogram.getValueAtPercentile(percentile);
+			long count = Math.max(1, (long)Math.ceil(percentile / 100 * total));
+			if (percentile < 100) {
+				out.printf(Locale.ROOT, "%12.3f %14.12f %10d %14.2f%n", value / NANOS_PER_MILLI, percentile / 100, count,
+						100 / (100 - percentile));
+			} else {
+				out.printf(Locale.ROOT, "%12.3f %14.12f %10d%n", value / NANOS_PER_MILLI, 1.0, total);
+				break;
+			}
+			//Once the remaining percentiles hold less than one value only the maximum is left
+			if ((100 - percentile) / 100 * total < 1) {
+				percentile = 100;
+				continue;
+			}
+			long halfDistance = 1L << ((long)(Math.log(100 / (100 - percentile)) / Math.log(2)) + 1);
+			percentile += 100.0 / (halfDistance * PERCENTILE_TICKS_PER_HALF_DISTANCE);
+		}
+		out.printf(Locale.ROOT, "#[Mean    = %12.3f, Max            = %12.3f]%n", histogram.getMean() / NANOS_PER_MILLI,
+				histogram.getMax() / NANOS_PER_MILLI);
+		out.printf(Locale.ROOT, "#[p50 = %.3f, p90 = %.3f, p99 = %.3f, p99.9 = %.3f, p99.99 = %.3f, Total count = %d]%n",
+				histogram.getValueAtPercentile(50) / NANOS_PER_MILLI, histogram.getValueAtPercentile(90)
+				/ NANOS_PER_MILLI, histogram.getValueAtPercentile(99) / NANOS_PER_MILLI,
+				histogram.getValueAtPercentile(99.9) / NANOS_PER_MILLI, histogram.getValueAtPercentile(99.99)
+				/ NANOS_PER_MILLI, total);
+	}
+
+	/**
+	 * @return --distinct messages with their own recipients, sharing the body
+	 */
+	private List<MailInfoDTO> messages() throws MailerException {
+		int bodySize = intOption("body-size", 0);
+		int to = intOption("to", 1);
+		int cc = intOption("cc", 0);
+		int bcc = intOption("bcc", 0);
+		int tags = intOption("tags", 0);
+		int distinct = intOption("distinct", 1);
+		String html = Payloads.html(bodySize);
+		List<MailInfoDTO> messages = new ArrayList<MailInfoDTO>(distinct);
+		for (int i = 0; i < distinct; i++) {
+			messages.add(new MailInfoDTO(html, "Load test message " + i, "Load Driver", "load@example.com",
+					Payloads.emails(to, "to" + i), Payloads.names(to), "Plain text version", null,
+					cc == 0 ? null : Payloads.emails(cc, "cc" + i), cc == 0 ? null : Payloads.names(cc),
+					bcc == 0 ? null : Payloads.emails(bcc, "bcc" + i), bcc == 0 ? null : Payloads.names(bcc), false,
+					true, true, tags == 0 ? null : Payloads.tags(tags)));
+		}
+		return (messages);
+	}
+
+	private StsSimulator simulator() throws Exception {
+		//Without TCP_NODELAY small responses wait for the delayed ACK of the client, about 40 ms each. The server
+		//reads the property once, so it only takes effect before the first server of the JVM is created.
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+		StsSimulator simulator = new StsSimulator();
+		String latency = options.get("stub-latency");
+		int comma = latency.indexOf(',');
+		if (comma != -1) {
+			simulator.setLatency(StsSimulator.Latency.logNormal(Double.parseDouble(latency.substring(0, comma)),
+					Double.parseDouble(latency.substring(comma + 1))));
+		} else {
+			simulator.setLatency(StsSimulator.Latency.fixed(Long.parseLong(latency)));
+		}
+		simulator.setErrorRate(doubleOption("stub-error-rate"));
+		simulator.setResetRate(doubleOption("stub-reset-rate"));
+		return (simulator);
+	}
+
+	private int intOption(String name, int min) {
+		int value;
+		try {
+			value = Integer.parseInt(options.get(name));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(name + " must be a whole number: " + options.get(name));
+		}
+		if (value < min) {
+			throw new IllegalArgumentException(name + " must be at least " + min + ": " + value);
+		}
+		return (value);
+	}
+
+	private double doubleOption(String name) {
+		try {
+			return (Double.parseDouble(options.get(name)));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(name + " must be a number: " + options.get(name));
+		}
+	}
+
+	/**
+	 * Outcomes and times of the messages of one phase.
+	 */
+	private static final class Stats {
+		final Histogram responseTime = new Histogram();
+		final Histogram serviceTime = new Histogram();
+		final LongAdder accepted = new LongAdder();
+		final LongAdder rejected = new LongAdder();
+		final LongAdder failed = new LongAdder();
+		final AtomicLong inFlight = new AtomicLong();
+		final AtomicLong maxInFlight = new AtomicLong();
+
+		/**
+		 * @param due - time the message should have started
+		 * @param start - time the send started
+		 */
+		void send(AmazonSESMailChimpMailer mailer, MailInfoDTO message, long due, long start) {
+			long current = inFlight.get();
+			long max;
+			while (current > (max = maxInFlight.get()) && !maxInFlight.compareAndSet(max, current)) {
+				//retry
+			}
+			try {
+				if (mailer.sendMailForResult(message).isAccepted()) {
+					accepted.increment();
+				} else {
+					rejected.increment();
+				}
+			} catch (MailerException e) {
+				failed.increment();
+			} catch (RuntimeException e) {
+				failed.increment();
+			} finally {
+				long now = System.nanoTime();
+				responseTime.record(now - due);
+				serviceTime.record(now - start);
+				inFlight.decrementAndGet();
+			}
+		}
+
+		long completed() {
+			return (accepted.sum() + rejected.sum() + failed.sum());
+		}
+	}
+}
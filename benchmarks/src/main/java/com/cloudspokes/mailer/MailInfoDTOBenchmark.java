@@ -0,0 +1,64 @@
+package com.cloudspokes.mailer;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Construction and validation cost of MailInfoDTO.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MailInfoDTOBenchmark {
+	@Param({ "1", "50" })
+	public int recipients;
+
+	private String html;
+	private List<String> toEmail;
+	private List<String> toName;
+	private List<String> replyTo;
+	private List<String> ccEmail;
+	private List<String> ccName;
+	private List<String> bccEmail;
+	private List<String> bccName;
+	private List<String> tags;
+
+	@Setup
+	public void setUp() {
+		html = Payloads.html(1024);
+		toEmail = Payloads.emails(recipients, "to");
+		toName = Payloads.names(recipients);
+		replyTo = Payloads.emails(1, "reply");
+		ccEmail = Payloads.emails(recipients, "cc");
+		ccName = Payloads.names(recipients);
+		bccEmail = Payloads.emails(recipients, "bcc");
+		bccName = Payloads.names(recipients);
+		tags = Payloads.tags(10);
+	}
+
+	@Benchmark
+	public MailInfoDTO requiredFields() throws MailerException {
+		return (new MailInfoDTO(html, "Subject", "Sender", "sender@example.com", toEmail, toName));
+	}
+
+	@Benchmark
+	public MailInfoDTO allFields() throws MailerException {
+		return (new MailInfoDTO(html, "Subject", "Sender", "sender@example.com", toEmail, toName, "Text", replyTo,
+				ccEmail, ccName, bccEmail, bccName, false, true, true, tags));
+	}
+}
@@ -0,0 +1,80 @@
+package com.cloudspokes.mailer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds realistic messages for the benchmarks.
+ */
+final class Payloads {
+	private static final String NEWSLETTER_BLOCK = "<tr><td class=\"article\" style=\"padding: 10px; font-family: Arial, sans-serif;\">"
+			+ "<h2><a href=\"http://www.example.com/news?id=42&amp;utm_source=newsletter\">Weekly update &#8211; "
+			+ "caf\u00e9 opening</a></h2><p>Lorem ipsum dolor sit amet, consectetur adipiscing elit. Prices from "
+			+ "\u20ac 9.99 / 100% satisfaction!</p></td></tr>\n";
+
+	private Payloads() {
+	}
+
+	/**
+	 * @param size - length of the HTML in chars
+	 * @return HTML newsletter body
+	 */
+	static String html(int size) {
+		StringBuilder sb = new StringBuilder(size);
+		sb.append("<html><body><table>");
+		while (sb.length() < size) {
+			sb.append(NEWSLETTER_BLOCK);
+		}
+		sb.setLength(size);
+		return (sb.toString());
+	}
+
+	/**
+	 * @param count
+	 * @param prefix
+	 * @return count distinct email addresses
+	 */
+	static List<String> emails(int count, String prefix) {
+		List<String> emails = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			emails.add(prefix + ".subscriber" + i + "@example.com");
+		}
+		return (emails);
+	}
+
+	/**
+	 * @param count
+	 * @return count names
+	 */
+	static List<String> names(int count) {
+		List<String> names = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			names.add("Subscriber N\u00famero " + i);
+		}
+		return (names);
+	}
+
+	/**
+	 * @param count
+	 * @return count tags
+	 */
+	static List<String> tags(int count) {
+		List<String> tags = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			tags.add("campaign-tag-" + i);
+		}
+		return (tags);
+	}
+
+	/**
+	 * @param bodySize - length of the HTML body
+	 * @param recipients - number of to addresses
+	 * @return message with all optional fields set
+	 */
+	static MailInfoDTO message(int bodySize, int recipients) throws MailerException {
+		return (new MailInfoDTO(html(bodySize), "Your weekly newsletter", "Example News", "news@example.com",
+				emails(recipients, "to"), names(recipients), "Plain text version of the newsletter",
+				emails(1, "reply"), emails(2, "cc"), names(2), emails(2, "bcc"), names(2), false, true, true,
+				tags(3)));
+	}
+}
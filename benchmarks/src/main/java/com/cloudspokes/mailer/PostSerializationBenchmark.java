@@ -0,0 +1,61 @@
+package com.cloudspokes.mailer;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of turning a MailInfoDTO into post data bytes: the original String based serialization followed by the
+ * UTF-8 conversion httpPost did, against MailInfoSerializer writing into a pooled FormUrlEncoder.
+ * Run with -prof gc to compare the allocation rates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PostSerializationBenchmark {
+	private static final String API_KEY = "0123456789abcdef0123456789abcdef-us2";
+	private static final ApiCredential CREDENTIAL = new ApiCredential(API_KEY);
+
+	@Param({ "1024", "102400", "512000" })
+	public int bodySize;
+
+	@Param({ "1", "50" })
+	public int recipients;
+
+	private MailInfoDTO message;
+
+	@Setup
+	public void setUp() throws MailerException {
+		message = Payloads.message(bodySize, recipients);
+	}
+
+	@Benchmark
+	public byte[] legacyGetPostString() throws IOException {
+		return (LegacyPostSerializer.getPostString(message, API_KEY).getBytes("UTF-8"));
+	}
+
+	@Benchmark
+	public long formUrlEncoder() throws IOException {
+		FormUrlEncoder encoder = FormUrlEncoder.obtain();
+		try {
+			MailInfoSerializer.write(message, CREDENTIAL, encoder);
+			return (encoder.size());
+		} finally {
+			FormUrlEncoder.recycle(encoder);
+		}
+	}
+}
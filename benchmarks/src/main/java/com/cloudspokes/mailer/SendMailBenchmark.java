@@ -0,0 +1,59 @@
+package com.cloudspokes.mailer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The full sendMail path - serialization, pooled HTTP over loopback and response handling - against an
+ * in-process stub of the SendEmail endpoint.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SendMailBenchmark {
+	@Param({ "1024", "102400", "512000" })
+	public int bodySize;
+
+	@Param({ "1", "50" })
+	public int recipients;
+
+	private StubStsServer server;
+	private PooledHttpTransport transport;
+	private AmazonSESMailChimpMailer mailer;
+	private MailInfoDTO message;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		server = new StubStsServer();
+		transport = new PooledHttpTransport();
+		mailer = server.newMailer(transport);
+		message = Payloads.message(bodySize, recipients);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		transport.close();
+		server.stop();
+	}
+
+	@Benchmark
+	public String sendMail() throws MailerException {
+		return (mailer.sendMail(message));
+	}
+}
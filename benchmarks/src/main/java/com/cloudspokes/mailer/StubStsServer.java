@@ -0,0 +1,74 @@
+package com.cloudspokes.mailer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP server which accepts SendEmail posts, discards the body and answers with a "sent" status. Gzip encoded
+ * bodies are decompressed while they are discarded, so the server pays for compression like a real endpoint.
+ */
+final class StubStsServer {
+	/** Key of the mailers of {@link #newMailer(HttpTransport)}, which only the stub accepts. */
+	static final String PLACEHOLDER_KEY = "benchmark-key-us2";
+
+	private static final byte[] SENT_RESPONSE = "[{\"email\":\"to.subscriber0@example.com\",\"status\":\"sent\"}]"
+			.getBytes();
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	StubStsServer() throws IOException {
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+		server.createContext("/1.0/SendEmail", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				InputStream in = exchange.getRequestBody();
+				if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+					in = new GZIPInputStream(in, 16384);
+				}
+				byte[] skip = new byte[16384];
+				while (in.read(skip) != -1) {
+					//discard
+				}
+				exchange.sendResponseHeaders(200, SENT_RESPONSE.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(SENT_RESPONSE);
+				out.close();
+			}
+		});
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	URL getSendEmailUrl() throws IOException {
+		return (new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/1.0/SendEmail"));
+	}
+
+	/**
+	 * @param transport
+	 * @return a mailer posting to this server with the placeholder key, so MAILCHIMP_API_KEY need not be set
+	 */
+	AmazonSESMailChimpMailerImpl newMailer(HttpTransport transport) throws IOException {
+		return (new AmazonSESMailChimpMailerImpl(transport, MailerExecutors.defaultExecutor(),
+				PooledHttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST, MailerMetrics.NOOP, null,
+				AmazonSESMailChimpMailerImpl.BodyMode.BUFFERED, new InMemoryCredentialProvider(PLACEHOLDER_KEY))
+				.withBaseUrl(new URL("http://127.0.0.1:" + server.getAddress().getPort())));
+	}
+
+	void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+}
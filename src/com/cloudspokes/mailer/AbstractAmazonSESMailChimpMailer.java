@@ -0,0 +1,297 @@
+package com.cloudspokes.mailer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Implements {@link #sendMailAsync(MailInfoDTO)}, {@link #sendBatch(Collection)} and
+ * {@link #sendToRecipients(MailInfoDTO, List, List)} on top of {@link #sendMail(MailInfoDTO)}. Asynchronous sends
+ * run on the executor passed to the constructor, and batches and recipient chunks are sent on the same executor
+ * with at most batchConcurrency requests in flight. Mailers which wrap another mailer
+ * extend this class so that asynchronous and batch sends also go through their sendMail.
+ */
+public abstract class AbstractAmazonSESMailChimpMailer implements AmazonSESMailChimpMailer {
+	private final Executor executor;
+	private final int batchConcurrency;
+
+	/**
+	 * @param executor - executor on which asynchronous and batch sends run.
+	 * @param batchConcurrency - maximum number of messages of one batch in flight at the same time.
+	 */
+	protected AbstractAmazonSESMailChimpMailer(Executor executor, int batchConcurrency) {
+		if (executor == null) {
+			throw new IllegalArgumentException("Executor executor cannot be null");
+		}
+		if (batchConcurrency < 1) {
+			throw new IllegalArgumentException("batchConcurrency must be at least 1: " + batchConcurrency);
+		}
+		this.executor = executor;
+		this.batchConcurrency = batchConcurrency;
+	}
+
+	/**
+	 * @return executor on which asynchronous and batch sends run
+	 */
+	protected Executor getExecutor() {
+		return (executor);
+	}
+
+	/**
+	 * @return maximum number of messages of one batch in flight at the same time
+	 */
+	protected int getBatchConcurrency() {
+		return (batchConcurrency);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.cloudspokes.mailer.AmazonSESMailChimpMailer#sendMailAsync(com.cloudspokes.mailer.MailInfoDTO)
+	 */
+	@Override
+	public CompletableFuture<String> sendMailAsync(final MailInfoDTO mailData) {
+		final CompletableFuture<String> future = new CompletableFuture<String>();
+
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						future.complete(sendMail(mailData));
+					} catch (MailerException e) {
+						future.completeExceptionally(e);
+					} catch (RuntimeException e) {
+						future.completeExceptionally(e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(new MailerException("Mail could not be scheduled: " + e.getMessage(), e));
+		}
+
+		return (future);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.cloudspokes.mailer.AmazonSESMailChimpMailer#sendBatch(java.util.Collection)
+	 */
+	@Override
+	public BatchResult sendBatch(Collection<MailInfoDTO> mailData) {
+		final BatchResult result = new BatchResult(new ArrayList<MailInfoDTO>(mailData));
+
+		dispatch(result.size(), new Task() {
+			@Override
+			public void run(int index) throws MailerException {
+				MailInfoDTO message = result.getMailData(index);
+				if (message == null) {
+					throw new MailerException("MailInfoDTO at position " + index + " is null");
+				}
+				result.setStatus(index, sendMail(message));
+			}
+
+			@Override
+			public void fail(int index, MailerException error) {
+				result.setError(index, error);
+			}
+		});
+
+		return (result);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.cloudspokes.mailer.AmazonSESMailChimpMailer#sendToRecipients(com.cloudspokes.mailer.MailInfoDTO, java.util.List, java.util.List)
+	 */
+	@Override
+	public RecipientResult sendToRecipients(final MailInfoDTO mailData, List<String> toEmail, List<String> toName)
+			throws MailerException {
+		if (mailData == null) {
+			throw new MailerException("MailInfoDTO mailData cannot be null");
+		}
+		validateRecipients(toEmail, toName);
+		final List<String> emails = new ArrayList<String>(toEmail);
+		final List<String> names = toName == null ? null : new ArrayList<String>(toName);
+		final RecipientResult result = new RecipientResult(emails, names, MAX_RECIPIENTS);
+		final int copiesChunk = copiesChunk(emails);
+		final ChunkSender sender = newChunkSender(mailData);
+
+		dispatch(result.getChunkCount(), new Task() {
+			@Override
+			public void run(int chunk) throws MailerException {
+				int from = chunk * MAX_RECIPIENTS;
+				int to = Math.min(from + MAX_RECIPIENTS, emails.size());
+				MailInfoDTO message = mailData.withRecipients(emails.subList(from, to),
+						names == null ? null : names.subList(from, to), chunk == copiesChunk);
+				result.setResult(chunk, sender.send(message));
+			}
+
+			@Override
+			public void fail(int chunk, MailerException error) {
+				result.setError(chunk, error);
+			}
+		});
+
+		return (result);
+	}
+
+	/**
+	 * A chunk whose to recipients are all suppressed is not sent, so the cc and bcc recipients go with the first
+	 * chunk which has a to recipient left.
+	 * @param emails - the to recipients of {@link #sendToRecipients(MailInfoDTO, List, List)}
+	 * @return index of the chunk which carries the cc and bcc recipients
+	 */
+	private int copiesChunk(List<String> emails) {
+		for (int i = 0; i < emails.size(); i++) {
+			if (!isSuppressed(emails.get(i))) {
+				return (i / MAX_RECIPIENTS);
+			}
+		}
+		return (0);
+	}
+
+	/**
+	 * Tells {@link #sendToRecipients(MailInfoDTO, List, List)} which recipients the mailer drops before sending.
+	 * Mailers which wrap another mailer answer for it with {@link #isSuppressed(AmazonSESMailChimpMailer, String)}.
+	 * @param email - address of a to recipient
+	 * @return true if messages to the address are not sent. The default is false.
+	 */
+	protected boolean isSuppressed(String email) {
+		return (false);
+	}
+
+	/**
+	 * @param mailer - a wrapped mailer
+	 * @param email - address of a to recipient
+	 * @return true if the mailer drops the address from the messages it sends
+	 */
+	protected static boolean isSuppressed(AmazonSESMailChimpMailer mailer, String email) {
+		return (mailer instanceof AbstractAmazonSESMailChimpMailer
+				&& ((AbstractAmazonSESMailChimpMailer)mailer).isSuppressed(email));
+	}
+
+	/**
+	 * Prepares the sending of the chunks of {@link #sendToRecipients(MailInfoDTO, List, List)}. The default sender
+	 * sends every chunk with {@link #sendMailForResult(MailInfoDTO)}; mailers which serialize messages themselves
+	 * override this to serialize the content shared by all chunks once.
+	 * @param mailData - the message sent to every chunk
+	 * @return sender of the chunks, called concurrently
+	 * @throws MailerException if the message cannot be prepared, in which case no chunk is sent
+	 */
+	protected ChunkSender newChunkSender(MailInfoDTO mailData) throws MailerException {
+		return (new ChunkSender() {
+			@Override
+			public SendResult send(MailInfoDTO chunk) throws MailerException {
+				return (sendMailForResult(chunk));
+			}
+		});
+	}
+
+	/**
+	 * Runs the task for every index on the executor with at most batchConcurrency indexes in flight and waits for
+	 * all of them. A new index is dispatched as soon as one of those in flight completes. If the calling thread is
+	 * interrupted, the indexes not yet dispatched fail, the ones in flight are waited for and the interrupt is
+	 * restored.
+	 * @param count - number of indexes
+	 * @param task
+	 */
+	private void dispatch(int count, final Task task) {
+		final Semaphore permits = new Semaphore(batchConcurrency);
+		final CountDownLatch completed = new CountDownLatch(count);
+		boolean interrupted = false;
+
+		int index = 0;
+		for (; index < count; index++) {
+			final int position = index;
+			try {
+				permits.acquire();
+			} catch (InterruptedException e) {
+				interrupted = true;
+				break;
+			}
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							task.run(position);
+						} catch (MailerException e) {
+							task.fail(position, e);
+						} catch (RuntimeException e) {
+							task.fail(position, new MailerException(String.valueOf(e.getMessage()), e));
+						} finally {
+							permits.release();
+							completed.countDown();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				task.fail(position, new MailerException("Mail could not be scheduled: " + e.getMessage(), e));
+				permits.release();
+				completed.countDown();
+			}
+		}
+
+		for (; index < count; index++) {
+			task.fail(index, new MailerException("Interrupted before the message was sent"));
+			completed.countDown();
+		}
+		while (true) {
+			try {
+				completed.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void validateRecipients(List<String> toEmail, List<String> toName) throws MailerException {
+		if (toEmail == null || toEmail.isEmpty()) {
+			throw new MailerException("List<String> toEmail should contain at least one valid email address");
+		}
+		for (String email : toEmail) {
+			if (email == null || email.equals("")) {
+				throw new MailerException("List<String> toEmail contains null or blank email addresses");
+			}
+			if (!EmailAddresses.isValid(email)) {
+				throw new MailerException("List<String> toEmail contains invalid email address: " + email);
+			}
+		}
+		if (toName != null) {
+			if (toName.size() != toEmail.size()) {
+				throw new MailerException("toEmail.size():" + toEmail.size() + " != toName.size():" + toName.size());
+			}
+			if (toName.contains(null)) {
+				throw new MailerException("List<String> toName contains null names");
+			}
+		}
+	}
+
+	/**
+	 * Sends one chunk of the recipients of {@link AbstractAmazonSESMailChimpMailer#sendToRecipients(MailInfoDTO,
+	 * List, List)}.
+	 */
+	protected interface ChunkSender {
+		/**
+		 * @param chunk - the message with the recipients of the chunk
+		 * @return response of Mail Chimp for the chunk
+		 * @throws MailerException
+		 */
+		SendResult send(MailInfoDTO chunk) throws MailerException;
+	}
+
+	/**
+	 * Work item of {@link AbstractAmazonSESMailChimpMailer#dispatch(int, Task)}.
+	 */
+	private interface Task {
+		void run(int index) throws MailerException;
+
+		void fail(int index, MailerException error);
+	}
+}
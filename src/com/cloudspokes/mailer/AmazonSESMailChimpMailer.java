@@ -1,10 +1,19 @@
 package com.cloudspokes.mailer;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * @author Shashidhar Gurumurthy
  * 
  */
 public interface AmazonSESMailChimpMailer {
+	/**
+	 * Largest number of to, cc or bcc addresses Mail Chimp accepts in one message. 
+	 */
+	public static final int MAX_RECIPIENTS = 50;
+
 	/**
 	 * This method takes the data in the parameter mailData and uses the Mail Chimp API 
 	 * to send a mail. 
@@ -14,4 +23,49 @@ public interface AmazonSESMailChimpMailer {
 	 *         if there is any IO Exception and if the Mail Chimp API call results in any error. 
 	 */
 	public String sendMail(MailInfoDTO mailData) throws MailerException;
+
+	/**
+	 * Sends the mail like {@link #sendMail(MailInfoDTO)} and returns the response of Mail Chimp in typed form. 
+	 * Mail Chimp refusing the message, for example over the daily quota, is reported in the result rather than 
+	 * thrown. The default implementation parses the response returned by sendMail. 
+	 * @param mailData
+	 * @return the parsed response
+	 * @throws MailerException for the same reasons as sendMail, or if the response cannot be parsed. 
+	 */
+	public default SendResult sendMailForResult(MailInfoDTO mailData) throws MailerException {
+		return (SendResult.parse(sendMail(mailData)));
+	}
+
+	/**
+	 * Non-blocking variant of {@link #sendMail(MailInfoDTO)}. The message is sent on the mailer's executor and the 
+	 * calling thread returns immediately. 
+	 * @param mailData
+	 * @return future completed with the status returned by Mail Chimp, or completed exceptionally with the 
+	 *         MailerException that sendMail would have thrown. 
+	 */
+	public CompletableFuture<String> sendMailAsync(MailInfoDTO mailData);
+
+	/**
+	 * Sends a batch of distinct messages concurrently and waits until every message has been sent or has failed. 
+	 * A failed message does not stop the rest of the batch. 
+	 * @param mailData
+	 * @return per message results in the iteration order of mailData
+	 */
+	public BatchResult sendBatch(Collection<MailInfoDTO> mailData);
+
+	/**
+	 * Sends one message to any number of recipients. The recipients are split into chunks of at most 
+	 * {@link #MAX_RECIPIENTS}, each sent as its own request with the content of mailData, and the chunks are sent 
+	 * concurrently. The to recipients of mailData are replaced by each chunk; its cc and bcc recipients are only 
+	 * sent with the first chunk so that they receive one copy. When the mailer drops suppressed recipients, that is 
+	 * the first chunk which has a to recipient left. A failed chunk does not stop the others. 
+	 * @param mailData - the message to send
+	 * @param toEmail - addresses of the recipients
+	 * @param toName - names of the recipients, in the order of toEmail. If null, names are not sent. 
+	 * @return per recipient results in the order of toEmail
+	 * @throws MailerException if toEmail is empty or contains null, blank or invalid addresses, or toName does not have 
+	 *         the same number of elements or contains null names. 
+	 */
+	public RecipientResult sendToRecipients(MailInfoDTO mailData, List<String> toEmail, List<String> toName)
+			throws MailerException;
 }
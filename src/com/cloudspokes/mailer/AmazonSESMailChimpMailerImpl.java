@@ -2,196 +2,520 @@ package com.cloudspokes.mailer;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
-import java.io.Writer;
-import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLEncoder;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Executor;
 
 /**
  * @author Shashidhar Gurumurthy
  * This is the main class used to send mail. 
  * It uses the Mailchimp URL and constructs the form url encoded post parameters to send the message. 
  * It makes the following assumptions: 
- * 1. The Mailchimp API Key is registered in the system environment under the key - MAILCHIMP_API_KEY. 
+ * 1. The Mailchimp API Key is registered in the system environment under the key - MAILCHIMP_API_KEY, unless 
+ *    another {@link CredentialProvider} is passed to the constructor. {@link #forTenant(String)} gives a mailer 
+ *    which sends with the key of a tenant. 
+ * Messages are posted to the STS host of the datacenter named by the suffix of the key, such as us5 for a key 
+ * ending in -us5. An {@link EndpointRouter} transport can send them to other or several endpoints instead, and 
+ * {@link #withBaseUrl(URL)} gives a mailer which posts to another host, such as a local {@link StsSimulator}. 
+ * Requests are sent through a {@link HttpTransport}. Unless one is passed to the constructor, all mailers share a
+ * {@link PooledHttpTransport} so that connections to Mail Chimp are kept alive between messages. 
+ * Asynchronous sends run on the executor passed to the constructor, by default one virtual thread per message 
+ * where the JVM supports it and otherwise a pool as large as the connection limit of the pooled transport. Batches are sent on the same executor with at most batchConcurrency messages in 
+ * flight, which by default matches the connection limit of the pooled transport. 
+ * Serialization time, payload size and the outcome of every message are reported to the {@link MailerMetrics} 
+ * passed to the constructor; the transport reports the timings of the HTTP exchange. 
+ * A message sent to more recipients than one request allows is serialized once without its recipients; every 
+ * chunk of recipients is then posted after that shared content. 
+ * With a {@link SerializedMessageCache}, large messages are serialized once and their bytes are posted again when 
+ * the same message is retried or resent. 
+ * In the streaming {@link BodyMode}s a message is encoded straight onto the connection through a small buffer, so 
+ * the memory a send takes does not depend on the size of the message. 
  */
-public class AmazonSESMailChimpMailerImpl implements AmazonSESMailChimpMailer {
-	private final String SINGLE_PARM_VALUE_PATTERN = "%s=%s&";
-	private final String SERVER = "us2";
-	private final String SEND_MAIL_URL = "http://" + SERVER
-			+ ".sts.mailchimp.com/1.0/SendEmail";
-	private final String API_KEY_ENV_VARIABLE = "MAILCHIMP_API_KEY";
-
-	private final String KEY_APIKEY = "apikey";
-	private final String KEY_MESG_HTML = "message[html]";
-	private final String KEY_MESG_TEXT = "message[text]";
-	private final String KEY_MESG_SUBJECT = "message[subject]";
-	private final String KEY_MESG_FROM_NAME = "message[from_name]";
-	private final String KEY_MESG_FROM_EMAIL = "message[from_email]";
-	private final String KEY_MESG_REPLY_TO = "message[reply_to]";
-	private final String KEY_MESG_TO_EMAIL = "message[to_email]";
-	private final String KEY_MESG_TO_NAME = "message[to_name]";
-	private final String KEY_MESG_CC_EMAIL = "message[cc_email]";
-	private final String KEY_MESG_CC_NAME = "message[cc_name]";
-	private final String KEY_MESG_BCC_EMAIL = "message[bcc_email]";
-	private final String KEY_MESG_BCC_NAME = "message[bcc_name]";
-	private final String KEY_AUTOGEN_HTML = "message[autogen_html]";
-	private final String KEY_TRACK_OPENS = "track_opens";
-	private final String KEY_TRACK_CLICKS = "track_clicks";
-	private final String KEY_TAGS = "tags";
+public class AmazonSESMailChimpMailerImpl extends AbstractAmazonSESMailChimpMailer {
+	private static final HttpTransport DEFAULT_TRANSPORT = new PooledHttpTransport();
+	private static final CredentialProvider DEFAULT_CREDENTIALS = new EnvironmentCredentialProvider();
+
+	private static final String DEFAULT_DATACENTER = "us2";
+	/** Path of the SendEmail call, on the STS host or after the base URL given to {@link #withBaseUrl(URL)}. */
+	public static final String SEND_EMAIL_PATH = "/1.0/SendEmail";
+	private static final String SEND_MAIL_PATH = ".sts.mailchimp.com" + SEND_EMAIL_PATH;
+	private final String CONTENT_TYPE = "application/x-www-form-urlencoded";
+	private static final int MAX_ERROR_BODY_LENGTH = 1024;
+	private static final String SENT_STATUS = "\"status\":\"sent\"";
+	private static final String QUEUED_STATUS = "\"status\":\"queued\"";
+	private static final String SUPPRESSED_RESPONSE = "{\"status\":\"" + SendResult.STATUS_SUPPRESSED + "\"}";
+	//Parses the response straight from the connection, it is never buffered as a String
+	private static final StatusHandler<SendResult> RESULT_HANDLER = new StatusHandler<SendResult>() {
+		@Override
+		public SendResult handleResponse(int statusCode, String reasonPhrase, InputStream in) throws IOException {
+			return (SendResultParser.parse(in));
+		}
+
+		@Override
+		MailerMetrics.Outcome outcomeOf(SendResult result) {
+			if (SendResult.STATUS_SENT.equals(result.getStatus())) {
+				return (MailerMetrics.Outcome.SENT);
+			}
+			return (SendResult.STATUS_QUEUED.equals(result.getStatus()) ? MailerMetrics.Outcome.QUEUED
+					: MailerMetrics.Outcome.REJECTED);
+		}
+
+		@Override
+		SendResult suppressed() {
+			return (new SendResult(SendResult.STATUS_SUPPRESSED, null, null, null, null));
+		}
+	};
+
+	private final HttpTransport transport;
+	private final MailerMetrics metrics;
+	private final SerializedMessageCache messageCache;
+	private final BodyMode bodyMode;
+	private final CredentialProvider credentials;
+	private final String tenantId;
+	private final SuppressionList suppressionList;
+	private final URL sendMailUrl;
+
+	/**
+	 * How the post data of a message is written to the transport. 
+	 */
+	public enum BodyMode {
+		/** The message is encoded into a pooled buffer and written with a Content-Length. */
+		BUFFERED,
+		/** The message is encoded twice, once to count its bytes and once onto the connection. */
+		FIXED_LENGTH,
+		/** The message is encoded once onto the connection with chunked transfer encoding. */
+		CHUNKED
+	}
+
+	/**
+	 * Creates a mailer which uses the shared pooled transport. 
+	 */
+	public AmazonSESMailChimpMailerImpl() {
+		this(DEFAULT_TRANSPORT);
+	}
+
+	/**
+	 * @param transport - transport used to post the messages to Mail Chimp. 
+	 */
+	public AmazonSESMailChimpMailerImpl(HttpTransport transport) {
+		this(transport, MailerExecutors.defaultExecutor());
+	}
+
+	/**
+	 * @param transport - transport used to post the messages to Mail Chimp. 
+	 * @param executor - executor on which {@link #sendMailAsync(MailInfoDTO)} sends the messages. 
+	 */
+	public AmazonSESMailChimpMailerImpl(HttpTransport transport, Executor executor) {
+		this(transport, executor, PooledHttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST);
+	}
+
+	/**
+	 * @param transport - transport used to post the messages to Mail Chimp. 
+	 * @param executor - executor on which asynchronous and batch sends run. 
+	 * @param batchConcurrency - maximum number of messages of one batch in flight at the same time. 
+	 */
+	public AmazonSESMailChimpMailerImpl(HttpTransport transport, Executor executor, int batchConcurrency) {
+		this(transport, executor, batchConcurrency, MailerMetrics.NOOP);
+	}
+
+	/**
+	 * @param transport - transport used to post the messages to Mail Chimp. 
+	 * @param executor - executor on which asynchronous and batch sends run. 
+	 * @param batchConcurrency - maximum number of messages of one batch in flight at the same time. 
+	 * @param metrics - receives the serialization time, payload size and outcome of every message. 
+	 */
+	public AmazonSESMailChimpMailerImpl(HttpTransport transport, Executor executor, int batchConcurrency,
+			MailerMetrics metrics) {
+		this(transport, executor, batchConcurrency, metrics, null);
+	}
+
+	/**
+	 * @param transport - transport used to post the messages to Mail Chimp. 
+	 * @param executor - executor on which asynchronous and batch sends run. 
+	 * @param batchConcurrency - maximum number of messages of one batch in flight at the same time. 
+	 * @param metrics - receives the serialization time, payload size and outcome of every message. 
+	 * @param messageCache - keeps large serialized messages so that retries and repeated sends of the same 
+	 *    message are not encoded again. If null, every send serializes its message. 
+	 */
+	public AmazonSESMailChimpMailerImpl(HttpTransport transport, Executor executor, int batchConcurrency,
+			MailerMetrics metrics, SerializedMessageCache messageCache) {
+		this(transport, executor, batchConcurrency, metrics, messageCache, BodyMode.BUFFERED);
+	}
+
+	/**
+	 * @param transport - transport used to post the messages to Mail Chimp. 
+	 * @param executor - executor on which asynchronous and batch sends run. 
+	 * @param batchConcurrency - maximum number of messages of one batch in flight at the same time. 
+	 * @param metrics - receives the serialization time, payload size and outcome of every message. 
+	 * @param messageCache - keeps large serialized messages so that retries and repeated sends of the same 
+	 *    message are not encoded again. If null, every send serializes its message. Cached messages are posted 
+	 *    from the cache in every body mode, but only BUFFERED sends add messages to it. 
+	 * @param bodyMode - how messages are written to the transport. 
+	 */
+	public AmazonSESMailChimpMailerImpl(HttpTransport transport, Executor executor, int batchConcurrency,
+			MailerMetrics metrics, SerializedMessageCache messageCache, BodyMode bodyMode) {
+		this(transport, executor, batchConcurrency, metrics, messageCache, bodyMode, DEFAULT_CREDENTIALS);
+	}
+
+	/**
+	 * @param transport - transport used to post the messages to Mail Chimp. 
+	 * @param executor - executor on which asynchronous and batch sends run. 
+	 * @param batchConcurrency - maximum number of messages of one batch in flight at the same time. 
+	 * @param metrics - receives the serialization time, payload size and outcome of every message. 
+	 * @param messageCache - keeps large serialized messages so that retries and repeated sends of the same 
+	 *    message are not encoded again. If null, every send serializes its message. Cached messages are posted 
+	 *    from the cache in every body mode, but only BUFFERED sends add messages to it. 
+	 * @param bodyMode - how messages are written to the transport. 
+	 * @param credentials - supplies the API key of every send; this mailer uses the default key. 
+	 */
+	public AmazonSESMailChimpMailerImpl(HttpTransport transport, Executor executor, int batchConcurrency,
+			MailerMetrics metrics, SerializedMessageCache messageCache, BodyMode bodyMode,
+			CredentialProvider credentials) {
+		this(transport, executor, batchConcurrency, metrics, messageCache, bodyMode, credentials, null, null, null);
+	}
+
+	private AmazonSESMailChimpMailerImpl(HttpTransport transport, Executor executor, int batchConcurrency,
+			MailerMetrics metrics, SerializedMessageCache messageCache, BodyMode bodyMode,
+			CredentialProvider credentials, String tenantId, SuppressionList suppressionList, URL sendMailUrl) {
+		super(executor, batchConcurrency);
+		if (transport == null) {
+			throw new IllegalArgumentException("HttpTransport transport cannot be null");
+		}
+		if (metrics == null) {
+			throw new IllegalArgumentException("MailerMetrics metrics cannot be null, use MailerMetrics.NOOP");
+		}
+		this.transport = transport;
+		this.metrics = metrics;
+		if (bodyMode == null) {
+			throw new IllegalArgumentException("BodyMode bodyMode cannot be null");
+		}
+		if (credentials == null) {
+			throw new IllegalArgumentException("CredentialProvider credentials cannot be null");
+		}
+		this.messageCache = messageCache;
+		this.bodyMode = bodyMode;
+		this.credentials = credentials;
+		this.tenantId = tenantId;
+		this.suppressionList = suppressionList;
+		this.sendMailUrl = sendMailUrl;
+	}
+
+	/**
+	 * @param tenantId - tenant whose key the returned mailer sends with, or null for the default key
+	 * @return a mailer sharing the transport, executor, metrics, cache, credentials, suppression list and base 
+	 *    URL of this one, which sends every message with the key of the tenant. 
+	 */
+	public AmazonSESMailChimpMailerImpl forTenant(String tenantId) {
+		return (new AmazonSESMailChimpMailerImpl(transport, getExecutor(), getBatchConcurrency(), metrics, 
+				messageCache, bodyMode, credentials, tenantId, suppressionList, sendMailUrl));
+	}
+
+	/**
+	 * @param suppressionList - addresses the returned mailer drops from every message, or null to drop none
+	 * @return a mailer sharing everything else with this one. Suppressed to, cc and bcc recipients are dropped 
+	 *    before the message is serialized and counted with {@link MailerMetrics#recipientsSuppressed(int)}. A 
+	 *    message whose to recipients are all suppressed is not sent; sendMailForResult returns a result with the 
+	 *    status {@link SendResult#STATUS_SUPPRESSED} and sendMail a response holding that status. 
+	 */
+	public AmazonSESMailChimpMailerImpl withSuppressionList(SuppressionList suppressionList) {
+		return (new AmazonSESMailChimpMailerImpl(transport, getExecutor(), getBatchConcurrency(), metrics, 
+				messageCache, bodyMode, credentials, tenantId, suppressionList, sendMailUrl));
+	}
+
+	/**
+	 * @param baseUrl - scheme, host, port and optional path prefix the returned mailer posts SendEmail to, such as 
+	 *    http://127.0.0.1:8080 for a local simulator, or null to post to the STS host of the datacenter of the key
+	 * @return a mailer sharing everything else with this one
+	 */
+	public AmazonSESMailChimpMailerImpl withBaseUrl(URL baseUrl) {
+		URL url = null;
+		if (baseUrl != null) {
+			String base = baseUrl.toExternalForm();
+			try {
+				url = new URL((base.endsWith("/") ? base.substring(0, base.length() - 1) : base) + SEND_EMAIL_PATH);
+			} catch (MalformedURLException e) {
+				throw new IllegalArgumentException("URL baseUrl cannot be extended with the SendEmail path: " + base, e);
+			}
+		}
+		return (new AmazonSESMailChimpMailerImpl(transport, getExecutor(), getBatchConcurrency(), metrics, 
+				messageCache, bodyMode, credentials, tenantId, suppressionList, url));
+	}
+
+	/**
+	 * @return addresses dropped from every message, null if there are none
+	 */
+	public SuppressionList getSuppressionList() {
+		return (suppressionList);
+	}
+
+	/**
+	 * @return tenant whose key this mailer sends with, null for the default key
+	 */
+	public String getTenantId() {
+		return (tenantId);
+	}
 
 	/* (non-Javadoc)
 	 * @see com.cloudspokes.mailer.AmazonSESMailChimpMailer#sendMail(com.cloudspokes.mailer.MailInfoDTO)
 	 */
 	@Override
 	public String sendMail(MailInfoDTO mailData) throws MailerException {
-		String apiKey = System.getenv(API_KEY_ENV_VARIABLE);
-		String sendStatusMessage = null;
-		
-		if (apiKey == null) {
-			throw new MailerException("Mail Chimp API KEY is not bound to System Environment Variable: " + API_KEY_ENV_VARIABLE);
-		}
-		
+		return (send(mailData, new StatusHandler<String>() {
+			@Override
+			public String handleResponse(int statusCode, String reasonPhrase, InputStream in) throws IOException {
+				// Buffer the result into a string
+				BufferedReader rd = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+				StringBuilder sb = new StringBuilder();
+				String line;
+				while ((line = rd.readLine()) != null) {
+					sb.append(line);
+				}
+				rd.close();
+
+				return sb.toString();
+			}
+
+			@Override
+			MailerMetrics.Outcome outcomeOf(String status) {
+				if (status.contains(SENT_STATUS)) {
+					return (MailerMetrics.Outcome.SENT);
+				}
+				return (status.contains(QUEUED_STATUS) ? MailerMetrics.Outcome.QUEUED : MailerMetrics.Outcome.REJECTED);
+			}
+
+			@Override
+			String suppressed() {
+				return (SUPPRESSED_RESPONSE);
+			}
+		}));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.cloudspokes.mailer.AmazonSESMailChimpMailer#sendMailForResult(com.cloudspokes.mailer.MailInfoDTO)
+	 */
+	@Override
+	public SendResult sendMailForResult(MailInfoDTO mailData) throws MailerException {
+		return (send(mailData, RESULT_HANDLER));
+	}
+
+	/**
+	 * Serializes everything but the recipients once; each chunk then only serializes its own recipients and is 
+	 * posted as the shared content followed by them. 
+	 * @see com.cloudspokes.mailer.AbstractAmazonSESMailChimpMailer#newChunkSender(com.cloudspokes.mailer.MailInfoDTO)
+	 */
+	@Override
+	protected ChunkSender newChunkSender(MailInfoDTO mailData) throws MailerException {
+		final ApiCredential credential = credentials.getCredential(tenantId);
+		final byte[] content;
+		FormUrlEncoder encoder = FormUrlEncoder.obtain();
 		try {
-			String postData = getPostString(mailData, apiKey);
-			sendStatusMessage = httpPost(SEND_MAIL_URL, postData);
-		} catch (UnsupportedEncodingException e) {
-			throw new MailerException(e.getMessage(), e);
+			MailInfoSerializer.writeContent(mailData, credential, encoder);
+			content = encoder.toByteArray();
 		} catch (IOException e) {
 			throw new MailerException(e.getMessage(), e);
+		} finally {
+			FormUrlEncoder.recycle(encoder);
 		}
-		
-		return (sendStatusMessage);
+
+		return (new ChunkSender() {
+			@Override
+			public SendResult send(MailInfoDTO chunk) throws MailerException {
+				return (AmazonSESMailChimpMailerImpl.this.send(chunk, credential, content, RESULT_HANDLER));
+			}
+		});
+	}
+
+	/* (non-Javadoc)
+	 * @see com.cloudspokes.mailer.AbstractAmazonSESMailChimpMailer#isSuppressed(java.lang.String)
+	 */
+	@Override
+	protected boolean isSuppressed(String email) {
+		return (suppressionList != null && suppressionList.isSuppressed(email));
+	}
+
+	private <T> T send(MailInfoDTO mailData, StatusHandler<T> handler) throws MailerException {
+		return (send(mailData, credentials.getCredential(tenantId), null, handler));
 	}
 
 	/**
-	 * This is a utility method to serialize the MailInfoDTO to a URL Encoded
-	 * post data
-	 * 
+	 * Serializes the message and posts it to Mail Chimp. 
 	 * @param mailData
-	 * @return
-	 * @throws UnsupportedEncodingException 
-	 */
-	private String getPostString(MailInfoDTO mailData, String apiKey) throws UnsupportedEncodingException {
-		String postData = null;
-
-		Map<String, String> stringData = new HashMap<String, String>();
-		Map<String, List<String>> listData = new HashMap<String, List<String>>();
-
-		stringData.put(KEY_APIKEY, apiKey);
-		stringData.put(KEY_MESG_HTML, mailData.getHtmlEmailContent());
-		stringData.put(KEY_MESG_TEXT, mailData.getTextEmailContent());
-		stringData.put(KEY_MESG_SUBJECT, mailData.getSubject());
-		stringData.put(KEY_MESG_FROM_NAME, mailData.getFromName());
-		stringData.put(KEY_MESG_FROM_EMAIL, mailData.getFromEmail());
-		stringData.put(KEY_AUTOGEN_HTML, String.valueOf(mailData
-				.isAutogenHtml()));
-		stringData
-				.put(KEY_TRACK_OPENS, String.valueOf(mailData.isTrackOpens()));
-		stringData.put(KEY_TRACK_CLICKS, String.valueOf(mailData
-				.isTrackClicks()));
-
-		listData.put(KEY_MESG_REPLY_TO, mailData.getReplyTo());
-		listData.put(KEY_MESG_TO_EMAIL, mailData.getToEmail());
-		listData.put(KEY_MESG_TO_NAME, mailData.getToName());
-		listData.put(KEY_MESG_CC_EMAIL, mailData.getCcEmail());
-		listData.put(KEY_MESG_CC_NAME, mailData.getCcName());
-		listData.put(KEY_MESG_BCC_EMAIL, mailData.getBccEmail());
-		listData.put(KEY_MESG_BCC_NAME, mailData.getBccName());
-		listData.put(KEY_TAGS, mailData.getTags());
-
-		return (processStringParms(stringData) + processListParms(listData));
-	}
-
-	/**
-	 * This is a utility method to create a form url encoded post data. Any parameters with null values are ignored. 
-	 * @param stringData - Map containing parameter keys and corresponding values.
-	 * @return encoded post data for all the String parameters passed in. 
-	 * @throws UnsupportedEncodingException
-	 */
-	private String processStringParms(Map<String, String> stringData)
-			throws UnsupportedEncodingException {
-		StringBuilder sb = new StringBuilder();
-
-		for (String key : stringData.keySet()) {
-			if (stringData.get(key) != null) {
-				sb.append(String.format(SINGLE_PARM_VALUE_PATTERN, key,
-						URLEncoder.encode(stringData.get(key), "UTF-8")));
+	 * @param credential - the key to send with
+	 * @param content - serialized parameters other than the recipients, shared by several sends of the message, 
+	 *    or null to serialize the whole message
+	 * @param handler - reads the body of a successful response
+	 * @return value returned by the handler
+	 * @throws MailerException
+	 */
+	private <T> T send(MailInfoDTO mailData, ApiCredential credential, byte[] content, StatusHandler<T> handler)
+			throws MailerException {
+		String apiKey = credential.getApiKey();
+		metrics.sendStarted();
+		long start = System.nanoTime();
+		MailerMetrics.Outcome outcome = MailerMetrics.Outcome.FAILED;
+		FormUrlEncoder postData = FormUrlEncoder.obtain();
+		try {
+			//A copy without suppressed recipients is not worth caching, it is not sent again
+			SerializedMessageCache cache = messageCache;
+			if (suppressionList != null) {
+				MailInfoDTO filtered = suppressionList.filter(mailData, metrics);
+				if (filtered == null) {
+					outcome = MailerMetrics.Outcome.SUPPRESSED;
+					return (handler.suppressed());
+				}
+				cache = filtered == mailData ? cache : null;
+				mailData = filtered;
+			}
+			RequestBody body;
+			StreamingMailRequestBody chunkedBody = null;
+			if (content == null) {
+				byte[] payload = cache == null ? null : cache.get(mailData, apiKey);
+				if (payload != null) {
+					body = new ByteArrayRequestBody(CONTENT_TYPE, payload);
+				} else if (bodyMode == BodyMode.FIXED_LENGTH) {
+					body = new StreamingMailRequestBody(CONTENT_TYPE, mailData, credential, 
+							StreamingMailRequestBody.measure(mailData, credential));
+				} else if (bodyMode == BodyMode.CHUNKED) {
+					chunkedBody = new StreamingMailRequestBody(CONTENT_TYPE, mailData, credential, -1);
+					body = chunkedBody;
+				} else {
+					MailInfoSerializer.write(mailData, credential, postData);
+					payload = cache == null ? null : cache.put(mailData, apiKey, postData);
+					body = payload != null ? new ByteArrayRequestBody(CONTENT_TYPE, payload)
+							: new ByteArrayRequestBody(CONTENT_TYPE, postData.buffer(), 0, (int)postData.size());
+				}
+			} else {
+				MailInfoSerializer.writeRecipients(mailData, postData);
+				body = new ContentAndRecipientsBody(content, postData);
+			}
+			if (chunkedBody == null) {
+				metrics.serialized(System.nanoTime() - start, body.getContentLength());
+			}
+			T result = httpPost(sendMailUrl != null ? sendMailUrl : credential.getSendMailUrl(), body, handler);
+			if (chunkedBody != null) {
+				metrics.streamed(chunkedBody.getWritten());
 			}
+			outcome = handler.outcomeOf(result);
+			return (result);
+		} catch (IOException e) {
+			throw new MailerException(e.getMessage(), e);
+		} finally {
+			FormUrlEncoder.recycle(postData);
+			metrics.sendCompleted(outcome, System.nanoTime() - start);
 		}
+	}
 
-		return (sb.toString());
+	/**
+	 * @param apiKey
+	 * @return URL of the SendEmail call on the STS host of the datacenter of the key
+	 * @throws MalformedURLException
+	 */
+	public static URL getSendMailUrl(String apiKey) throws MalformedURLException {
+		return (new URL("http://" + getDatacenter(apiKey) + SEND_MAIL_PATH));
 	}
 
 	/**
-	 * This is a utility method to create a form url encoded post data. Any parameters with null values are ignored. 
-	 * @param listData - Map containing parameter keys and corresponding list values.
-	 * @return encoded post data for all the List parameters passed in. 
-	 * @throws UnsupportedEncodingException
+	 * Mail Chimp keys end with the datacenter of the account after a dash, such as us5 in 0123abcd-us5. 
+	 * @param apiKey
+	 * @return the datacenter of the key, or us2 if the key does not name one
 	 */
-	private String processListParms(Map<String, List<String>> listData)
-			throws UnsupportedEncodingException {
-		StringBuilder sb = new StringBuilder();
+	public static String getDatacenter(String apiKey) {
+		int dash = apiKey.lastIndexOf('-');
+		int length = apiKey.length();
+		int i = dash + 1;
+		while (i < length && apiKey.charAt(i) >= 'a' && apiKey.charAt(i) <= 'z') {
+			i++;
+		}
+		int digits = i;
+		while (i < length && apiKey.charAt(i) >= '0' && apiKey.charAt(i) <= '9') {
+			i++;
+		}
+		if (dash == -1 || digits == dash + 1 || i == digits || i != length) {
+			return (DEFAULT_DATACENTER);
+		}
+		return (apiKey.substring(dash + 1));
+	}
 
-		for (String key : listData.keySet()) {
-			List<String> data = listData.get(key);
-			if (data != null) {
-				for (int i = 0; i < data.size(); i++) {
-					sb.append(String.format(SINGLE_PARM_VALUE_PATTERN, key
-							+ "[" + i + "]", URLEncoder.encode(data.get(i),
-							"UTF-8")));
+	/**
+	 * Utility method to take an URL and corresponding post body and post the same to the URL. 
+	 * @param url 
+	 * @param body - the url encoded post data
+	 * @param handler - reads the body of a successful response
+	 * @return status of the call
+	 * @throws IOException
+	 */
+	private <T> T httpPost(URL url, RequestBody body, final ResponseHandler<T> handler)
+			throws IOException {
+		return (transport.post(url, body, new ResponseHandler<T>() {
+			@Override
+			public T handleResponse(int statusCode, String reasonPhrase, InputStream in) throws IOException {
+				if (statusCode != 200) {
+					throw new HttpStatusException(statusCode, reasonPhrase, readErrorBody(in));
 				}
+				return (handler.handleResponse(statusCode, reasonPhrase, in));
 			}
+		}));
+	}
+
+	/**
+	 * Reads the start of an error response, which explains the failure in Mail Chimp's words.
+	 * @param in
+	 * @return at most MAX_ERROR_BODY_LENGTH characters of the body
+	 * @throws IOException
+	 */
+	private static String readErrorBody(InputStream in) throws IOException {
+		InputStreamReader reader = new InputStreamReader(in, "UTF-8");
+		char[] buffer = new char[MAX_ERROR_BODY_LENGTH];
+		int length = 0;
+		int read;
+		while (length < buffer.length && (read = reader.read(buffer, length, buffer.length - length)) != -1) {
+			length += read;
+		}
+		return (new String(buffer, 0, length));
+	}
+
+	/**
+	 * Body of one chunk of a message sent to many recipients: the content shared by all chunks followed by the 
+	 * recipients of the chunk. Neither is copied. 
+	 */
+	private class ContentAndRecipientsBody implements RequestBody {
+		private final byte[] content;
+		private final FormUrlEncoder recipients;
+
+		ContentAndRecipientsBody(byte[] content, FormUrlEncoder recipients) {
+			this.content = content;
+			this.recipients = recipients;
 		}
 
-		return (sb.toString());
+		@Override
+		public String getContentType() {
+			return (CONTENT_TYPE);
+		}
+
+		@Override
+		public long getContentLength() {
+			return (content.length + recipients.size());
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			out.write(content);
+			out.write(recipients.buffer(), 0, (int)recipients.size());
+		}
 	}
 
 	/**
-	 * Utility method to take an URL String and corresponding postData and post the same to the URL. 
-	 * @param urlStr 
-	 * @param postData
-	 * @return status of the call
-	 * @throws IOException
+	 * Reads the body of a successful response and tells how the send ended. 
 	 */
-	private String httpPost(String urlStr, String postData) throws IOException {
-		URL url = new URL(urlStr);
-		HttpURLConnection conn = (HttpURLConnection)url.openConnection();
-		conn.setRequestMethod("POST");
-		conn.setDoOutput(true);
-		conn.setDoInput(true);
-		conn.setUseCaches(false);
-		conn.setAllowUserInteraction(false);
-		conn.setRequestProperty("Content-Type",	"application/x-www-form-urlencoded");
-
-		OutputStream out = conn.getOutputStream();
-		Writer writer = new OutputStreamWriter(out, "UTF-8");
-		writer.write(postData);
-		writer.close();
-		out.close();
-
-		if (conn.getResponseCode() != 200) {
-			System.out.println(conn.getResponseCode());
-			System.out.println(postData);
-			throw new IOException(conn.getResponseMessage());
-		}
-
-		// Buffer the result into a string
-		BufferedReader rd = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-		StringBuilder sb = new StringBuilder();
-		String line;
-		while ((line = rd.readLine()) != null) {
-			sb.append(line);
-		}
-		rd.close();
-
-		conn.disconnect();
-		return sb.toString();
+	private abstract static class StatusHandler<T> implements ResponseHandler<T> {
+		abstract MailerMetrics.Outcome outcomeOf(T result);
+
+		/**
+		 * @return the value returned for a message which was not sent because its recipients are suppressed
+		 */
+		abstract T suppressed();
 	}
 }
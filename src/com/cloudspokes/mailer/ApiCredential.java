@@ -0,0 +1,74 @@
+package com.cloudspokes.mailer;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * A Mail Chimp API key prepared for sending: the apikey parameter is url encoded once, and the SendEmail URL of
+ * the datacenter the key belongs to is built once, so a send neither looks up nor encodes anything for its key.
+ * Instances are immutable and are handed out by a {@link CredentialProvider}.
+ */
+public final class ApiCredential {
+	private static final byte[] KEY_APIKEY = FormUrlEncoder.key("apikey");
+
+	private final String apiKey;
+	private final String datacenter;
+	private final URL sendMailUrl;
+	private final byte[] encodedField;
+
+	/**
+	 * @param apiKey - Mail Chimp API key, ending in the datacenter of the account such as -us5
+	 */
+	public ApiCredential(String apiKey) {
+		if (apiKey == null || apiKey.trim().isEmpty()) {
+			throw new IllegalArgumentException("String apiKey cannot be null or blank");
+		}
+		this.apiKey = apiKey;
+		this.datacenter = AmazonSESMailChimpMailerImpl.getDatacenter(apiKey);
+		try {
+			this.sendMailUrl = AmazonSESMailChimpMailerImpl.getSendMailUrl(apiKey);
+			FormUrlEncoder encoder = new FormUrlEncoder(KEY_APIKEY.length + apiKey.length() * 3 + 1);
+			encoder.writeField(KEY_APIKEY, apiKey);
+			this.encodedField = encoder.toByteArray();
+		} catch (MalformedURLException e) {
+			throw new IllegalArgumentException("Datacenter of the API key does not make a valid URL: " + datacenter, e);
+		} catch (IOException e) {
+			//A buffering encoder does not write to a stream
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public String getApiKey() {
+		return (apiKey);
+	}
+
+	/**
+	 * @return datacenter of the key, us2 if the key does not name one
+	 */
+	public String getDatacenter() {
+		return (datacenter);
+	}
+
+	/**
+	 * @return URL of the SendEmail call in the datacenter of the key
+	 */
+	public URL getSendMailUrl() {
+		return (sendMailUrl);
+	}
+
+	/**
+	 * @return the url encoded apikey parameter followed by its separator, which must not be modified
+	 */
+	byte[] getEncodedField() {
+		return (encodedField);
+	}
+
+	/**
+	 * Does not show the key, only its datacenter.
+	 */
+	@Override
+	public String toString() {
+		return ("ApiCredential[" + datacenter + "]");
+	}
+}
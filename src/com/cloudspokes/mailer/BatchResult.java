@@ -0,0 +1,102 @@
+package com.cloudspokes.mailer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of {@link AmazonSESMailChimpMailer#sendBatch(java.util.Collection)}. Results are indexed in the
+ * iteration order of the collection passed to sendBatch. Each message either has the status returned by Mail Chimp
+ * or the MailerException that stopped it from being sent.
+ */
+public class BatchResult {
+	private final List<MailInfoDTO> mailData;
+	private final String[] statuses;
+	private final MailerException[] errors;
+
+	BatchResult(List<MailInfoDTO> mailData) {
+		this.mailData = Collections.unmodifiableList(mailData);
+		this.statuses = new String[mailData.size()];
+		this.errors = new MailerException[mailData.size()];
+	}
+
+	void setStatus(int index, String status) {
+		statuses[index] = status;
+	}
+
+	void setError(int index, MailerException error) {
+		errors[index] = error;
+	}
+
+	/**
+	 * @return number of messages in the batch
+	 */
+	public int size() {
+		return (statuses.length);
+	}
+
+	/**
+	 * @param index
+	 * @return the message at the given position in the batch
+	 */
+	public MailInfoDTO getMailData(int index) {
+		return (mailData.get(index));
+	}
+
+	/**
+	 * @param index
+	 * @return true if the message at the given position was accepted by Mail Chimp
+	 */
+	public boolean isSuccess(int index) {
+		return (errors[index] == null);
+	}
+
+	/**
+	 * @param index
+	 * @return status returned by Mail Chimp, or null if the message failed
+	 */
+	public String getStatus(int index) {
+		return (statuses[index]);
+	}
+
+	/**
+	 * @param index
+	 * @return the exception for a failed message, or null if it was sent
+	 */
+	public MailerException getError(int index) {
+		return (errors[index]);
+	}
+
+	/**
+	 * @return number of messages sent
+	 */
+	public int getSuccessCount() {
+		return (size() - getFailureCount());
+	}
+
+	/**
+	 * @return number of messages which failed
+	 */
+	public int getFailureCount() {
+		int count = 0;
+		for (MailerException error : errors) {
+			if (error != null) {
+				count++;
+			}
+		}
+		return (count);
+	}
+
+	/**
+	 * @return positions of the failed messages in ascending order
+	 */
+	public List<Integer> getFailedIndexes() {
+		List<Integer> failed = new ArrayList<Integer>();
+		for (int i = 0; i < errors.length; i++) {
+			if (errors[i] != null) {
+				failed.add(i);
+			}
+		}
+		return (failed);
+	}
+}
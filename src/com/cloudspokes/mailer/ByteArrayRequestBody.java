@@ -0,0 +1,44 @@
+package com.cloudspokes.mailer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * {@link RequestBody} backed by a region of a byte array. The array is not copied, so the caller must not modify
+ * it until the transport has returned.
+ */
+public class ByteArrayRequestBody implements RequestBody {
+	private final String contentType;
+	private final byte[] data;
+	private final int offset;
+	private final int length;
+
+	public ByteArrayRequestBody(String contentType, byte[] data) {
+		this(contentType, data, 0, data.length);
+	}
+
+	public ByteArrayRequestBody(String contentType, byte[] data, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > data.length) {
+			throw new IndexOutOfBoundsException("offset: " + offset + ", length: " + length + ", data.length: " + data.length);
+		}
+		this.contentType = contentType;
+		this.data = data;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	@Override
+	public String getContentType() {
+		return contentType;
+	}
+
+	@Override
+	public long getContentLength() {
+		return length;
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(data, offset, length);
+	}
+}
@@ -0,0 +1,118 @@
+package com.cloudspokes.mailer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Circuit breaker guarding the Mail Chimp endpoint. After failureThreshold consecutive failures it opens and
+ * refuses every request for openMillis. It then lets a single request through; the circuit closes again if that
+ * request succeeds and stays open for another openMillis if it fails.
+ */
+public class CircuitBreaker {
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	public static final long DEFAULT_OPEN_MILLIS = 30000;
+
+	/**
+	 * State of the circuit.
+	 */
+	public enum State {
+		/** Requests pass. */
+		CLOSED,
+		/** Requests are refused. */
+		OPEN,
+		/** One trial request has been let through and its outcome decides the next state. */
+		HALF_OPEN
+	}
+
+	private final int failureThreshold;
+	private final long openNanos;
+	private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	private final AtomicLong openedAt = new AtomicLong();
+	private final AtomicLong openCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	/**
+	 * Creates a breaker with the default threshold and open time.
+	 */
+	public CircuitBreaker() {
+		this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS);
+	}
+
+	/**
+	 * @param failureThreshold - consecutive failures which open the circuit
+	 * @param openMillis - time the circuit stays open before a trial request is let through
+	 */
+	public CircuitBreaker(int failureThreshold, long openMillis) {
+		if (failureThreshold < 1 || openMillis < 0) {
+			throw new IllegalArgumentException("failureThreshold must be positive and openMillis cannot be negative");
+		}
+		this.failureThreshold = failureThreshold;
+		this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+	}
+
+	/**
+	 * @return true if a request may be sent now. Every caller which gets true must report the outcome with
+	 *         {@link #recordSuccess()} or {@link #recordFailure()}.
+	 */
+	public boolean allowRequest() {
+		State current = state.get();
+		if (current == State.CLOSED) {
+			return (true);
+		}
+		if (current == State.OPEN && System.nanoTime() - openedAt.get() >= openNanos
+				&& state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+			return (true);
+		}
+		rejectedCount.incrementAndGet();
+		return (false);
+	}
+
+	/**
+	 * Reports that the endpoint answered, including answers which reject the message itself.
+	 */
+	public void recordSuccess() {
+		consecutiveFailures.set(0);
+		state.compareAndSet(State.HALF_OPEN, State.CLOSED);
+	}
+
+	/**
+	 * Reports a failure which indicates that the endpoint is unhealthy.
+	 */
+	public void recordFailure() {
+		if (state.get() == State.HALF_OPEN) {
+			open(State.HALF_OPEN);
+		} else if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+			open(State.CLOSED);
+		}
+	}
+
+	public State getState() {
+		return (state.get());
+	}
+
+	/**
+	 * @return number of times the circuit opened
+	 */
+	public long getOpenCount() {
+		return (openCount.get());
+	}
+
+	/**
+	 * @return number of requests refused while the circuit was open
+	 */
+	public long getRejectedCount() {
+		return (rejectedCount.get());
+	}
+
+	private void open(State from) {
+		//Set first so that no thread sees the new OPEN state with an old opening time
+		openedAt.set(System.nanoTime());
+		if (state.compareAndSet(from, State.OPEN)) {
+			consecutiveFailures.set(0);
+			openCount.incrementAndGet();
+		}
+	}
+}
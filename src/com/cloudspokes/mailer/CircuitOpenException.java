@@ -0,0 +1,16 @@
+package com.cloudspokes.mailer;
+
+/**
+ * Thrown by {@link ResilientMailer} while its circuit breaker is open. The message was not sent.
+ */
+public class CircuitOpenException extends MailerException {
+	private static final long serialVersionUID = -6471180427335950726L;
+
+	public CircuitOpenException(String message) {
+		super(message);
+	}
+
+	public CircuitOpenException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
@@ -0,0 +1,260 @@
+package com.cloudspokes.mailer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * {@link HttpTransport} which gzip compresses large request bodies before passing them to another transport, and
+ * sends them with a Content-Encoding: gzip header. Url encoded html compresses well, so large newsletters trade
+ * some CPU for a much smaller upload; the endpoint has to accept compressed requests, so this is opt-in.
+ * <p>
+ * Bodies shorter than the threshold, and bodies of unknown length, are passed on unchanged. Compression uses
+ * Deflaters and output buffers from a pool, so a compressed send does not allocate a Deflater and its native
+ * memory per message.
+ */
+public class CompressingHttpTransport implements HttpTransport {
+	public static final int DEFAULT_THRESHOLD_BYTES = 8 << 10;
+	public static final String GZIP = "gzip";
+
+	private static final int MAX_POOLED_COMPRESSORS = 64;
+	private static final int MAX_POOLED_CAPACITY = 1 << 20;
+
+	private final HttpTransport delegate;
+	private final int thresholdBytes;
+	private final int level;
+	private final ConcurrentLinkedQueue<GzipBuffer> pool = new ConcurrentLinkedQueue<GzipBuffer>();
+	private final LongAdder compressedCount = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+
+	/**
+	 * Compresses bodies of at least {@link #DEFAULT_THRESHOLD_BYTES} with the default compression level.
+	 * @param delegate - transport which sends the requests
+	 */
+	public CompressingHttpTransport(HttpTransport delegate) {
+		this(delegate, DEFAULT_THRESHOLD_BYTES, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * @param delegate - transport which sends the requests
+	 * @param thresholdBytes - smaller bodies are sent uncompressed
+	 * @param level - Deflater compression level, from 1 (fastest) to 9 (smallest), or -1 for the default
+	 */
+	public CompressingHttpTransport(HttpTransport delegate, int thresholdBytes, int level) {
+		if (delegate == null) {
+			throw new IllegalArgumentException("HttpTransport delegate cannot be null");
+		}
+		if (thresholdBytes < 0) {
+			throw new IllegalArgumentException("int thresholdBytes cannot be negative: " + thresholdBytes);
+		}
+		if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)) {
+			throw new IllegalArgumentException("int level must be between 1 and 9, or -1: " + level);
+		}
+		this.delegate = delegate;
+		this.thresholdBytes = thresholdBytes;
+		this.level = level;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.cloudspokes.mailer.HttpTransport#post(java.net.URL, com.cloudspokes.mailer.RequestBody, com.cloudspokes.mailer.ResponseHandler)
+	 */
+	@Override
+	public <T> T post(URL url, RequestBody body, ResponseHandler<T> handler) throws IOException {
+		long length = body.getContentLength();
+		if (length < 0 || length < thresholdBytes || body.getContentEncoding() != null) {
+			return (delegate.post(url, body, handler));
+		}
+		GzipBuffer gzip = obtain();
+		try {
+			body.writeTo(gzip);
+			gzip.finish();
+			compressedCount.increment();
+			bytesIn.add(gzip.getInputBytes());
+			bytesOut.add(gzip.size());
+			return (delegate.post(url, new CompressedRequestBody(body.getContentType(), gzip), handler));
+		} finally {
+			recycle(gzip);
+		}
+	}
+
+	/**
+	 * @return number of bodies sent compressed
+	 */
+	public long getCompressedCount() {
+		return (compressedCount.sum());
+	}
+
+	/**
+	 * @return total size of the compressed bodies before compression
+	 */
+	public long getUncompressedBytes() {
+		return (bytesIn.sum());
+	}
+
+	/**
+	 * @return total size of the compressed bodies as sent
+	 */
+	public long getCompressedBytes() {
+		return (bytesOut.sum());
+	}
+
+	/**
+	 * Closes the delegate and releases the pooled Deflaters.
+	 */
+	@Override
+	public void close() {
+		delegate.close();
+		GzipBuffer gzip;
+		while ((gzip = pool.poll()) != null) {
+			gzip.end();
+		}
+	}
+
+	private GzipBuffer obtain() {
+		GzipBuffer gzip = pool.poll();
+		if (gzip == null) {
+			gzip = new GzipBuffer(level);
+		}
+		gzip.start();
+		return (gzip);
+	}
+
+	private void recycle(GzipBuffer gzip) {
+		//Deflaters hold native memory which is only released by end(), so dropped ones are ended here
+		if (gzip.capacity() <= MAX_POOLED_CAPACITY && pool.size() < MAX_POOLED_COMPRESSORS) {
+			pool.offer(gzip);
+		} else {
+			gzip.end();
+		}
+	}
+
+	/**
+	 * Compressed copy of a request body, valid until its GzipBuffer is recycled.
+	 */
+	private static final class CompressedRequestBody implements RequestBody {
+		private final String contentType;
+		private final GzipBuffer gzip;
+
+		CompressedRequestBody(String contentType, GzipBuffer gzip) {
+			this.contentType = contentType;
+			this.gzip = gzip;
+		}
+
+		@Override
+		public String getContentType() {
+			return (contentType);
+		}
+
+		@Override
+		public long getContentLength() {
+			return (gzip.size());
+		}
+
+		@Override
+		public String getContentEncoding() {
+			return (GZIP);
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			gzip.writeTo(out);
+		}
+	}
+
+	/**
+	 * OutputStream which gzip compresses everything written to it into a growable byte array. Writes the gzip
+	 * header and trailer around a raw deflate stream, like GZIPOutputStream, but keeps its Deflater between uses.
+	 */
+	private static final class GzipBuffer extends OutputStream {
+		private static final int INITIAL_CAPACITY = 8192;
+		private static final int MIN_FREE = 512;
+		private static final byte[] HEADER = { 0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff };
+
+		private final Deflater deflater;
+		private final CRC32 crc = new CRC32();
+		private byte[] buf = new byte[INITIAL_CAPACITY];
+		private int count;
+
+		GzipBuffer(int level) {
+			deflater = new Deflater(level, true);
+		}
+
+		void start() {
+			deflater.reset();
+			crc.reset();
+			System.arraycopy(HEADER, 0, buf, 0, HEADER.length);
+			count = HEADER.length;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return;
+			}
+			crc.update(b, off, len);
+			deflater.setInput(b, off, len);
+			while (!deflater.needsInput()) {
+				deflate();
+			}
+		}
+
+		void finish() {
+			deflater.finish();
+			while (!deflater.finished()) {
+				deflate();
+			}
+			ensureFree(8);
+			writeIntLE((int)crc.getValue());
+			writeIntLE((int)deflater.getBytesRead());
+		}
+
+		long getInputBytes() {
+			return (deflater.getBytesRead());
+		}
+
+		int size() {
+			return (count);
+		}
+
+		int capacity() {
+			return (buf.length);
+		}
+
+		void writeTo(OutputStream out) throws IOException {
+			out.write(buf, 0, count);
+		}
+
+		void end() {
+			deflater.end();
+		}
+
+		private void deflate() {
+			ensureFree(MIN_FREE);
+			count += deflater.deflate(buf, count, buf.length - count);
+		}
+
+		private void ensureFree(int free) {
+			if (buf.length - count < free) {
+				buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + free));
+			}
+		}
+
+		private void writeIntLE(int value) {
+			buf[count++] = (byte)value;
+			buf[count++] = (byte)(value >> 8);
+			buf[count++] = (byte)(value >> 16);
+			buf[count++] = (byte)(value >> 24);
+		}
+	}
+}
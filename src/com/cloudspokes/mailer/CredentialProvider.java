@@ -0,0 +1,15 @@
+package com.cloudspokes.mailer;
+
+/**
+ * Source of the Mail Chimp API keys used by {@link AmazonSESMailChimpMailerImpl}. The mailer asks for the
+ * credential on every send, so implementations must answer from memory and be safe for use by multiple threads;
+ * a provider which can change its keys hands out the new credential from then on, without a restart.
+ */
+public interface CredentialProvider {
+	/**
+	 * @param tenantId - tenant whose key is wanted, or null for the default key
+	 * @return the current credential of the tenant
+	 * @throws MailerException if the provider has no key for the tenant
+	 */
+	public ApiCredential getCredential(String tenantId) throws MailerException;
+}
@@ -0,0 +1,169 @@
+package com.cloudspokes.mailer;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link MailerMetrics} which keeps latency and payload size {@link Histogram}s, outcome counters and in-flight
+ * gauges in memory. Recording only touches striped counters and atomic histogram buckets, so the same instance can
+ * be shared by every mailer and transport of the application. Pass it to both the mailer and the
+ * {@link PooledHttpTransport} to get the connect, write and response timings, and export it with
+ * {@link JmxMetricsExporter}.
+ */
+public class DefaultMailerMetrics implements MailerMetrics {
+	private final Histogram sendLatency = new Histogram();
+	private final Histogram serializationLatency = new Histogram();
+	private final Histogram connectLatency = new Histogram();
+	private final Histogram writeLatency = new Histogram();
+	private final Histogram responseLatency = new Histogram();
+	private final Histogram payloadBytes = new Histogram();
+	private final LongAdder[] outcomes = new LongAdder[Outcome.values().length];
+	private final LongAdder sendsInFlight = new LongAdder();
+	private final LongAdder requestsInFlight = new LongAdder();
+	private final LongAdder suppressedRecipients = new LongAdder();
+
+	public DefaultMailerMetrics() {
+		for (int i = 0; i < outcomes.length; i++) {
+			outcomes[i] = new LongAdder();
+		}
+	}
+
+	@Override
+	public void sendStarted() {
+		sendsInFlight.increment();
+	}
+
+	@Override
+	public void sendCompleted(Outcome outcome, long durationNanos) {
+		sendsInFlight.decrement();
+		outcomes[outcome.ordinal()].increment();
+		sendLatency.record(durationNanos);
+	}
+
+	@Override
+	public void serialized(long durationNanos, long payloadBytes) {
+		serializationLatency.record(durationNanos);
+		this.payloadBytes.record(payloadBytes);
+	}
+
+	@Override
+	public void streamed(long payloadBytes) {
+		this.payloadBytes.record(payloadBytes);
+	}
+
+	@Override
+	public void recipientsSuppressed(int count) {
+		suppressedRecipients.add(count);
+	}
+
+	@Override
+	public void requestStarted() {
+		requestsInFlight.increment();
+	}
+
+	@Override
+	public void connected(long durationNanos) {
+		connectLatency.record(durationNanos);
+	}
+
+	@Override
+	public void requestWritten(long durationNanos) {
+		writeLatency.record(durationNanos);
+	}
+
+	@Override
+	public void responseReceived(long durationNanos) {
+		responseLatency.record(durationNanos);
+	}
+
+	@Override
+	public void requestCompleted() {
+		requestsInFlight.decrement();
+	}
+
+	/**
+	 * @param outcome
+	 * @return number of sends which ended with the outcome
+	 */
+	public long getCount(Outcome outcome) {
+		return (outcomes[outcome.ordinal()].sum());
+	}
+
+	/**
+	 * @return messages being sent right now
+	 */
+	public long getSendsInFlight() {
+		return (sendsInFlight.sum());
+	}
+
+	/**
+	 * @return HTTP requests in progress right now
+	 */
+	public long getRequestsInFlight() {
+		return (requestsInFlight.sum());
+	}
+
+	/**
+	 * @return recipients dropped from messages because they are on the suppression list
+	 */
+	public long getSuppressedRecipients() {
+		return (suppressedRecipients.sum());
+	}
+
+	/**
+	 * @return nanoseconds from the start of a send to its outcome
+	 */
+	public Histogram getSendLatency() {
+		return (sendLatency);
+	}
+
+	/**
+	 * @return nanoseconds spent serializing a message
+	 */
+	public Histogram getSerializationLatency() {
+		return (serializationLatency);
+	}
+
+	/**
+	 * @return nanoseconds spent opening a connection
+	 */
+	public Histogram getConnectLatency() {
+		return (connectLatency);
+	}
+
+	/**
+	 * @return nanoseconds spent writing a request
+	 */
+	public Histogram getWriteLatency() {
+		return (writeLatency);
+	}
+
+	/**
+	 * @return nanoseconds from a request being written to its status line arriving
+	 */
+	public Histogram getResponseLatency() {
+		return (responseLatency);
+	}
+
+	/**
+	 * @return sizes of the serialized request bodies in bytes
+	 */
+	public Histogram getPayloadBytes() {
+		return (payloadBytes);
+	}
+
+	/**
+	 * Clears the histograms, outcome counters and suppressed recipients. The in-flight gauges are kept.
+	 */
+	public void reset() {
+		sendLatency.reset();
+		serializationLatency.reset();
+		connectLatency.reset();
+		writeLatency.reset();
+		responseLatency.reset();
+		payloadBytes.reset();
+		for (LongAdder outcome : outcomes) {
+			outcome.reset();
+		}
+		suppressedRecipients.reset();
+	}
+}
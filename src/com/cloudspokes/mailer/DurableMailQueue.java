@@ -0,0 +1,363 @@
+package com.cloudspokes.mailer;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead queue of outbound mail stored in memory mapped, append-only segment files.
+ * {@link #enqueue(MailInfoDTO)} records the message and returns without waiting for it to be sent. A consumer,
+ * normally {@link MailQueueDispatcher}, takes messages with {@link #take(long, TimeUnit)} and settles each one with
+ * {@link #acknowledge(QueuedMail)} once sent, {@link #reject(QueuedMail)} when it is given up, or
+ * {@link #release(QueuedMail)} to have it taken again later.
+ *
+ * Each record in a segment is laid out as: int payload length, byte state, int CRC32 of the payload, payload.
+ * The length is written last and a zero length marks the end of the segment. Settling a message only rewrites its
+ * state byte. When the queue is opened, every segment is scanned and messages which were never settled are queued
+ * again; a record torn by a crash fails its checksum and ends the scan. Segments in which every message has been
+ * settled are deleted, except the one currently being written.
+ *
+ * Delivery is at least once: a message sent just before a crash, but not yet acknowledged, is sent again after
+ * the restart. Unless syncOnWrite is set, records reach the disk when the operating system writes back the mapped
+ * pages, so they survive the JVM dying but not a power loss.
+ */
+public class DurableMailQueue {
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final int HEADER_SIZE = 9;
+	private static final byte STATE_PENDING = 1;
+	private static final byte STATE_ACKNOWLEDGED = 2;
+	private static final byte STATE_REJECTED = 3;
+
+	private final File directory;
+	private final int segmentSize;
+	private final boolean syncOnWrite;
+	private final LinkedBlockingQueue<QueuedMail> pending = new LinkedBlockingQueue<QueuedMail>();
+	private final Object writeLock = new Object();
+	private Segment active;
+	private volatile boolean closed;
+
+	/**
+	 * Opens the queue in the directory with the default segment size and without syncing every write.
+	 * @param directory
+	 * @throws IOException
+	 */
+	public DurableMailQueue(File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE, false);
+	}
+
+	/**
+	 * Opens the queue stored in the directory, creating the directory if needed, and queues every message which
+	 * was not settled before the queue was last closed.
+	 * @param directory
+	 * @param segmentSize - size of each segment file. Larger messages get a segment of their own.
+	 * @param syncOnWrite - force every enqueued record to disk before enqueue returns
+	 * @throws IOException
+	 */
+	public DurableMailQueue(File directory, int segmentSize, boolean syncOnWrite) throws IOException {
+		if (segmentSize < 1024) {
+			throw new IllegalArgumentException("segmentSize must be at least 1024: " + segmentSize);
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create queue directory " + directory);
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.syncOnWrite = syncOnWrite;
+		recover();
+	}
+
+	/**
+	 * Records the message. It is delivered to a consumer after all messages enqueued before it.
+	 * @param mailData
+	 * @return id of the queue entry
+	 * @throws IOException if the message cannot be written
+	 */
+	public long enqueue(MailInfoDTO mailData) throws IOException {
+		byte[] payload = MailInfoCodec.encode(mailData);
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+
+		QueuedMail mail;
+		synchronized (writeLock) {
+			if (closed) {
+				throw new IOException("Queue is closed");
+			}
+			int recordSize = HEADER_SIZE + payload.length;
+			if (active.position + recordSize > active.buffer.capacity()) {
+				roll(recordSize);
+			}
+			Segment segment = active;
+			int offset = segment.position;
+			ByteBuffer buffer = segment.buffer;
+			buffer.put(offset + 4, STATE_PENDING);
+			buffer.putInt(offset + 5, (int)crc.getValue());
+			ByteBuffer target = buffer.duplicate();
+			target.position(offset + HEADER_SIZE);
+			target.put(payload);
+			buffer.putInt(offset, payload.length);
+			if (syncOnWrite) {
+				segment.buffer.force();
+			}
+			segment.position = offset + recordSize;
+			segment.outstanding.incrementAndGet();
+			mail = new QueuedMail(segment, offset, mailData);
+		}
+		pending.offer(mail);
+		return (mail.getId());
+	}
+
+	/**
+	 * Takes the next message. It stays in the queue until it is settled.
+	 * @param timeout
+	 * @param unit
+	 * @return the next message or null if none arrives within the timeout
+	 * @throws InterruptedException
+	 */
+	public QueuedMail take(long timeout, TimeUnit unit) throws InterruptedException {
+		QueuedMail mail = pending.poll(timeout, unit);
+		if (mail != null) {
+			mail.attempts++;
+		}
+		return (mail);
+	}
+
+	/**
+	 * Marks a message taken from the queue as sent.
+	 * @param mail
+	 */
+	public void acknowledge(QueuedMail mail) {
+		settle(mail, STATE_ACKNOWLEDGED);
+	}
+
+	/**
+	 * Marks a message taken from the queue as given up. It is not delivered again.
+	 * @param mail
+	 */
+	public void reject(QueuedMail mail) {
+		settle(mail, STATE_REJECTED);
+	}
+
+	/**
+	 * Puts a message taken from the queue back so that it is taken again.
+	 * @param mail
+	 */
+	public void release(QueuedMail mail) {
+		if (!closed) {
+			pending.offer(mail);
+		}
+	}
+
+	/**
+	 * @return number of messages waiting to be taken
+	 */
+	public int size() {
+		return (pending.size());
+	}
+
+	/**
+	 * @return number of segment files currently on disk
+	 */
+	public int getSegmentCount() {
+		return (listSegments().length);
+	}
+
+	/**
+	 * Stops accepting messages and forces the mapped segments to disk. Messages which are not settled are
+	 * delivered again when the queue is next opened.
+	 */
+	public void close() {
+		synchronized (writeLock) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			active.buffer.force();
+		}
+		pending.clear();
+	}
+
+	private void settle(QueuedMail mail, byte state) {
+		if (mail.settled.getAndSet(true)) {
+			throw new IllegalStateException("Queue entry " + mail.getId() + " is already settled");
+		}
+		Segment segment = mail.segment;
+		segment.buffer.put(mail.offset + 4, state);
+		if (segment.outstanding.decrementAndGet() == 0) {
+			synchronized (writeLock) {
+				if (segment != active) {
+					segment.delete();
+				}
+			}
+		}
+	}
+
+	private void roll(int recordSize) throws IOException {
+		Segment previous = active;
+		previous.buffer.force();
+		active = Segment.create(new File(directory, segmentName(previous.number + 1)), previous.number + 1,
+				Math.max(segmentSize, recordSize));
+		if (previous.outstanding.get() == 0) {
+			previous.delete();
+		}
+	}
+
+	private void recover() throws IOException {
+		File[] files = listSegments();
+		Arrays.sort(files);
+		for (int i = 0; i < files.length; i++) {
+			long number = Long.parseLong(files[i].getName().substring(0, files[i].getName().length() - SEGMENT_SUFFIX.length()));
+			Segment segment = Segment.open(files[i], number);
+			scan(segment);
+			if (i == files.length - 1) {
+				active = segment;
+			} else if (segment.outstanding.get() == 0) {
+				segment.delete();
+			}
+		}
+		if (active == null) {
+			active = Segment.create(new File(directory, segmentName(1)), 1, segmentSize);
+		}
+	}
+
+	/**
+	 * Queues the pending records of a segment and moves its write position behind the last valid record.
+	 */
+	private void scan(Segment segment) {
+		ByteBuffer buffer = segment.buffer;
+		int offset = 0;
+		CRC32 crc = new CRC32();
+		while (offset + HEADER_SIZE <= buffer.capacity()) {
+			int length = buffer.getInt(offset);
+			if (length <= 0 || offset + HEADER_SIZE + length > buffer.capacity()) {
+				break;
+			}
+			byte state = buffer.get(offset + 4);
+			byte[] payload = new byte[length];
+			ByteBuffer source = buffer.duplicate();
+			source.position(offset + HEADER_SIZE);
+			source.get(payload);
+			crc.reset();
+			crc.update(payload, 0, length);
+			if ((int)crc.getValue() != buffer.getInt(offset + 5)) {
+				break;
+			}
+			if (state == STATE_PENDING) {
+				try {
+					MailInfoDTO mailData = MailInfoCodec.decode(ByteBuffer.wrap(payload));
+					segment.outstanding.incrementAndGet();
+					pending.offer(new QueuedMail(segment, offset, mailData));
+				} catch (IOException e) {
+					//A record that passes the checksum but cannot be decoded can never be sent
+					buffer.put(offset + 4, STATE_REJECTED);
+				}
+			}
+			offset += HEADER_SIZE + length;
+		}
+		segment.position = offset;
+	}
+
+	private File[] listSegments() {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return (name.endsWith(SEGMENT_SUFFIX));
+			}
+		});
+		return (files == null ? new File[0] : files);
+	}
+
+	private static String segmentName(long number) {
+		return (String.format("%016d", number) + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * A message taken from the queue.
+	 */
+	public static class QueuedMail {
+		private final Segment segment;
+		private final int offset;
+		private final MailInfoDTO mailData;
+		private final AtomicBoolean settled = new AtomicBoolean();
+		private volatile int attempts;
+
+		QueuedMail(Segment segment, int offset, MailInfoDTO mailData) {
+			this.segment = segment;
+			this.offset = offset;
+			this.mailData = mailData;
+		}
+
+		/**
+		 * @return id of the entry, unique within the queue directory
+		 */
+		public long getId() {
+			return ((segment.number << 32) | offset);
+		}
+
+		public MailInfoDTO getMailData() {
+			return (mailData);
+		}
+
+		/**
+		 * @return number of times the message was taken since the queue was opened
+		 */
+		public int getAttempts() {
+			return (attempts);
+		}
+	}
+
+	/**
+	 * One mapped segment file.
+	 */
+	static class Segment {
+		final File file;
+		final long number;
+		final MappedByteBuffer buffer;
+		//Records written but not settled yet
+		final AtomicInteger outstanding = new AtomicInteger();
+		//Guarded by writeLock
+		int position;
+
+		private Segment(File file, long number, MappedByteBuffer buffer) {
+			this.file = file;
+			this.number = number;
+			this.buffer = buffer;
+		}
+
+		static Segment create(File file, long number, int size) throws IOException {
+			return (new Segment(file, number, map(file, size)));
+		}
+
+		static Segment open(File file, long number) throws IOException {
+			return (new Segment(file, number, map(file, (int)Math.min(file.length(), Integer.MAX_VALUE))));
+		}
+
+		private static MappedByteBuffer map(File file, int size) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				if (raf.length() < size) {
+					raf.setLength(size);
+				}
+				return (raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+			} finally {
+				raf.close();
+			}
+		}
+
+		void delete() {
+			//The mapping stays valid until it is garbage collected, removing the file is enough
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package com.cloudspokes.mailer;
+
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Checks and normalizes email addresses in a single pass over their characters, driven by a table of character
+ * classes instead of a regular expression.
+ * <p>
+ * An address is valid if it is a dot-atom local part, an @ and a host name of at least two labels, within the
+ * lengths of RFC 5321: 64 characters for the local part, 63 for a label, 253 for the host name and 254 for the
+ * address. The local part may contain letters, digits and <code>!#$%&amp;'*+-/=?^_`{|}~</code> and dots which
+ * are neither first, last nor doubled. Labels contain letters, digits and hyphens and do not start or end with a
+ * hyphen. Characters beyond ASCII are accepted in both parts for internationalized addresses. Quoted local parts,
+ * comments and address literals such as <code>user@[10.0.0.1]</code> are rejected; the send API does not accept
+ * them either.
+ * <p>
+ * Normalizing removes surrounding spaces and tabs and lower-cases the ASCII letters of the host name, which is not
+ * case sensitive. The local part is kept as it is, since only the receiving server knows whether its case matters.
+ * Duplicates are nevertheless found ignoring the case of the whole address, as every common mailbox provider
+ * treats it so.
+ */
+public final class EmailAddresses {
+	public static final int MAX_LENGTH = 254;
+	public static final int MAX_LOCAL_LENGTH = 64;
+	public static final int MAX_DOMAIN_LENGTH = 253;
+	public static final int MAX_LABEL_LENGTH = 63;
+
+	//Character classes; characters beyond ASCII are LETTER
+	private static final byte INVALID = 0;
+	private static final byte LETTER = 1;
+	private static final byte UPPER = 2;
+	private static final byte HYPHEN = 3;
+	private static final byte SYMBOL = 4;
+	private static final byte DOT = 5;
+	private static final byte AT = 6;
+	private static final byte[] CLASSES = new byte[128];
+
+	static {
+		for (char c = 'a'; c <= 'z'; c++) {
+			CLASSES[c] = LETTER;
+		}
+		for (char c = '0'; c <= '9'; c++) {
+			CLASSES[c] = LETTER;
+		}
+		for (char c = 'A'; c <= 'Z'; c++) {
+			CLASSES[c] = UPPER;
+		}
+		for (char c : "!#$%&'*+/=?^_`{|}~".toCharArray()) {
+			CLASSES[c] = SYMBOL;
+		}
+		CLASSES['-'] = HYPHEN;
+		CLASSES['.'] = DOT;
+		CLASSES['@'] = AT;
+	}
+
+	private EmailAddresses() {
+	}
+
+	/**
+	 * @param address - address without surrounding spaces, may be null
+	 * @return true if the address is valid
+	 */
+	public static boolean isValid(CharSequence address) {
+		return (address != null && scan(address, 0, address.length()) >= 0);
+	}
+
+	/**
+	 * @param address - address, may be null
+	 * @return the address without surrounding spaces and with a lower case host name, the same String if it already
+	 *         is, or null if the address is not valid
+	 */
+	public static String normalize(String address) {
+		if (address == null) {
+			return (null);
+		}
+		int start = 0;
+		int end = address.length();
+		while (start < end && isSpace(address.charAt(start))) {
+			start++;
+		}
+		while (end > start && isSpace(address.charAt(end - 1))) {
+			end--;
+		}
+		int scanned = scan(address, start, end);
+		if (scanned < 0) {
+			return (null);
+		}
+		boolean upperDomain = (scanned & 1) != 0;
+		if (!upperDomain) {
+			return (start == 0 && end == address.length() ? address : address.substring(start, end));
+		}
+		char[] chars = new char[end - start];
+		address.getChars(start, end, chars, 0);
+		for (int i = (scanned >>> 1) - start + 1; i < chars.length; i++) {
+			char c = chars[i];
+			if (c < 128 && CLASSES[c] == UPPER) {
+				chars[i] = (char)(c + ('a' - 'A'));
+			}
+		}
+		return (new String(chars));
+	}
+
+	/**
+	 * Normalizes every address of the array in place.
+	 * @param addresses - addresses, none null
+	 * @return index of the first invalid address, which is left unchanged, or -1 if all are valid
+	 */
+	static int normalizeAll(String[] addresses) {
+		for (int i = 0; i < addresses.length; i++) {
+			String normalized = normalize(addresses[i]);
+			if (normalized == null) {
+				return (i);
+			}
+			addresses[i] = normalized;
+		}
+		return (-1);
+	}
+
+	/**
+	 * Leaves out the addresses whose lower case form is in seen or earlier in the array, moving the others and their
+	 * names to the front.
+	 * @param addresses - normalized addresses
+	 * @param names - names at the positions of the addresses, may be null
+	 * @param seen - lower case forms of the addresses already used, to which those of the array are added
+	 * @return count of addresses kept
+	 */
+	static int removeDuplicates(String[] addresses, String[] names, Set<String> seen) {
+		int kept = 0;
+		for (int i = 0; i < addresses.length; i++) {
+			if (seen.add(lowerCase(addresses[i]))) {
+				addresses[kept] = addresses[i];
+				if (names != null) {
+					names[kept] = names[i];
+				}
+				kept++;
+			}
+		}
+		return (kept);
+	}
+
+	/**
+	 * @param address
+	 * @return the address in lower case, the same String if it already is
+	 */
+	static String lowerCase(String address) {
+		for (int i = 0; i < address.length(); i++) {
+			char c = address.charAt(i);
+			if (c >= 128 ? Character.toLowerCase(c) != c : CLASSES[c] == UPPER) {
+				return (address.toLowerCase(Locale.ROOT));
+			}
+		}
+		return (address);
+	}
+
+	/**
+	 * Checks the characters between start and end in one pass.
+	 * @return the index of the @ shifted left by one, with the lowest bit set if the host name has ASCII upper case
+	 *         letters, or -1 if the address is not valid
+	 */
+	private static int scan(CharSequence address, int start, int end) {
+		if (end - start > MAX_LENGTH) {
+			return (-1);
+		}
+		int at = -1;
+		//Start of the current local part atom or host name label, and whether its last character was a hyphen
+		int segment = start;
+		boolean hyphen = false;
+		int labels = 0;
+		int upper = 0;
+		for (int i = start; i < end; i++) {
+			char c = address.charAt(i);
+			byte type = c < 128 ? CLASSES[c] : LETTER;
+			if (at < 0) {
+				switch (type) {
+				case LETTER:
+				case UPPER:
+				case HYPHEN:
+				case SYMBOL:
+					break;
+				case DOT:
+					if (i == segment) {
+						return (-1);
+					}
+					segment = i + 1;
+					break;
+				case AT:
+					if (i == segment || i - start > MAX_LOCAL_LENGTH) {
+						return (-1);
+					}
+					at = i;
+					segment = i + 1;
+					break;
+				default:
+					return (-1);
+				}
+			} else {
+				switch (type) {
+				case UPPER:
+					upper = 1;
+					hyphen = false;
+					break;
+				case LETTER:
+					hyphen = false;
+					break;
+				case HYPHEN:
+					if (i == segment) {
+						return (-1);
+					}
+					hyphen = true;
+					break;
+				case DOT:
+					if (i == segment || hyphen || i - segment > MAX_LABEL_LENGTH) {
+						return (-1);
+					}
+					labels++;
+					segment = i + 1;
+					break;
+				default:
+					return (-1);
+				}
+			}
+		}
+		if (at < 0 || labels == 0 || end == segment || hyphen || end - segment > MAX_LABEL_LENGTH
+				|| end - at - 1 > MAX_DOMAIN_LENGTH) {
+			return (-1);
+		}
+		return ((at << 1) | upper);
+	}
+
+	private static boolean isSpace(char c) {
+		return (c == ' ' || c == '\t');
+	}
+}
@@ -0,0 +1,274 @@
+package com.cloudspokes.mailer;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.MalformedURLException;
+import java.net.NoRouteToHostException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLException;
+
+/**
+ * {@link HttpTransport} which spreads requests over several equivalent endpoints, such as the STS hosts of
+ * different regions. Each request keeps the path of its URL but is sent to the scheme, host and port of the
+ * endpoint chosen for it.
+ * <p>
+ * For every endpoint the router keeps an exponentially weighted moving average of the request latency and of the
+ * error rate. Requests go to the healthy endpoint with the lowest latency; an endpoint is healthy while its error
+ * rate stays below the threshold. Endpoints which have not been used yet are tried first, so each one gets
+ * measured. Every failure of the connection or retryable status counts against the endpoint. The request is sent
+ * to the next best endpoint it has not tried only if the first one could not be connected to or answered with a
+ * retryable status such as 503; after a read timeout or a connection closed while waiting for the response the
+ * endpoint may have sent the message, so the error is thrown instead. An unhealthy endpoint gets one request every
+ * probe interval to find out whether it recovered; if no endpoint is healthy the one with the lowest error rate is
+ * used.
+ */
+public class EndpointRouter implements HttpTransport {
+	public static final double DEFAULT_SMOOTHING = 0.2;
+	public static final double DEFAULT_ERROR_THRESHOLD = 0.5;
+	public static final long DEFAULT_PROBE_INTERVAL_MILLIS = 5000;
+
+	private final HttpTransport delegate;
+	private final List<Endpoint> endpoints;
+	private final double smoothing;
+	private final double errorThreshold;
+	private final long probeIntervalNanos;
+
+	/**
+	 * @param delegate - transport which sends the requests
+	 * @param endpoints - base URLs of the endpoints; only their scheme, host and port are used
+	 */
+	public EndpointRouter(HttpTransport delegate, List<URL> endpoints) {
+		this(delegate, endpoints, DEFAULT_SMOOTHING, DEFAULT_ERROR_THRESHOLD, DEFAULT_PROBE_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * @param delegate - transport which sends the requests
+	 * @param endpoints - base URLs of the endpoints; only their scheme, host and port are used
+	 * @param smoothing - weight of the newest sample in the moving averages, between 0 (exclusive) and 1
+	 * @param errorThreshold - error rate at which an endpoint stops being healthy, between 0 (exclusive) and 1
+	 * @param probeIntervalMillis - how often an unhealthy endpoint is tried again
+	 */
+	public EndpointRouter(HttpTransport delegate, List<URL> endpoints, double smoothing, double errorThreshold,
+			long probeIntervalMillis) {
+		if (delegate == null) {
+			throw new IllegalArgumentException("HttpTransport delegate cannot be null");
+		}
+		if (endpoints == null || endpoints.isEmpty()) {
+			throw new IllegalArgumentException("List<URL> endpoints cannot be null or empty");
+		}
+		if (!(smoothing > 0 && smoothing <= 1)) {
+			throw new IllegalArgumentException("double smoothing must be in (0, 1]: " + smoothing);
+		}
+		if (!(errorThreshold > 0 && errorThreshold <= 1)) {
+			throw new IllegalArgumentException("double errorThreshold must be in (0, 1]: " + errorThreshold);
+		}
+		if (probeIntervalMillis < 0) {
+			throw new IllegalArgumentException("long probeIntervalMillis cannot be negative: " + probeIntervalMillis);
+		}
+		List<Endpoint> list = new ArrayList<Endpoint>(endpoints.size());
+		for (URL url : endpoints) {
+			if (url == null) {
+				throw new IllegalArgumentException("List<URL> endpoints cannot contain null");
+			}
+			list.add(new Endpoint(url));
+		}
+		this.delegate = delegate;
+		this.endpoints = Collections.unmodifiableList(list);
+		this.smoothing = smoothing;
+		this.errorThreshold = errorThreshold;
+		this.probeIntervalNanos = TimeUnit.MILLISECONDS.toNanos(probeIntervalMillis);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.cloudspokes.mailer.HttpTransport#post(java.net.URL, com.cloudspokes.mailer.RequestBody, com.cloudspokes.mailer.ResponseHandler)
+	 */
+	@Override
+	public <T> T post(URL url, RequestBody body, ResponseHandler<T> handler) throws IOException {
+		boolean[] tried = new boolean[endpoints.size()];
+		while (true) {
+			int index = select(tried, true);
+			tried[index] = true;
+			Endpoint endpoint = endpoints.get(index);
+			long start = System.nanoTime();
+			try {
+				T result = delegate.post(endpoint.resolve(url), body, handler);
+				endpoint.record(System.nanoTime() - start, false, smoothing);
+				return (result);
+			} catch (IOException e) {
+				boolean failed = isEndpointFailure(e);
+				//An error the endpoint answered properly, such as a rejected key, says nothing about its health
+				endpoint.record(System.nanoTime() - start, failed, smoothing);
+				if (!failed || !canFailOver(e) || !hasUntried(tried)) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the endpoints with their current statistics, in the order they were passed to the constructor
+	 */
+	public List<Endpoint> getEndpoints() {
+		return (endpoints);
+	}
+
+	/**
+	 * @return the endpoint the next request would be sent to
+	 */
+	public Endpoint getPreferredEndpoint() {
+		return (endpoints.get(select(new boolean[endpoints.size()], false)));
+	}
+
+	@Override
+	public void close() {
+		delegate.close();
+	}
+
+	/**
+	 * @param tried - endpoints already tried for the request
+	 * @param claimProbe - whether choosing an unhealthy endpoint for a probe uses up its probe interval
+	 * @return index of the endpoint to send the request to
+	 */
+	private int select(boolean[] tried, boolean claimProbe) {
+		long now = System.nanoTime();
+		int best = -1;
+		double bestLatency = Double.MAX_VALUE;
+		int fallback = -1;
+		double fallbackErrorRate = Double.MAX_VALUE;
+		for (int i = 0; i < tried.length; i++) {
+			if (tried[i]) {
+				continue;
+			}
+			Endpoint endpoint = endpoints.get(i);
+			synchronized (endpoint) {
+				if (endpoint.requests == 0) {
+					return (i);
+				}
+				if (endpoint.errorRate < errorThreshold) {
+					if (endpoint.latencyNanos < bestLatency) {
+						best = i;
+						bestLatency = endpoint.latencyNanos;
+					}
+				} else if (now - endpoint.lastAttemptNanos >= probeIntervalNanos) {
+					//Claim the probe so that concurrent requests do not all go to the unhealthy endpoint
+					if (claimProbe) {
+						endpoint.lastAttemptNanos = now;
+					}
+					return (i);
+				}
+				if (endpoint.errorRate < fallbackErrorRate) {
+					fallback = i;
+					fallbackErrorRate = endpoint.errorRate;
+				}
+			}
+		}
+		return (best != -1 ? best : fallback);
+	}
+
+	private static boolean hasUntried(boolean[] tried) {
+		for (boolean t : tried) {
+			if (!t) {
+				return (true);
+			}
+		}
+		return (false);
+	}
+
+	private static boolean isEndpointFailure(IOException e) {
+		if (e instanceof HttpStatusException) {
+			return (((HttpStatusException)e).isRetryable());
+		}
+		return (!(e instanceof MalformedURLException || e instanceof SSLException));
+	}
+
+	/**
+	 * @return true if the request certainly was not processed, so that sending it to another endpoint cannot send
+	 *         the message twice
+	 */
+	private static boolean canFailOver(IOException e) {
+		if (e instanceof HttpStatusException) {
+			return (((HttpStatusException)e).isRetryable());
+		}
+		return (e instanceof ConnectException || e instanceof NoRouteToHostException || e instanceof UnknownHostException);
+	}
+
+	/**
+	 * One endpoint of the router with its moving averages.
+	 */
+	public static final class Endpoint {
+		private final URL url;
+		private final String authority;
+		private long requests;
+		private long failures;
+		private double latencyNanos;
+		private double errorRate;
+		private long lastAttemptNanos;
+
+		Endpoint(URL url) {
+			this.url = url;
+			this.authority = url.getProtocol() + "://" + url.getAuthority();
+		}
+
+		URL resolve(URL request) throws MalformedURLException {
+			String file = request.getFile();
+			return (new URL(authority + (file.isEmpty() ? "/" : file)));
+		}
+
+		synchronized void record(long elapsedNanos, boolean failed, double smoothing) {
+			errorRate = requests == 0 ? (failed ? 1 : 0) : errorRate + smoothing * ((failed ? 1 : 0) - errorRate);
+			//A failure can be much faster than a response, so only successes count towards the latency
+			if (!failed) {
+				latencyNanos = requests == failures ? elapsedNanos
+						: latencyNanos + smoothing * (elapsedNanos - latencyNanos);
+			}
+			requests++;
+			if (failed) {
+				failures++;
+			}
+			lastAttemptNanos = System.nanoTime();
+		}
+
+		public URL getUrl() {
+			return (url);
+		}
+
+		/**
+		 * @return moving average of the latency of successful requests in milliseconds
+		 */
+		public synchronized double getLatencyMillis() {
+			return (latencyNanos / 1e6);
+		}
+
+		/**
+		 * @return moving average of the share of failed requests, from 0 to 1
+		 */
+		public synchronized double getErrorRate() {
+			return (errorRate);
+		}
+
+		/**
+		 * @return number of requests sent to the endpoint
+		 */
+		public synchronized long getRequestCount() {
+			return (requests);
+		}
+
+		/**
+		 * @return number of requests which failed at the endpoint
+		 */
+		public synchronized long getFailureCount() {
+			return (failures);
+		}
+
+		@Override
+		public String toString() {
+			return (authority);
+		}
+	}
+}
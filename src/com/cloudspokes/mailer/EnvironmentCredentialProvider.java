@@ -0,0 +1,78 @@
+package com.cloudspokes.mailer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reads the API keys from environment variables: the default key from MAILCHIMP_API_KEY (or the variable passed
+ * to the constructor) and the key of a tenant from the same name followed by an underscore and the tenant id in
+ * upper case, with characters other than letters and digits replaced by underscores. MAILCHIMP_API_KEY_ACME holds
+ * the key of tenant acme. The environment of a process does not change, so each key is read once.
+ */
+public class EnvironmentCredentialProvider implements CredentialProvider {
+	public static final String DEFAULT_VARIABLE = "MAILCHIMP_API_KEY";
+
+	private final String variable;
+	private volatile ApiCredential defaultCredential;
+	private final ConcurrentMap<String, ApiCredential> tenants = new ConcurrentHashMap<String, ApiCredential>();
+
+	public EnvironmentCredentialProvider() {
+		this(DEFAULT_VARIABLE);
+	}
+
+	/**
+	 * @param variable - name of the variable holding the default key
+	 */
+	public EnvironmentCredentialProvider(String variable) {
+		if (variable == null || variable.isEmpty()) {
+			throw new IllegalArgumentException("String variable cannot be null or empty");
+		}
+		this.variable = variable;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.cloudspokes.mailer.CredentialProvider#getCredential(java.lang.String)
+	 */
+	@Override
+	public ApiCredential getCredential(String tenantId) throws MailerException {
+		if (tenantId == null) {
+			ApiCredential credential = defaultCredential;
+			if (credential == null) {
+				credential = read(variable);
+				defaultCredential = credential;
+			}
+			return (credential);
+		}
+		ApiCredential credential = tenants.get(tenantId);
+		if (credential == null) {
+			credential = read(getVariable(tenantId));
+			tenants.putIfAbsent(tenantId, credential);
+		}
+		return (credential);
+	}
+
+	/**
+	 * @param tenantId
+	 * @return name of the variable holding the key of the tenant
+	 */
+	public String getVariable(String tenantId) {
+		StringBuilder name = new StringBuilder(variable.length() + 1 + tenantId.length()).append(variable).append('_');
+		for (int i = 0; i < tenantId.length(); i++) {
+			char c = tenantId.charAt(i);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
+				name.append(Character.toUpperCase(c));
+			} else {
+				name.append('_');
+			}
+		}
+		return (name.toString());
+	}
+
+	private static ApiCredential read(String name) throws MailerException {
+		String apiKey = System.getenv(name);
+		if (apiKey == null || apiKey.trim().isEmpty()) {
+			throw new MailerException("Mail Chimp API KEY is not bound to System Environment Variable: " + name);
+		}
+		return (new ApiCredential(apiKey));
+	}
+}
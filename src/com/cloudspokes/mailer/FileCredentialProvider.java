@@ -0,0 +1,179 @@
+package com.cloudspokes.mailer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the API keys from a properties file and reloads them when the file changes, so keys can be rotated by
+ * rewriting the file. The default key is the property apikey and the key of a tenant is apikey followed by a dot
+ * and the tenant id, such as apikey.acme.
+ * <p>
+ * The file is watched without a background thread: a send checks the modification time and size of the file once
+ * the check interval has passed, and the first send to see a change reloads it. The keys are replaced all at once.
+ * A file which cannot be read or holds a blank key is ignored and the previous keys stay in use; the error can be
+ * seen with {@link #getLastReloadError()}.
+ */
+public class FileCredentialProvider implements CredentialProvider {
+	public static final long DEFAULT_CHECK_INTERVAL_MILLIS = 10000;
+
+	private static final String DEFAULT_PROPERTY = "apikey";
+	private static final String TENANT_PREFIX = "apikey.";
+
+	private final File file;
+	private final long checkIntervalNanos;
+	private volatile Keys keys;
+	private volatile long nextCheckNanos;
+	private volatile IOException lastReloadError;
+
+	/**
+	 * @param file - properties file holding the keys
+	 * @throws MailerException if the file cannot be read
+	 */
+	public FileCredentialProvider(File file) throws MailerException {
+		this(file, DEFAULT_CHECK_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * @param file - properties file holding the keys
+	 * @param checkIntervalMillis - how often sends check whether the file changed. Zero checks on every send.
+	 * @throws MailerException if the file cannot be read
+	 */
+	public FileCredentialProvider(File file, long checkIntervalMillis) throws MailerException {
+		if (file == null) {
+			throw new IllegalArgumentException("File file cannot be null");
+		}
+		if (checkIntervalMillis < 0) {
+			throw new IllegalArgumentException("long checkIntervalMillis cannot be negative: " + checkIntervalMillis);
+		}
+		this.file = file;
+		this.checkIntervalNanos = TimeUnit.MILLISECONDS.toNanos(checkIntervalMillis);
+		try {
+			keys = load(file, null);
+		} catch (IOException e) {
+			throw new MailerException("Cannot read Mail Chimp API keys from " + file + ": " + e.getMessage(), e);
+		}
+		nextCheckNanos = System.nanoTime() + checkIntervalNanos;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.cloudspokes.mailer.CredentialProvider#getCredential(java.lang.String)
+	 */
+	@Override
+	public ApiCredential getCredential(String tenantId) throws MailerException {
+		if (System.nanoTime() - nextCheckNanos >= 0) {
+			checkForChanges();
+		}
+		Keys current = keys;
+		ApiCredential credential = tenantId == null ? current.defaultCredential : current.tenants.get(tenantId);
+		if (credential == null) {
+			throw new MailerException(tenantId == null ? "No default Mail Chimp API key in " + file
+					: "No Mail Chimp API key for tenant " + tenantId + " in " + file);
+		}
+		return (credential);
+	}
+
+	/**
+	 * Reads the file again now, whether it changed or not.
+	 * @throws MailerException if the file cannot be read; the previous keys stay in use
+	 */
+	public void reload() throws MailerException {
+		synchronized (this) {
+			try {
+				keys = load(file, keys);
+				lastReloadError = null;
+			} catch (IOException e) {
+				lastReloadError = e;
+				throw new MailerException("Cannot read Mail Chimp API keys from " + file + ": " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * @return why the last reload failed, or null if it succeeded
+	 */
+	public IOException getLastReloadError() {
+		return (lastReloadError);
+	}
+
+	private void checkForChanges() {
+		synchronized (this) {
+			//Another thread may have checked while this one waited
+			if (System.nanoTime() - nextCheckNanos < 0) {
+				return;
+			}
+			Keys current = keys;
+			if (file.lastModified() != current.lastModified || file.length() != current.length) {
+				try {
+					keys = load(file, current);
+					lastReloadError = null;
+				} catch (IOException e) {
+					//Keep sending with the keys that worked; the file is read again after the next interval
+					lastReloadError = e;
+				}
+			}
+			nextCheckNanos = System.nanoTime() + checkIntervalNanos;
+		}
+	}
+
+	/**
+	 * @param file
+	 * @param previous - keys loaded before, whose credentials are reused for keys which did not change
+	 * @return the keys in the file
+	 * @throws IOException
+	 */
+	private static Keys load(File file, Keys previous) throws IOException {
+		//Taken before reading, so a change made while the file is read is picked up by the next check
+		long lastModified = file.lastModified();
+		long length = file.length();
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		ApiCredential defaultCredential = null;
+		Map<String, ApiCredential> tenants = new HashMap<String, ApiCredential>();
+		for (String name : properties.stringPropertyNames()) {
+			String apiKey = properties.getProperty(name).trim();
+			if (name.equals(DEFAULT_PROPERTY)) {
+				defaultCredential = credential(name, apiKey, previous == null ? null : previous.defaultCredential);
+			} else if (name.startsWith(TENANT_PREFIX) && name.length() > TENANT_PREFIX.length()) {
+				String tenantId = name.substring(TENANT_PREFIX.length());
+				tenants.put(tenantId, credential(name, apiKey, previous == null ? null : previous.tenants.get(tenantId)));
+			}
+		}
+		return (new Keys(defaultCredential, Collections.unmodifiableMap(tenants), lastModified, length));
+	}
+
+	private static ApiCredential credential(String name, String apiKey, ApiCredential previous) throws IOException {
+		if (apiKey.isEmpty()) {
+			throw new IOException("Blank API key: " + name);
+		}
+		return (previous != null && previous.getApiKey().equals(apiKey) ? previous : new ApiCredential(apiKey));
+	}
+
+	/**
+	 * Keys of one version of the file.
+	 */
+	private static final class Keys {
+		final ApiCredential defaultCredential;
+		final Map<String, ApiCredential> tenants;
+		final long lastModified;
+		final long length;
+
+		Keys(ApiCredential defaultCredential, Map<String, ApiCredential> tenants, long lastModified, long length) {
+			this.defaultCredential = defaultCredential;
+			this.tenants = tenants;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+	}
+}
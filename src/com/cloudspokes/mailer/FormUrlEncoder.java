@@ -0,0 +1,358 @@
+package com.cloudspokes.mailer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Writes application/x-www-form-urlencoded data as UTF-8 bytes without building intermediate Strings.
+ * Values are encoded exactly like {@link java.net.URLEncoder#encode(String, String)} with UTF-8: letters, digits
+ * and ".-*_" are copied, space becomes '+' and everything else is percent encoded. Keys are written as given,
+ * from byte arrays prepared once with {@link #key(String)} and {@link #listKey(String)}.
+ * The encoder either collects the bytes in a growable buffer which can be reused after {@link #reset()}, or
+ * writes them through a fixed size buffer to an OutputStream. Instances are not thread safe.
+ */
+public final class FormUrlEncoder {
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final byte[] HEX = "0123456789ABCDEF".getBytes(ASCII);
+	private static final int ENCODE = -1;
+	//Output byte for each ASCII character, or ENCODE if it has to be percent encoded
+	private static final int[] ASCII_TABLE = new int[128];
+	//A char takes at most 9 output bytes (three percent encoded UTF-8 bytes), a surrogate pair 12
+	private static final int MAX_BYTES_PER_CHAR = 9;
+	private static final int MIN_FREE_BYTES = 12;
+	private static final byte[] TRUE = "true".getBytes(ASCII);
+	private static final byte[] FALSE = "false".getBytes(ASCII);
+
+	private static final int DEFAULT_CAPACITY = 8192;
+	private static final int MAX_POOLED_ENCODERS = 64;
+	private static final int MAX_POOLED_CAPACITY = 1 << 20;
+	private static final ConcurrentLinkedQueue<FormUrlEncoder> POOL = new ConcurrentLinkedQueue<FormUrlEncoder>();
+
+	static {
+		for (int c = 0; c < 128; c++) {
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.' || c == '-'
+					|| c == '*' || c == '_') {
+				ASCII_TABLE[c] = c;
+			} else if (c == ' ') {
+				ASCII_TABLE[c] = '+';
+			} else {
+				ASCII_TABLE[c] = ENCODE;
+			}
+		}
+	}
+
+	private final OutputStream out;
+	private byte[] buf;
+	private int count;
+	private long flushed;
+
+	/**
+	 * Creates an encoder collecting the bytes in a buffer which grows as needed.
+	 * @param initialCapacity
+	 */
+	public FormUrlEncoder(int initialCapacity) {
+		this.out = null;
+		this.buf = new byte[Math.max(initialCapacity, MIN_FREE_BYTES)];
+	}
+
+	/**
+	 * Creates an encoder writing to the given stream whenever its buffer is full.
+	 * @param out
+	 * @param bufferSize
+	 */
+	public FormUrlEncoder(OutputStream out, int bufferSize) {
+		if (out == null) {
+			throw new IllegalArgumentException("OutputStream out cannot be null");
+		}
+		this.out = out;
+		this.buf = new byte[Math.max(bufferSize, MIN_FREE_BYTES * 4)];
+	}
+
+	/**
+	 * @param name
+	 * @return the bytes of "name=" to be passed to the write methods
+	 */
+	public static byte[] key(String name) {
+		return ((name + "=").getBytes(ASCII));
+	}
+
+	/**
+	 * @param name
+	 * @return the bytes of "name[" to be passed to {@link #writeListField(byte[], List)}
+	 */
+	public static byte[] listKey(String name) {
+		return ((name + "[").getBytes(ASCII));
+	}
+
+	/**
+	 * Writes key=value&amp;. Nothing is written if the value is null.
+	 * @param key - prepared with {@link #key(String)}
+	 * @param value
+	 * @throws IOException
+	 */
+	public void writeField(byte[] key, String value) throws IOException {
+		if (value == null) {
+			return;
+		}
+		writeRaw(key, 0, key.length);
+		writeEncoded(value);
+		writeByte('&');
+	}
+
+	/**
+	 * Writes key=true&amp; or key=false&amp;.
+	 * @param key - prepared with {@link #key(String)}
+	 * @param value
+	 * @throws IOException
+	 */
+	public void writeField(byte[] key, boolean value) throws IOException {
+		writeRaw(key, 0, key.length);
+		byte[] bytes = value ? TRUE : FALSE;
+		writeRaw(bytes, 0, bytes.length);
+		writeByte('&');
+	}
+
+	/**
+	 * Writes key[0]=value0&amp;key[1]=value1&amp;... Nothing is written if the list is null.
+	 * @param listKey - prepared with {@link #listKey(String)}
+	 * @param values
+	 * @throws IOException
+	 */
+	public void writeListField(byte[] listKey, List<String> values) throws IOException {
+		if (values == null) {
+			return;
+		}
+		for (int i = 0, size = values.size(); i < size; i++) {
+			writeListField(listKey, i, values.get(i));
+		}
+	}
+
+	/**
+	 * Writes key[index]=value&amp;.
+	 * @param listKey - prepared with {@link #listKey(String)}
+	 * @param index
+	 * @param value
+	 * @throws IOException
+	 */
+	public void writeListField(byte[] listKey, int index, String value) throws IOException {
+		writeRaw(listKey, 0, listKey.length);
+		writeInt(index);
+		writeByte(']');
+		writeByte('=');
+		writeEncoded(value);
+		writeByte('&');
+	}
+
+	/**
+	 * Percent encodes the value and writes it.
+	 * @param value
+	 * @throws IOException
+	 */
+	public void writeEncoded(CharSequence value) throws IOException {
+		int length = value.length();
+		int i = 0;
+		while (i < length) {
+			int free = buf.length - count;
+			if (free < MIN_FREE_BYTES) {
+				makeRoom(MIN_FREE_BYTES);
+				free = buf.length - count;
+			}
+			//Encode as many chars as certainly fit in the free space; a trailing surrogate pair may use the margin
+			int end = Math.min(length, i + (free - 3) / MAX_BYTES_PER_CHAR);
+			i = encode(value, i, end, length);
+		}
+	}
+
+	/**
+	 * Writes bytes without encoding them.
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 */
+	public void writeRaw(byte[] bytes, int offset, int length) throws IOException {
+		if (buf.length - count < length) {
+			if (out != null) {
+				flushBuffer();
+				if (length > buf.length) {
+					out.write(bytes, offset, length);
+					flushed += length;
+					return;
+				}
+			} else {
+				grow(count + length);
+			}
+		}
+		System.arraycopy(bytes, offset, buf, count, length);
+		count += length;
+	}
+
+	/**
+	 * @return number of bytes written since the encoder was created or reset
+	 */
+	public long size() {
+		return (flushed + count);
+	}
+
+	/**
+	 * @return the internal buffer. In buffer mode it holds {@link #size()} bytes from offset zero.
+	 */
+	public byte[] buffer() {
+		return (buf);
+	}
+
+	/**
+	 * @return a copy of the buffered bytes
+	 */
+	public byte[] toByteArray() {
+		byte[] copy = new byte[count];
+		System.arraycopy(buf, 0, copy, 0, count);
+		return (copy);
+	}
+
+	/**
+	 * Discards the buffered bytes so that the encoder can be used for the next message.
+	 */
+	public void reset() {
+		count = 0;
+		flushed = 0;
+	}
+
+	/**
+	 * Writes the buffered bytes to the stream. Only valid for an encoder created with an OutputStream.
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		if (out == null) {
+			throw new IllegalStateException("Encoder does not write to a stream");
+		}
+		flushBuffer();
+		out.flush();
+	}
+
+	/**
+	 * Writes the buffered bytes to the stream without flushing the stream, for a caller which flushes it once the
+	 * whole request is written. Only valid for an encoder created with an OutputStream.
+	 * @throws IOException
+	 */
+	void writeBuffered() throws IOException {
+		if (out == null) {
+			throw new IllegalStateException("Encoder does not write to a stream");
+		}
+		flushBuffer();
+	}
+
+	/**
+	 * @return a buffering encoder from a shared pool. It has to be handed back with {@link #recycle(FormUrlEncoder)}.
+	 */
+	static FormUrlEncoder obtain() {
+		FormUrlEncoder encoder = POOL.poll();
+		return (encoder != null ? encoder : new FormUrlEncoder(DEFAULT_CAPACITY));
+	}
+
+	/**
+	 * Returns an encoder obtained with {@link #obtain()} to the pool. Encoders which grew very large are dropped
+	 * so that one huge message does not pin its buffer for the lifetime of the process.
+	 * @param encoder
+	 */
+	static void recycle(FormUrlEncoder encoder) {
+		encoder.reset();
+		if (encoder.out == null && encoder.buf.length <= MAX_POOLED_CAPACITY && POOL.size() < MAX_POOLED_ENCODERS) {
+			POOL.offer(encoder);
+		}
+	}
+
+	private int encode(CharSequence value, int start, int end, int length) {
+		byte[] b = buf;
+		int pos = count;
+		int i = start;
+		while (i < end) {
+			char c = value.charAt(i++);
+			if (c < 0x80) {
+				int mapped = ASCII_TABLE[c];
+				if (mapped != ENCODE) {
+					b[pos++] = (byte)mapped;
+				} else {
+					pos = percent(b, pos, c);
+				}
+			} else if (c < 0x800) {
+				pos = percent(b, pos, 0xC0 | (c >> 6));
+				pos = percent(b, pos, 0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i < length && Character.isLowSurrogate(value.charAt(i))) {
+				int codePoint = Character.toCodePoint(c, value.charAt(i++));
+				pos = percent(b, pos, 0xF0 | (codePoint >> 18));
+				pos = percent(b, pos, 0x80 | ((codePoint >> 12) & 0x3F));
+				pos = percent(b, pos, 0x80 | ((codePoint >> 6) & 0x3F));
+				pos = percent(b, pos, 0x80 | (codePoint & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				//Unpaired surrogates become '?' like String.getBytes does
+				pos = percent(b, pos, '?');
+			} else {
+				pos = percent(b, pos, 0xE0 | (c >> 12));
+				pos = percent(b, pos, 0x80 | ((c >> 6) & 0x3F));
+				pos = percent(b, pos, 0x80 | (c & 0x3F));
+			}
+		}
+		count = pos;
+		return (i);
+	}
+
+	private static int percent(byte[] b, int pos, int value) {
+		b[pos] = '%';
+		b[pos + 1] = HEX[(value >> 4) & 0xF];
+		b[pos + 2] = HEX[value & 0xF];
+		return (pos + 3);
+	}
+
+	private void writeByte(int b) throws IOException {
+		if (count == buf.length) {
+			makeRoom(1);
+		}
+		buf[count++] = (byte)b;
+	}
+
+	private void writeInt(int value) throws IOException {
+		if (buf.length - count < 11) {
+			makeRoom(11);
+		}
+		if (value < 10) {
+			buf[count++] = (byte)('0' + value);
+			return;
+		}
+		int digits = 0;
+		for (int v = value; v > 0; v /= 10) {
+			digits++;
+		}
+		int pos = count + digits;
+		for (int v = value; v > 0; v /= 10) {
+			buf[--pos] = (byte)('0' + v % 10);
+		}
+		count += digits;
+	}
+
+	private void makeRoom(int needed) throws IOException {
+		if (out != null) {
+			flushBuffer();
+		} else {
+			grow(count + needed);
+		}
+	}
+
+	private void grow(int minCapacity) {
+		int capacity = Math.max(buf.length << 1, minCapacity);
+		byte[] larger = new byte[capacity];
+		System.arraycopy(buf, 0, larger, 0, count);
+		buf = larger;
+	}
+
+	private void flushBuffer() throws IOException {
+		if (count > 0) {
+			out.write(buf, 0, count);
+			flushed += count;
+			count = 0;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package com.cloudspokes.mailer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent histogram of non-negative long values with log-linear buckets, in the manner of HdrHistogram.
+ * Values below 128 are counted exactly; above that every power of two is split into 64 buckets, so a reported
+ * percentile is within 1/64 (about 1.6%) of the recorded value. Recording is a few shifts and one atomic
+ * increment, with no allocation and no lock. The whole range of long fits in under 4000 buckets.
+ */
+public final class Histogram {
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+	private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (64 - SUB_BUCKET_BITS) * SUB_BUCKET_HALF;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param value - negative values are recorded as 0
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(indexOf(value));
+		count.increment();
+		sum.add(value);
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			//retry
+		}
+	}
+
+	/**
+	 * @return number of recorded values
+	 */
+	public long getCount() {
+		return (count.sum());
+	}
+
+	/**
+	 * @return sum of the recorded values
+	 */
+	public long getSum() {
+		return (sum.sum());
+	}
+
+	/**
+	 * @return largest recorded value, exact
+	 */
+	public long getMax() {
+		return (max.get());
+	}
+
+	/**
+	 * @return mean of the recorded values, or 0 if there are none
+	 */
+	public double getMean() {
+		long n = count.sum();
+		return (n == 0 ? 0 : (double)sum.sum() / n);
+	}
+
+	/**
+	 * @param percentile - between 0 and 100
+	 * @return the largest value within the bucket holding the given percentile, never above the maximum, or 0 if
+	 *         no value was recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("percentile must be between 0 and 100: " + percentile);
+		}
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			total += counts.get(i);
+		}
+		if (total == 0) {
+			return (0);
+		}
+		long target = Math.max(1, (long)Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += counts.get(i);
+			if (seen >= target) {
+				return (Math.min(highestValueAt(i), max.get()));
+			}
+		}
+		return (max.get());
+	}
+
+	/**
+	 * Clears all recorded values. Values recorded while the reset runs may be partly kept.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts.set(i, 0);
+		}
+		count.reset();
+		sum.reset();
+		max.set(0);
+	}
+
+	static int indexOf(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return ((int)value);
+		}
+		//Shift which brings the value into [SUB_BUCKET_HALF, SUB_BUCKET_COUNT)
+		int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (int)(value >>> shift) - SUB_BUCKET_HALF);
+	}
+
+	static long highestValueAt(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return (index);
+		}
+		int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+		long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+		long highest = ((subBucket + 1) << shift) - 1;
+		return (highest < 0 ? Long.MAX_VALUE : highest);
+	}
+}
@@ -0,0 +1,64 @@
+package com.cloudspokes.mailer;
+
+import java.io.IOException;
+
+/**
+ * Thrown when Mail Chimp answers a request with a status other than 200. The message is the reason phrase of the
+ * response; the status code and the start of the response body are kept so that failures can be classified.
+ */
+public class HttpStatusException extends IOException {
+	private static final long serialVersionUID = -3021597155013627145L;
+	//Amazon SES answers a send over the maximum rate with a 400 status and one of these in the body
+	static final String[] THROTTLED = { "Maximum sending rate exceeded", "Throttling" };
+
+	private final int statusCode;
+	private final String responseBody;
+
+	/**
+	 * @param statusCode - HTTP status code of the response
+	 * @param reasonPhrase - reason phrase from the status line
+	 * @param responseBody - start of the response body, may be empty
+	 */
+	public HttpStatusException(int statusCode, String reasonPhrase, String responseBody) {
+		super(reasonPhrase);
+		this.statusCode = statusCode;
+		this.responseBody = responseBody;
+	}
+
+	public int getStatusCode() {
+		return (statusCode);
+	}
+
+	public String getResponseBody() {
+		return (responseBody);
+	}
+
+	/**
+	 * @return true for the responses worth retrying: 408, throttling and all 5xx
+	 */
+	public boolean isRetryable() {
+		return (statusCode == 408 || isThrottled() || (statusCode >= 500 && statusCode < 600));
+	}
+
+	/**
+	 * @return true if the request was refused because of the sending rate, with a 429 status or a throttling error
+	 */
+	public boolean isThrottled() {
+		return (statusCode == 429 || isThrottled(responseBody));
+	}
+
+	/**
+	 * @param message - a status, error or response body, may be null
+	 * @return true if it is one of the throttling errors of Mail Chimp
+	 */
+	static boolean isThrottled(String message) {
+		if (message != null) {
+			for (String throttled : THROTTLED) {
+				if (message.contains(throttled)) {
+					return (true);
+				}
+			}
+		}
+		return (false);
+	}
+}
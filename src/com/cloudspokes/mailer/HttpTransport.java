@@ -0,0 +1,25 @@
+package com.cloudspokes.mailer;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Transport used by {@link AmazonSESMailChimpMailerImpl} to talk to the Mail Chimp STS endpoint. Implementations
+ * must be safe for use by multiple threads.
+ */
+public interface HttpTransport {
+	/**
+	 * Posts the body to the URL and passes the response to the handler.
+	 * @param url
+	 * @param body
+	 * @param handler
+	 * @return the value returned by the handler
+	 * @throws IOException if the request cannot be sent or the response cannot be read, or if the handler throws.
+	 */
+	public <T> T post(URL url, RequestBody body, ResponseHandler<T> handler) throws IOException;
+
+	/**
+	 * Releases all connections held by the transport.
+	 */
+	public void close();
+}
@@ -0,0 +1,464 @@
+package com.cloudspokes.mailer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Mailer which sends a message once however often it is passed in within a window, so that an upstream service
+ * retrying a call does not mail its recipients twice. Every message has an idempotency key, given by the caller or
+ * derived from its content and recipients. The first call with a key sends the message; a call with the same key
+ * while it is in flight waits for that send and returns its result, and a call after it was accepted returns the
+ * same result without sending. A send which fails or which Mail Chimp does not accept is forgotten as soon as it
+ * completes, so that a retry sends the message again.
+ * <p>
+ * The keys are kept for windowMillis after the send started, and at most maxEntries of them: the oldest are dropped
+ * first. They are held in lock striped maps in the order they were added, so finding a key, adding one and dropping
+ * the expired ones at the head only lock one stripe for a few map operations. A derived key holds copies of the to,
+ * cc and bcc addresses, which are compared exactly, so that a message is never taken for one sent to other
+ * recipients, and a 64 bit hash of the characters of every other field. Hashing the content walks the body once,
+ * which costs less than serializing it; callers who have their own keys save even that.
+ * <p>
+ * sendMail and sendMailForResult keep separate keys, as the first returns the raw response of Mail Chimp and the
+ * second its parsed result. Batches and recipient lists go through sendMailForResult message by message and chunk
+ * by chunk.
+ */
+public class IdempotentMailer extends AbstractAmazonSESMailChimpMailer {
+	public static final long DEFAULT_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(10);
+	public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+	private final AmazonSESMailChimpMailer mailer;
+	private final long windowNanos;
+	private final Stripe[] stripes;
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder joined = new LongAdder();
+	private final LongAdder replayed = new LongAdder();
+
+	/**
+	 * Keeps up to {@link #DEFAULT_MAX_ENTRIES} keys for {@link #DEFAULT_WINDOW_MILLIS}.
+	 * @param mailer - mailer which sends the messages
+	 */
+	public IdempotentMailer(AmazonSESMailChimpMailer mailer) {
+		this(mailer, DEFAULT_WINDOW_MILLIS, DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * @param mailer - mailer which sends the messages
+	 * @param windowMillis - time after the start of a send in which the same key returns its result
+	 * @param maxEntries - most keys kept
+	 */
+	public IdempotentMailer(AmazonSESMailChimpMailer mailer, long windowMillis, int maxEntries) {
+		this(mailer, windowMillis, maxEntries, MailerExecutors.defaultExecutor(),
+				PooledHttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST);
+	}
+
+	/**
+	 * @param mailer - mailer which sends the messages
+	 * @param windowMillis - time after the start of a send in which the same key returns its result
+	 * @param maxEntries - most keys kept
+	 * @param executor - executor on which asynchronous and batch sends run.
+	 * @param batchConcurrency - maximum number of messages of one batch in flight at the same time.
+	 */
+	public IdempotentMailer(AmazonSESMailChimpMailer mailer, long windowMillis, int maxEntries, Executor executor,
+			int batchConcurrency) {
+		super(executor, batchConcurrency);
+		if (mailer == null) {
+			throw new IllegalArgumentException("AmazonSESMailChimpMailer mailer cannot be null");
+		}
+		if (windowMillis < 1 || maxEntries < 1) {
+			throw new IllegalArgumentException("windowMillis and maxEntries must be at least 1: " + windowMillis + ", "
+					+ maxEntries);
+		}
+		this.mailer = mailer;
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+		int count = Integer.highestOneBit(Math.max(1, Math.min(maxEntries, Runtime.getRuntime().availableProcessors()
+				* 4)) * 2 - 1);
+		this.stripes = new Stripe[count];
+		for (int i = 0; i < count; i++) {
+			//The first stripes take the remainder so that the capacities add up to maxEntries
+			stripes[i] = new Stripe(maxEntries / count + (i < maxEntries % count ? 1 : 0));
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.cloudspokes.mailer.AmazonSESMailChimpMailer#sendMail(com.cloudspokes.mailer.MailInfoDTO)
+	 */
+	@Override
+	public String sendMail(MailInfoDTO mailData) throws MailerException {
+		return (sendMail(mailData, keyOf(mailData)));
+	}
+
+	/**
+	 * @param mailData
+	 * @param idempotencyKey - key of the message, the same for every call sending it
+	 * @return the response of the send of the key
+	 * @throws MailerException if the send of the key failed
+	 */
+	public String sendMail(MailInfoDTO mailData, String idempotencyKey) throws MailerException {
+		if (idempotencyKey == null) {
+			throw new IllegalArgumentException("String idempotencyKey cannot be null");
+		}
+		return (sendMail(mailData, (Object)idempotencyKey));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.cloudspokes.mailer.AmazonSESMailChimpMailer#sendMailForResult(com.cloudspokes.mailer.MailInfoDTO)
+	 */
+	@Override
+	public SendResult sendMailForResult(MailInfoDTO mailData) throws MailerException {
+		return (sendMailForResult(mailData, keyOf(mailData)));
+	}
+
+	/**
+	 * @param mailData
+	 * @param idempotencyKey - key of the message, the same for every call sending it
+	 * @return the result of the send of the key
+	 * @throws MailerException if the send of the key failed
+	 */
+	public SendResult sendMailForResult(MailInfoDTO mailData, String idempotencyKey) throws MailerException {
+		if (idempotencyKey == null) {
+			throw new IllegalArgumentException("String idempotencyKey cannot be null");
+		}
+		return (sendMailForResult(mailData, (Object)idempotencyKey));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.cloudspokes.mailer.AbstractAmazonSESMailChimpMailer#isSuppressed(java.lang.String)
+	 */
+	@Override
+	protected boolean isSuppressed(String email) {
+		return (isSuppressed(mailer, email));
+	}
+
+	private String sendMail(MailInfoDTO mailData, Object id) throws MailerException {
+		Key key = new Key(id, true);
+		long now = System.nanoTime();
+		Entry entry = new Entry(now + windowNanos);
+		Entry existing = stripe(key).putIfAbsent(key, entry, now);
+		if (existing != null) {
+			return ((String)join(existing));
+		}
+		try {
+			String status = mailer.sendMail(mailData);
+			complete(key, entry, status, isAccepted(status));
+			return (status);
+		} catch (Throwable e) {
+			fail(key, entry, e);
+			throw e;
+		}
+	}
+
+	private SendResult sendMailForResult(MailInfoDTO mailData, Object id) throws MailerException {
+		Key key = new Key(id, false);
+		long now = System.nanoTime();
+		Entry entry = new Entry(now + windowNanos);
+		Entry existing = stripe(key).putIfAbsent(key, entry, now);
+		if (existing != null) {
+			return ((SendResult)join(existing));
+		}
+		try {
+			SendResult result = mailer.sendMailForResult(mailData);
+			complete(key, entry, result, result.isAccepted());
+			return (result);
+		} catch (Throwable e) {
+			fail(key, entry, e);
+			throw e;
+		}
+	}
+
+	/**
+	 * @param status - response returned by sendMail
+	 * @return true if the response is a sent or queued status; a response which cannot be parsed is not kept, so
+	 *    that a retry sends the message again rather than repeating the response
+	 */
+	private static boolean isAccepted(String status) {
+		try {
+			return (status != null && SendResult.parse(status).isAccepted());
+		} catch (MailerException e) {
+			return (false);
+		}
+	}
+
+	/**
+	 * Completes the send of the key with its result, removing the key unless the result was accepted.
+	 */
+	private void complete(Key key, Entry entry, Object value, boolean accepted) {
+		sent.increment();
+		if (!accepted) {
+			stripe(key).remove(key, entry);
+		}
+		entry.future.complete(value);
+	}
+
+	/**
+	 * Completes the send of the key with the exception it threw, removing the key so that a retry sends again. Does
+	 * nothing if the send was already completed.
+	 */
+	private void fail(Key key, Entry entry, Throwable e) {
+		if (entry.future.isDone()) {
+			return;
+		}
+		sent.increment();
+		stripe(key).remove(key, entry);
+		entry.future.completeExceptionally(e);
+	}
+
+	private Object join(Entry entry) throws MailerException {
+		if (entry.future.isDone()) {
+			replayed.increment();
+		} else {
+			joined.increment();
+		}
+		try {
+			return (entry.future.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MailerException("Interrupted while waiting for the send of the same message", e);
+		} catch (ExecutionException e) {
+			//The joiners throw what the send threw
+			Throwable cause = e.getCause();
+			if (cause instanceof MailerException) {
+				throw (MailerException)cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			throw (Error)cause;
+		}
+	}
+
+	/**
+	 * @return messages sent or attempted by the wrapped mailer
+	 */
+	public long getSentCount() {
+		return (sent.sum());
+	}
+
+	/**
+	 * @return calls which waited for the send of the same key in flight
+	 */
+	public long getJoinedCount() {
+		return (joined.sum());
+	}
+
+	/**
+	 * @return calls answered with the result of an earlier send of the same key
+	 */
+	public long getReplayedCount() {
+		return (replayed.sum());
+	}
+
+	/**
+	 * @return keys kept, including expired ones not dropped yet
+	 */
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			size += stripe.size();
+		}
+		return (size);
+	}
+
+	private Stripe stripe(Key key) {
+		int hash = key.hashCode();
+		return (stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)]);
+	}
+
+	/**
+	 * @param mailData
+	 * @return key of the content and recipients of the message
+	 */
+	static Object keyOf(MailInfoDTO mailData) {
+		long hash = 0xCBF29CE484222325L;
+		MailTemplate template = mailData.getHtmlTemplate();
+		if (template != null) {
+			hash = hash(hash, template.getId());
+			Map<String, String> mergeFields = mailData.getMergeFields();
+			if (mergeFields != null) {
+				//Added up so that the order of the entries does not matter
+				long fields = 0;
+				for (Map.Entry<String, String> field : mergeFields.entrySet()) {
+					fields += mix(hash(hash(1, field.getKey()), field.getValue()));
+				}
+				hash = step(hash, fields);
+			}
+		} else {
+			hash = hash(hash, mailData.getHtmlEmailContent());
+		}
+		hash = hash(hash, mailData.getTextEmailContent());
+		hash = hash(hash, mailData.getSubject());
+		hash = hash(hash, mailData.getFromName());
+		hash = hash(hash, mailData.getFromEmail());
+		hash = hash(hash, mailData.getToName());
+		hash = hash(hash, mailData.getReplyTo());
+		hash = hash(hash, mailData.getCcName());
+		hash = hash(hash, mailData.getBccName());
+		hash = hash(hash, mailData.getTags());
+		hash = step(hash, (mailData.isAutogenHtml() ? 1 : 0) | (mailData.isTrackOpens() ? 2 : 0)
+				| (mailData.isTrackClicks() ? 4 : 0));
+		return (new DerivedKey(mix(hash), copy(mailData.getToEmail()), copy(mailData.getCcEmail()),
+				copy(mailData.getBccEmail())));
+	}
+
+	private static List<String> copy(List<String> addresses) {
+		return (addresses == null ? null : new ArrayList<String>(addresses));
+	}
+
+	private static long hash(long hash, List<String> values) {
+		if (values == null) {
+			return (step(hash, -1));
+		}
+		for (String value : values) {
+			hash = hash(hash, value);
+		}
+		return (step(hash, values.size()));
+	}
+
+	/**
+	 * FNV-1a over the characters of the value, followed by its length so that adjacent fields do not run together.
+	 */
+	private static long hash(long hash, String value) {
+		if (value == null) {
+			return (step(hash, -1));
+		}
+		for (int i = 0; i < value.length(); i++) {
+			hash = (hash ^ value.charAt(i)) * 0x100000001B3L;
+		}
+		return (step(hash, value.length()));
+	}
+
+	private static long step(long hash, long value) {
+		return ((hash ^ mix(value)) * 0x100000001B3L);
+	}
+
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		return (hash ^ (hash >>> 33));
+	}
+
+	/**
+	 * Key derived from a message: the exact recipients and a hash of everything else.
+	 */
+	private static final class DerivedKey {
+		private final long contentHash;
+		private final List<String> toEmail;
+		private final List<String> ccEmail;
+		private final List<String> bccEmail;
+
+		DerivedKey(long contentHash, List<String> toEmail, List<String> ccEmail, List<String> bccEmail) {
+			this.contentHash = contentHash;
+			this.toEmail = toEmail;
+			this.ccEmail = ccEmail;
+			this.bccEmail = bccEmail;
+		}
+
+		@Override
+		public int hashCode() {
+			return ((int)(contentHash ^ (contentHash >>> 32)) * 31 + (toEmail == null ? 0 : toEmail.hashCode()));
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof DerivedKey)) {
+				return (false);
+			}
+			DerivedKey key = (DerivedKey)other;
+			return (contentHash == key.contentHash && equal(toEmail, key.toEmail) && equal(ccEmail, key.ccEmail)
+					&& equal(bccEmail, key.bccEmail));
+		}
+
+		private static boolean equal(List<String> a, List<String> b) {
+			return (a == null ? b == null : a.equals(b));
+		}
+	}
+
+	/**
+	 * Key of a send through sendMail or sendMailForResult: a caller's String or a {@link DerivedKey}.
+	 */
+	private static final class Key {
+		private final Object id;
+		private final boolean raw;
+
+		Key(Object id, boolean raw) {
+			this.id = id;
+			this.raw = raw;
+		}
+
+		@Override
+		public int hashCode() {
+			return (raw ? ~id.hashCode() : id.hashCode());
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) {
+				return (false);
+			}
+			Key key = (Key)other;
+			return (raw == key.raw && id.equals(key.id));
+		}
+	}
+
+	private static final class Entry {
+		final long expiresNanos;
+		final CompletableFuture<Object> future = new CompletableFuture<Object>();
+
+		Entry(long expiresNanos) {
+			this.expiresNanos = expiresNanos;
+		}
+	}
+
+	/**
+	 * Keys in the order they were added, so that the expired ones and the oldest are found at the head.
+	 */
+	private static final class Stripe {
+		private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>();
+		private final int capacity;
+
+		Stripe(int capacity) {
+			this.capacity = Math.max(1, capacity);
+		}
+
+		/**
+		 * @return the live entry of the key, or null after adding the new entry
+		 */
+		synchronized Entry putIfAbsent(Key key, Entry entry, long now) {
+			Entry existing = entries.get(key);
+			if (existing != null && existing.expiresNanos - now > 0) {
+				return (existing);
+			}
+			if (existing != null) {
+				entries.remove(key);
+			}
+			Iterator<Entry> oldest = entries.values().iterator();
+			while (oldest.hasNext()) {
+				Entry head = oldest.next();
+				if (head.expiresNanos - now > 0 && entries.size() < capacity) {
+					break;
+				}
+				oldest.remove();
+			}
+			entries.put(key, entry);
+			return (null);
+		}
+
+		synchronized void remove(Key key, Entry entry) {
+			if (entries.get(key) == entry) {
+				entries.remove(key);
+			}
+		}
+
+		synchronized int size() {
+			return (entries.size());
+		}
+	}
+}
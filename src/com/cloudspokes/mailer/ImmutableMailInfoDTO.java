@@ -0,0 +1,527 @@
+package com.cloudspokes.mailer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable {@link MailInfoDTO} created with a {@link Builder}. The builder validates every field with the rules
+ * and messages of the MailInfoDTO constructors, walking each list once while copying it into an array. The message
+ * keeps those arrays and hands them out as unmodifiable lists, so neither the caller's lists nor the setters can
+ * change a message after it was validated. All fields are final, which makes a message safe to share between
+ * sending threads without copying or synchronization. The setters throw UnsupportedOperationException.
+ * <p>
+ * The addresses are normalized and de-duplicated across the to, cc and bcc recipients in the copies, as by the
+ * MailInfoDTO constructors.
+ */
+public final class ImmutableMailInfoDTO extends MailInfoDTO {
+	private static final int MAX_ADDRESSES = AmazonSESMailChimpMailer.MAX_RECIPIENTS;
+	private static final int MAX_TAGS = 50;
+
+	private final String htmlEmailContent;
+	private final MailTemplate htmlTemplate;
+	private final Map<String, String> mergeFields;
+	private final String subject;
+	private final String fromName;
+	private final String fromEmail;
+	private final List<String> toEmail;
+	private final List<String> toName;
+	private final String textEmailContent;
+	private final List<String> replyTo;
+	private final List<String> ccEmail;
+	private final List<String> ccName;
+	private final List<String> bccEmail;
+	private final List<String> bccName;
+	private final boolean autogenHtml;
+	private final boolean trackOpens;
+	private final boolean trackClicks;
+	private final List<String> tags;
+
+	private ImmutableMailInfoDTO(Builder builder, String fromEmail, String[] toEmail, String[] toName,
+			String[] replyTo, String[] ccEmail, String[] ccName, String[] bccEmail, String[] bccName, String[] tags) {
+		this.htmlEmailContent = builder.htmlTemplate == null ? builder.htmlEmailContent : null;
+		this.htmlTemplate = builder.htmlTemplate;
+		this.mergeFields = builder.htmlTemplate == null || builder.mergeFields == null ? null
+				: Collections.unmodifiableMap(new HashMap<String, String>(builder.mergeFields));
+		this.subject = builder.subject;
+		this.fromName = builder.fromName;
+		this.fromEmail = fromEmail;
+		this.toEmail = view(toEmail);
+		this.toName = view(toName);
+		this.textEmailContent = builder.textEmailContent;
+		this.replyTo = view(replyTo);
+		this.ccEmail = view(ccEmail);
+		this.ccName = view(ccName);
+		this.bccEmail = view(bccEmail);
+		this.bccName = view(bccName);
+		this.autogenHtml = builder.autogenHtml;
+		this.trackOpens = builder.trackOpens;
+		this.trackClicks = builder.trackClicks;
+		this.tags = view(tags);
+	}
+
+	/**
+	 * @return a builder for a new message
+	 */
+	public static Builder builder() {
+		return (new Builder());
+	}
+
+	@Override
+	public String getHtmlEmailContent() {
+		return (htmlTemplate != null ? htmlTemplate.render(mergeFields) : htmlEmailContent);
+	}
+
+	@Override
+	public MailTemplate getHtmlTemplate() {
+		return (htmlTemplate);
+	}
+
+	@Override
+	public Map<String, String> getMergeFields() {
+		return (mergeFields);
+	}
+
+	@Override
+	public String getSubject() {
+		return (subject);
+	}
+
+	@Override
+	public String getFromName() {
+		return (fromName);
+	}
+
+	@Override
+	public String getFromEmail() {
+		return (fromEmail);
+	}
+
+	@Override
+	public List<String> getToEmail() {
+		return (toEmail);
+	}
+
+	@Override
+	public List<String> getToName() {
+		return (toName);
+	}
+
+	@Override
+	public String getTextEmailContent() {
+		return (textEmailContent);
+	}
+
+	@Override
+	public List<String> getReplyTo() {
+		return (replyTo);
+	}
+
+	@Override
+	public List<String> getCcEmail() {
+		return (ccEmail);
+	}
+
+	@Override
+	public List<String> getCcName() {
+		return (ccName);
+	}
+
+	@Override
+	public List<String> getBccEmail() {
+		return (bccEmail);
+	}
+
+	@Override
+	public List<String> getBccName() {
+		return (bccName);
+	}
+
+	@Override
+	public boolean isAutogenHtml() {
+		return (autogenHtml);
+	}
+
+	@Override
+	public boolean isTrackOpens() {
+		return (trackOpens);
+	}
+
+	@Override
+	public boolean isTrackClicks() {
+		return (trackClicks);
+	}
+
+	@Override
+	public List<String> getTags() {
+		return (tags);
+	}
+
+	@Override
+	public void setHtmlEmailContent(String htmlEmailContent) {
+		throw immutable();
+	}
+
+	@Override
+	public void setHtmlTemplate(MailTemplate htmlTemplate, Map<String, String> mergeFields) {
+		throw immutable();
+	}
+
+	@Override
+	public void setSubject(String subject) {
+		throw immutable();
+	}
+
+	@Override
+	public void setFromName(String fromName) {
+		throw immutable();
+	}
+
+	@Override
+	public void setFromEmail(String fromEmail) {
+		throw immutable();
+	}
+
+	@Override
+	public void setToEmail(List<String> toEmail) {
+		throw immutable();
+	}
+
+	@Override
+	public void setToName(List<String> toName) {
+		throw immutable();
+	}
+
+	@Override
+	public void setTextEmailContent(String textEmailContent) {
+		throw immutable();
+	}
+
+	@Override
+	public void setReplyTo(List<String> replyTo) {
+		throw immutable();
+	}
+
+	@Override
+	public void setCcEmail(List<String> ccEmail) {
+		throw immutable();
+	}
+
+	@Override
+	public void setCcName(List<String> ccName) {
+		throw immutable();
+	}
+
+	@Override
+	public void setBccEmail(List<String> bccEmail) {
+		throw immutable();
+	}
+
+	@Override
+	public void setBccName(List<String> bccName) {
+		throw immutable();
+	}
+
+	@Override
+	public void setAutogenHtml(boolean autogenHtml) {
+		throw immutable();
+	}
+
+	@Override
+	public void setTrackOpens(boolean trackOpens) {
+		throw immutable();
+	}
+
+	@Override
+	public void setTrackClicks(boolean trackClicks) {
+		throw immutable();
+	}
+
+	@Override
+	public void setTags(List<String> tags) {
+		throw immutable();
+	}
+
+	private static UnsupportedOperationException immutable() {
+		return (new UnsupportedOperationException("ImmutableMailInfoDTO cannot be changed, use a new Builder"));
+	}
+
+	private static List<String> view(String[] values) {
+		return (values == null ? null : Collections.unmodifiableList(Arrays.asList(values)));
+	}
+
+	/**
+	 * Collects the fields of an {@link ImmutableMailInfoDTO}. Nothing is validated or copied until {@link #build()}.
+	 * A builder can build several messages and is not thread safe.
+	 */
+	public static final class Builder {
+		private String htmlEmailContent;
+		private MailTemplate htmlTemplate;
+		private Map<String, String> mergeFields;
+		private String subject;
+		private String fromName;
+		private String fromEmail;
+		private List<String> toEmail;
+		private List<String> toName;
+		private String textEmailContent;
+		private List<String> replyTo;
+		private List<String> ccEmail;
+		private List<String> ccName;
+		private List<String> bccEmail;
+		private List<String> bccName;
+		private boolean autogenHtml = true;
+		private boolean trackOpens;
+		private boolean trackClicks;
+		private List<String> tags;
+
+		private Builder() {
+		}
+
+		/**
+		 * @param htmlEmailContent - required unless a template is set
+		 * @return this builder
+		 */
+		public Builder htmlEmailContent(String htmlEmailContent) {
+			this.htmlEmailContent = htmlEmailContent;
+			return (this);
+		}
+
+		/**
+		 * @param htmlTemplate - rendered in place of the html content when set
+		 * @param mergeFields - values of the merge fields for this message, may be null
+		 * @return this builder
+		 */
+		public Builder htmlTemplate(MailTemplate htmlTemplate, Map<String, String> mergeFields) {
+			this.htmlTemplate = htmlTemplate;
+			this.mergeFields = mergeFields;
+			return (this);
+		}
+
+		public Builder subject(String subject) {
+			this.subject = subject;
+			return (this);
+		}
+
+		public Builder fromName(String fromName) {
+			this.fromName = fromName;
+			return (this);
+		}
+
+		public Builder fromEmail(String fromEmail) {
+			this.fromEmail = fromEmail;
+			return (this);
+		}
+
+		/**
+		 * @param toEmail - between 1 and 50 addresses
+		 * @return this builder
+		 */
+		public Builder toEmail(List<String> toEmail) {
+			this.toEmail = toEmail;
+			return (this);
+		}
+
+		/**
+		 * @param toName - names of the to recipients in the order of toEmail, may be null
+		 * @return this builder
+		 */
+		public Builder toName(List<String> toName) {
+			this.toName = toName;
+			return (this);
+		}
+
+		public Builder textEmailContent(String textEmailContent) {
+			this.textEmailContent = textEmailContent;
+			return (this);
+		}
+
+		public Builder replyTo(List<String> replyTo) {
+			this.replyTo = replyTo;
+			return (this);
+		}
+
+		public Builder ccEmail(List<String> ccEmail) {
+			this.ccEmail = ccEmail;
+			return (this);
+		}
+
+		public Builder ccName(List<String> ccName) {
+			this.ccName = ccName;
+			return (this);
+		}
+
+		public Builder bccEmail(List<String> bccEmail) {
+			this.bccEmail = bccEmail;
+			return (this);
+		}
+
+		public Builder bccName(List<String> bccName) {
+			this.bccName = bccName;
+			return (this);
+		}
+
+		public Builder autogenHtml(boolean autogenHtml) {
+			this.autogenHtml = autogenHtml;
+			return (this);
+		}
+
+		public Builder trackOpens(boolean trackOpens) {
+			this.trackOpens = trackOpens;
+			return (this);
+		}
+
+		public Builder trackClicks(boolean trackClicks) {
+			this.trackClicks = trackClicks;
+			return (this);
+		}
+
+		public Builder tags(List<String> tags) {
+			this.tags = tags;
+			return (this);
+		}
+
+		/**
+		 * Validates the fields and copies them into a new message. The lists are copied, so changing them later
+		 * does not change the message.
+		 * @return the message
+		 * @throws MailerException listing every invalid field, with the messages of the MailInfoDTO constructors
+		 */
+		public ImmutableMailInfoDTO build() throws MailerException {
+			StringBuilder errors = new StringBuilder();
+
+			if (htmlTemplate == null) {
+				requireText(htmlEmailContent, "String htmlMailContent is null or blank", errors);
+			}
+			requireText(subject, "String subject is null or blank", errors);
+			requireText(fromName, "String fromName is null or blank", errors);
+			requireText(fromEmail, "String fromEmail is null or blank", errors);
+			String from = EmailAddresses.normalize(fromEmail);
+			if (from == null && fromEmail != null && fromEmail.length() != 0) {
+				error(errors).append("String fromEmail is not a valid email address: ").append(fromEmail);
+			}
+
+			String[] to = copyAddresses(toEmail, "toEmailAddresses", true, errors);
+			String[] toNames = to == null ? null : copyNames(toName, to, "toEmailAddresses", "toName", errors);
+			String[] replies = replyTo == null ? null : copyAddresses(replyTo, "replyTo", false, errors);
+			String[] cc = ccEmail == null ? null : copyAddresses(ccEmail, "ccEmail", true, errors);
+			String[] ccNames = cc == null ? null : copyNames(ccName, cc, "ccEmail", "ccName", errors);
+			String[] bcc = bccEmail == null ? null : copyAddresses(bccEmail, "bccEmail", true, errors);
+			String[] bccNames = bcc == null ? null : copyNames(bccName, bcc, "bccEmail", "bccName", errors);
+			String[] tagArray = tags == null ? null : copyTags(tags, errors);
+
+			if (errors.length() != 0) {
+				throw new MailerException(errors.toString());
+			}
+
+			HashSet<String> seen = new HashSet<String>();
+			int kept = EmailAddresses.removeDuplicates(to, toNames, seen);
+			to = trim(to, kept);
+			toNames = trim(toNames, kept);
+			if (cc != null) {
+				kept = EmailAddresses.removeDuplicates(cc, ccNames, seen);
+				cc = kept == 0 ? null : trim(cc, kept);
+				ccNames = kept == 0 ? null : trim(ccNames, kept);
+			}
+			if (bcc != null) {
+				kept = EmailAddresses.removeDuplicates(bcc, bccNames, seen);
+				bcc = kept == 0 ? null : trim(bcc, kept);
+				bccNames = kept == 0 ? null : trim(bccNames, kept);
+			}
+			return (new ImmutableMailInfoDTO(this, from, to, toNames, replies, cc, ccNames, bcc, bccNames, tagArray));
+		}
+
+		private static String[] trim(String[] values, int count) {
+			return (values == null || values.length == count ? values : Arrays.copyOf(values, count));
+		}
+
+		private static void requireText(String value, String message, StringBuilder errors) {
+			if (value == null || value.length() == 0) {
+				error(errors).append(message);
+			}
+		}
+
+		/**
+		 * Copies a list of addresses, checking the count and normalizing every address in the same pass.
+		 * @return the copy, or null if the list is invalid
+		 */
+		private static String[] copyAddresses(List<String> addresses, String name, boolean limited,
+				StringBuilder errors) {
+			if (addresses == null) {
+				error(errors).append("List<String> ").append(name)
+						.append(" is null or contains null or blank email addresses");
+				return (null);
+			}
+			int size = addresses.size();
+			if (limited && size > MAX_ADDRESSES) {
+				error(errors).append("List<String> ").append(name).append(" cannot have more than ")
+						.append(MAX_ADDRESSES).append(" email addresses. Count: ").append(size);
+				return (null);
+			}
+			String[] copy = addresses.toArray(new String[size]);
+			for (String address : copy) {
+				if (address == null || address.length() == 0) {
+					error(errors).append("List<String> ").append(name).append(" contains null or blank email addresses");
+					return (null);
+				}
+			}
+			int invalid = EmailAddresses.normalizeAll(copy);
+			if (invalid >= 0) {
+				error(errors).append("List<String> ").append(name).append(" contains invalid email address: ")
+						.append(copy[invalid]);
+				return (null);
+			}
+			if (copy.length == 0 && "toEmailAddresses".equals(name)) {
+				error(errors).append("List<String> toEmailAddresses should contain at least one valid email address");
+				return (null);
+			}
+			return (copy);
+		}
+
+		private static String[] copyNames(List<String> names, String[] addresses, String addressName, String name,
+				StringBuilder errors) {
+			if (names == null) {
+				return (null);
+			}
+			String[] copy = names.toArray(new String[names.size()]);
+			if (copy.length != addresses.length) {
+				error(errors).append(addressName).append(".size():").append(addresses.length).append(" != ")
+						.append(name).append(".size():").append(copy.length);
+				return (null);
+			}
+			for (String value : copy) {
+				if (value == null) {
+					error(errors).append("List<String> ").append(name).append(" contains null names");
+					return (null);
+				}
+			}
+			return (copy);
+		}
+
+		private static String[] copyTags(List<String> tags, StringBuilder errors) {
+			String[] copy = tags.toArray(new String[tags.size()]);
+			for (String tag : copy) {
+				if (tag == null || tag.length() == 0) {
+					error(errors).append("List<String> tags contains null or blank tag");
+					return (null);
+				}
+				if (tag.charAt(0) == '_') {
+					error(errors).append("List<String> tags contains tag starting with _. Tag: ").append(tag);
+					return (null);
+				}
+			}
+			if (copy.length > MAX_TAGS) {
+				error(errors).append("List<String> tags contains more than ").append(MAX_TAGS).append(" tags. Count: ")
+						.append(copy.length);
+				return (null);
+			}
+			return (copy);
+		}
+
+		private static StringBuilder error(StringBuilder errors) {
+			return (errors.length() == 0 ? errors : errors.append(", "));
+		}
+	}
+}
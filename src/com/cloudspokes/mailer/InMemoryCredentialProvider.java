@@ -0,0 +1,58 @@
+package com.cloudspokes.mailer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds API keys set by the application, for keys which come from a secret store or a configuration service.
+ * Keys can be replaced at any time to rotate them; sends started afterwards use the new key.
+ */
+public class InMemoryCredentialProvider implements CredentialProvider {
+	private volatile ApiCredential defaultCredential;
+	private final ConcurrentMap<String, ApiCredential> tenants = new ConcurrentHashMap<String, ApiCredential>();
+
+	public InMemoryCredentialProvider() {
+	}
+
+	/**
+	 * @param apiKey - the default key
+	 */
+	public InMemoryCredentialProvider(String apiKey) {
+		setDefaultKey(apiKey);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.cloudspokes.mailer.CredentialProvider#getCredential(java.lang.String)
+	 */
+	@Override
+	public ApiCredential getCredential(String tenantId) throws MailerException {
+		ApiCredential credential = tenantId == null ? defaultCredential : tenants.get(tenantId);
+		if (credential == null) {
+			throw new MailerException(tenantId == null ? "No default Mail Chimp API key is set"
+					: "No Mail Chimp API key is set for tenant: " + tenantId);
+		}
+		return (credential);
+	}
+
+	/**
+	 * @param apiKey - the default key, or null to remove it
+	 */
+	public void setDefaultKey(String apiKey) {
+		defaultCredential = apiKey == null ? null : new ApiCredential(apiKey);
+	}
+
+	/**
+	 * @param tenantId
+	 * @param apiKey - key of the tenant, or null to remove it
+	 */
+	public void setKey(String tenantId, String apiKey) {
+		if (tenantId == null) {
+			throw new IllegalArgumentException("String tenantId cannot be null, use setDefaultKey");
+		}
+		if (apiKey == null) {
+			tenants.remove(tenantId);
+		} else {
+			tenants.put(tenantId, new ApiCredential(apiKey));
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package com.cloudspokes.mailer;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Exposes a {@link DefaultMailerMetrics} as a read-only MBean. Every histogram is published as Count, Mean, P50,
+ * P90, P99, P999 and Max attributes, in milliseconds for latencies and bytes for payload sizes, next to the outcome
+ * counters and in-flight gauges. Values are read from the metrics when JMX asks for them, so exporting adds nothing
+ * to the sending path.
+ */
+public class JmxMetricsExporter implements DynamicMBean {
+	public static final String DOMAIN = "com.cloudspokes.mailer";
+
+	private static final String[] STATISTICS = { "Count", "Mean", "P50", "P90", "P99", "P999", "Max" };
+	//Percentile of each statistic, NaN for those which are not percentiles
+	private static final double[] PERCENTILES = { Double.NaN, Double.NaN, 50, 90, 99, 99.9, Double.NaN };
+	private static final double NANOS_PER_MILLI = 1000000.0;
+
+	private final DefaultMailerMetrics metrics;
+	private final Map<String, HistogramAttribute> histogramAttributes = new LinkedHashMap<String, HistogramAttribute>();
+	private final MBeanInfo info;
+
+	/**
+	 * @param metrics - metrics to expose
+	 */
+	public JmxMetricsExporter(DefaultMailerMetrics metrics) {
+		if (metrics == null) {
+			throw new IllegalArgumentException("DefaultMailerMetrics metrics cannot be null");
+		}
+		this.metrics = metrics;
+
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (MailerMetrics.Outcome outcome : MailerMetrics.Outcome.values()) {
+			attributes.add(new MBeanAttributeInfo(counterName(outcome), "long",
+					"Sends which ended " + outcome.name().toLowerCase(), true, false, false));
+		}
+		attributes.add(new MBeanAttributeInfo("SendsInFlight", "long", "Messages being sent", true, false, false));
+		attributes.add(new MBeanAttributeInfo("RequestsInFlight", "long", "HTTP requests in progress", true, false, false));
+		attributes.add(new MBeanAttributeInfo("SuppressedRecipients", "long", "Recipients dropped by the suppression list",
+				true, false, false));
+		addHistogram(attributes, "Send", metrics.getSendLatency(), "Millis", NANOS_PER_MILLI);
+		addHistogram(attributes, "Serialization", metrics.getSerializationLatency(), "Millis", NANOS_PER_MILLI);
+		addHistogram(attributes, "Connect", metrics.getConnectLatency(), "Millis", NANOS_PER_MILLI);
+		addHistogram(attributes, "Write", metrics.getWriteLatency(), "Millis", NANOS_PER_MILLI);
+		addHistogram(attributes, "Response", metrics.getResponseLatency(), "Millis", NANOS_PER_MILLI);
+		addHistogram(attributes, "Payload", metrics.getPayloadBytes(), "Bytes", 1);
+
+		MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Clears the histograms and counters",
+				new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION);
+		this.info = new MBeanInfo(getClass().getName(), "Mail Chimp mailer metrics",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+				new MBeanOperationInfo[] { reset }, null);
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server under
+	 * com.cloudspokes.mailer:type=MailerMetrics,name=<i>name</i>.
+	 * @param metrics
+	 * @param name - distinguishes several mailers in one JVM
+	 * @return the name the MBean was registered under, to pass to {@link #unregister(ObjectName)}
+	 * @throws JMException if the name is invalid or already registered
+	 */
+	public static ObjectName register(DefaultMailerMetrics metrics, String name) throws JMException {
+		ObjectName objectName = new ObjectName(DOMAIN + ":type=MailerMetrics,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new JmxMetricsExporter(metrics), objectName);
+		return (objectName);
+	}
+
+	/**
+	 * @param objectName - name returned by {@link #register(DefaultMailerMetrics, String)}
+	 * @throws JMException if nothing is registered under the name
+	 */
+	public static void unregister(ObjectName objectName) throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		server.unregisterMBean(objectName);
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		HistogramAttribute histogramAttribute = histogramAttributes.get(attribute);
+		if (histogramAttribute != null) {
+			return (histogramAttribute.value());
+		}
+		for (MailerMetrics.Outcome outcome : MailerMetrics.Outcome.values()) {
+			if (counterName(outcome).equals(attribute)) {
+				return (metrics.getCount(outcome));
+			}
+		}
+		if ("SendsInFlight".equals(attribute)) {
+			return (metrics.getSendsInFlight());
+		}
+		if ("RequestsInFlight".equals(attribute)) {
+			return (metrics.getRequestsInFlight());
+		}
+		if ("SuppressedRecipients".equals(attribute)) {
+			return (metrics.getSuppressedRecipients());
+		}
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			try {
+				list.add(new Attribute(attribute, getAttribute(attribute)));
+			} catch (AttributeNotFoundException e) {
+				//Unknown attributes are left out of the list, as the DynamicMBean contract allows
+			}
+		}
+		return (list);
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Mailer metrics are read-only: " + attribute.getName());
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return (new AttributeList());
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		if ("reset".equals(actionName) && (params == null || params.length == 0)) {
+			metrics.reset();
+			return (null);
+		}
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		return (info);
+	}
+
+	private void addHistogram(List<MBeanAttributeInfo> attributes, String prefix, Histogram histogram, String unit,
+			double scale) {
+		for (int i = 0; i < STATISTICS.length; i++) {
+			String statistic = STATISTICS[i];
+			boolean count = "Count".equals(statistic);
+			String name = prefix + statistic + (count ? "" : unit);
+			histogramAttributes.put(name, new HistogramAttribute(histogram, statistic, PERCENTILES[i], scale));
+			attributes.add(new MBeanAttributeInfo(name, count ? "long" : "double", prefix + " " + statistic
+					+ (count ? "" : " in " + unit.toLowerCase()), true, false, false));
+		}
+	}
+
+	private static String counterName(MailerMetrics.Outcome outcome) {
+		String name = outcome.name();
+		return (name.charAt(0) + name.substring(1).toLowerCase() + "Count");
+	}
+
+	/**
+	 * One statistic of a histogram.
+	 */
+	private static class HistogramAttribute {
+		private final Histogram histogram;
+		private final String statistic;
+		private final double percentile;
+		private final double scale;
+
+		HistogramAttribute(Histogram histogram, String statistic, double percentile, double scale) {
+			this.histogram = histogram;
+			this.statistic = statistic;
+			this.percentile = percentile;
+			this.scale = scale;
+		}
+
+		Object value() {
+			if ("Count".equals(statistic)) {
+				return (histogram.getCount());
+			}
+			if ("Mean".equals(statistic)) {
+				return (histogram.getMean() / scale);
+			}
+			if ("Max".equals(statistic)) {
+				return (histogram.getMax() / scale);
+			}
+			return (histogram.getValueAtPercentile(percentile) / scale);
+		}
+	}
+}
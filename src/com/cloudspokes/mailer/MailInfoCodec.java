@@ -0,0 +1,138 @@
+package com.cloudspokes.mailer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary form of a MailInfoDTO used by {@link DurableMailQueue}. Strings are stored as a length followed by their
+ * UTF-8 bytes and lists as an element count followed by the elements; -1 stands for null.
+ */
+final class MailInfoCodec {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final byte VERSION = 1;
+
+	private MailInfoCodec() {
+	}
+
+	static byte[] encode(MailInfoDTO mailData) throws IOException {
+		//A templated message is queued rendered, so it is rendered once here
+		String html = mailData.getHtmlEmailContent();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 + length(html)
+				+ length(mailData.getTextEmailContent()));
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(VERSION);
+		writeString(out, html);
+		writeString(out, mailData.getSubject());
+		writeString(out, mailData.getFromName());
+		writeString(out, mailData.getFromEmail());
+		writeList(out, mailData.getToEmail());
+		writeList(out, mailData.getToName());
+		writeString(out, mailData.getTextEmailContent());
+		writeList(out, mailData.getReplyTo());
+		writeList(out, mailData.getCcEmail());
+		writeList(out, mailData.getCcName());
+		writeList(out, mailData.getBccEmail());
+		writeList(out, mailData.getBccName());
+		out.writeBoolean(mailData.isAutogenHtml());
+		out.writeBoolean(mailData.isTrackOpens());
+		out.writeBoolean(mailData.isTrackClicks());
+		writeList(out, mailData.getTags());
+		out.flush();
+		return (bytes.toByteArray());
+	}
+
+	/**
+	 * @param in - buffer positioned at the start of an encoded message
+	 * @return the message, validated again by the MailInfoDTO constructor
+	 * @throws IOException if the data is not a valid encoded message
+	 */
+	static MailInfoDTO decode(ByteBuffer in) throws IOException {
+		try {
+			byte version = in.get();
+			if (version != VERSION) {
+				throw new IOException("Unsupported queue entry version: " + version);
+			}
+			String html = readString(in);
+			String subject = readString(in);
+			String fromName = readString(in);
+			String fromEmail = readString(in);
+			List<String> toEmail = readList(in);
+			List<String> toName = readList(in);
+			String text = readString(in);
+			List<String> replyTo = readList(in);
+			List<String> ccEmail = readList(in);
+			List<String> ccName = readList(in);
+			List<String> bccEmail = readList(in);
+			List<String> bccName = readList(in);
+			boolean autogenHtml = in.get() != 0;
+			boolean trackOpens = in.get() != 0;
+			boolean trackClicks = in.get() != 0;
+			List<String> tags = readList(in);
+			return (new MailInfoDTO(html, subject, fromName, fromEmail, toEmail, toName, text, replyTo, ccEmail,
+					ccName, bccEmail, bccName, autogenHtml, trackOpens, trackClicks, tags));
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated queue entry", e);
+		} catch (MailerException e) {
+			throw new IOException("Invalid queue entry: " + e.getMessage(), e);
+		}
+	}
+
+	private static int length(String value) {
+		return (value == null ? 0 : value.length());
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = value.getBytes(UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static void writeList(DataOutputStream out, List<String> values) throws IOException {
+		if (values == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(values.size());
+			for (String value : values) {
+				writeString(out, value);
+			}
+		}
+	}
+
+	private static String readString(ByteBuffer in) throws IOException {
+		int length = in.getInt();
+		if (length == -1) {
+			return (null);
+		}
+		if (length < 0 || length > in.remaining()) {
+			throw new IOException("Invalid string length in queue entry: " + length);
+		}
+		String value = new String(in.array(), in.arrayOffset() + in.position(), length, UTF_8);
+		in.position(in.position() + length);
+		return (value);
+	}
+
+	private static List<String> readList(ByteBuffer in) throws IOException {
+		int size = in.getInt();
+		if (size == -1) {
+			return (null);
+		}
+		if (size < 0 || size > in.remaining() / 4) {
+			throw new IOException("Invalid list size in queue entry: " + size);
+		}
+		List<String> values = new ArrayList<String>(size);
+		for (int i = 0; i < size; i++) {
+			values.add(readString(in));
+		}
+		return (values);
+	}
+}
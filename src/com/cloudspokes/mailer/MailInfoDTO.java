@@ -1,10 +1,16 @@
 package com.cloudspokes.mailer;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author Shashidhar Gurumurthy
  * This is a data transfer object containing all the data required to send a mail. 
+ * Messages shared between threads or kept after validation are better built with 
+ * {@link ImmutableMailInfoDTO#builder()}, which copies the lists and cannot be changed afterwards. 
  */
 public class MailInfoDTO {
 	//The first five fields are minimal required fields to send a mail
@@ -26,6 +32,10 @@ public class MailInfoDTO {
 	boolean trackOpens;
 	boolean trackClicks;
 	List<String> tags;
+
+	//Compiled html template rendered in place of htmlEmailContent when set
+	MailTemplate htmlTemplate;
+	Map<String, String> mergeFields;
 	
 	/**
 	 * enum to flag the type of List being validated. Emails & tags cannot be blank but names can be blank. 
@@ -50,9 +60,56 @@ public class MailInfoDTO {
 	 */
 	public MailInfoDTO(String htmlMailContent, String subject, String fromName, 
 			String fromEmail, List<String> toEmailAddresses, List<String> toName) throws MailerException {
+		this(htmlMailContent, null, null, subject, fromName, fromEmail, toEmailAddresses, toName);
+	}
+
+	/**
+	 * @param htmlTemplate - compiled template rendered with the merge fields of this message when it is sent
+	 * @param mergeFields - values of the merge fields of the template for this message. May be null. 
+	 * @param subject
+	 * @param fromName
+	 * @param fromEmail
+	 * @param toEmailAddresses
+	 * @param toName - List of names corresponding to each of the toEmailAddresses. If null, this data is not used. 
+	 * @throws MailerException if htmlTemplate is null or any of the other elements is invalid, as for the 
+	 *    constructor taking the html content. 
+	 * 
+	 * Constructor to create the MailInfoDTO of a personalized message. The html is not rendered into a String; the 
+	 * template is written into the request with the merge fields substituted. 
+	 */
+	public MailInfoDTO(MailTemplate htmlTemplate, Map<String, String> mergeFields, String subject, String fromName, 
+			String fromEmail, List<String> toEmailAddresses, List<String> toName) throws MailerException {
+		this(null, htmlTemplate, mergeFields, subject, fromName, fromEmail, toEmailAddresses, toName);
+	}
+
+	/**
+	 * Empty message filled in by {@link #withRecipients(List, List, boolean)} or a subclass. 
+	 */
+	MailInfoDTO() {
+	}
+
+	private MailInfoDTO(String htmlMailContent, MailTemplate htmlTemplate, Map<String, String> mergeFields, 
+			String subject, String fromName, String fromEmail, List<String> toEmailAddresses, List<String> toName) 
+			throws MailerException {
+		this(htmlMailContent, htmlTemplate, mergeFields, subject, fromName, fromEmail, toEmailAddresses, toName, 
+				null, null, null, null, null, null, true, false, false, null);
+	}
+
+	/**
+	 * Validates every field and normalizes each address list once. The required fields are checked first; the 
+	 * optional ones only once those are valid. 
+	 */
+	private MailInfoDTO(String htmlMailContent, MailTemplate htmlTemplate, Map<String, String> mergeFields, 
+			String subject, String fromName, String fromEmail, List<String> toEmailAddresses, List<String> toName, 
+			String textEmailContent, List<String> replyTo, List<String> ccEmail, List<String> ccName, 
+			List<String> bccEmail, List<String> bccName, boolean autogenHtml, boolean trackOpens, 
+			boolean trackClicks, List<String> tags) throws MailerException {
 		StringBuilder exceptionMessage = new StringBuilder();
 		
-		if (isNullOrBlank(htmlMailContent)) {
+		if (htmlTemplate != null) {
+			this.htmlTemplate = htmlTemplate;
+			this.mergeFields = mergeFields;
+		} else if (isNullOrBlank(htmlMailContent)) {
 			exceptionMessage = append(exceptionMessage, "String htmlMailContent is null or blank");
 		} else {
 			this.htmlEmailContent = htmlMailContent;
@@ -67,11 +124,16 @@ public class MailInfoDTO {
 		} else {
 			this.fromName = fromName;
 		}
+		String from = isNullOrBlank(fromEmail) ? null : EmailAddresses.normalize(fromEmail);
 		if (isNullOrBlank(fromEmail)) {
 			exceptionMessage = append(exceptionMessage, "String fromEmail is null or blank");
+		} else if (from == null) {
+			exceptionMessage = append(exceptionMessage, "String fromEmail is not a valid email address: " + fromEmail);
 		} else {
-			this.fromEmail = fromEmail;
+			this.fromEmail = from;
 		}
+		String[] to = null;
+		String[] toNames = null;
 		if (isNullOrBlank(toEmailAddresses, ParmType.EMAIL_OR_TAG)) {
 			exceptionMessage = append(exceptionMessage, "List<String> toEmailAddresses is null or contains null or blank email addresses");
 		} else {
@@ -81,63 +143,21 @@ public class MailInfoDTO {
 			} else if (toEmailAddresses.size() > 50) {
 				exceptionMessage = append(exceptionMessage, "List<String> toEmailAddresses cannot have more than 50 email addresses. Count: " + toEmailAddresses.size());
 			} else {
-				this.toEmail = toEmailAddresses;
+				to = addresses(toEmailAddresses, "toEmailAddresses", exceptionMessage);
 
 				//Validate toNames if not null
-				if (null != toName) {
-					if (toName.size() != toEmailAddresses.size()) {
-						exceptionMessage = append(exceptionMessage, "toEmailAddresses.size():" + toEmailAddresses.size() + " != " + 
-								"toName.size():" + toName.size());
-					} else {
-						if (isNullOrBlank(toName, ParmType.NAME)) {
-							exceptionMessage = append(exceptionMessage, "List<String> toName contains null names");
-						} else {
-							this.toName = toName;
-						}
-					}  
+				if (to != null && null != toName) {
+					toNames = names(toName, to, "toEmailAddresses", "toName", exceptionMessage);
 				}
 			}
 		}
 
-		//If there are any errors, raise an exception
+		//If there are any errors, raise an exception before looking at the optional fields
 		if (exceptionMessage.length() != 0) {
 			throw new MailerException(exceptionMessage.toString());
 		}
-	}
-
-	/**
-	 * @param htmlEmailContent
-	 * @param subject
-	 * @param fromName
-	 * @param fromEmail
-	 * @param toEmail
-	 * @param textEmailContent
-	 * @param replyTo
-	 * @param toName
-	 * @param ccEmail
-	 * @param ccName
-	 * @param bccEmail
-	 * @param bccName
-	 * @param autogenHtml
-	 * @param trackOpens
-	 * @param trackClicks
-	 * @param tags
-	 * 
-	 * Constructor to create MailInfoDTO with values for all data elements. This constructor delegates to the previous
-	 * constructor to create the object with minimal required values and then initializes the optional data elements. 
-	 */
-	public MailInfoDTO(String htmlEmailContent, String subject,
-			String fromName, String fromEmail, List<String> toEmail, List<String> toName, 
-			String textEmailContent, List<String> replyTo,
-			List<String> ccEmail, List<String> ccName, List<String> bccEmail,
-			List<String> bccName, boolean autogenHtml, boolean trackOpens,
-			boolean trackClicks, List<String> tags) throws MailerException {
-		
-		//Initialize with the minimum required fields
-		this(htmlEmailContent, subject, fromName, fromEmail, toEmail, toName);
-		
-		//If the creation of the DTO with the minimum required fields succeeds, then check if remaining data is valid
-		StringBuilder exceptionMessage = new StringBuilder();
+		this.toEmail = toEmailAddresses;
+		this.toName = toName;
 		
 		//No need to check for validity of the following 4 data elements
 		this.textEmailContent = textEmailContent;
@@ -146,60 +166,47 @@ public class MailInfoDTO {
 		this.trackClicks = trackClicks;
 
 		//If replyTo is non null check if it contains any null or blank email addresses.
+		String[] replies = null;
 		if (replyTo != null) {
 			if (isNullOrBlank(replyTo, ParmType.EMAIL_OR_TAG)) {
 				exceptionMessage = append(exceptionMessage, "List<String> replyTo contains null or blank email addresses");
 			} else {
-				this.replyTo = replyTo;
+				replies = addresses(replyTo, "replyTo", exceptionMessage);
 			}
 		}
 		
 		//If ccEmail is non null check if it contains any null or blank email messages or if it has more than 50 email addresses
+		String[] cc = null;
+		String[] ccNames = null;
 		if (ccEmail != null) {
 			if (ccEmail.size() > 50) {
 				exceptionMessage = append(exceptionMessage, "List<String> ccEmail cannot have more than 50 email addresses. Count: " + ccEmail.size());
 			} else if (isNullOrBlank(ccEmail, ParmType.EMAIL_OR_TAG)) {
 				exceptionMessage = append(exceptionMessage, "List<String> ccEmail contains null or blank email addresses");
 			} else {
-				this.ccEmail = ccEmail;
+				cc = addresses(ccEmail, "ccEmail", exceptionMessage);
 				
 				//Validate ccName if not null
-				if (null != ccName) {
-					if (ccName.size() != ccEmail.size()) {
-						exceptionMessage = append(exceptionMessage, "ccEmail.size():" + ccEmail.size() + " != " + 
-								"ccName.size():" + ccName.size());
-					} else {
-						if (isNullOrBlank(ccName, ParmType.NAME)) {
-							exceptionMessage = append(exceptionMessage, "List<String> ccName contains null names");
-						} else {
-							this.ccName = ccName;
-						}
-					}  
+				if (cc != null && null != ccName) {
+					ccNames = names(ccName, cc, "ccEmail", "ccName", exceptionMessage);
 				}
 			}
 		}
 		
 		//If bccEmail is non null check if it contains any null or blank email messages or if it has more than 50 email addresses
+		String[] bcc = null;
+		String[] bccNames = null;
 		if (bccEmail != null) {
 			if (bccEmail.size() > 50) {
 				exceptionMessage = append(exceptionMessage, "List<String> bccEmail cannot have more than 50 email addresses. Count: " + bccEmail.size());
 			} else if (isNullOrBlank(bccEmail, ParmType.EMAIL_OR_TAG)) {
 				exceptionMessage = append(exceptionMessage, "List<String> bccEmail contains null or blank email addresses");
 			} else {
-				this.bccEmail = bccEmail;
+				bcc = addresses(bccEmail, "bccEmail", exceptionMessage);
 				
 				//Validate bccName if not null
-				if (null != bccName) {
-					if (bccName.size() != bccEmail.size()) {
-						exceptionMessage = append(exceptionMessage, "bccEmail.size():" + bccEmail.size() + " != " + 
-								"bccName.size():" + bccName.size());
-					} else {
-						if (isNullOrBlank(bccName, ParmType.NAME)) {
-							exceptionMessage = append(exceptionMessage, "List<String> bccName contains null names");
-						} else {
-							this.bccName = bccName;
-						}
-					}  
+				if (bcc != null && null != bccName) {
+					bccNames = names(bccName, bcc, "bccEmail", "bccName", exceptionMessage);
 				}
 			}
 		}
@@ -232,15 +239,86 @@ public class MailInfoDTO {
 		if (exceptionMessage.length() != 0) {
 			throw new MailerException(exceptionMessage.toString());
 		}
+		this.replyTo = replies == null ? null : changed(replyTo, replies, replies.length);
+		this.ccEmail = ccEmail;
+		this.ccName = ccName;
+		this.bccEmail = bccEmail;
+		this.bccName = bccName;
+		removeDuplicateRecipients(to, toNames, cc, ccNames, bcc, bccNames);
+	}
+
+	/**
+	 * @param htmlEmailContent
+	 * @param subject
+	 * @param fromName
+	 * @param fromEmail
+	 * @param toEmail
+	 * @param textEmailContent
+	 * @param replyTo
+	 * @param toName
+	 * @param ccEmail
+	 * @param ccName
+	 * @param bccEmail
+	 * @param bccName
+	 * @param autogenHtml
+	 * @param trackOpens
+	 * @param trackClicks
+	 * @param tags
+	 * 
+	 * Constructor to create MailInfoDTO with values for all data elements. The minimal required values are validated
+	 * first, as by the previous constructor, and then the optional data elements. 
+	 * The addresses are normalized with {@link EmailAddresses#normalize(String)} and an address found again in the
+	 * to, cc or bcc recipients, ignoring case, is dropped with its name; the to recipients come first, then cc and 
+	 * bcc. The lists given are kept unless an address changes. 
+	 */
+	public MailInfoDTO(String htmlEmailContent, String subject,
+			String fromName, String fromEmail, List<String> toEmail, List<String> toName, 
+			String textEmailContent, List<String> replyTo,
+			List<String> ccEmail, List<String> ccName, List<String> bccEmail,
+			List<String> bccName, boolean autogenHtml, boolean trackOpens,
+			boolean trackClicks, List<String> tags) throws MailerException {
+		this(htmlEmailContent, null, null, subject, fromName, fromEmail, toEmail, toName, textEmailContent, replyTo, 
+				ccEmail, ccName, bccEmail, bccName, autogenHtml, trackOpens, trackClicks, tags);
 	}
 
 	//Getters and setters for all fields follow
+	/**
+	 * @return the html content, rendered from the template into a new String on every call if the message has one
+	 */
 	public String getHtmlEmailContent() {
+		if (htmlTemplate != null) {
+			return (htmlTemplate.render(mergeFields));
+		}
 		return htmlEmailContent;
 	}
 
+	/**
+	 * Sets the html content, replacing the template if the message has one. 
+	 * @param htmlEmailContent
+	 */
 	public void setHtmlEmailContent(String htmlEmailContent) {
 		this.htmlEmailContent = htmlEmailContent;
+		this.htmlTemplate = null;
+		this.mergeFields = null;
+	}
+
+	public MailTemplate getHtmlTemplate() {
+		return htmlTemplate;
+	}
+
+	public Map<String, String> getMergeFields() {
+		return mergeFields;
+	}
+
+	/**
+	 * Sets the template rendered as html content in place of the html String. 
+	 * @param htmlTemplate
+	 * @param mergeFields - values of the merge fields for this message. May be null. 
+	 */
+	public void setHtmlTemplate(MailTemplate htmlTemplate, Map<String, String> mergeFields) {
+		this.htmlTemplate = htmlTemplate;
+		this.mergeFields = mergeFields;
+		this.htmlEmailContent = null;
 	}
 
 	public String getSubject() {
@@ -363,6 +441,141 @@ public class MailInfoDTO {
 		this.tags = tags;
 	}
 	
+	/**
+	 * Copies the message for another set of to recipients without validating it again. The caller has checked 
+	 * the recipients, which is why this is not public. 
+	 * @param toEmail - replaces the to addresses
+	 * @param toName - replaces the to names, may be null
+	 * @param withCopies - false to drop the cc and bcc recipients from the copy
+	 * @return the copy, sharing the content of this message
+	 */
+	MailInfoDTO withRecipients(List<String> toEmail, List<String> toName, boolean withCopies) {
+		if (withCopies) {
+			return (withRecipients(toEmail, toName, getCcEmail(), getCcName(), getBccEmail(), getBccName()));
+		}
+		return (withRecipients(toEmail, toName, null, null, null, null));
+	}
+
+	/**
+	 * Copies the message for other recipients without validating it again. 
+	 * @param toEmail
+	 * @param toName - may be null
+	 * @param ccEmail - may be null
+	 * @param ccName - may be null
+	 * @param bccEmail - may be null
+	 * @param bccName - may be null
+	 * @return the copy, sharing the content of this message
+	 */
+	MailInfoDTO withRecipients(List<String> toEmail, List<String> toName, List<String> ccEmail, List<String> ccName, 
+			List<String> bccEmail, List<String> bccName) {
+		//Read through the getters, which subclasses may store differently
+		MailInfoDTO copy = new MailInfoDTO();
+		copy.htmlTemplate = getHtmlTemplate();
+		copy.mergeFields = getMergeFields();
+		copy.htmlEmailContent = copy.htmlTemplate == null ? getHtmlEmailContent() : null;
+		copy.subject = getSubject();
+		copy.fromName = getFromName();
+		copy.fromEmail = getFromEmail();
+		copy.toEmail = toEmail;
+		copy.toName = toName;
+		copy.textEmailContent = getTextEmailContent();
+		copy.replyTo = getReplyTo();
+		copy.ccEmail = ccEmail;
+		copy.ccName = ccName;
+		copy.bccEmail = bccEmail;
+		copy.bccName = bccName;
+		copy.autogenHtml = isAutogenHtml();
+		copy.trackOpens = isTrackOpens();
+		copy.trackClicks = isTrackClicks();
+		copy.tags = getTags();
+		return (copy);
+	}
+
+	/**
+	 * Drops the to, cc and bcc addresses found before, ignoring case, with their names. A cc or bcc list left empty 
+	 * is set to null. Lists which do not change are kept. 
+	 * @param to - normalized to addresses
+	 * @param toNames - names of the to addresses, may be null
+	 * @param cc - normalized cc addresses, may be null
+	 * @param ccNames - names of the cc addresses, may be null
+	 * @param bcc - normalized bcc addresses, may be null
+	 * @param bccNames - names of the bcc addresses, may be null
+	 */
+	private void removeDuplicateRecipients(String[] to, String[] toNames, String[] cc, String[] ccNames, 
+			String[] bcc, String[] bccNames) {
+		HashSet<String> seen = new HashSet<String>();
+		int kept = EmailAddresses.removeDuplicates(to, toNames, seen);
+		this.toEmail = changed(toEmail, to, kept);
+		this.toName = toName == null ? null : changed(toName, toNames, kept);
+		if (ccEmail != null) {
+			kept = EmailAddresses.removeDuplicates(cc, ccNames, seen);
+			this.ccEmail = kept == 0 ? null : changed(ccEmail, cc, kept);
+			this.ccName = ccName == null || kept == 0 ? null : changed(ccName, ccNames, kept);
+		}
+		if (bccEmail != null) {
+			kept = EmailAddresses.removeDuplicates(bcc, bccNames, seen);
+			this.bccEmail = kept == 0 ? null : changed(bccEmail, bcc, kept);
+			this.bccName = bccName == null || kept == 0 ? null : changed(bccName, bccNames, kept);
+		}
+	}
+
+	/**
+	 * Normalizes a list of addresses in one pass. 
+	 * @param parm - list of non blank addresses
+	 * @param name - name of the list in the exception message
+	 * @param exceptionMessage - message to which the first invalid address is added
+	 * @return the normalized addresses, or null if one is not valid
+	 */
+	private String[] addresses(List<String> parm, String name, StringBuilder exceptionMessage) {
+		String[] addresses = parm.toArray(new String[parm.size()]);
+		int invalid = EmailAddresses.normalizeAll(addresses);
+		if (invalid >= 0) {
+			append(exceptionMessage, "List<String> " + name + " contains invalid email address: " + addresses[invalid]);
+			return (null);
+		}
+		return (addresses);
+	}
+
+	/**
+	 * @param parm - names of the addresses
+	 * @param addresses - normalized addresses
+	 * @param addressName - name of the address list in the exception message
+	 * @param name - name of the name list in the exception message
+	 * @param exceptionMessage - message to which a wrong count or a null name is added
+	 * @return the names, or null if they do not match the addresses
+	 */
+	private String[] names(List<String> parm, String[] addresses, String addressName, String name, 
+			StringBuilder exceptionMessage) {
+		if (parm.size() != addresses.length) {
+			append(exceptionMessage, addressName + ".size():" + addresses.length + " != " + name + ".size():" + parm.size());
+			return (null);
+		}
+		if (isNullOrBlank(parm, ParmType.NAME)) {
+			append(exceptionMessage, "List<String> " + name + " contains null names");
+			return (null);
+		}
+		return (parm.toArray(new String[parm.size()]));
+	}
+
+	/**
+	 * @param original - list the values were copied from
+	 * @param values - values, possibly changed
+	 * @param count - count of the values used
+	 * @return original if the values used are the same elements, otherwise a new list of them
+	 */
+	private static List<String> changed(List<String> original, String[] values, int count) {
+		if (count == original.size()) {
+			int i = 0;
+			for (String value : original) {
+				if (value != values[i++]) {
+					return (new ArrayList<String>(Arrays.asList(values)));
+				}
+			}
+			return (original);
+		}
+		return (new ArrayList<String>(Arrays.asList(values).subList(0, count)));
+	}
+
 	/**
 	 * Returns true if the String parameter is null or blank. 
 	 * @param parm - A String parameter
@@ -0,0 +1,90 @@
+package com.cloudspokes.mailer;
+
+import java.io.IOException;
+
+/**
+ * Serializes a MailInfoDTO into the form url encoded parameters of the Mail Chimp STS SendEmail call.
+ * The parameter names are encoded once when the class is loaded. Null values are not written.
+ */
+final class MailInfoSerializer {
+	private static final byte[] KEY_MESG_HTML = FormUrlEncoder.key("message[html]");
+	private static final byte[] KEY_MESG_TEXT = FormUrlEncoder.key("message[text]");
+	private static final byte[] KEY_MESG_SUBJECT = FormUrlEncoder.key("message[subject]");
+	private static final byte[] KEY_MESG_FROM_NAME = FormUrlEncoder.key("message[from_name]");
+	private static final byte[] KEY_MESG_FROM_EMAIL = FormUrlEncoder.key("message[from_email]");
+	private static final byte[] KEY_AUTOGEN_HTML = FormUrlEncoder.key("message[autogen_html]");
+	private static final byte[] KEY_TRACK_OPENS = FormUrlEncoder.key("track_opens");
+	private static final byte[] KEY_TRACK_CLICKS = FormUrlEncoder.key("track_clicks");
+	private static final byte[] KEY_MESG_REPLY_TO = FormUrlEncoder.listKey("message[reply_to]");
+	private static final byte[] KEY_MESG_TO_EMAIL = FormUrlEncoder.listKey("message[to_email]");
+	private static final byte[] KEY_MESG_TO_NAME = FormUrlEncoder.listKey("message[to_name]");
+	private static final byte[] KEY_MESG_CC_EMAIL = FormUrlEncoder.listKey("message[cc_email]");
+	private static final byte[] KEY_MESG_CC_NAME = FormUrlEncoder.listKey("message[cc_name]");
+	private static final byte[] KEY_MESG_BCC_EMAIL = FormUrlEncoder.listKey("message[bcc_email]");
+	private static final byte[] KEY_MESG_BCC_NAME = FormUrlEncoder.listKey("message[bcc_name]");
+	private static final byte[] KEY_TAGS = FormUrlEncoder.listKey("tags");
+	private static final byte[] FIELD_SEPARATOR = { '&' };
+
+	private MailInfoSerializer() {
+	}
+
+	/**
+	 * Writes all parameters of the SendEmail call.
+	 * @param mailData
+	 * @param credential
+	 * @param encoder
+	 * @throws IOException
+	 */
+	static void write(MailInfoDTO mailData, ApiCredential credential, FormUrlEncoder encoder) throws IOException {
+		writeContent(mailData, credential, encoder);
+		writeRecipients(mailData, encoder);
+	}
+
+	/**
+	 * Writes the parameters other than the to, cc and bcc recipients, which messages differing only in their
+	 * recipients share.
+	 * @param mailData
+	 * @param credential - its apikey parameter is encoded already and is copied as it is
+	 * @param encoder
+	 * @throws IOException
+	 */
+	static void writeContent(MailInfoDTO mailData, ApiCredential credential, FormUrlEncoder encoder)
+			throws IOException {
+		byte[] apiKeyField = credential.getEncodedField();
+		encoder.writeRaw(apiKeyField, 0, apiKeyField.length);
+		MailTemplate htmlTemplate = mailData.getHtmlTemplate();
+		if (htmlTemplate != null) {
+			//Rendered straight into the encoder, the personalized html never exists as a String
+			encoder.writeRaw(KEY_MESG_HTML, 0, KEY_MESG_HTML.length);
+			htmlTemplate.writeEncoded(mailData.getMergeFields(), encoder);
+			encoder.writeRaw(FIELD_SEPARATOR, 0, FIELD_SEPARATOR.length);
+		} else {
+			encoder.writeField(KEY_MESG_HTML, mailData.getHtmlEmailContent());
+		}
+		encoder.writeField(KEY_MESG_TEXT, mailData.getTextEmailContent());
+		encoder.writeField(KEY_MESG_SUBJECT, mailData.getSubject());
+		encoder.writeField(KEY_MESG_FROM_NAME, mailData.getFromName());
+		encoder.writeField(KEY_MESG_FROM_EMAIL, mailData.getFromEmail());
+		encoder.writeField(KEY_AUTOGEN_HTML, mailData.isAutogenHtml());
+		encoder.writeField(KEY_TRACK_OPENS, mailData.isTrackOpens());
+		encoder.writeField(KEY_TRACK_CLICKS, mailData.isTrackClicks());
+
+		encoder.writeListField(KEY_MESG_REPLY_TO, mailData.getReplyTo());
+		encoder.writeListField(KEY_TAGS, mailData.getTags());
+	}
+
+	/**
+	 * Writes the to, cc and bcc recipients.
+	 * @param mailData
+	 * @param encoder
+	 * @throws IOException
+	 */
+	static void writeRecipients(MailInfoDTO mailData, FormUrlEncoder encoder) throws IOException {
+		encoder.writeListField(KEY_MESG_TO_EMAIL, mailData.getToEmail());
+		encoder.writeListField(KEY_MESG_TO_NAME, mailData.getToName());
+		encoder.writeListField(KEY_MESG_CC_EMAIL, mailData.getCcEmail());
+		encoder.writeListField(KEY_MESG_CC_NAME, mailData.getCcName());
+		encoder.writeListField(KEY_MESG_BCC_EMAIL, mailData.getBccEmail());
+		encoder.writeListField(KEY_MESG_BCC_NAME, mailData.getBccName());
+	}
+}
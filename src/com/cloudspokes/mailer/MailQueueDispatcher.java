@@ -0,0 +1,193 @@
+package com.cloudspokes.mailer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloudspokes.mailer.DurableMailQueue.QueuedMail;
+
+/**
+ * Background threads which drain a {@link DurableMailQueue} through a mailer. A message is acknowledged in the
+ * queue once the mailer sends it. A failed message, whether the mailer threw a MailerException or an unexpected
+ * RuntimeException, is put back after a delay which doubles with every attempt, and rejected once it has failed
+ * maxAttempts times.
+ */
+public class MailQueueDispatcher {
+	public static final int DEFAULT_MAX_ATTEMPTS = 5;
+	public static final long DEFAULT_RETRY_DELAY_MILLIS = 1000;
+
+	private static final long POLL_MILLIS = 200;
+	private static final long MAX_RETRY_DELAY_MILLIS = 5 * 60 * 1000;
+
+	private final DurableMailQueue queue;
+	private final AmazonSESMailChimpMailer mailer;
+	private final int threadCount;
+	private final int maxAttempts;
+	private final long retryDelayMillis;
+	private final List<Thread> threads = new ArrayList<Thread>();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong retried = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	//Messages waiting for their retry delay; whoever removes a message puts it back in the queue
+	private final Set<QueuedMail> waiting = Collections.newSetFromMap(new ConcurrentHashMap<QueuedMail, Boolean>());
+	private ScheduledExecutorService retryScheduler;
+	private volatile boolean running;
+
+	/**
+	 * @param queue
+	 * @param mailer
+	 * @param threadCount - number of messages sent at the same time
+	 */
+	public MailQueueDispatcher(DurableMailQueue queue, AmazonSESMailChimpMailer mailer, int threadCount) {
+		this(queue, mailer, threadCount, DEFAULT_MAX_ATTEMPTS, DEFAULT_RETRY_DELAY_MILLIS);
+	}
+
+	/**
+	 * @param queue
+	 * @param mailer
+	 * @param threadCount - number of messages sent at the same time
+	 * @param maxAttempts - number of times a message is tried before it is rejected
+	 * @param retryDelayMillis - delay before the first retry of a failed message
+	 */
+	public MailQueueDispatcher(DurableMailQueue queue, AmazonSESMailChimpMailer mailer, int threadCount,
+			int maxAttempts, long retryDelayMillis) {
+		if (queue == null || mailer == null) {
+			throw new IllegalArgumentException("DurableMailQueue queue and AmazonSESMailChimpMailer mailer cannot be null");
+		}
+		if (threadCount < 1 || maxAttempts < 1 || retryDelayMillis < 0) {
+			throw new IllegalArgumentException("threadCount and maxAttempts must be positive and retryDelayMillis cannot be negative");
+		}
+		this.queue = queue;
+		this.mailer = mailer;
+		this.threadCount = threadCount;
+		this.maxAttempts = maxAttempts;
+		this.retryDelayMillis = retryDelayMillis;
+	}
+
+	/**
+	 * Starts the dispatcher threads.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		retryScheduler = Executors.newSingleThreadScheduledExecutor(MailerExecutors.daemonThreadFactory("mail-queue-retry"));
+		for (int i = 0; i < threadCount; i++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					dispatch();
+				}
+			}, "mail-queue-dispatcher-" + (i + 1));
+			thread.setDaemon(true);
+			threads.add(thread);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stops taking messages and waits for the messages being sent. Messages waiting for a retry are put back in
+	 * the queue without waiting for their delay, so they are taken again after the next start.
+	 * @param timeout
+	 * @param unit
+	 * @throws InterruptedException
+	 */
+	public synchronized void stop(long timeout, TimeUnit unit) throws InterruptedException {
+		if (!running) {
+			return;
+		}
+		running = false;
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (Thread thread : threads) {
+			thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+		}
+		threads.clear();
+		retryScheduler.shutdownNow();
+		for (QueuedMail mail : waiting) {
+			release(mail);
+		}
+	}
+
+	/**
+	 * @return number of messages sent and acknowledged
+	 */
+	public long getSentCount() {
+		return (sent.get());
+	}
+
+	/**
+	 * @return number of failed attempts which were scheduled for a retry
+	 */
+	public long getRetryCount() {
+		return (retried.get());
+	}
+
+	/**
+	 * @return number of messages rejected after maxAttempts failures
+	 */
+	public long getRejectedCount() {
+		return (rejected.get());
+	}
+
+	private void dispatch() {
+		while (running) {
+			final QueuedMail mail;
+			try {
+				mail = queue.take(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (mail == null) {
+				continue;
+			}
+			try {
+				mailer.sendMail(mail.getMailData());
+			} catch (MailerException e) {
+				retryOrReject(mail);
+				continue;
+			} catch (RuntimeException e) {
+				//Ending the thread here would leave the message taken until the queue is reopened
+				retryOrReject(mail);
+				continue;
+			}
+			queue.acknowledge(mail);
+			sent.incrementAndGet();
+		}
+	}
+
+	private void retryOrReject(final QueuedMail mail) {
+		if (mail.getAttempts() >= maxAttempts) {
+			queue.reject(mail);
+			rejected.incrementAndGet();
+			return;
+		}
+		retried.incrementAndGet();
+		long delay = Math.min(retryDelayMillis << Math.min(mail.getAttempts() - 1, 20), MAX_RETRY_DELAY_MILLIS);
+		waiting.add(mail);
+		try {
+			retryScheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					release(mail);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			//Stopped while the message was being sent
+			release(mail);
+		}
+	}
+
+	private void release(QueuedMail mail) {
+		if (waiting.remove(mail)) {
+			queue.release(mail);
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package com.cloudspokes.mailer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiled mail template with Mail Chimp style merge tags, such as *|FNAME|*. The source is parsed once into an
+ * immutable list of literal and merge field segments. The literal segments are form url encoded when the template
+ * is compiled, so sending a personalized message only encodes the merge values and copies the prepared bytes
+ * straight into the outbound {@link FormUrlEncoder}, without building the rendered html as a String.
+ * Merge values are inserted as given, a field missing from the map renders as nothing, and an opening "*|" without
+ * a closing "|*" is kept as text. Templates are thread safe and are usually shared through a
+ * {@link MailTemplateCache}.
+ */
+public final class MailTemplate {
+	private static final String TAG_START = "*|";
+	private static final String TAG_END = "|*";
+
+	private final String id;
+	private final String source;
+	//Form url encoded literal text, null where the segment is a merge field
+	private final byte[][] literals;
+	//Merge field name, null where the segment is literal text
+	private final String[] fields;
+	//Range of each literal segment in the source
+	private final int[] starts;
+	private final int[] ends;
+	private final List<String> fieldNames;
+
+	private MailTemplate(String id, String source, byte[][] literals, String[] fields, int[] starts, int[] ends,
+			List<String> fieldNames) {
+		this.id = id;
+		this.source = source;
+		this.literals = literals;
+		this.fields = fields;
+		this.starts = starts;
+		this.ends = ends;
+		this.fieldNames = fieldNames;
+	}
+
+	/**
+	 * @param id - identifies the template, for example in a {@link MailTemplateCache}
+	 * @param source - template text containing *|NAME|* merge tags
+	 * @return the compiled template
+	 * @throws MailerException if the source is null or blank
+	 */
+	public static MailTemplate compile(String id, String source) throws MailerException {
+		if (source == null || source.length() == 0) {
+			throw new MailerException("String source of template " + id + " is null or blank");
+		}
+		List<int[]> segments = new ArrayList<int[]>();
+		List<String> fieldNames = new ArrayList<String>();
+		int position = 0;
+		while (position < source.length()) {
+			int start = source.indexOf(TAG_START, position);
+			int end = start < 0 ? -1 : source.indexOf(TAG_END, start + TAG_START.length());
+			if (end < 0) {
+				break;
+			}
+			if (start > position) {
+				segments.add(new int[] { position, start });
+			}
+			//A merge field is kept as the range of its name
+			segments.add(new int[] { start + TAG_START.length(), end, 1 });
+			position = end + TAG_END.length();
+		}
+		if (position < source.length()) {
+			segments.add(new int[] { position, source.length() });
+		}
+
+		int count = segments.size();
+		byte[][] literals = new byte[count][];
+		String[] fields = new String[count];
+		int[] starts = new int[count];
+		int[] ends = new int[count];
+		for (int i = 0; i < count; i++) {
+			int[] segment = segments.get(i);
+			if (segment.length == 3) {
+				fields[i] = source.substring(segment[0], segment[1]);
+				if (!fieldNames.contains(fields[i])) {
+					fieldNames.add(fields[i]);
+				}
+			} else {
+				starts[i] = segment[0];
+				ends[i] = segment[1];
+				literals[i] = encode(source.subSequence(segment[0], segment[1]));
+			}
+		}
+		return (new MailTemplate(id, source, literals, fields, starts, ends, Collections.unmodifiableList(fieldNames)));
+	}
+
+	/**
+	 * @return the id the template was compiled with
+	 */
+	public String getId() {
+		return (id);
+	}
+
+	/**
+	 * @return names of the merge fields used by the template, in order of first use
+	 */
+	public List<String> getFieldNames() {
+		return (fieldNames);
+	}
+
+	/**
+	 * Writes the template with the merge fields substituted as a form url encoded value.
+	 * @param mergeFields - values of the merge fields, may be null
+	 * @param encoder
+	 * @throws IOException
+	 */
+	public void writeEncoded(Map<String, String> mergeFields, FormUrlEncoder encoder) throws IOException {
+		for (int i = 0; i < literals.length; i++) {
+			byte[] literal = literals[i];
+			if (literal != null) {
+				encoder.writeRaw(literal, 0, literal.length);
+			} else {
+				String value = mergeFields == null ? null : mergeFields.get(fields[i]);
+				if (value != null) {
+					encoder.writeEncoded(value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Renders the template into a String. Only needed where the content has to be kept as text; sending writes
+	 * the template with {@link #writeEncoded(Map, FormUrlEncoder)}.
+	 * @param mergeFields - values of the merge fields, may be null
+	 * @return the rendered text
+	 */
+	public String render(Map<String, String> mergeFields) {
+		StringBuilder text = new StringBuilder(source.length());
+		for (int i = 0; i < literals.length; i++) {
+			if (literals[i] != null) {
+				text.append(source, starts[i], ends[i]);
+			} else {
+				String value = mergeFields == null ? null : mergeFields.get(fields[i]);
+				if (value != null) {
+					text.append(value);
+				}
+			}
+		}
+		return (text.toString());
+	}
+
+	private static byte[] encode(CharSequence literal) {
+		FormUrlEncoder encoder = new FormUrlEncoder(literal.length() + 16);
+		try {
+			encoder.writeEncoded(literal);
+		} catch (IOException e) {
+			//A buffering encoder does not write to a stream
+			throw new IllegalStateException(e);
+		}
+		return (encoder.toByteArray());
+	}
+}
@@ -0,0 +1,121 @@
+package com.cloudspokes.mailer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Least recently used cache of compiled {@link MailTemplate}s keyed by template id, so that a template used for a
+ * whole campaign is parsed and encoded once. A template is only compiled on a miss; after the template behind an
+ * id changes, {@link #invalidate(String)} it. Lookups hold the lock for a map access only, compiling happens
+ * outside of it, so two threads missing the same id at once may both compile it and the first one is kept.
+ */
+public class MailTemplateCache {
+	public static final int DEFAULT_MAX_TEMPLATES = 256;
+
+	private final int maxTemplates;
+	private final LinkedHashMap<String, MailTemplate> templates;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	public MailTemplateCache() {
+		this(DEFAULT_MAX_TEMPLATES);
+	}
+
+	/**
+	 * @param maxTemplates - number of templates kept before the least recently used one is evicted
+	 */
+	public MailTemplateCache(final int maxTemplates) {
+		if (maxTemplates < 1) {
+			throw new IllegalArgumentException("int maxTemplates must be at least 1: " + maxTemplates);
+		}
+		this.maxTemplates = maxTemplates;
+		this.templates = new LinkedHashMap<String, MailTemplate>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, MailTemplate> eldest) {
+				return (size() > maxTemplates);
+			}
+		};
+	}
+
+	/**
+	 * @param id
+	 * @return the cached template, or null if it is not cached
+	 */
+	public MailTemplate get(String id) {
+		MailTemplate template;
+		synchronized (templates) {
+			template = templates.get(id);
+		}
+		if (template != null) {
+			hits.increment();
+		} else {
+			misses.increment();
+		}
+		return (template);
+	}
+
+	/**
+	 * @param id
+	 * @param source - template text, only compiled if the id is not cached
+	 * @return the cached or newly compiled template
+	 * @throws MailerException if the template has to be compiled and the source is blank
+	 */
+	public MailTemplate get(String id, String source) throws MailerException {
+		MailTemplate template = get(id);
+		if (template != null) {
+			return (template);
+		}
+		template = MailTemplate.compile(id, source);
+		synchronized (templates) {
+			MailTemplate cached = templates.get(id);
+			if (cached != null) {
+				return (cached);
+			}
+			templates.put(id, template);
+		}
+		return (template);
+	}
+
+	/**
+	 * Removes a template, so that the next {@link #get(String, String)} compiles it again.
+	 * @param id
+	 */
+	public void invalidate(String id) {
+		synchronized (templates) {
+			templates.remove(id);
+		}
+	}
+
+	/**
+	 * @return number of cached templates
+	 */
+	public int size() {
+		synchronized (templates) {
+			return (templates.size());
+		}
+	}
+
+	/**
+	 * @return maximum number of cached templates
+	 */
+	public int getMaxTemplates() {
+		return (maxTemplates);
+	}
+
+	/**
+	 * @return lookups which found the template
+	 */
+	public long getHitCount() {
+		return (hits.sum());
+	}
+
+	/**
+	 * @return lookups which did not find the template
+	 */
+	public long getMissCount() {
+		return (misses.sum());
+	}
+}
@@ -0,0 +1,65 @@
+package com.cloudspokes.mailer;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Provides the executor used for asynchronous sends when the caller does not supply one.
+ */
+final class MailerExecutors {
+	//More platform threads than connections to a host would only wait for a connection
+	private static final int DEFAULT_THREADS = PooledHttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+	private static final long THREAD_KEEP_ALIVE_SECONDS = 60;
+	private static final Executor DEFAULT_EXECUTOR = createDefaultExecutor();
+
+	private MailerExecutors() {
+	}
+
+	/**
+	 * @return a shared executor which runs every task on a virtual thread when the JVM supports them (Java 21 and
+	 *         later). Otherwise tasks run on at most {@link PooledHttpTransport#DEFAULT_MAX_CONNECTIONS_PER_HOST}
+	 *         daemon threads and the others wait in an unbounded queue, so a burst of asynchronous sends does not
+	 *         start a thread per message. A task which waits for other tasks of this executor, such as a batch
+	 *         sent from an asynchronous send, can then wait forever; such callers should pass their own executor.
+	 */
+	static Executor defaultExecutor() {
+		return DEFAULT_EXECUTOR;
+	}
+
+	/**
+	 * @param namePrefix - prefix of the thread names
+	 * @return a thread factory creating daemon threads so that pending mail does not keep the JVM alive
+	 */
+	static ThreadFactory daemonThreadFactory(final String namePrefix) {
+		final AtomicInteger count = new AtomicInteger();
+		return (new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, namePrefix + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return (thread);
+			}
+		});
+	}
+
+	private static Executor createDefaultExecutor() {
+		//Looked up reflectively so that the library still runs on older JVMs
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return ((ExecutorService)factory.invoke(null));
+		} catch (Exception e) {
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_THREADS, DEFAULT_THREADS,
+					THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+					daemonThreadFactory("mailer-async"));
+			executor.allowCoreThreadTimeOut(true);
+			return (executor);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package com.cloudspokes.mailer;
+
+/**
+ * Instrumentation callbacks of the mailer and of {@link PooledHttpTransport}. Every method has an empty default so
+ * an implementation only overrides what it records. The callbacks run on the sending threads, inside the hot
+ * path, and must be cheap and thread safe. {@link DefaultMailerMetrics} records everything in histograms and
+ * counters; {@link #NOOP} records nothing and is used when no metrics are configured.
+ *
+ * Durations are in nanoseconds.
+ */
+public interface MailerMetrics {
+	/** Records nothing. */
+	public static final MailerMetrics NOOP = new MailerMetrics() {
+	};
+
+	/**
+	 * How a send ended.
+	 */
+	public enum Outcome {
+		/** Mail Chimp sent the message. */
+		SENT,
+		/** Mail Chimp accepted the message for later delivery. */
+		QUEUED,
+		/** Mail Chimp answered but did not accept the message, for example over the daily quota. */
+		REJECTED,
+		/** The message could not be sent or Mail Chimp answered with an error status. */
+		FAILED,
+		/** Every to recipient of the message is on the suppression list, so it was not sent. */
+		SUPPRESSED
+	}
+
+	/**
+	 * A mailer started sending a message.
+	 */
+	public default void sendStarted() {
+	}
+
+	/**
+	 * A message started with {@link #sendStarted()} was sent or failed.
+	 * @param outcome
+	 * @param durationNanos - time from sendStarted, including serialization and the HTTP exchange
+	 */
+	public default void sendCompleted(Outcome outcome, long durationNanos) {
+	}
+
+	/**
+	 * A message was serialized into its form url encoded body.
+	 * @param durationNanos
+	 * @param payloadBytes - size of the request body
+	 */
+	public default void serialized(long durationNanos, long payloadBytes) {
+	}
+
+	/**
+	 * A message was encoded while its chunked body was written, so there is no serialization time of its own.
+	 * @param payloadBytes - size of the request body
+	 */
+	public default void streamed(long payloadBytes) {
+	}
+
+	/**
+	 * Recipients on the suppression list were dropped from a message before it was serialized.
+	 * @param count - to, cc and bcc recipients dropped
+	 */
+	public default void recipientsSuppressed(int count) {
+	}
+
+	/**
+	 * The transport started an HTTP request.
+	 */
+	public default void requestStarted() {
+	}
+
+	/**
+	 * The transport opened a new connection, including the TLS handshake for https.
+	 * @param durationNanos
+	 */
+	public default void connected(long durationNanos) {
+	}
+
+	/**
+	 * The transport wrote and flushed a request.
+	 * @param durationNanos
+	 */
+	public default void requestWritten(long durationNanos) {
+	}
+
+	/**
+	 * The status line of a response arrived.
+	 * @param durationNanos - time from the request being flushed to the status line being read
+	 */
+	public default void responseReceived(long durationNanos) {
+	}
+
+	/**
+	 * An HTTP request started with {@link #requestStarted()} completed or failed.
+	 */
+	public default void requestCompleted() {
+	}
+}
@@ -0,0 +1,745 @@
+package com.cloudspokes.mailer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * HTTP/1.1 transport which keeps connections open between requests.
+ * Connections are pooled per host (scheme, host and port). Each host pool has an upper bound on the number of
+ * connections that can be leased at the same time; callers block until a connection is released or the acquire
+ * timeout passes. Connections idle for longer than the idle timeout are closed the next time the pool is used or
+ * when {@link #evictIdleConnections()} is called, so no background thread is needed.
+ * An idle timeout of zero disables keep-alive and every request uses a new connection.
+ * A pooled connection idle for longer than {@link #STALE_CHECK_AFTER_MILLIS} is checked for a close by the server
+ * before it is reused. A request is sent again on a new connection only if writing it to a pooled connection failed;
+ * once the whole request was written it may have been processed, so read failures and timeouts are thrown.
+ */
+public class PooledHttpTransport implements HttpTransport {
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 20;
+	public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30000;
+	public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+	public static final int DEFAULT_READ_TIMEOUT_MILLIS = 60000;
+	public static final long DEFAULT_ACQUIRE_TIMEOUT_MILLIS = 30000;
+	public static final long STALE_CHECK_AFTER_MILLIS = 500;
+
+	private static final int MAX_LINE_LENGTH = 8192;
+	private static final int MAX_DRAIN_BYTES = 64 * 1024;
+	private static final int BUFFER_SIZE = 8192;
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final long STALE_CHECK_AFTER_NANOS = TimeUnit.MILLISECONDS.toNanos(STALE_CHECK_AFTER_MILLIS);
+
+	private final int maxConnectionsPerHost;
+	private final long idleTimeoutNanos;
+	private final int connectTimeoutMillis;
+	private final int readTimeoutMillis;
+	private final long acquireTimeoutMillis;
+	private final ConcurrentMap<String, HostPool> pools = new ConcurrentHashMap<String, HostPool>();
+	private final AtomicLong connectionsOpened = new AtomicLong();
+	private final MailerMetrics metrics;
+	private volatile boolean closed;
+
+	/**
+	 * Creates a transport with the default limits and timeouts.
+	 */
+	public PooledHttpTransport() {
+		this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_CONNECT_TIMEOUT_MILLIS,
+				DEFAULT_READ_TIMEOUT_MILLIS, DEFAULT_ACQUIRE_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * @param maxConnectionsPerHost - maximum number of connections leased to one host at the same time
+	 * @param idleTimeoutMillis - how long an unused connection is kept open. Zero disables keep-alive.
+	 * @param connectTimeoutMillis - socket connect timeout
+	 * @param readTimeoutMillis - socket read timeout
+	 * @param acquireTimeoutMillis - how long a caller waits for a connection when the host limit is reached
+	 */
+	public PooledHttpTransport(int maxConnectionsPerHost, long idleTimeoutMillis, int connectTimeoutMillis,
+			int readTimeoutMillis, long acquireTimeoutMillis) {
+		this(maxConnectionsPerHost, idleTimeoutMillis, connectTimeoutMillis, readTimeoutMillis, acquireTimeoutMillis,
+				MailerMetrics.NOOP);
+	}
+
+	/**
+	 * @param maxConnectionsPerHost - maximum number of connections leased to one host at the same time
+	 * @param idleTimeoutMillis - how long an unused connection is kept open. Zero disables keep-alive.
+	 * @param connectTimeoutMillis - socket connect timeout
+	 * @param readTimeoutMillis - socket read timeout
+	 * @param acquireTimeoutMillis - how long a caller waits for a connection when the host limit is reached
+	 * @param metrics - receives the connect, write and response timings of every request
+	 */
+	public PooledHttpTransport(int maxConnectionsPerHost, long idleTimeoutMillis, int connectTimeoutMillis,
+			int readTimeoutMillis, long acquireTimeoutMillis, MailerMetrics metrics) {
+		if (maxConnectionsPerHost < 1) {
+			throw new IllegalArgumentException("maxConnectionsPerHost must be at least 1: " + maxConnectionsPerHost);
+		}
+		if (idleTimeoutMillis < 0 || connectTimeoutMillis < 0 || readTimeoutMillis < 0 || acquireTimeoutMillis < 0) {
+			throw new IllegalArgumentException("Timeouts cannot be negative");
+		}
+		if (metrics == null) {
+			throw new IllegalArgumentException("MailerMetrics metrics cannot be null, use MailerMetrics.NOOP");
+		}
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.readTimeoutMillis = readTimeoutMillis;
+		this.acquireTimeoutMillis = acquireTimeoutMillis;
+		this.metrics = metrics;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.cloudspokes.mailer.HttpTransport#post(java.net.URL, com.cloudspokes.mailer.RequestBody, com.cloudspokes.mailer.ResponseHandler)
+	 */
+	@Override
+	public <T> T post(URL url, RequestBody body, ResponseHandler<T> handler) throws IOException {
+		if (closed) {
+			throw new IOException("Transport is closed");
+		}
+		HostPool pool = poolFor(url);
+		metrics.requestStarted();
+		try {
+			pool.acquire(acquireTimeoutMillis);
+		} catch (IOException e) {
+			metrics.requestCompleted();
+			throw e;
+		}
+		try {
+			Connection connection = pollUsable(pool);
+			while (true) {
+				boolean reused = (connection != null);
+				if (!reused) {
+					connection = open(url);
+				}
+				try {
+					T result = exchange(connection, url, body, handler);
+					if (connection.reusable && idleTimeoutNanos > 0 && !closed) {
+						connection.lastUsed = System.nanoTime();
+						pool.offerIdle(connection);
+					} else {
+						connection.close();
+					}
+					return (result);
+				} catch (IOException e) {
+					connection.close();
+					//A pooled connection may have been closed by the server while it was idle. If writing the request
+					//failed it cannot have been processed, so try again on a fresh connection. After the request was
+					//written the server may have acted on it, so an EOF, reset or timeout is not retried.
+					if (reused && !connection.requestWritten) {
+						connection = null;
+						continue;
+					}
+					throw e;
+				} catch (RuntimeException e) {
+					connection.close();
+					throw e;
+				}
+			}
+		} finally {
+			pool.release();
+			metrics.requestCompleted();
+		}
+	}
+
+	/**
+	 * Closes all idle connections which have not been used within the idle timeout.
+	 */
+	public void evictIdleConnections() {
+		long now = System.nanoTime();
+		for (HostPool pool : pools.values()) {
+			pool.evictExpired(now, idleTimeoutNanos);
+		}
+	}
+
+	/**
+	 * @return number of open connections currently waiting in the pools
+	 */
+	public int getIdleConnectionCount() {
+		int count = 0;
+		for (HostPool pool : pools.values()) {
+			count += pool.idle.size();
+		}
+		return (count);
+	}
+
+	/**
+	 * @return number of connections opened by this transport since it was created
+	 */
+	public long getConnectionsOpened() {
+		return connectionsOpened.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.cloudspokes.mailer.HttpTransport#close()
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		for (HostPool pool : pools.values()) {
+			pool.closeIdle();
+		}
+	}
+
+	/**
+	 * Takes an idle connection from the pool, closing those the server has closed since they were used.
+	 */
+	private Connection pollUsable(HostPool pool) {
+		Connection connection;
+		long now = System.nanoTime();
+		while ((connection = pool.pollIdle(now, idleTimeoutNanos)) != null) {
+			if (now - connection.lastUsed < STALE_CHECK_AFTER_NANOS || !connection.isStale(readTimeoutMillis)) {
+				return (connection);
+			}
+			connection.close();
+		}
+		return (null);
+	}
+
+	private HostPool poolFor(URL url) {
+		String key = url.getProtocol() + "://" + url.getHost() + ":" + port(url);
+		HostPool pool = pools.get(key);
+		if (pool == null) {
+			HostPool newPool = new HostPool(key, maxConnectionsPerHost);
+			pool = pools.putIfAbsent(key, newPool);
+			if (pool == null) {
+				pool = newPool;
+			}
+		}
+		return (pool);
+	}
+
+	private Connection open(URL url) throws IOException {
+		boolean secure = "https".equalsIgnoreCase(url.getProtocol());
+		if (!secure && !"http".equalsIgnoreCase(url.getProtocol())) {
+			throw new IOException("Unsupported protocol: " + url.getProtocol());
+		}
+		long start = System.nanoTime();
+		Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setKeepAlive(true);
+			socket.setSoTimeout(readTimeoutMillis);
+			try {
+				socket.connect(new InetSocketAddress(url.getHost(), port(url)), connectTimeoutMillis);
+			} catch (SocketTimeoutException e) {
+				//Nothing was sent; a SocketTimeoutException from post means a request may have reached the server
+				ConnectException timeout = new ConnectException("Connect timed out after " + connectTimeoutMillis
+						+ " ms: " + url.getHost());
+				timeout.initCause(e);
+				throw timeout;
+			}
+			if (secure) {
+				SSLSocket sslSocket = (SSLSocket)((SSLSocketFactory)SSLSocketFactory.getDefault()).createSocket(
+						socket, url.getHost(), port(url), true);
+				SSLParameters parameters = sslSocket.getSSLParameters();
+				parameters.setEndpointIdentificationAlgorithm("HTTPS");
+				sslSocket.setSSLParameters(parameters);
+				sslSocket.startHandshake();
+				socket = sslSocket;
+			}
+		} catch (IOException e) {
+			closeQuietly(socket);
+			throw e;
+		}
+		connectionsOpened.incrementAndGet();
+		metrics.connected(System.nanoTime() - start);
+		return (new Connection(socket));
+	}
+
+	private <T> T exchange(Connection connection, URL url, RequestBody body, ResponseHandler<T> handler)
+			throws IOException {
+		connection.reusable = false;
+		connection.requestWritten = false;
+
+		long contentLength = body.getContentLength();
+		StringBuilder head = new StringBuilder(256);
+		String path = url.getFile();
+		head.append("POST ").append(path.length() == 0 ? "/" : path).append(" HTTP/1.1\r\n");
+		head.append("Host: ").append(url.getHost());
+		if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+			head.append(':').append(url.getPort());
+		}
+		head.append("\r\n");
+		head.append("Content-Type: ").append(body.getContentType()).append("\r\n");
+		String contentEncoding = body.getContentEncoding();
+		if (contentEncoding != null) {
+			head.append("Content-Encoding: ").append(contentEncoding).append("\r\n");
+		}
+		if (contentLength >= 0) {
+			head.append("Content-Length: ").append(contentLength).append("\r\n");
+		} else {
+			head.append("Transfer-Encoding: chunked\r\n");
+		}
+		head.append("Connection: ").append(idleTimeoutNanos > 0 ? "keep-alive" : "close").append("\r\n");
+		head.append("\r\n");
+
+		long writeStart = System.nanoTime();
+		OutputStream out = connection.out;
+		out.write(head.toString().getBytes("ISO-8859-1"));
+		if (contentLength >= 0) {
+			body.writeTo(out);
+		} else {
+			ChunkedOutputStream chunked = new ChunkedOutputStream(out);
+			body.writeTo(chunked);
+			chunked.finish();
+		}
+		out.flush();
+		connection.requestWritten = true;
+		long written = System.nanoTime();
+		metrics.requestWritten(written - writeStart);
+
+		//Skip any interim 1xx responses
+		InputStream in = connection.in;
+		String statusLine;
+		int statusCode;
+		do {
+			statusLine = readLine(in);
+			statusCode = parseStatusCode(statusLine);
+			if (statusCode < 200) {
+				readHeaders(in, null);
+			}
+		} while (statusCode < 200);
+		metrics.responseReceived(System.nanoTime() - written);
+		String reasonPhrase = parseReasonPhrase(statusLine);
+		boolean http11 = statusLine.startsWith("HTTP/1.1");
+
+		String[] headers = new String[3];
+		readHeaders(in, headers);
+		String contentLengthHeader = headers[0];
+		String transferEncoding = headers[1];
+		String connectionHeader = headers[2];
+
+		boolean keepAlive = http11 ? !"close".equalsIgnoreCase(connectionHeader)
+				: "keep-alive".equalsIgnoreCase(connectionHeader);
+		InputStream responseBody;
+		if (statusCode == 204 || statusCode == 304) {
+			responseBody = new FixedLengthInputStream(in, 0);
+		} else if (transferEncoding != null && transferEncoding.toLowerCase().endsWith("chunked")) {
+			responseBody = new ChunkedInputStream(in);
+		} else if (contentLengthHeader != null) {
+			long length;
+			try {
+				length = Long.parseLong(contentLengthHeader.trim());
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid Content-Length: " + contentLengthHeader);
+			}
+			responseBody = new FixedLengthInputStream(in, length);
+		} else {
+			//Body runs until the server closes the connection
+			keepAlive = false;
+			responseBody = new UntilCloseInputStream(in);
+		}
+
+		T result = handler.handleResponse(statusCode, reasonPhrase, responseBody);
+		if (keepAlive) {
+			connection.reusable = drain(responseBody);
+		}
+		return (result);
+	}
+
+	/**
+	 * Reads what is left of the response body so that the next response starts at the right place.
+	 * @return true if the whole body was consumed
+	 */
+	private boolean drain(InputStream body) throws IOException {
+		byte[] skip = new byte[512];
+		int total = 0;
+		int read;
+		while ((read = body.read(skip)) != -1) {
+			total += read;
+			if (total > MAX_DRAIN_BYTES) {
+				return (false);
+			}
+		}
+		return (true);
+	}
+
+	private static int parseStatusCode(String statusLine) throws IOException {
+		//HTTP/1.1 200 OK
+		int space = statusLine.indexOf(' ');
+		if (!statusLine.startsWith("HTTP/") || space == -1 || statusLine.length() < space + 4) {
+			throw new IOException("Invalid status line: " + statusLine);
+		}
+		try {
+			return (Integer.parseInt(statusLine.substring(space + 1, space + 4)));
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid status line: " + statusLine);
+		}
+	}
+
+	private static String parseReasonPhrase(String statusLine) {
+		int space = statusLine.indexOf(' ');
+		int reasonStart = space + 5;
+		return (reasonStart <= statusLine.length() ? statusLine.substring(reasonStart) : "");
+	}
+
+	/**
+	 * Reads headers up to the empty line. Content-Length, Transfer-Encoding and Connection are stored in the
+	 * corresponding slots of values if it is not null.
+	 */
+	private static void readHeaders(InputStream in, String[] values) throws IOException {
+		String line;
+		while ((line = readLine(in)).length() != 0) {
+			int colon = line.indexOf(':');
+			if (values == null || colon <= 0) {
+				continue;
+			}
+			String name = line.substring(0, colon).trim();
+			String value = line.substring(colon + 1).trim();
+			if (name.equalsIgnoreCase("Content-Length")) {
+				values[0] = value;
+			} else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+				values[1] = value;
+			} else if (name.equalsIgnoreCase("Connection")) {
+				values[2] = value;
+			}
+		}
+	}
+
+	/**
+	 * Reads a CRLF or LF terminated ISO-8859-1 line without the terminator.
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder(64);
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				int length = sb.length();
+				if (length > 0 && sb.charAt(length - 1) == '\r') {
+					sb.setLength(length - 1);
+				}
+				return (sb.toString());
+			}
+			if (sb.length() >= MAX_LINE_LENGTH) {
+				throw new IOException("Response line exceeds " + MAX_LINE_LENGTH + " characters");
+			}
+			sb.append((char)c);
+		}
+		throw new EOFException("Connection closed by server");
+	}
+
+	private static int port(URL url) {
+		return (url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			//Nothing to do
+		}
+	}
+
+	/**
+	 * Connections for one scheme, host and port.
+	 */
+	private static class HostPool {
+		final String key;
+		final Semaphore permits;
+		//Most recently used connection first
+		final LinkedBlockingDeque<Connection> idle = new LinkedBlockingDeque<Connection>();
+
+		HostPool(String key, int maxConnections) {
+			this.key = key;
+			this.permits = new Semaphore(maxConnections);
+		}
+
+		void acquire(long timeoutMillis) throws IOException {
+			try {
+				if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+					throw new IOException("Timed out after " + timeoutMillis + " ms waiting for a connection to " + key);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for a connection to " + key);
+			}
+		}
+
+		void release() {
+			permits.release();
+		}
+
+		Connection pollIdle(long now, long idleTimeoutNanos) {
+			Connection connection;
+			while ((connection = idle.pollFirst()) != null) {
+				if (now - connection.lastUsed < idleTimeoutNanos && !connection.socket.isClosed()) {
+					return (connection);
+				}
+				connection.close();
+			}
+			return (null);
+		}
+
+		void offerIdle(Connection connection) {
+			idle.offerFirst(connection);
+		}
+
+		void evictExpired(long now, long idleTimeoutNanos) {
+			Iterator<Connection> iterator = idle.descendingIterator();
+			while (iterator.hasNext()) {
+				Connection connection = iterator.next();
+				if (now - connection.lastUsed >= idleTimeoutNanos && idle.removeFirstOccurrence(connection)) {
+					connection.close();
+				}
+			}
+		}
+
+		void closeIdle() {
+			Connection connection;
+			while ((connection = idle.pollFirst()) != null) {
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * An open socket with its buffered streams.
+	 */
+	private static class Connection {
+		final Socket socket;
+		final InputStream in;
+		final OutputStream out;
+		long lastUsed;
+		boolean reusable;
+		boolean requestWritten;
+
+		Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			this.in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+			this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+		}
+
+		/**
+		 * Checks for an end of stream sent by the server while the connection was idle. Nothing else may arrive
+		 * between responses, so unexpected data also makes the connection unusable.
+		 * @param readTimeoutMillis - socket read timeout restored after the check
+		 * @return true if the connection should not be used
+		 */
+		boolean isStale(int readTimeoutMillis) {
+			try {
+				socket.setSoTimeout(1);
+				try {
+					in.read();
+					return (true);
+				} catch (SocketTimeoutException e) {
+					return (false);
+				} finally {
+					socket.setSoTimeout(readTimeoutMillis);
+				}
+			} catch (IOException e) {
+				return (true);
+			}
+		}
+
+		void close() {
+			closeQuietly(socket);
+		}
+	}
+
+	/**
+	 * Response body with a known Content-Length. Closing it leaves the connection open.
+	 */
+	private static class FixedLengthInputStream extends InputStream {
+		private final InputStream in;
+		private long remaining;
+
+		FixedLengthInputStream(InputStream in, long length) {
+			this.in = in;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return (-1);
+			}
+			int c = in.read();
+			if (c == -1) {
+				throw new EOFException("Connection closed with " + remaining + " bytes of the response body unread");
+			}
+			remaining--;
+			return (c);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return (-1);
+			}
+			int read = in.read(b, off, (int)Math.min(len, remaining));
+			if (read == -1) {
+				throw new EOFException("Connection closed with " + remaining + " bytes of the response body unread");
+			}
+			remaining -= read;
+			return (read);
+		}
+
+		@Override
+		public int available() throws IOException {
+			return ((int)Math.min(in.available(), remaining));
+		}
+
+		@Override
+		public void close() {
+			//The connection is released by the transport
+		}
+	}
+
+	/**
+	 * Response body sent with chunked transfer encoding. Closing it leaves the connection open.
+	 */
+	private static class ChunkedInputStream extends InputStream {
+		private final InputStream in;
+		private long chunkRemaining;
+		private boolean started;
+		private boolean eof;
+
+		ChunkedInputStream(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!nextChunk()) {
+				return (-1);
+			}
+			int c = in.read();
+			if (c == -1) {
+				throw new EOFException("Connection closed inside a response chunk");
+			}
+			chunkRemaining--;
+			return (c);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (!nextChunk()) {
+				return (-1);
+			}
+			int read = in.read(b, off, (int)Math.min(len, chunkRemaining));
+			if (read == -1) {
+				throw new EOFException("Connection closed inside a response chunk");
+			}
+			chunkRemaining -= read;
+			return (read);
+		}
+
+		private boolean nextChunk() throws IOException {
+			if (eof) {
+				return (false);
+			}
+			if (chunkRemaining > 0) {
+				return (true);
+			}
+			if (chunkRemaining == 0 && started) {
+				//CRLF after the previous chunk
+				readLine(in);
+			}
+			started = true;
+			String sizeLine = readLine(in);
+			int extension = sizeLine.indexOf(';');
+			if (extension != -1) {
+				sizeLine = sizeLine.substring(0, extension);
+			}
+			try {
+				chunkRemaining = Long.parseLong(sizeLine.trim(), 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid chunk size: " + sizeLine);
+			}
+			if (chunkRemaining == 0) {
+				//Skip trailers
+				readHeaders(in, null);
+				eof = true;
+				return (false);
+			}
+			return (true);
+		}
+
+		@Override
+		public void close() {
+			//The connection is released by the transport
+		}
+	}
+
+	/**
+	 * Response body without framing; it ends when the server closes the connection.
+	 */
+	private static class UntilCloseInputStream extends InputStream {
+		private final InputStream in;
+
+		UntilCloseInputStream(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return (in.read());
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return (in.read(b, off, len));
+		}
+
+		@Override
+		public void close() {
+			//The connection is closed by the transport
+		}
+	}
+
+	/**
+	 * Writes a request body of unknown length using chunked transfer encoding.
+	 */
+	private static class ChunkedOutputStream extends FilterOutputStream {
+		ChunkedOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return;
+			}
+			out.write(Integer.toHexString(len).getBytes("ISO-8859-1"));
+			out.write(CRLF);
+			out.write(b, off, len);
+			out.write(CRLF);
+		}
+
+		void finish() throws IOException {
+			out.write('0');
+			out.write(CRLF);
+			out.write(CRLF);
+		}
+
+		@Override
+		public void close() {
+			//The connection is released by the transport
+		}
+	}
+}
@@ -0,0 +1,382 @@
+package com.cloudspokes.mailer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shares the sending capacity of a mailer between priority lanes, so that transactional mail such as password
+ * resets does not wait behind a bulk send. {@link #lane(Lane)} gives a mailer for each lane; every message sent
+ * through it takes a slot of the scheduler first and the calling thread waits until one is free.
+ * <p>
+ * Each lane has reserved slots which only its messages use; the remaining slots are shared. A message may take a
+ * shared slot only while no message of a higher priority lane is waiting, so when a transactional message arrives
+ * during a bulk send it gets the next slot a bulk message gives up. A message being sent is never interrupted; the
+ * points where bulk work gives way are the starts of its messages, which for batches and large recipient lists
+ * means between messages and between chunks. Reserving a slot for the bulk lane keeps it moving while
+ * transactional traffic is heavy.
+ * <p>
+ * Every lane has a latency objective. The time from the call until the message is sent, including the wait for a
+ * slot, is recorded per lane and sends slower than the objective are counted, see {@link LaneStats}.
+ */
+public class PrioritySendScheduler {
+	public static final long DEFAULT_TRANSACTIONAL_SLO_MILLIS = 2000;
+	public static final long DEFAULT_BULK_SLO_MILLIS = 60000;
+
+	/**
+	 * Lanes from the highest priority to the lowest.
+	 */
+	public enum Lane {
+		/** Messages a user is waiting for, such as password resets and order confirmations. */
+		TRANSACTIONAL,
+		/** Newsletters and other marketing mail. */
+		BULK
+	}
+
+	private static final Lane[] LANES = Lane.values();
+
+	private final AmazonSESMailChimpMailer mailer;
+	private final int totalConcurrency;
+	private final int sharedConcurrency;
+	private final int[] reserved = new int[LANES.length];
+	private final int[] inFlight = new int[LANES.length];
+	private final int[] waiting = new int[LANES.length];
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition[] slotAvailable = new Condition[LANES.length];
+	private final LaneStats[] stats = new LaneStats[LANES.length];
+	private final LaneMailer[] mailers = new LaneMailer[LANES.length];
+
+	/**
+	 * Reserves a quarter of the slots, at least one, for transactional mail and one for bulk mail, with the
+	 * default objectives.
+	 * @param mailer - mailer which sends the messages of every lane
+	 * @param totalConcurrency - most messages sent at the same time over all lanes, at least 2
+	 */
+	public PrioritySendScheduler(AmazonSESMailChimpMailer mailer, int totalConcurrency) {
+		this(mailer, totalConcurrency, Math.max(1, totalConcurrency / 4), DEFAULT_TRANSACTIONAL_SLO_MILLIS, 1,
+				DEFAULT_BULK_SLO_MILLIS);
+	}
+
+	/**
+	 * @param mailer - mailer which sends the messages of every lane
+	 * @param totalConcurrency - most messages sent at the same time over all lanes
+	 * @param transactionalReserved - slots only transactional messages use
+	 * @param transactionalSloMillis - latency objective of transactional messages
+	 * @param bulkReserved - slots only bulk messages use
+	 * @param bulkSloMillis - latency objective of bulk messages
+	 */
+	public PrioritySendScheduler(AmazonSESMailChimpMailer mailer, int totalConcurrency, int transactionalReserved,
+			long transactionalSloMillis, int bulkReserved, long bulkSloMillis) {
+		if (mailer == null) {
+			throw new IllegalArgumentException("AmazonSESMailChimpMailer mailer cannot be null");
+		}
+		if (transactionalReserved < 0 || bulkReserved < 0) {
+			throw new IllegalArgumentException("Reserved slots cannot be negative");
+		}
+		if (totalConcurrency < 1 || transactionalReserved + bulkReserved > totalConcurrency) {
+			throw new IllegalArgumentException("totalConcurrency must be at least 1 and the reserved slots: "
+					+ totalConcurrency);
+		}
+		if (transactionalSloMillis < 1 || bulkSloMillis < 1) {
+			throw new IllegalArgumentException("Latency objectives must be at least 1 millisecond");
+		}
+		this.mailer = mailer;
+		this.totalConcurrency = totalConcurrency;
+		this.sharedConcurrency = totalConcurrency - transactionalReserved - bulkReserved;
+		reserved[Lane.TRANSACTIONAL.ordinal()] = transactionalReserved;
+		reserved[Lane.BULK.ordinal()] = bulkReserved;
+		long[] sloMillis = { transactionalSloMillis, bulkSloMillis };
+		for (Lane lane : LANES) {
+			slotAvailable[lane.ordinal()] = lock.newCondition();
+			stats[lane.ordinal()] = new LaneStats(lane, sloMillis[lane.ordinal()]);
+			mailers[lane.ordinal()] = new LaneMailer(lane);
+		}
+	}
+
+	/**
+	 * @param lane
+	 * @return mailer whose messages are sent in the lane
+	 */
+	public AmazonSESMailChimpMailer lane(Lane lane) {
+		return (mailers[lane.ordinal()]);
+	}
+
+	/**
+	 * @param lane
+	 * @return live statistics of the lane
+	 */
+	public LaneStats getStats(Lane lane) {
+		return (stats[lane.ordinal()]);
+	}
+
+	/**
+	 * @return most messages sent at the same time over all lanes
+	 */
+	public int getTotalConcurrency() {
+		return (totalConcurrency);
+	}
+
+	/**
+	 * Waits for a slot in the lane.
+	 * @param lane
+	 * @throws MailerException if the thread is interrupted while waiting
+	 */
+	private void acquire(int lane) throws MailerException {
+		lock.lock();
+		try {
+			if (!canStart(lane)) {
+				waiting[lane]++;
+				try {
+					while (!canStart(lane)) {
+						slotAvailable[lane].await();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new MailerException("Interrupted while waiting for a send slot", e);
+				} finally {
+					waiting[lane]--;
+					//Lower lanes held back by this one may go now, or another waiter may take the slot not taken
+					signalStartable();
+				}
+			}
+			inFlight[lane]++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void release(int lane) {
+		lock.lock();
+		try {
+			inFlight[lane]--;
+			signalStartable();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param lane
+	 * @return true if a message of the lane can take a reserved slot of the lane, or a shared slot which no
+	 *         higher priority lane is waiting for
+	 */
+	private boolean canStart(int lane) {
+		if (inFlight[lane] < reserved[lane]) {
+			return (true);
+		}
+		for (int higher = 0; higher < lane; higher++) {
+			if (waiting[higher] > 0) {
+				return (false);
+			}
+		}
+		int sharedInUse = 0;
+		for (int i = 0; i < LANES.length; i++) {
+			sharedInUse += Math.max(0, inFlight[i] - reserved[i]);
+		}
+		return (sharedInUse < sharedConcurrency);
+	}
+
+	private void signalStartable() {
+		for (int lane = 0; lane < LANES.length; lane++) {
+			if (waiting[lane] > 0 && canStart(lane)) {
+				slotAvailable[lane].signal();
+			}
+		}
+	}
+
+	/**
+	 * Mailer of one lane, which sends every message, batch message and recipient chunk in a slot of the lane.
+	 */
+	private final class LaneMailer extends AbstractAmazonSESMailChimpMailer {
+		private final int lane;
+		private final LaneStats laneStats;
+
+		LaneMailer(Lane lane) {
+			super(MailerExecutors.defaultExecutor(), totalConcurrency);
+			this.lane = lane.ordinal();
+			this.laneStats = stats[this.lane];
+		}
+
+		/* (non-Javadoc)
+		 * @see com.cloudspokes.mailer.AmazonSESMailChimpMailer#sendMail(com.cloudspokes.mailer.MailInfoDTO)
+		 */
+		@Override
+		public String sendMail(MailInfoDTO mailData) throws MailerException {
+			long start = System.nanoTime();
+			acquire(lane);
+			boolean sent = false;
+			try {
+				laneStats.started(start);
+				String status = mailer.sendMail(mailData);
+				sent = true;
+				return (status);
+			} finally {
+				release(lane);
+				laneStats.completed(start, sent);
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see com.cloudspokes.mailer.AmazonSESMailChimpMailer#sendMailForResult(com.cloudspokes.mailer.MailInfoDTO)
+		 */
+		@Override
+		public SendResult sendMailForResult(MailInfoDTO mailData) throws MailerException {
+			long start = System.nanoTime();
+			acquire(lane);
+			boolean sent = false;
+			try {
+				laneStats.started(start);
+				SendResult result = mailer.sendMailForResult(mailData);
+				sent = true;
+				return (result);
+			} finally {
+				release(lane);
+				laneStats.completed(start, sent);
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see com.cloudspokes.mailer.AbstractAmazonSESMailChimpMailer#isSuppressed(java.lang.String)
+		 */
+		@Override
+		protected boolean isSuppressed(String email) {
+			return (isSuppressed(mailer, email));
+		}
+
+		/**
+		 * Keeps the chunk sender of the wrapped mailer, which may serialize the shared content once, and takes a
+		 * slot for every chunk.
+		 * @see com.cloudspokes.mailer.AbstractAmazonSESMailChimpMailer#newChunkSender(com.cloudspokes.mailer.MailInfoDTO)
+		 */
+		@Override
+		protected ChunkSender newChunkSender(MailInfoDTO mailData) throws MailerException {
+			if (!(mailer instanceof AbstractAmazonSESMailChimpMailer)) {
+				return (super.newChunkSender(mailData));
+			}
+			final ChunkSender sender = ((AbstractAmazonSESMailChimpMailer)mailer).newChunkSender(mailData);
+			return (new ChunkSender() {
+				@Override
+				public SendResult send(MailInfoDTO chunk) throws MailerException {
+					long start = System.nanoTime();
+					acquire(lane);
+					boolean sent = false;
+					try {
+						laneStats.started(start);
+						SendResult result = sender.send(chunk);
+						sent = true;
+						return (result);
+					} finally {
+						release(lane);
+						laneStats.completed(start, sent);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Counters and latencies of one lane.
+	 */
+	public final class LaneStats {
+		private final Lane lane;
+		private final long sloMicros;
+		private final LongAdder sent = new LongAdder();
+		private final LongAdder failed = new LongAdder();
+		private final LongAdder sloViolations = new LongAdder();
+		private final Histogram waitMicros = new Histogram();
+		private final Histogram latencyMicros = new Histogram();
+
+		LaneStats(Lane lane, long sloMillis) {
+			this.lane = lane;
+			this.sloMicros = TimeUnit.MILLISECONDS.toMicros(sloMillis);
+		}
+
+		void started(long startNanos) {
+			waitMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+		}
+
+		void completed(long startNanos, boolean success) {
+			long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+			latencyMicros.record(micros);
+			if (micros > sloMicros) {
+				sloViolations.increment();
+			}
+			if (success) {
+				sent.increment();
+			} else {
+				failed.increment();
+			}
+		}
+
+		public Lane getLane() {
+			return (lane);
+		}
+
+		/**
+		 * @return latency objective of the lane in milliseconds
+		 */
+		public long getSloMillis() {
+			return (TimeUnit.MICROSECONDS.toMillis(sloMicros));
+		}
+
+		/**
+		 * @return messages the mailer sent
+		 */
+		public long getSentCount() {
+			return (sent.sum());
+		}
+
+		/**
+		 * @return messages the mailer failed to send
+		 */
+		public long getFailedCount() {
+			return (failed.sum());
+		}
+
+		/**
+		 * @return messages, sent or failed, which took longer than the objective
+		 */
+		public long getSloViolationCount() {
+			return (sloViolations.sum());
+		}
+
+		/**
+		 * @return messages waiting for a slot
+		 */
+		public int getWaitingCount() {
+			lock.lock();
+			try {
+				return (waiting[lane.ordinal()]);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * @return messages being sent
+		 */
+		public int getInFlightCount() {
+			lock.lock();
+			try {
+				return (inFlight[lane.ordinal()]);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * @return time messages waited for a slot, in microseconds
+		 */
+		public Histogram getWaitMicros() {
+			return (waitMicros);
+		}
+
+		/**
+		 * @return time from the call until the message was sent, including the wait, in microseconds
+		 */
+		public Histogram getLatencyMicros() {
+			return (latencyMicros);
+		}
+	}
+}
@@ -0,0 +1,12 @@
+package com.cloudspokes.mailer;
+
+/**
+ * Thrown by {@link TenantDispatcher} when the queue of a tenant is full. The message was not queued.
+ */
+public class QueueFullException extends MailerException {
+	private static final long serialVersionUID = -354425803332068374L;
+
+	public QueueFullException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,12 @@
+package com.cloudspokes.mailer;
+
+/**
+ * Thrown by {@link RateLimitedMailer} when no send permit became available in time. The message was not sent.
+ */
+public class RateLimitExceededException extends MailerException {
+	private static final long serialVersionUID = 2215931470839118462L;
+
+	public RateLimitExceededException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,144 @@
+package com.cloudspokes.mailer;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mailer which takes a permit from a {@link SendRateLimiter} before every message it passes to the wrapped mailer,
+ * so that messages over the sending rate or daily quota are held back instead of being rejected by Mail Chimp.
+ * With a maxWaitMillis of 0 a message fails fast with a {@link RateLimitExceededException} when no permit is
+ * available; otherwise the sending thread waits up to maxWaitMillis for one.
+ *
+ * The status and errors of every message are checked for the quota and throttling responses of Mail Chimp, which
+ * are reported to the limiter so that it slows down.
+ */
+public class RateLimitedMailer extends AbstractAmazonSESMailChimpMailer {
+	static final String QUOTA_EXCEEDED = "Daily message quota exceeded";
+
+	private final AmazonSESMailChimpMailer mailer;
+	private final SendRateLimiter limiter;
+	private final long maxWaitMillis;
+
+	/**
+	 * @param mailer - mailer which sends the messages
+	 * @param limiter - limiter shared by every mailer sending with the same Mail Chimp account
+	 * @param maxWaitMillis - longest time a message waits for a permit, 0 to fail fast
+	 */
+	public RateLimitedMailer(AmazonSESMailChimpMailer mailer, SendRateLimiter limiter, long maxWaitMillis) {
+		this(mailer, limiter, maxWaitMillis, MailerExecutors.defaultExecutor(),
+				PooledHttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST);
+	}
+
+	/**
+	 * @param mailer - mailer which sends the messages
+	 * @param limiter - limiter shared by every mailer sending with the same Mail Chimp account
+	 * @param maxWaitMillis - longest time a message waits for a permit, 0 to fail fast
+	 * @param executor - executor on which asynchronous and batch sends run.
+	 * @param batchConcurrency - maximum number of messages of one batch in flight at the same time.
+	 */
+	public RateLimitedMailer(AmazonSESMailChimpMailer mailer, SendRateLimiter limiter, long maxWaitMillis,
+			Executor executor, int batchConcurrency) {
+		super(executor, batchConcurrency);
+		if (mailer == null || limiter == null) {
+			throw new IllegalArgumentException("AmazonSESMailChimpMailer mailer and SendRateLimiter limiter cannot be null");
+		}
+		if (maxWaitMillis < 0) {
+			throw new IllegalArgumentException("maxWaitMillis cannot be negative: " + maxWaitMillis);
+		}
+		this.mailer = mailer;
+		this.limiter = limiter;
+		this.maxWaitMillis = maxWaitMillis;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.cloudspokes.mailer.AmazonSESMailChimpMailer#sendMail(com.cloudspokes.mailer.MailInfoDTO)
+	 */
+	@Override
+	public String sendMail(MailInfoDTO mailData) throws MailerException {
+		acquire();
+
+		String status;
+		try {
+			status = mailer.sendMail(mailData);
+		} catch (MailerException e) {
+			onError(e);
+			throw e;
+		}
+		onResponse(status, null);
+		return (status);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.cloudspokes.mailer.AmazonSESMailChimpMailer#sendMailForResult(com.cloudspokes.mailer.MailInfoDTO)
+	 */
+	@Override
+	public SendResult sendMailForResult(MailInfoDTO mailData) throws MailerException {
+		acquire();
+
+		SendResult result;
+		try {
+			result = mailer.sendMailForResult(mailData);
+		} catch (MailerException e) {
+			onError(e);
+			throw e;
+		}
+		onResponse(result.getStatus(), result.isAccepted() ? null : result.getErrorCode() + " " + result.getErrorMessage());
+		return (result);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.cloudspokes.mailer.AbstractAmazonSESMailChimpMailer#isSuppressed(java.lang.String)
+	 */
+	@Override
+	protected boolean isSuppressed(String email) {
+		return (isSuppressed(mailer, email));
+	}
+
+	private void onResponse(String status, String error) {
+		if (contains(status, QUOTA_EXCEEDED) || contains(error, QUOTA_EXCEEDED)) {
+			limiter.onQuotaExceeded();
+		} else if (HttpStatusException.isThrottled(status) || HttpStatusException.isThrottled(error)) {
+			limiter.onThrottled();
+		} else {
+			limiter.onSuccess();
+		}
+	}
+
+	private void onError(MailerException e) {
+		String response = e.getMessage();
+		if (e.getCause() instanceof HttpStatusException) {
+			if (((HttpStatusException)e.getCause()).isThrottled()) {
+				limiter.onThrottled();
+				return;
+			}
+			response = response + " " + ((HttpStatusException)e.getCause()).getResponseBody();
+		}
+		if (HttpStatusException.isThrottled(response)) {
+			limiter.onThrottled();
+		} else if (contains(response, QUOTA_EXCEEDED)) {
+			limiter.onQuotaExceeded();
+		}
+	}
+
+	private void acquire() throws MailerException {
+		boolean acquired;
+		if (maxWaitMillis == 0) {
+			acquired = limiter.tryAcquire();
+		} else {
+			try {
+				acquired = limiter.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new MailerException("Interrupted while waiting for a send permit", e);
+			}
+		}
+		if (!acquired) {
+			throw new RateLimitExceededException("Send rate limit reached, current rate is "
+					+ limiter.getPermitsPerSecond() + " messages per second");
+		}
+	}
+
+	private static boolean contains(String message, String text) {
+		return (message != null && message.contains(text));
+	}
+}
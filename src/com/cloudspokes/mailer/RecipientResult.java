@@ -0,0 +1,131 @@
+package com.cloudspokes.mailer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of {@link AmazonSESMailChimpMailer#sendToRecipients(MailInfoDTO, List, List)}. Results are indexed in
+ * the order of the recipient list. The recipients were sent in chunks of at most
+ * {@link AmazonSESMailChimpMailer#MAX_RECIPIENTS}; each recipient gets the object Mail Chimp returned for its
+ * address in the response to its chunk, or the MailerException that stopped the chunk from being sent.
+ */
+public class RecipientResult {
+	private final List<String> toEmail;
+	private final List<String> toName;
+	private final int chunkSize;
+	private final SendResult[] results;
+	private final MailerException[] errors;
+
+	RecipientResult(List<String> toEmail, List<String> toName, int chunkSize) {
+		this.toEmail = Collections.unmodifiableList(toEmail);
+		this.toName = toName == null ? null : Collections.unmodifiableList(toName);
+		this.chunkSize = chunkSize;
+		int chunks = (toEmail.size() + chunkSize - 1) / chunkSize;
+		this.results = new SendResult[chunks];
+		this.errors = new MailerException[chunks];
+	}
+
+	void setResult(int chunk, SendResult result) {
+		results[chunk] = result;
+	}
+
+	void setError(int chunk, MailerException error) {
+		errors[chunk] = error;
+	}
+
+	/**
+	 * @return number of recipients
+	 */
+	public int size() {
+		return (toEmail.size());
+	}
+
+	/**
+	 * @return number of requests the recipients were split into
+	 */
+	public int getChunkCount() {
+		return (results.length);
+	}
+
+	/**
+	 * @param index
+	 * @return the chunk the recipient at the given position was sent in
+	 */
+	public int getChunk(int index) {
+		if (index < 0 || index >= toEmail.size()) {
+			throw new IndexOutOfBoundsException("index: " + index + ", size: " + toEmail.size());
+		}
+		return (index / chunkSize);
+	}
+
+	/**
+	 * @param index
+	 * @return email address of the recipient at the given position
+	 */
+	public String getEmail(int index) {
+		return (toEmail.get(index));
+	}
+
+	/**
+	 * @param index
+	 * @return name of the recipient at the given position, or null if no names were given
+	 */
+	public String getName(int index) {
+		return (toName == null ? null : toName.get(index));
+	}
+
+	/**
+	 * @param index
+	 * @return true if Mail Chimp accepted the message for the recipient at the given position
+	 */
+	public boolean isSuccess(int index) {
+		SendResult result = getResult(index);
+		return (result != null && result.isAccepted());
+	}
+
+	/**
+	 * @param index
+	 * @return response of Mail Chimp for the recipient, or null if the chunk failed or the response to the chunk
+	 *         has no result for the recipient's address, as for a suppressed recipient
+	 */
+	public SendResult getResult(int index) {
+		SendResult result = results[getChunk(index)];
+		return (result == null ? null : result.getRecipientResult(toEmail.get(index)));
+	}
+
+	/**
+	 * @param index
+	 * @return the exception which stopped the recipient's chunk from being sent, or null if it was sent
+	 */
+	public MailerException getError(int index) {
+		return (errors[getChunk(index)]);
+	}
+
+	/**
+	 * @return number of recipients the message was accepted for
+	 */
+	public int getSuccessCount() {
+		return (size() - getFailedEmails().size());
+	}
+
+	/**
+	 * @return number of recipients the message failed or was refused for
+	 */
+	public int getFailureCount() {
+		return (getFailedEmails().size());
+	}
+
+	/**
+	 * @return addresses of the recipients the message failed or was refused for, in recipient order
+	 */
+	public List<String> getFailedEmails() {
+		List<String> failed = new ArrayList<String>();
+		for (int i = 0; i < toEmail.size(); i++) {
+			if (!isSuccess(i)) {
+				failed.add(toEmail.get(i));
+			}
+		}
+		return (failed);
+	}
+}
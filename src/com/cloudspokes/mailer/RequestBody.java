@@ -0,0 +1,35 @@
+package com.cloudspokes.mailer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The body of an HTTP request handed to a {@link HttpTransport}. The transport asks for the content type and
+ * length to build the request headers and then lets the body write itself onto the connection.
+ */
+public interface RequestBody {
+	/**
+	 * @return value of the Content-Type request header
+	 */
+	public String getContentType();
+
+	/**
+	 * @return number of bytes {@link #writeTo(OutputStream)} will write, or -1 if it is not known up front in which
+	 *         case the transport falls back to chunked transfer encoding.
+	 */
+	public long getContentLength();
+
+	/**
+	 * @return value of the Content-Encoding request header, such as gzip, or null if the body is not encoded
+	 */
+	public default String getContentEncoding() {
+		return (null);
+	}
+
+	/**
+	 * Writes the body onto the given stream. Implementations must not close the stream.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out) throws IOException;
+}
@@ -0,0 +1,177 @@
+package com.cloudspokes.mailer;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mailer which retries the sends of the wrapped mailer that fail for a retryable reason, as decided by a
+ * {@link RetryPolicy}, and stops sending while a {@link CircuitBreaker} is open. While the circuit is open
+ * messages fail at once with a {@link CircuitOpenException} instead of holding a sending thread in retries.
+ * Failures which are not retryable are thrown after the first attempt and do not count against the circuit. An
+ * unexpected RuntimeException is thrown after the first attempt and counts as a failure.
+ */
+public class ResilientMailer extends AbstractAmazonSESMailChimpMailer {
+	private final AmazonSESMailChimpMailer mailer;
+	private final RetryPolicy retryPolicy;
+	private final CircuitBreaker circuitBreaker;
+	private final AtomicLong attempts = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong successes = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * Wraps the mailer with the default retry policy and circuit breaker.
+	 * @param mailer - mailer which sends the messages
+	 */
+	public ResilientMailer(AmazonSESMailChimpMailer mailer) {
+		this(mailer, new RetryPolicy(), new CircuitBreaker());
+	}
+
+	/**
+	 * @param mailer - mailer which sends the messages
+	 * @param retryPolicy
+	 * @param circuitBreaker - breaker for the endpoint of the mailer
+	 */
+	public ResilientMailer(AmazonSESMailChimpMailer mailer, RetryPolicy retryPolicy, CircuitBreaker circuitBreaker) {
+		this(mailer, retryPolicy, circuitBreaker, MailerExecutors.defaultExecutor(),
+				PooledHttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST);
+	}
+
+	/**
+	 * @param mailer - mailer which sends the messages
+	 * @param retryPolicy
+	 * @param circuitBreaker - breaker for the endpoint of the mailer
+	 * @param executor - executor on which asynchronous and batch sends run.
+	 * @param batchConcurrency - maximum number of messages of one batch in flight at the same time.
+	 */
+	public ResilientMailer(AmazonSESMailChimpMailer mailer, RetryPolicy retryPolicy, CircuitBreaker circuitBreaker,
+			Executor executor, int batchConcurrency) {
+		super(executor, batchConcurrency);
+		if (mailer == null || retryPolicy == null || circuitBreaker == null) {
+			throw new IllegalArgumentException("mailer, retryPolicy and circuitBreaker cannot be null");
+		}
+		this.mailer = mailer;
+		this.retryPolicy = retryPolicy;
+		this.circuitBreaker = circuitBreaker;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.cloudspokes.mailer.AmazonSESMailChimpMailer#sendMail(com.cloudspokes.mailer.MailInfoDTO)
+	 */
+	@Override
+	public String sendMail(final MailInfoDTO mailData) throws MailerException {
+		return (send(new Attempt<String>() {
+			@Override
+			public String send() throws MailerException {
+				return (mailer.sendMail(mailData));
+			}
+		}));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.cloudspokes.mailer.AmazonSESMailChimpMailer#sendMailForResult(com.cloudspokes.mailer.MailInfoDTO)
+	 */
+	@Override
+	public SendResult sendMailForResult(final MailInfoDTO mailData) throws MailerException {
+		return (send(new Attempt<SendResult>() {
+			@Override
+			public SendResult send() throws MailerException {
+				return (mailer.sendMailForResult(mailData));
+			}
+		}));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.cloudspokes.mailer.AbstractAmazonSESMailChimpMailer#isSuppressed(java.lang.String)
+	 */
+	@Override
+	protected boolean isSuppressed(String email) {
+		return (isSuppressed(mailer, email));
+	}
+
+	private <T> T send(Attempt<T> call) throws MailerException {
+		MailerException lastError = null;
+		for (int attempt = 1;; attempt++) {
+			if (!circuitBreaker.allowRequest()) {
+				failures.incrementAndGet();
+				throw new CircuitOpenException("Circuit breaker is open, the Mail Chimp endpoint is failing", lastError);
+			}
+			attempts.incrementAndGet();
+			boolean recorded = false;
+			try {
+				T result = call.send();
+				recorded = true;
+				circuitBreaker.recordSuccess();
+				successes.incrementAndGet();
+				return (result);
+			} catch (MailerException e) {
+				recorded = true;
+				if (!retryPolicy.isRetryable(e)) {
+					circuitBreaker.recordSuccess();
+					failures.incrementAndGet();
+					throw e;
+				}
+				circuitBreaker.recordFailure();
+				if (attempt >= retryPolicy.getMaxAttempts()) {
+					failures.incrementAndGet();
+					throw e;
+				}
+				lastError = e;
+			} finally {
+				if (!recorded) {
+					//A RuntimeException or Error counts as a failure, else a half open circuit would wait for its
+					//trial request forever
+					circuitBreaker.recordFailure();
+					failures.incrementAndGet();
+				}
+			}
+			retries.incrementAndGet();
+			try {
+				Thread.sleep(retryPolicy.getBackoffMillis(attempt));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failures.incrementAndGet();
+				throw new MailerException("Interrupted while waiting to retry: " + lastError.getMessage(), lastError);
+			}
+		}
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return (circuitBreaker);
+	}
+
+	/**
+	 * @return number of calls to the wrapped mailer, including retries
+	 */
+	public long getAttemptCount() {
+		return (attempts.get());
+	}
+
+	/**
+	 * @return number of retries
+	 */
+	public long getRetryCount() {
+		return (retries.get());
+	}
+
+	/**
+	 * @return number of messages sent
+	 */
+	public long getSuccessCount() {
+		return (successes.get());
+	}
+
+	/**
+	 * @return number of messages which failed, including those refused by the open circuit
+	 */
+	public long getFailureCount() {
+		return (failures.get());
+	}
+
+	/**
+	 * One attempt to send the message.
+	 */
+	private interface Attempt<T> {
+		T send() throws MailerException;
+	}
+}
@@ -0,0 +1,21 @@
+package com.cloudspokes.mailer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Callback used by {@link HttpTransport} to hand the response of a request to the caller while the connection is
+ * still leased. Whatever the handler does not read from the body is drained by the transport afterwards so that
+ * the connection can be reused.
+ * @param <T> type of the value produced from the response
+ */
+public interface ResponseHandler<T> {
+	/**
+	 * @param statusCode - HTTP status code of the response
+	 * @param reasonPhrase - reason phrase from the status line, may be empty
+	 * @param body - response body. Closing it does not close the underlying connection.
+	 * @return value returned from {@link HttpTransport#post(java.net.URL, RequestBody, ResponseHandler)}
+	 * @throws IOException
+	 */
+	public T handleResponse(int statusCode, String reasonPhrase, InputStream body) throws IOException;
+}
@@ -0,0 +1,83 @@
+package com.cloudspokes.mailer;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which failed sends are retried and how long {@link ResilientMailer} waits before each retry. The wait
+ * grows exponentially from initialBackoffMillis up to maxBackoffMillis and is drawn at random between zero and
+ * that bound, so that senders which failed together do not retry together.
+ */
+public class RetryPolicy {
+	public static final int DEFAULT_MAX_ATTEMPTS = 4;
+	public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 200;
+	public static final long DEFAULT_MAX_BACKOFF_MILLIS = 10000;
+
+	private final int maxAttempts;
+	private final long initialBackoffMillis;
+	private final long maxBackoffMillis;
+
+	/**
+	 * Creates a policy with the default attempts and backoff.
+	 */
+	public RetryPolicy() {
+		this(DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS);
+	}
+
+	/**
+	 * @param maxAttempts - number of times a message is tried, including the first attempt
+	 * @param initialBackoffMillis - upper bound of the wait before the first retry
+	 * @param maxBackoffMillis - upper bound of the wait before any retry
+	 */
+	public RetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis) {
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException("maxAttempts must be at least 1: " + maxAttempts);
+		}
+		if (initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis) {
+			throw new IllegalArgumentException("Backoff must satisfy 0 <= initialBackoffMillis <= maxBackoffMillis");
+		}
+		this.maxAttempts = maxAttempts;
+		this.initialBackoffMillis = initialBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	public int getMaxAttempts() {
+		return (maxAttempts);
+	}
+
+	/**
+	 * 408, throttling and 5xx responses are retryable; a 400 response is throttling when
+	 * {@link HttpStatusException#isThrottled()} says so, as in {@link RateLimitedMailer}. Of the other I/O failures
+	 * only those before the request was sent are retried: a refused or failed connection and an unknown host, as in
+	 * {@link EndpointRouter}. Once the request was written, a read timeout or a connection closed without a response
+	 * may follow a message Mail Chimp has sent, so it is not sent again. Everything else, such as invalid messages,
+	 * a missing API key or another 4xx response, fails the same way when it is retried.
+	 * @param e
+	 * @return true if sending the message again may succeed
+	 */
+	public boolean isRetryable(MailerException e) {
+		if (e instanceof RateLimitExceededException || e instanceof CircuitOpenException) {
+			return (false);
+		}
+		Throwable cause = e.getCause();
+		if (cause instanceof HttpStatusException) {
+			return (((HttpStatusException)cause).isRetryable());
+		}
+		return (cause instanceof ConnectException || cause instanceof NoRouteToHostException
+				|| cause instanceof UnknownHostException);
+	}
+
+	/**
+	 * @param retry - number of the retry, starting at 1
+	 * @return milliseconds to wait before the retry
+	 */
+	public long getBackoffMillis(int retry) {
+		long bound = initialBackoffMillis << Math.min(retry - 1, 30);
+		if (bound > maxBackoffMillis || bound < 0) {
+			bound = maxBackoffMillis;
+		}
+		return (bound == 0 ? 0 : ThreadLocalRandom.current().nextLong(bound + 1));
+	}
+}
@@ -0,0 +1,202 @@
+package com.cloudspokes.mailer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token bucket limiting how fast messages are handed to Mail Chimp, per second and per day. Each bucket is kept
+ * as a single theoretical arrival time in an AtomicLong which is advanced with compare-and-set, so any number of
+ * sending threads can take permits without locking.
+ *
+ * The per second rate adapts to the responses of Mail Chimp: {@link #onThrottled()} halves it and empties the
+ * bucket, and every {@link #onSuccess()} raises it a little until it is back at the configured rate.
+ * {@link #onQuotaExceeded()} empties the daily bucket, after which it refills at the daily rate.
+ */
+public class SendRateLimiter {
+	/** Passed as permitsPerDay for no daily limit. */
+	public static final long UNLIMITED = 0;
+
+	private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+	private static final long NANOS_PER_DAY = TimeUnit.DAYS.toNanos(1);
+	//Throttling never slows the limiter down below one message every MAX_INTERVAL_NANOS
+	private static final long MAX_INTERVAL_NANOS = 10 * NANOS_PER_SECOND;
+	private static final double MAX_PERMITS_PER_SECOND = 1000000;
+	//Each success shortens the interval by 1/RECOVERY_DIVISOR of itself
+	private static final int RECOVERY_DIVISOR = 32;
+
+	private final Bucket perSecond;
+	private final Bucket perDay;
+	private final long configuredIntervalNanos;
+
+	/**
+	 * @param permitsPerSecond - sustained sending rate, which is also the largest burst
+	 */
+	public SendRateLimiter(double permitsPerSecond) {
+		this(permitsPerSecond, UNLIMITED);
+	}
+
+	/**
+	 * @param permitsPerSecond - sustained sending rate, which is also the largest burst
+	 * @param permitsPerDay - maximum number of messages in 24 hours, or {@link #UNLIMITED}
+	 */
+	public SendRateLimiter(double permitsPerSecond, long permitsPerDay) {
+		if (!(permitsPerSecond > 0) || permitsPerSecond > MAX_PERMITS_PER_SECOND) {
+			throw new IllegalArgumentException("permitsPerSecond must be positive and at most "
+					+ (long)MAX_PERMITS_PER_SECOND + ": " + permitsPerSecond);
+		}
+		if (permitsPerDay < 0) {
+			throw new IllegalArgumentException("permitsPerDay cannot be negative: " + permitsPerDay);
+		}
+		long now = System.nanoTime();
+		this.configuredIntervalNanos = Math.max(1, (long)(NANOS_PER_SECOND / permitsPerSecond));
+		this.perSecond = new Bucket(configuredIntervalNanos, Math.max(1, (long)permitsPerSecond), now);
+		this.perDay = permitsPerDay == UNLIMITED ? null
+				: new Bucket(Math.max(1, NANOS_PER_DAY / permitsPerDay), permitsPerDay, now);
+	}
+
+	/**
+	 * Takes a permit if one is available now.
+	 * @return true if the permit was taken
+	 */
+	public boolean tryAcquire() {
+		return (tryAcquire(System.nanoTime()) == 0);
+	}
+
+	/**
+	 * Takes a permit, waiting for one to become available for at most the timeout. Gives up without waiting when
+	 * the permit would not be available before the timeout, which is always the case once the daily quota is used.
+	 * @param timeout
+	 * @param unit
+	 * @return true if the permit was taken
+	 * @throws InterruptedException
+	 */
+	public boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (true) {
+			long now = System.nanoTime();
+			long wait = tryAcquire(now);
+			if (wait == 0) {
+				return (true);
+			}
+			if (wait > deadline - now) {
+				return (false);
+			}
+			LockSupport.parkNanos(this, wait);
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	/**
+	 * Slows the per second rate down after Mail Chimp rejected a message for exceeding the sending rate.
+	 */
+	public void onThrottled() {
+		long now = System.nanoTime();
+		while (true) {
+			long interval = perSecond.interval.get();
+			long slower = Math.min(Math.max(interval * 2, configuredIntervalNanos), MAX_INTERVAL_NANOS);
+			if (slower == interval || perSecond.interval.compareAndSet(interval, slower)) {
+				break;
+			}
+		}
+		perSecond.drain(now);
+	}
+
+	/**
+	 * Empties the daily bucket after Mail Chimp reported the daily quota as exceeded, so that permits only come
+	 * back at the daily rate. Without a daily limit the per second rate is throttled instead.
+	 */
+	public void onQuotaExceeded() {
+		if (perDay == null) {
+			onThrottled();
+		} else {
+			perDay.drain(System.nanoTime());
+		}
+	}
+
+	/**
+	 * Moves a throttled per second rate back towards the configured rate after a message was accepted.
+	 */
+	public void onSuccess() {
+		while (true) {
+			long interval = perSecond.interval.get();
+			if (interval <= configuredIntervalNanos) {
+				return;
+			}
+			long faster = Math.max(configuredIntervalNanos, interval - Math.max(1, interval / RECOVERY_DIVISOR));
+			if (perSecond.interval.compareAndSet(interval, faster)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return the current per second rate, lower than the configured one while recovering from throttling
+	 */
+	public double getPermitsPerSecond() {
+		return ((double)NANOS_PER_SECOND / perSecond.interval.get());
+	}
+
+	/**
+	 * @return nanoseconds until a permit is available, or 0 if a permit was taken
+	 */
+	private long tryAcquire(long now) {
+		long wait = perSecond.tryAcquire(now);
+		if (wait != 0 || perDay == null) {
+			return (wait);
+		}
+		wait = perDay.tryAcquire(now);
+		if (wait != 0) {
+			perSecond.refund();
+		}
+		return (wait);
+	}
+
+	/**
+	 * A bucket in its generic cell rate form: a permit is available while the theoretical arrival time of the
+	 * next permit is no more than capacity - 1 intervals ahead of now.
+	 */
+	private static class Bucket {
+		final AtomicLong interval;
+		final long capacity;
+		final AtomicLong arrival;
+
+		Bucket(long interval, long capacity, long now) {
+			this.interval = new AtomicLong(interval);
+			this.capacity = capacity;
+			this.arrival = new AtomicLong(now);
+		}
+
+		long tryAcquire(long now) {
+			while (true) {
+				long current = arrival.get();
+				long step = interval.get();
+				long start = current - now > 0 ? current : now;
+				long ahead = start - now;
+				long tolerance = step * (capacity - 1);
+				if (ahead > tolerance) {
+					return (ahead - tolerance);
+				}
+				if (arrival.compareAndSet(current, start + step)) {
+					return (0);
+				}
+			}
+		}
+
+		void refund() {
+			arrival.addAndGet(-interval.get());
+		}
+
+		void drain(long now) {
+			while (true) {
+				long current = arrival.get();
+				long empty = now + interval.get() * capacity;
+				if (current - empty >= 0 || arrival.compareAndSet(current, empty)) {
+					return;
+				}
+			}
+		}
+	}
+}
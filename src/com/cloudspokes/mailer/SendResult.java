@@ -0,0 +1,127 @@
+package com.cloudspokes.mailer;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Typed form of the response Mail Chimp returns for a message. Mail Chimp answers either with a single JSON object
+ * or with an array holding one object per recipient. The fields of a SendResult are those of the first object;
+ * {@link #getRecipientResult(String)} gives the result of any recipient.
+ */
+public class SendResult {
+	public static final String STATUS_SENT = "sent";
+	public static final String STATUS_QUEUED = "queued";
+	/** Status of a message which was not sent because every to recipient is on the suppression list. */
+	public static final String STATUS_SUPPRESSED = "suppressed";
+
+	private final String status;
+	private final String messageId;
+	private final String email;
+	private final String errorCode;
+	private final String errorMessage;
+	private final List<SendResult> recipientResults;
+
+	/**
+	 * @param status - the status field, such as sent, queued or the reason the message was refused
+	 * @param messageId - id Mail Chimp assigned to the message, may be null
+	 * @param email - recipient the result applies to, may be null
+	 * @param errorCode - code of the error, may be null
+	 * @param errorMessage - message of the error, may be null
+	 */
+	public SendResult(String status, String messageId, String email, String errorCode, String errorMessage) {
+		this.status = status;
+		this.messageId = messageId;
+		this.email = email;
+		this.errorCode = errorCode;
+		this.errorMessage = errorMessage;
+		this.recipientResults = Collections.singletonList(this);
+	}
+
+	/**
+	 * @param recipientResults - results of every object of an array response, at least one
+	 */
+	SendResult(List<SendResult> recipientResults) {
+		SendResult first = recipientResults.get(0);
+		this.status = first.status;
+		this.messageId = first.messageId;
+		this.email = first.email;
+		this.errorCode = first.errorCode;
+		this.errorMessage = first.errorMessage;
+		this.recipientResults = Collections.unmodifiableList(recipientResults);
+	}
+
+	/**
+	 * Parses a response returned by {@link AmazonSESMailChimpMailer#sendMail(MailInfoDTO)}.
+	 * @param response
+	 * @return the result
+	 * @throws MailerException if the response is not a JSON object or array of objects
+	 */
+	public static SendResult parse(String response) throws MailerException {
+		try {
+			return (SendResultParser.parse(new StringReader(response)));
+		} catch (IOException e) {
+			throw new MailerException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return true if Mail Chimp accepted the message, that is the status is sent or queued
+	 */
+	public boolean isAccepted() {
+		return (STATUS_SENT.equals(status) || STATUS_QUEUED.equals(status));
+	}
+
+	public String getStatus() {
+		return (status);
+	}
+
+	public String getMessageId() {
+		return (messageId);
+	}
+
+	public String getEmail() {
+		return (email);
+	}
+
+	public String getErrorCode() {
+		return (errorCode);
+	}
+
+	public String getErrorMessage() {
+		return (errorMessage);
+	}
+
+	/**
+	 * @return the results of every object of the response, in response order. A response holding a single object
+	 *         gives a list with only this result.
+	 */
+	public List<SendResult> getRecipientResults() {
+		return (recipientResults);
+	}
+
+	/**
+	 * @param email - address of a recipient of the message
+	 * @return the result of the recipient, or null if the response has none for the address. A response without
+	 *         any recipient address, such as an error, applies to every recipient and is returned for any address.
+	 */
+	public SendResult getRecipientResult(String email) {
+		boolean addressed = false;
+		for (SendResult result : recipientResults) {
+			if (result.email != null) {
+				if (result.email.equalsIgnoreCase(email)) {
+					return (result);
+				}
+				addressed = true;
+			}
+		}
+		return (addressed ? null : this);
+	}
+
+	@Override
+	public String toString() {
+		return ("SendResult [status=" + status + ", messageId=" + messageId + ", email=" + email + ", errorCode="
+				+ errorCode + ", errorMessage=" + errorMessage + "]");
+	}
+}
@@ -0,0 +1,274 @@
+package com.cloudspokes.mailer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming parser turning a Mail Chimp response into a {@link SendResult}. It reads the response one token at a
+ * time, keeps the fields a SendResult needs from every object and skips every other value without building it.
+ * The objects of an array response become the recipient results of the SendResult of the first object.
+ */
+final class SendResultParser {
+	private static final int BUFFER_SIZE = 512;
+
+	private final Reader in;
+	private final char[] buffer = new char[BUFFER_SIZE];
+	private final StringBuilder text = new StringBuilder(64);
+	private int position;
+	private int limit;
+
+	private String status;
+	private String messageId;
+	private String email;
+	private String errorCode;
+	private String errorMessage;
+
+	private SendResultParser(Reader in) {
+		this.in = in;
+	}
+
+	/**
+	 * @param in - UTF-8 encoded response body
+	 * @return the result described by the first object of the response, holding the results of all objects
+	 * @throws IOException if the response is not a JSON object or array of objects
+	 */
+	static SendResult parse(InputStream in) throws IOException {
+		//The reader decodes in small blocks; whatever it reads ahead is drained by the transport
+		return (parse(new InputStreamReader(in, "UTF-8")));
+	}
+
+	static SendResult parse(Reader in) throws IOException {
+		SendResultParser parser = new SendResultParser(in);
+		int c = parser.next();
+		if (c != '[') {
+			if (c != '{') {
+				throw error("Expected a JSON object", c);
+			}
+			return (parser.readObject());
+		}
+		List<SendResult> results = new ArrayList<SendResult>();
+		do {
+			c = parser.next();
+			if (c != '{') {
+				throw error("Expected a JSON object", c);
+			}
+			results.add(parser.readObject());
+			c = parser.next();
+		} while (c == ',');
+		if (c != ']') {
+			throw error("Expected ',' or ']'", c);
+		}
+		return (results.size() == 1 ? results.get(0) : new SendResult(results));
+	}
+
+	/**
+	 * Reads the fields of a top level object, after its opening brace.
+	 * @return the result the object describes
+	 */
+	private SendResult readObject() throws IOException {
+		status = null;
+		messageId = null;
+		email = null;
+		errorCode = null;
+		errorMessage = null;
+		int c = next();
+		while (c != '}') {
+			if (c != '"') {
+				throw error("Expected a field name", c);
+			}
+			String name = readString();
+			c = next();
+			if (c != ':') {
+				throw error("Expected ':'", c);
+			}
+			readField(name);
+			c = next();
+			if (c == ',') {
+				c = next();
+			} else if (c != '}') {
+				throw error("Expected ',' or '}'", c);
+			}
+		}
+		return (new SendResult(status, messageId, email, errorCode, errorMessage));
+	}
+
+	private void readField(String name) throws IOException {
+		if ("status".equals(name)) {
+			status = readScalar();
+		} else if ("message_id".equals(name) || "_id".equals(name) || "id".equals(name)) {
+			messageId = readScalar();
+		} else if ("email".equals(name)) {
+			email = readScalar();
+		} else if ("code".equals(name) || "aws_code".equals(name)) {
+			//The Mail Chimp code is kept when both are present
+			String code = readScalar();
+			if (errorCode == null || "code".equals(name)) {
+				errorCode = code;
+			}
+		} else if ("message".equals(name) || "aws_message".equals(name) || "error".equals(name)
+				|| "reject_reason".equals(name)) {
+			String message = readScalar();
+			if (errorMessage == null || "message".equals(name)) {
+				errorMessage = message;
+			}
+		} else {
+			skipValue(next());
+		}
+	}
+
+	/**
+	 * @return a string, number or boolean value as text, or null for null and nested values
+	 */
+	private String readScalar() throws IOException {
+		int c = next();
+		if (c == '"') {
+			return (readString());
+		}
+		if (c == '{' || c == '[') {
+			skipValue(c);
+			return (null);
+		}
+		text.setLength(0);
+		text.append((char)c);
+		while (true) {
+			c = peek();
+			if (c == -1 || c == ',' || c == '}' || c == ']' || isWhitespace(c)) {
+				break;
+			}
+			text.append((char)read());
+		}
+		String literal = text.toString();
+		return ("null".equals(literal) ? null : literal);
+	}
+
+	private void skipValue(int c) throws IOException {
+		if (c == '"') {
+			skipString();
+		} else if (c == '{' || c == '[') {
+			int depth = 1;
+			while (depth > 0) {
+				c = read();
+				if (c == -1) {
+					throw error("Unterminated value", c);
+				} else if (c == '"') {
+					skipString();
+				} else if (c == '{' || c == '[') {
+					depth++;
+				} else if (c == '}' || c == ']') {
+					depth--;
+				}
+			}
+		} else {
+			while ((c = peek()) != -1 && c != ',' && c != '}' && c != ']' && !isWhitespace(c)) {
+				read();
+			}
+		}
+	}
+
+	private String readString() throws IOException {
+		text.setLength(0);
+		while (true) {
+			int c = read();
+			if (c == '"') {
+				return (text.toString());
+			}
+			if (c == -1) {
+				throw error("Unterminated string", c);
+			}
+			text.append(c == '\\' ? readEscape() : (char)c);
+		}
+	}
+
+	private void skipString() throws IOException {
+		while (true) {
+			int c = read();
+			if (c == '"') {
+				return;
+			}
+			if (c == -1) {
+				throw error("Unterminated string", c);
+			}
+			if (c == '\\') {
+				read();
+			}
+		}
+	}
+
+	private char readEscape() throws IOException {
+		int c = read();
+		switch (c) {
+		case 'b':
+			return ('\b');
+		case 'f':
+			return ('\f');
+		case 'n':
+			return ('\n');
+		case 'r':
+			return ('\r');
+		case 't':
+			return ('\t');
+		case 'u':
+			int value = 0;
+			for (int i = 0; i < 4; i++) {
+				int digit = Character.digit(read(), 16);
+				if (digit < 0) {
+					throw error("Invalid unicode escape", c);
+				}
+				value = (value << 4) | digit;
+			}
+			return ((char)value);
+		case -1:
+			throw error("Unterminated string", c);
+		default:
+			return ((char)c);
+		}
+	}
+
+	/**
+	 * @return the next character which is not whitespace, or -1 at the end of the input
+	 */
+	private int next() throws IOException {
+		int c;
+		do {
+			c = read();
+		} while (isWhitespace(c));
+		return (c);
+	}
+
+	private int peek() throws IOException {
+		if (position == limit && !fill()) {
+			return (-1);
+		}
+		return (buffer[position]);
+	}
+
+	private int read() throws IOException {
+		if (position == limit && !fill()) {
+			return (-1);
+		}
+		return (buffer[position++]);
+	}
+
+	private boolean fill() throws IOException {
+		int read = in.read(buffer, 0, buffer.length);
+		if (read <= 0) {
+			return (false);
+		}
+		position = 0;
+		limit = read;
+		return (true);
+	}
+
+	private static boolean isWhitespace(int c) {
+		return (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+	}
+
+	private static IOException error(String message, int c) {
+		return (new IOException("Invalid Mail Chimp response: " + message
+				+ (c == -1 ? " but the response ended" : " but found '" + (char)c + "'")));
+	}
+}
@@ -0,0 +1,203 @@
+package com.cloudspokes.mailer;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size bounded cache of serialized messages, so that a message which is retried or sent again to the same
+ * recipients is url encoded once. Passed to {@link AmazonSESMailChimpMailerImpl}, every message whose post data
+ * reaches minPayloadBytes is kept as an immutable byte array and later sends of the same message post those bytes
+ * as they are.
+ * <p>
+ * Entries are keyed by the identity of the MailInfoDTO together with a hash of its content and the API key, so a
+ * message changed through its setters is serialized again. The hash is built from the hash codes of the fields,
+ * which Strings cache, so a lookup does not walk a large html body again. The key only weakly references the
+ * message; entries of collected messages are evicted like any other. Entries are evicted least recently used first
+ * once the payloads exceed maxBytes in total.
+ */
+public class SerializedMessageCache {
+	public static final long DEFAULT_MAX_BYTES = 64L << 20;
+	public static final int DEFAULT_MIN_PAYLOAD_BYTES = 16 << 10;
+
+	private final long maxBytes;
+	private final int minPayloadBytes;
+	private final LinkedHashMap<Key, byte[]> payloads = new LinkedHashMap<Key, byte[]>(16, 0.75f, true);
+	private long bytes;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	public SerializedMessageCache() {
+		this(DEFAULT_MAX_BYTES, DEFAULT_MIN_PAYLOAD_BYTES);
+	}
+
+	/**
+	 * @param maxBytes - total size of the cached payloads before the least recently used ones are evicted
+	 * @param minPayloadBytes - smaller payloads are cheap to encode again and are not cached
+	 */
+	public SerializedMessageCache(long maxBytes, int minPayloadBytes) {
+		if (maxBytes < 1) {
+			throw new IllegalArgumentException("long maxBytes must be at least 1: " + maxBytes);
+		}
+		if (minPayloadBytes < 0) {
+			throw new IllegalArgumentException("int minPayloadBytes cannot be negative: " + minPayloadBytes);
+		}
+		this.maxBytes = maxBytes;
+		this.minPayloadBytes = minPayloadBytes;
+	}
+
+	/**
+	 * @param mailData
+	 * @param apiKey - key the payload was serialized with
+	 * @return the serialized message, which must not be modified, or null if it is not cached
+	 */
+	byte[] get(MailInfoDTO mailData, String apiKey) {
+		Key key = new Key(mailData, apiKey);
+		byte[] payload;
+		synchronized (payloads) {
+			payload = payloads.get(key);
+		}
+		if (payload != null) {
+			hits.increment();
+		} else {
+			misses.increment();
+		}
+		return (payload);
+	}
+
+	/**
+	 * Caches a serialized message if it is large enough and fits.
+	 * @param mailData
+	 * @param apiKey - key the payload was serialized with
+	 * @param encoder - buffering encoder holding the serialized message
+	 * @return the cached copy of the payload, or null if it was not cached
+	 */
+	byte[] put(MailInfoDTO mailData, String apiKey, FormUrlEncoder encoder) {
+		long size = encoder.size();
+		if (size < minPayloadBytes || size > maxBytes) {
+			return (null);
+		}
+		Key key = new Key(mailData, apiKey);
+		byte[] payload = encoder.toByteArray();
+		synchronized (payloads) {
+			byte[] previous = payloads.put(key, payload);
+			if (previous != null) {
+				bytes -= previous.length;
+			}
+			bytes += payload.length;
+			Iterator<byte[]> eldest = payloads.values().iterator();
+			while (bytes > maxBytes && eldest.hasNext()) {
+				bytes -= eldest.next().length;
+				eldest.remove();
+			}
+		}
+		return (payload);
+	}
+
+	/**
+	 * Removes all payloads.
+	 */
+	public void clear() {
+		synchronized (payloads) {
+			payloads.clear();
+			bytes = 0;
+		}
+	}
+
+	/**
+	 * @return number of cached payloads
+	 */
+	public int size() {
+		synchronized (payloads) {
+			return (payloads.size());
+		}
+	}
+
+	/**
+	 * @return total size of the cached payloads
+	 */
+	public long getBytes() {
+		synchronized (payloads) {
+			return (bytes);
+		}
+	}
+
+	/**
+	 * @return sends which posted a cached payload
+	 */
+	public long getHitCount() {
+		return (hits.sum());
+	}
+
+	/**
+	 * @return sends which had to serialize the message
+	 */
+	public long getMissCount() {
+		return (misses.sum());
+	}
+
+	/**
+	 * Identity of a message together with a hash of its content at the time it was serialized.
+	 */
+	private static final class Key {
+		private final WeakReference<MailInfoDTO> mailData;
+		private final int identityHash;
+		private final int contentHash;
+		private final String apiKey;
+
+		Key(MailInfoDTO mailData, String apiKey) {
+			this.mailData = new WeakReference<MailInfoDTO>(mailData);
+			this.identityHash = System.identityHashCode(mailData);
+			this.contentHash = contentHash(mailData);
+			this.apiKey = apiKey;
+		}
+
+		@Override
+		public int hashCode() {
+			return (31 * identityHash + contentHash);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) {
+				return (false);
+			}
+			Key key = (Key)other;
+			MailInfoDTO referent = mailData.get();
+			return (referent != null && referent == key.mailData.get() && contentHash == key.contentHash
+					&& apiKey.equals(key.apiKey));
+		}
+
+		private static int contentHash(MailInfoDTO mailData) {
+			int hash = 1;
+			MailTemplate template = mailData.getHtmlTemplate();
+			if (template != null) {
+				hash = 31 * hash + System.identityHashCode(template);
+				hash = 31 * hash + hash(mailData.getMergeFields());
+			} else {
+				hash = 31 * hash + hash(mailData.getHtmlEmailContent());
+			}
+			hash = 31 * hash + hash(mailData.getTextEmailContent());
+			hash = 31 * hash + hash(mailData.getSubject());
+			hash = 31 * hash + hash(mailData.getFromName());
+			hash = 31 * hash + hash(mailData.getFromEmail());
+			hash = 31 * hash + hash(mailData.getToEmail());
+			hash = 31 * hash + hash(mailData.getToName());
+			hash = 31 * hash + hash(mailData.getReplyTo());
+			hash = 31 * hash + hash(mailData.getCcEmail());
+			hash = 31 * hash + hash(mailData.getCcName());
+			hash = 31 * hash + hash(mailData.getBccEmail());
+			hash = 31 * hash + hash(mailData.getBccName());
+			hash = 31 * hash + hash(mailData.getTags());
+			hash = 31 * hash + (mailData.isAutogenHtml() ? 1 : 0);
+			hash = 31 * hash + (mailData.isTrackOpens() ? 2 : 0);
+			hash = 31 * hash + (mailData.isTrackClicks() ? 4 : 0);
+			return (hash);
+		}
+
+		private static int hash(Object value) {
+			return (value == null ? 0 : value.hashCode());
+		}
+	}
+}
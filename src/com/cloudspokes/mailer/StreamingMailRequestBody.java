@@ -0,0 +1,86 @@
+package com.cloudspokes.mailer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * {@link RequestBody} which serializes a message straight onto the connection through a small fixed size buffer,
+ * so the memory used by a send does not grow with the size of the message. With a known content length the
+ * request is sent with a Content-Length header, which costs a first encoding pass that only counts the bytes;
+ * without one the transport sends it with chunked transfer encoding.
+ */
+final class StreamingMailRequestBody implements RequestBody {
+	static final int BUFFER_SIZE = 8192;
+
+	private static final OutputStream DISCARD = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	private final String contentType;
+	private final MailInfoDTO mailData;
+	private final ApiCredential credential;
+	private final long contentLength;
+	private long written;
+
+	/**
+	 * @param contentType
+	 * @param mailData
+	 * @param credential
+	 * @param contentLength - from {@link #measure(MailInfoDTO, ApiCredential)}, or -1 for chunked transfer encoding
+	 */
+	StreamingMailRequestBody(String contentType, MailInfoDTO mailData, ApiCredential credential, long contentLength) {
+		this.contentType = contentType;
+		this.mailData = mailData;
+		this.credential = credential;
+		this.contentLength = contentLength;
+	}
+
+	/**
+	 * Encodes the message without keeping the bytes.
+	 * @param mailData
+	 * @param credential
+	 * @return number of bytes the serialized message takes
+	 * @throws IOException
+	 */
+	static long measure(MailInfoDTO mailData, ApiCredential credential) throws IOException {
+		FormUrlEncoder encoder = new FormUrlEncoder(DISCARD, BUFFER_SIZE);
+		MailInfoSerializer.write(mailData, credential, encoder);
+		return (encoder.size());
+	}
+
+	@Override
+	public String getContentType() {
+		return (contentType);
+	}
+
+	@Override
+	public long getContentLength() {
+		return (contentLength);
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		FormUrlEncoder encoder = new FormUrlEncoder(out, BUFFER_SIZE);
+		MailInfoSerializer.write(mailData, credential, encoder);
+		encoder.writeBuffered();
+		written = encoder.size();
+		if (contentLength >= 0 && written != contentLength) {
+			//The request is broken at this point, so the transport must not reuse the connection
+			throw new IOException("Message changed while it was sent: measured " + contentLength + " bytes but wrote "
+					+ written);
+		}
+	}
+
+	/**
+	 * @return number of bytes written by the last {@link #writeTo(OutputStream)}
+	 */
+	long getWritten() {
+		return (written);
+	}
+}
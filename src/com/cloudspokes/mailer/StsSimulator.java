@@ -0,0 +1,447 @@
+package com.cloudspokes.mailer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the Mail Chimp STS endpoint, so that the throughput and the failure handling of a mailer can
+ * be tested without a network or an API key. It listens on 127.0.0.1 and answers form encoded posts to
+ * /1.0/SendEmail the way STS does: an array with one sent or queued object per to recipient, the quota exceeded
+ * status once the daily quota is used up, a 400 Throttling error over the sending rate and a 500 error for internal
+ * failures. Point a mailer at it with {@link AmazonSESMailChimpMailerImpl#withBaseUrl(URL)} and
+ * {@link #getBaseUrl()}.
+ * <p>
+ * Every request first has its body read, decompressing gzip encoded bodies. It then has the connection reset at
+ * the reset rate, which drops the connection without an answer; is throttled if it is over the sending rate; waits
+ * for a delay drawn from the {@link Latency}; fails with the error rate; is refused once the daily quota is used
+ * up; and is otherwise queued at the queued rate or sent. Every setting can be changed while the simulator runs,
+ * so a test can let it fail for a while and then recover. The answers given are counted by {@link Response}.
+ * <p>
+ * Requests are handled on a thread each, so the delays of concurrent requests overlap like those of a real
+ * endpoint.
+ * <p>
+ * Callers measuring latency should run with -Dsun.net.httpserver.nodelay=true, or set that property before the
+ * first HTTP server of the JVM is created; otherwise small responses wait for the delayed ACK of the client, about
+ * 40 ms each. The simulator leaves system properties alone.
+ */
+public class StsSimulator implements Closeable {
+	public static final String QUOTA_EXCEEDED_STATUS = "Daily message quota exceeded.";
+	public static final long UNLIMITED = 0;
+
+	private static final String TO_EMAIL = "message[to_email][";
+	private static final String API_KEY = "apikey";
+
+	/**
+	 * Answers of the simulator.
+	 */
+	public enum Response {
+		SENT, QUEUED, QUOTA_EXCEEDED, THROTTLED, ERROR, RESET, INVALID
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final URL baseUrl;
+	private final LongAdder[] counts = new LongAdder[Response.values().length];
+	private final LongAdder recipients = new LongAdder();
+	private final AtomicLong nextId = new AtomicLong();
+	private final AtomicLong quotaLeft = new AtomicLong();
+
+	private volatile Latency latency = Latency.NONE;
+	private volatile double errorRate;
+	private volatile double resetRate;
+	private volatile double queuedRate;
+	private volatile SendRateLimiter sendRate;
+	private volatile long dailyQuota = UNLIMITED;
+
+	/**
+	 * Starts a simulator on a free port which sends every message at once.
+	 * @throws IOException if the server cannot listen
+	 */
+	public StsSimulator() throws IOException {
+		this(0);
+	}
+
+	/**
+	 * Starts a simulator which sends every message at once.
+	 * @param port - port to listen on, 0 for a free one
+	 * @throws IOException if the server cannot listen
+	 */
+	public StsSimulator(int port) throws IOException {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = new LongAdder();
+		}
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+		server.createContext(AmazonSESMailChimpMailerImpl.SEND_EMAIL_PATH, new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					StsSimulator.this.handle(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		executor = Executors.newCachedThreadPool(MailerExecutors.daemonThreadFactory("sts-simulator"));
+		server.setExecutor(executor);
+		server.start();
+		baseUrl = new URL("http://127.0.0.1:" + server.getAddress().getPort());
+	}
+
+	/**
+	 * @return http://127.0.0.1 and the port of the simulator, to be passed to
+	 *    {@link AmazonSESMailChimpMailerImpl#withBaseUrl(URL)}
+	 */
+	public URL getBaseUrl() {
+		return (baseUrl);
+	}
+
+	/**
+	 * @return URL of the SendEmail call of the simulator
+	 */
+	public URL getSendEmailUrl() {
+		try {
+			return (new URL(baseUrl, AmazonSESMailChimpMailerImpl.SEND_EMAIL_PATH));
+		} catch (MalformedURLException e) {
+			//The path is constant
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param latency - distribution of the time a request takes before it is answered
+	 */
+	public void setLatency(Latency latency) {
+		if (latency == null) {
+			throw new IllegalArgumentException("Latency latency cannot be null, use Latency.NONE");
+		}
+		this.latency = latency;
+	}
+
+	/**
+	 * @param errorRate - share of the requests failing with 500 InternalFailure, from 0 to 1
+	 */
+	public void setErrorRate(double errorRate) {
+		this.errorRate = rate("errorRate", errorRate);
+	}
+
+	/**
+	 * @param resetRate - share of the requests whose connection is dropped without an answer, from 0 to 1
+	 */
+	public void setResetRate(double resetRate) {
+		this.resetRate = rate("resetRate", resetRate);
+	}
+
+	/**
+	 * @param queuedRate - share of the accepted messages answered as queued rather than sent, from 0 to 1
+	 */
+	public void setQueuedRate(double queuedRate) {
+		this.queuedRate = rate("queuedRate", queuedRate);
+	}
+
+	/**
+	 * @param messagesPerSecond - sending rate, which is also the largest burst, over which requests are
+	 *    throttled, or {@link #UNLIMITED}
+	 */
+	public void setMaxSendRate(double messagesPerSecond) {
+		if (messagesPerSecond < 0) {
+			throw new IllegalArgumentException("messagesPerSecond cannot be negative: " + messagesPerSecond);
+		}
+		this.sendRate = messagesPerSecond == UNLIMITED ? null : new SendRateLimiter(messagesPerSecond);
+	}
+
+	/**
+	 * Starts a new day: from now on dailyQuota messages are accepted before the quota exceeded status is returned.
+	 * @param dailyQuota - messages accepted, or {@link #UNLIMITED}
+	 */
+	public void setDailyQuota(long dailyQuota) {
+		if (dailyQuota < 0) {
+			throw new IllegalArgumentException("dailyQuota cannot be negative: " + dailyQuota);
+		}
+		this.dailyQuota = dailyQuota;
+		quotaLeft.set(dailyQuota);
+	}
+
+	/**
+	 * @param response
+	 * @return number of requests given the response
+	 */
+	public long getCount(Response response) {
+		return (counts[response.ordinal()].sum());
+	}
+
+	/**
+	 * @return number of requests received
+	 */
+	public long getRequestCount() {
+		long count = 0;
+		for (LongAdder adder : counts) {
+			count += adder.sum();
+		}
+		return (count);
+	}
+
+	/**
+	 * @return number of to recipients of the messages sent or queued
+	 */
+	public long getRecipientCount() {
+		return (recipients.sum());
+	}
+
+	/**
+	 * Sets every count back to zero.
+	 */
+	public void resetCounts() {
+		for (LongAdder adder : counts) {
+			adder.reset();
+		}
+		recipients.reset();
+	}
+
+	/**
+	 * Stops listening and drops the requests in progress.
+	 */
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		byte[] body = readBody(exchange);
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		if (random.nextDouble() < resetRate) {
+			//Closing the exchange before the response headers makes the server drop the connection
+			count(Response.RESET);
+			return;
+		}
+		List<String> toEmail = new ArrayList<String>();
+		boolean hasApiKey = parse(body, toEmail);
+		if (!hasApiKey || toEmail.isEmpty()) {
+			count(Response.INVALID);
+			respond(exchange, hasApiKey ? 400 : 500, hasApiKey
+					? error("Sender", "InvalidParameterValue", "Missing final '@domain'", 400)
+					: "{\"status\":\"error\",\"code\":104,\"message\":\"Invalid Mailchimp API Key\"}");
+			return;
+		}
+		SendRateLimiter limiter = sendRate;
+		if (limiter != null && !limiter.tryAcquire()) {
+			count(Response.THROTTLED);
+			respond(exchange, 400, error("Sender", "Throttling", "Maximum sending rate exceeded.", 400));
+			return;
+		}
+		long delayNanos = latency.nextNanos(random);
+		if (delayNanos > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(delayNanos);
+			} catch (InterruptedException e) {
+				//Closing
+				Thread.currentThread().interrupt();
+				count(Response.RESET);
+				return;
+			}
+		}
+		if (random.nextDouble() < errorRate) {
+			count(Response.ERROR);
+			respond(exchange, 500, error("Receiver", "InternalFailure",
+					"The request processing has failed due to some unknown error.", 500));
+			return;
+		}
+		if (dailyQuota != UNLIMITED && quotaLeft.getAndDecrement() <= 0) {
+			count(Response.QUOTA_EXCEEDED);
+			respond(exchange, 200, statuses(toEmail, QUOTA_EXCEEDED_STATUS, false));
+			return;
+		}
+		boolean queued = random.nextDouble() < queuedRate;
+		count(queued ? Response.QUEUED : Response.SENT);
+		recipients.add(toEmail.size());
+		respond(exchange, 200, statuses(toEmail, queued ? SendResult.STATUS_QUEUED : SendResult.STATUS_SENT, true));
+	}
+
+	private void count(Response response) {
+		counts[response.ordinal()].increment();
+	}
+
+	private static byte[] readBody(HttpExchange exchange) throws IOException {
+		InputStream in = exchange.getRequestBody();
+		if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+			in = new GZIPInputStream(in, 8192);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return (out.toByteArray());
+	}
+
+	/**
+	 * Collects the to recipients of a form encoded body; the other parameters are only skipped.
+	 * @return true if the body has an API key
+	 */
+	private static boolean parse(byte[] body, List<String> toEmail) throws IOException {
+		//Encoded parameters are ASCII
+		String form = new String(body, "ISO-8859-1");
+		boolean hasApiKey = false;
+		int start = 0;
+		while (start < form.length()) {
+			int end = form.indexOf('&', start);
+			if (end == -1) {
+				end = form.length();
+			}
+			int equals = form.indexOf('=', start);
+			if (equals != -1 && equals < end) {
+				if (form.startsWith(TO_EMAIL, start)) {
+					toEmail.add(URLDecoder.decode(form.substring(equals + 1, end), "UTF-8"));
+				} else if (equals - start == API_KEY.length() && form.startsWith(API_KEY, start)) {
+					hasApiKey = equals + 1 < end;
+				}
+			}
+			start = end + 1;
+		}
+		return (hasApiKey);
+	}
+
+	private String statuses(List<String> toEmail, String status, boolean withId) {
+		StringBuilder json = new StringBuilder(64 * toEmail.size()).append('[');
+		for (String email : toEmail) {
+			if (json.length() > 1) {
+				json.append(',');
+			}
+			json.append("{\"email\":\"");
+			appendEscaped(json, email);
+			json.append("\",\"status\":\"").append(status).append('"');
+			if (withId) {
+				json.append(",\"_id\":\"").append(String.format("%032x", nextId.incrementAndGet())).append('"');
+			}
+			json.append('}');
+		}
+		return (json.append(']').toString());
+	}
+
+	private static String error(String type, String code, String message, int httpCode) {
+		return ("{\"aws_type\":\"" + type + "\",\"aws_code\":\"" + code + "\",\"aws_message\":\"" + message
+				+ "\",\"http_code\":" + httpCode + "}");
+	}
+
+	private static void appendEscaped(StringBuilder json, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			} else if (c < 0x20) {
+				json.append(String.format("\\u%04x", (int)c));
+			} else {
+				json.append(c);
+			}
+		}
+	}
+
+	private static void respond(HttpExchange exchange, int statusCode, String json) throws IOException {
+		byte[] bytes = json.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(statusCode, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	private static double rate(String name, double rate) {
+		if (!(rate >= 0 && rate <= 1)) {
+			throw new IllegalArgumentException(name + " must be between 0 and 1: " + rate);
+		}
+		return (rate);
+	}
+
+	/**
+	 * Distribution of the time the simulator takes to answer a request. Implementations must be safe for use by
+	 * multiple threads.
+	 */
+	public interface Latency {
+		/** Answers at once. */
+		public static final Latency NONE = fixed(0);
+
+		/**
+		 * @param random - random numbers of the calling thread
+		 * @return nanoseconds to wait before answering
+		 */
+		public long nextNanos(ThreadLocalRandom random);
+
+		/**
+		 * @param millis - time every request takes
+		 * @return the distribution
+		 */
+		public static Latency fixed(long millis) {
+			if (millis < 0) {
+				throw new IllegalArgumentException("millis cannot be negative: " + millis);
+			}
+			final long nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+			return (new Latency() {
+				@Override
+				public long nextNanos(ThreadLocalRandom random) {
+					return (nanos);
+				}
+			});
+		}
+
+		/**
+		 * @param minMillis - shortest time a request takes
+		 * @param maxMillis - longest time a request takes
+		 * @return times spread evenly between the bounds
+		 */
+		public static Latency uniform(long minMillis, long maxMillis) {
+			if (minMillis < 0 || maxMillis < minMillis) {
+				throw new IllegalArgumentException("Latency must satisfy 0 <= minMillis <= maxMillis");
+			}
+			final long min = TimeUnit.MILLISECONDS.toNanos(minMillis);
+			final long max = TimeUnit.MILLISECONDS.toNanos(maxMillis);
+			return (new Latency() {
+				@Override
+				public long nextNanos(ThreadLocalRandom random) {
+					return (min == max ? min : random.nextLong(min, max + 1));
+				}
+			});
+		}
+
+		/**
+		 * Log-normal times, which have the long tail of the latencies of a remote service.
+		 * @param medianMillis - time half of the requests take at most
+		 * @param p99Millis - time 99 percent of the requests take at most
+		 * @return the distribution
+		 */
+		public static Latency logNormal(double medianMillis, double p99Millis) {
+			if (!(medianMillis > 0) || !(p99Millis >= medianMillis)) {
+				throw new IllegalArgumentException("Latency must satisfy 0 < medianMillis <= p99Millis");
+			}
+			final double mu = Math.log(TimeUnit.MILLISECONDS.toNanos(1) * medianMillis);
+			//2.326 is the 99th percentile of the standard normal distribution
+			final double sigma = Math.log(p99Millis / medianMillis) / 2.326;
+			return (new Latency() {
+				@Override
+				public long nextNanos(ThreadLocalRandom random) {
+					return ((long)Math.exp(mu + sigma * random.nextGaussian()));
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,512 @@
+package com.cloudspokes.mailer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Addresses which must never be mailed, such as bounced, complained and unsubscribed recipients. Given to a mailer
+ * with {@link AmazonSESMailChimpMailerImpl#withSuppressionList(SuppressionList)}, the suppressed to, cc and bcc
+ * recipients are dropped from every message before it is serialized.
+ * <p>
+ * The list lives in a UTF-8 file of one address per line, which is memory-mapped rather than read onto the heap.
+ * Blank lines and lines starting with # are ignored and addresses match ignoring case. An index of the lines is
+ * built at load in one pass over the mapping: an open addressing hash table in a direct buffer, whose slots hold a
+ * fingerprint of the address and the offset of its line, and in front of it a Bloom filter of about ten bits per
+ * address. A lookup of an address which is not suppressed, nearly every lookup, is answered by the Bloom filter
+ * without a lock; the rest probe the table and confirm the match against the line in the file, so the answer is
+ * exact. Each address takes 16 to 32 bytes of direct memory and 2 to 3 bytes of heap besides the page cache.
+ * <p>
+ * {@link #add(String)} appends to the file and the index while the list is in use. The appended lines are also kept
+ * in a heap buffer until it outgrows the mapping; the whole file is then mapped again, so a growing list is mapped
+ * a logarithmic number of times. Lines appended to the file by other processes are only seen by a new
+ * SuppressionList.
+ */
+public class SuppressionList implements Closeable {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int MIN_CAPACITY = 1024;
+	private static final int MIN_TAIL_BYTES = 64 * 1024;
+	private static final int BLOOM_BITS_PER_ADDRESS = 10;
+	private static final int BLOOM_PROBES = 7;
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final File file;
+	private final RandomAccessFile randomAccessFile;
+	private final FileChannel channel;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private MappedByteBuffer data;
+	private int mappedLength;
+	//Lines appended since the file was mapped, at offsets from mappedLength
+	private ByteBuffer tail = ByteBuffer.allocate(0);
+	private long dataLength;
+	private ByteBuffer table;
+	private int tableMask;
+	private int size;
+	private volatile BloomFilter bloom;
+
+	/**
+	 * Maps the file and indexes its addresses. The file is created if it does not exist.
+	 * @param file - UTF-8 file of one address per line, smaller than 2 GB
+	 * @throws IOException if the file cannot be read or is too large
+	 */
+	public SuppressionList(File file) throws IOException {
+		if (file == null) {
+			throw new IllegalArgumentException("File file cannot be null");
+		}
+		this.file = file;
+		this.randomAccessFile = new RandomAccessFile(file, "rw");
+		this.channel = randomAccessFile.getChannel();
+		try {
+			map(channel.size());
+			index(countLines());
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param address - address, in any case
+	 * @return true if the address must not be mailed
+	 */
+	public boolean isSuppressed(String address) {
+		if (address == null) {
+			return (false);
+		}
+		String key = EmailAddresses.lowerCase(address);
+		long hash = hash(key);
+		if (!bloom.mightContain(hash)) {
+			return (false);
+		}
+		lock.readLock().lock();
+		try {
+			return (find(hash, key) >= 0);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Suppresses the address and appends it to the file.
+	 * @param address
+	 * @return false if the address was already suppressed
+	 * @throws IOException if the file cannot be written
+	 */
+	public boolean add(String address) throws IOException {
+		return (addAll(Collections.singletonList(address)) == 1);
+	}
+
+	/**
+	 * Suppresses the addresses and appends them to the file with one write.
+	 * @param addresses
+	 * @return count of addresses which were not suppressed before
+	 * @throws IOException if the file cannot be written
+	 */
+	public int addAll(Collection<String> addresses) throws IOException {
+		List<String> keys = new ArrayList<String>(addresses.size());
+		for (String address : addresses) {
+			String normalized = EmailAddresses.normalize(address);
+			if (normalized == null) {
+				throw new IllegalArgumentException("String address is not a valid email address: " + address);
+			}
+			keys.add(EmailAddresses.lowerCase(normalized));
+		}
+		lock.writeLock().lock();
+		try {
+			StringBuilder lines = new StringBuilder();
+			if (dataLength > 0 && byteAt((int)dataLength - 1) != '\n') {
+				lines.append('\n');
+			}
+			Set<String> added = new HashSet<String>();
+			for (String key : keys) {
+				if (find(hash(key), key) < 0 && added.add(key)) {
+					lines.append(key).append('\n');
+				}
+			}
+			if (added.isEmpty()) {
+				return (0);
+			}
+			long start = dataLength;
+			ByteBuffer bytes = UTF_8.encode(lines.toString());
+			if (start + bytes.remaining() > Integer.MAX_VALUE) {
+				throw new IOException("Suppression list is limited to 2 GB: " + file);
+			}
+			while (bytes.hasRemaining()) {
+				channel.write(bytes, start + bytes.position());
+			}
+			bytes.flip();
+			append(bytes);
+			if (size + added.size() > (tableMask + 1) / 2) {
+				index(size + added.size());
+			} else {
+				indexLines((int)start, (int)dataLength, bloom);
+			}
+			return (added.size());
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of suppressed addresses
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return (size);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public File getFile() {
+		return (file);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Copies the message without its suppressed recipients.
+	 * @param mailData
+	 * @param metrics - told how many recipients were dropped
+	 * @return mailData if no recipient is suppressed, a copy without the suppressed recipients, or null if every to
+	 *         recipient is suppressed
+	 */
+	MailInfoDTO filter(MailInfoDTO mailData, MailerMetrics metrics) {
+		List<String> toEmail = mailData.getToEmail();
+		List<String> ccEmail = mailData.getCcEmail();
+		List<String> bccEmail = mailData.getBccEmail();
+		boolean[] toSuppressed = suppressed(toEmail);
+		boolean[] ccSuppressed = suppressed(ccEmail);
+		boolean[] bccSuppressed = suppressed(bccEmail);
+		if (toSuppressed == null && ccSuppressed == null && bccSuppressed == null) {
+			return (mailData);
+		}
+		List<String> keptTo = keep(toEmail, toSuppressed);
+		List<String> keptCc = keep(ccEmail, ccSuppressed);
+		List<String> keptBcc = keep(bccEmail, bccSuppressed);
+		metrics.recipientsSuppressed(dropped(toEmail, keptTo) + dropped(ccEmail, keptCc) + dropped(bccEmail, keptBcc));
+		if (keptTo == null) {
+			return (null);
+		}
+		return (mailData.withRecipients(keptTo, keep(mailData.getToName(), toSuppressed), keptCc,
+				keep(mailData.getCcName(), ccSuppressed), keptBcc, keep(mailData.getBccName(), bccSuppressed)));
+	}
+
+	/**
+	 * @param addresses - may be null
+	 * @return which of the addresses are suppressed, or null if none is
+	 */
+	private boolean[] suppressed(List<String> addresses) {
+		boolean[] suppressed = null;
+		if (addresses != null) {
+			int i = 0;
+			for (String address : addresses) {
+				if (isSuppressed(address)) {
+					if (suppressed == null) {
+						suppressed = new boolean[addresses.size()];
+					}
+					suppressed[i] = true;
+				}
+				i++;
+			}
+		}
+		return (suppressed);
+	}
+
+	/**
+	 * @param values - addresses or their names, may be null
+	 * @param suppressed - which positions are dropped, null for none
+	 * @return the values at the positions which are not dropped, or null if there are none
+	 */
+	private static List<String> keep(List<String> values, boolean[] suppressed) {
+		if (values == null || suppressed == null) {
+			return (values);
+		}
+		List<String> kept = new ArrayList<String>(values.size());
+		int i = 0;
+		for (String value : values) {
+			if (!suppressed[i++]) {
+				kept.add(value);
+			}
+		}
+		return (kept.isEmpty() ? null : kept);
+	}
+
+	private static int dropped(List<String> addresses, List<String> kept) {
+		return ((addresses == null ? 0 : addresses.size()) - (kept == null ? 0 : kept.size()));
+	}
+
+	private void map(long length) throws IOException {
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("Suppression list is limited to 2 GB: " + file);
+		}
+		data = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+		mappedLength = (int)length;
+		dataLength = length;
+		tail.clear();
+	}
+
+	/**
+	 * Adds bytes written to the end of the file to the tail, or maps the file again once the tail would grow
+	 * beyond the mapping.
+	 */
+	private void append(ByteBuffer bytes) throws IOException {
+		int tailLength = tail.position() + bytes.remaining();
+		if (tailLength > Math.max(mappedLength, MIN_TAIL_BYTES)) {
+			map(dataLength + bytes.remaining());
+			return;
+		}
+		if (tailLength > tail.capacity()) {
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(tailLength, tail.capacity() * 2));
+			tail.flip();
+			grown.put(tail);
+			tail = grown;
+		}
+		tail.put(bytes);
+		dataLength = mappedLength + tail.position();
+	}
+
+	private byte byteAt(int offset) {
+		return (offset < mappedLength ? data.get(offset) : tail.get(offset - mappedLength));
+	}
+
+	private int countLines() {
+		int lines = 1;
+		for (int i = 0; i < dataLength; i++) {
+			if (byteAt(i) == '\n') {
+				lines++;
+			}
+		}
+		return (lines);
+	}
+
+	/**
+	 * Builds the table and Bloom filter for the addresses of the whole file.
+	 * @param expected - number of addresses the index is sized for
+	 */
+	private void index(int expected) {
+		int capacity = Integer.highestOneBit(Math.max(MIN_CAPACITY, expected) * 2 - 1) * 2;
+		table = ByteBuffer.allocateDirect(capacity * 8);
+		tableMask = capacity - 1;
+		size = 0;
+		BloomFilter filter = new BloomFilter(
+				Integer.highestOneBit(Math.max(MIN_CAPACITY, expected) * BLOOM_BITS_PER_ADDRESS - 1) * 2);
+		indexLines(0, (int)dataLength, filter);
+		//Published once complete, as lookups read it without the lock
+		bloom = filter;
+	}
+
+	/**
+	 * Adds the lines between start and end to the table and the Bloom filter.
+	 */
+	private void indexLines(int start, int end, BloomFilter filter) {
+		int lineStart = start;
+		for (int i = start; i <= end; i++) {
+			if (i == end || byteAt(i) == '\n') {
+				indexLine(lineStart, i, filter);
+				lineStart = i + 1;
+			}
+		}
+	}
+
+	private void indexLine(int start, int end, BloomFilter filter) {
+		boolean ascii = true;
+		while (start < end && isBlank(byteAt(start))) {
+			start++;
+		}
+		while (end > start && isBlank(byteAt(end - 1))) {
+			end--;
+		}
+		if (start == end || byteAt(start) == '#') {
+			return;
+		}
+		long hash = FNV_OFFSET;
+		for (int i = start; i < end && ascii; i++) {
+			byte b = byteAt(i);
+			ascii = b >= 0;
+			hash = (hash ^ lower(b)) * FNV_PRIME;
+		}
+		String key = null;
+		if (ascii) {
+			hash = mix(hash);
+		} else {
+			key = EmailAddresses.lowerCase(line(start, end));
+			hash = hash(key);
+		}
+		int slot = (int)hash & tableMask;
+		long fingerprint = fingerprint(hash);
+		for (long entry; (entry = table.getLong(slot * 8)) != 0; slot = (slot + 1) & tableMask) {
+			if ((entry & 0xFFFFFFFF00000000L) == fingerprint
+					&& matches((int)entry, key != null ? key : EmailAddresses.lowerCase(line(start, end)))) {
+				return;
+			}
+		}
+		table.putLong(slot * 8, fingerprint | start);
+		size++;
+		filter.add(hash);
+	}
+
+	/**
+	 * @return offset of the line holding the key, or -1
+	 */
+	private int find(long hash, String key) {
+		long fingerprint = fingerprint(hash);
+		for (int slot = (int)hash & tableMask;; slot = (slot + 1) & tableMask) {
+			long entry = table.getLong(slot * 8);
+			if (entry == 0) {
+				return (-1);
+			}
+			if ((entry & 0xFFFFFFFF00000000L) == fingerprint && matches((int)entry, key)) {
+				return ((int)entry);
+			}
+		}
+	}
+
+	/**
+	 * @param offset - start of a line
+	 * @param key - address in lower case
+	 * @return true if the line holds the address, ignoring case and surrounding blanks
+	 */
+	private boolean matches(int offset, String key) {
+		int end = offset;
+		while (end < dataLength && byteAt(end) != '\n') {
+			end++;
+		}
+		while (end > offset && isBlank(byteAt(end - 1))) {
+			end--;
+		}
+		int length = key.length();
+		if (end - offset != length) {
+			//Lines beyond ASCII have more bytes than chars
+			return (end - offset > length && EmailAddresses.lowerCase(line(offset, end)).equals(key));
+		}
+		for (int i = 0; i < length; i++) {
+			byte b = byteAt(offset + i);
+			if (b < 0) {
+				return (EmailAddresses.lowerCase(line(offset, end)).equals(key));
+			}
+			if (lower(b) != key.charAt(i)) {
+				return (false);
+			}
+		}
+		return (true);
+	}
+
+	private String line(int start, int end) {
+		byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = byteAt(start + i);
+		}
+		return (new String(bytes, UTF_8));
+	}
+
+	/**
+	 * FNV-1a of the UTF-8 bytes of the key, mixed so that its low and high bits are both usable.
+	 * @param key - address in lower case
+	 */
+	static long hash(String key) {
+		long hash = FNV_OFFSET;
+		int length = key.length();
+		for (int i = 0; i < length; i++) {
+			int c = key.charAt(i);
+			if (c < 0x80) {
+				hash = (hash ^ c) * FNV_PRIME;
+			} else if (c < 0x800) {
+				hash = (hash ^ (0xC0 | (c >> 6))) * FNV_PRIME;
+				hash = (hash ^ (0x80 | (c & 0x3F))) * FNV_PRIME;
+			} else if (Character.isHighSurrogate((char)c) && i + 1 < length
+					&& Character.isLowSurrogate(key.charAt(i + 1))) {
+				c = Character.toCodePoint((char)c, key.charAt(++i));
+				hash = (hash ^ (0xF0 | (c >> 18))) * FNV_PRIME;
+				hash = (hash ^ (0x80 | ((c >> 12) & 0x3F))) * FNV_PRIME;
+				hash = (hash ^ (0x80 | ((c >> 6) & 0x3F))) * FNV_PRIME;
+				hash = (hash ^ (0x80 | (c & 0x3F))) * FNV_PRIME;
+			} else {
+				hash = (hash ^ (0xE0 | (c >> 12))) * FNV_PRIME;
+				hash = (hash ^ (0x80 | ((c >> 6) & 0x3F))) * FNV_PRIME;
+				hash = (hash ^ (0x80 | (c & 0x3F))) * FNV_PRIME;
+			}
+		}
+		return (mix(hash));
+	}
+
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		return (hash ^ (hash >>> 33));
+	}
+
+	/**
+	 * @return the high bits of the hash with the lowest of them set, so that no entry is 0
+	 */
+	private static long fingerprint(long hash) {
+		return ((hash | 0x100000000L) & 0xFFFFFFFF00000000L);
+	}
+
+	private static int lower(byte b) {
+		return (b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b);
+	}
+
+	private static boolean isBlank(byte b) {
+		return (b == ' ' || b == '\t' || b == '\r');
+	}
+
+	/**
+	 * Bits set for every address with {@link #BLOOM_PROBES} probes derived from the two halves of its hash. Bits are
+	 * only ever set, with atomic updates, so lookups need no lock.
+	 */
+	private static final class BloomFilter {
+		private final AtomicLongArray words;
+		private final int mask;
+
+		BloomFilter(int bits) {
+			this.words = new AtomicLongArray(bits / 64);
+			this.mask = bits - 1;
+		}
+
+		void add(long hash) {
+			int h1 = (int)hash;
+			int h2 = (int)(hash >>> 32) | 1;
+			for (int i = 0; i < BLOOM_PROBES; i++) {
+				int bit = (h1 + i * h2) & mask;
+				long word;
+				while (((word = words.get(bit >>> 6)) & (1L << bit)) == 0
+						&& !words.compareAndSet(bit >>> 6, word, word | (1L << bit))) {
+					//Another bit of the word was set at the same time
+				}
+			}
+		}
+
+		boolean mightContain(long hash) {
+			int h1 = (int)hash;
+			int h2 = (int)(hash >>> 32) | 1;
+			for (int i = 0; i < BLOOM_PROBES; i++) {
+				int bit = (h1 + i * h2) & mask;
+				if ((words.get(bit >>> 6) & (1L << bit)) == 0) {
+					return (false);
+				}
+			}
+			return (true);
+		}
+	}
+}
@@ -0,0 +1,407 @@
+package com.cloudspokes.mailer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends the mail of many tenants, such as customer accounts with their own API key and quota, on a shared set of
+ * threads without letting one tenant hold up the others. Every tenant has its own mailer, normally
+ * {@link AmazonSESMailChimpMailerImpl#forTenant(String)} wrapped in a {@link RateLimitedMailer} with the quota of
+ * the tenant.
+ * <p>
+ * Each tenant gets a bounded queue; {@link #submit(String, MailInfoDTO)} fails fast with a
+ * {@link QueueFullException} when it is full, so a burst is pushed back to its sender instead of growing
+ * the heap. Each tenant also has a bulkhead, the most of its messages which are sent at the same time, so a tenant
+ * whose endpoint or quota is slow cannot take every thread. Among the tenants with queued mail and room in their
+ * bulkhead, the threads take messages by weighted fair scheduling: every tenant has a pass value which advances by
+ * 1/weight for each message it sends and the tenant with the lowest pass goes next, so busy tenants share the
+ * threads in proportion to their weights. A tenant which becomes busy after being idle starts at the current pass
+ * of the scheduler, so it cannot save up a share while it has nothing to send.
+ * <p>
+ * Choosing the next tenant looks at every tenant, which is cheap for the dozens of tenants this is meant for.
+ * Messages still queued when the dispatcher stops stay queued and are sent after the next start.
+ */
+public class TenantDispatcher {
+	public static final int DEFAULT_WEIGHT = 1;
+	public static final int DEFAULT_MAX_QUEUED = 10000;
+	public static final int MAX_WEIGHT = 1 << 16;
+
+	private static final long STRIDE = 1L << 32;
+
+	private final int threadCount;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition workAvailable = lock.newCondition();
+	private final Map<String, Tenant> tenants = new LinkedHashMap<String, Tenant>();
+	private final List<Thread> threads = new ArrayList<Thread>();
+	private long virtualTime;
+	private volatile boolean running;
+
+	/**
+	 * @param threadCount - number of messages sent at the same time, over all tenants
+	 */
+	public TenantDispatcher(int threadCount) {
+		if (threadCount < 1) {
+			throw new IllegalArgumentException("threadCount must be at least 1: " + threadCount);
+		}
+		this.threadCount = threadCount;
+	}
+
+	/**
+	 * Adds a tenant with the default weight and queue size, which may use every thread.
+	 * @param tenantId
+	 * @param mailer - sends the messages of the tenant
+	 */
+	public void addTenant(String tenantId, AmazonSESMailChimpMailer mailer) {
+		addTenant(tenantId, mailer, DEFAULT_WEIGHT, DEFAULT_MAX_QUEUED, threadCount);
+	}
+
+	/**
+	 * @param tenantId
+	 * @param mailer - sends the messages of the tenant
+	 * @param weight - share of the threads the tenant gets while other tenants are busy, from 1 to MAX_WEIGHT
+	 * @param maxQueued - most messages of the tenant waiting to be sent
+	 * @param maxConcurrency - most messages of the tenant being sent at the same time
+	 */
+	public void addTenant(String tenantId, AmazonSESMailChimpMailer mailer, int weight, int maxQueued,
+			int maxConcurrency) {
+		if (tenantId == null || mailer == null) {
+			throw new IllegalArgumentException("String tenantId and AmazonSESMailChimpMailer mailer cannot be null");
+		}
+		if (weight < 1 || weight > MAX_WEIGHT) {
+			throw new IllegalArgumentException("weight must be between 1 and " + MAX_WEIGHT + ": " + weight);
+		}
+		if (maxQueued < 1 || maxConcurrency < 1) {
+			throw new IllegalArgumentException("maxQueued and maxConcurrency must be at least 1");
+		}
+		lock.lock();
+		try {
+			if (tenants.containsKey(tenantId)) {
+				throw new IllegalArgumentException("Tenant is already added: " + tenantId);
+			}
+			tenants.put(tenantId, new Tenant(mailer, STRIDE / weight, maxQueued, maxConcurrency));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queues a message of a tenant.
+	 * @param tenantId
+	 * @param mailData
+	 * @return completes with the result of the message once it is sent, or with the MailerException it failed with
+	 * @throws QueueFullException if the queue of the tenant is full. The message is not queued.
+	 */
+	public CompletableFuture<SendResult> submit(String tenantId, MailInfoDTO mailData)
+			throws QueueFullException {
+		if (mailData == null) {
+			throw new IllegalArgumentException("MailInfoDTO mailData cannot be null");
+		}
+		CompletableFuture<SendResult> result = new CompletableFuture<SendResult>();
+		lock.lock();
+		try {
+			Tenant tenant = tenant(tenantId);
+			if (tenant.queue.size() >= tenant.maxQueued) {
+				tenant.stats.rejected.increment();
+				throw new QueueFullException("Queue of tenant " + tenantId + " is full: " + tenant.maxQueued
+						+ " messages");
+			}
+			if (tenant.queue.isEmpty() && tenant.inFlight == 0) {
+				tenant.pass = Math.max(tenant.pass, virtualTime);
+			}
+			tenant.queue.add(new Task(mailData, result));
+			tenant.stats.submitted.increment();
+			if (tenant.inFlight < tenant.maxConcurrency) {
+				workAvailable.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+		return (result);
+	}
+
+	/**
+	 * Starts the dispatcher threads.
+	 */
+	public void start() {
+		lock.lock();
+		try {
+			if (running) {
+				return;
+			}
+			running = true;
+			for (int i = 0; i < threadCount; i++) {
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						dispatch();
+					}
+				}, "tenant-dispatcher-" + (i + 1));
+				thread.setDaemon(true);
+				threads.add(thread);
+				thread.start();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops taking messages and waits for the messages being sent.
+	 * @param timeout
+	 * @param unit
+	 * @throws InterruptedException
+	 */
+	public void stop(long timeout, TimeUnit unit) throws InterruptedException {
+		List<Thread> stopping;
+		lock.lock();
+		try {
+			if (!running) {
+				return;
+			}
+			running = false;
+			workAvailable.signalAll();
+			stopping = new ArrayList<Thread>(threads);
+			threads.clear();
+		} finally {
+			lock.unlock();
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (Thread thread : stopping) {
+			thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+		}
+	}
+
+	/**
+	 * @return ids of the tenants in the order they were added
+	 */
+	public Set<String> getTenantIds() {
+		lock.lock();
+		try {
+			return (Collections.unmodifiableSet(new LinkedHashSet<String>(tenants.keySet())));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param tenantId
+	 * @return live statistics of the tenant
+	 */
+	public TenantStats getStats(String tenantId) {
+		lock.lock();
+		try {
+			return (tenant(tenantId).stats);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Tenant tenant(String tenantId) {
+		Tenant tenant = tenants.get(tenantId);
+		if (tenant == null) {
+			throw new IllegalArgumentException("Unknown tenant: " + tenantId);
+		}
+		return (tenant);
+	}
+
+	private void dispatch() {
+		while (true) {
+			Tenant tenant;
+			Task task;
+			lock.lock();
+			try {
+				while ((tenant = next()) == null) {
+					if (!running) {
+						return;
+					}
+					workAvailable.awaitUninterruptibly();
+				}
+				if (!running) {
+					return;
+				}
+				task = tenant.queue.poll();
+				tenant.inFlight++;
+				virtualTime = tenant.pass;
+				tenant.pass += tenant.stride;
+				//Passes the wake-up on while there is more work another thread can take
+				if (next() != null) {
+					workAvailable.signal();
+				}
+			} finally {
+				lock.unlock();
+			}
+			send(tenant, task);
+		}
+	}
+
+	/**
+	 * @return the tenant with queued mail and room in its bulkhead which has the lowest pass, or null if none
+	 */
+	private Tenant next() {
+		Tenant next = null;
+		for (Tenant tenant : tenants.values()) {
+			if (!tenant.queue.isEmpty() && tenant.inFlight < tenant.maxConcurrency
+					&& (next == null || tenant.pass < next.pass)) {
+				next = tenant;
+			}
+		}
+		return (next);
+	}
+
+	private void send(Tenant tenant, Task task) {
+		long start = System.nanoTime();
+		tenant.stats.queueWaitMicros.record(TimeUnit.NANOSECONDS.toMicros(start - task.submittedNanos));
+		try {
+			SendResult result = tenant.mailer.sendMailForResult(task.mailData);
+			tenant.stats.sent.increment();
+			task.result.complete(result);
+		} catch (MailerException e) {
+			tenant.stats.failed.increment();
+			task.result.completeExceptionally(e);
+		} catch (RuntimeException e) {
+			tenant.stats.failed.increment();
+			task.result.completeExceptionally(e);
+		} finally {
+			tenant.stats.sendMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+			lock.lock();
+			try {
+				tenant.inFlight--;
+				if (!tenant.queue.isEmpty()) {
+					workAvailable.signal();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Queue, bulkhead and scheduling state of one tenant, guarded by the lock of the dispatcher.
+	 */
+	private final class Tenant {
+		final AmazonSESMailChimpMailer mailer;
+		final long stride;
+		final int maxQueued;
+		final int maxConcurrency;
+		final ArrayDeque<Task> queue = new ArrayDeque<Task>();
+		final TenantStats stats;
+		int inFlight;
+		long pass;
+
+		Tenant(AmazonSESMailChimpMailer mailer, long stride, int maxQueued, int maxConcurrency) {
+			this.mailer = mailer;
+			this.stride = stride;
+			this.maxQueued = maxQueued;
+			this.maxConcurrency = maxConcurrency;
+			this.stats = new TenantStats(this);
+		}
+	}
+
+	/**
+	 * A queued message.
+	 */
+	private static final class Task {
+		final MailInfoDTO mailData;
+		final CompletableFuture<SendResult> result;
+		final long submittedNanos = System.nanoTime();
+
+		Task(MailInfoDTO mailData, CompletableFuture<SendResult> result) {
+			this.mailData = mailData;
+			this.result = result;
+		}
+	}
+
+	/**
+	 * Counters and latencies of one tenant.
+	 */
+	public final class TenantStats {
+		private final Tenant tenant;
+		private final LongAdder submitted = new LongAdder();
+		private final LongAdder rejected = new LongAdder();
+		private final LongAdder sent = new LongAdder();
+		private final LongAdder failed = new LongAdder();
+		private final Histogram queueWaitMicros = new Histogram();
+		private final Histogram sendMicros = new Histogram();
+
+		TenantStats(Tenant tenant) {
+			this.tenant = tenant;
+		}
+
+		/**
+		 * @return messages accepted into the queue
+		 */
+		public long getSubmittedCount() {
+			return (submitted.sum());
+		}
+
+		/**
+		 * @return messages refused because the queue was full
+		 */
+		public long getRejectedCount() {
+			return (rejected.sum());
+		}
+
+		/**
+		 * @return messages the mailer sent
+		 */
+		public long getSentCount() {
+			return (sent.sum());
+		}
+
+		/**
+		 * @return messages the mailer failed to send
+		 */
+		public long getFailedCount() {
+			return (failed.sum());
+		}
+
+		/**
+		 * @return messages waiting in the queue
+		 */
+		public int getQueuedCount() {
+			lock.lock();
+			try {
+				return (tenant.queue.size());
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * @return messages being sent
+		 */
+		public int getInFlightCount() {
+			lock.lock();
+			try {
+				return (tenant.inFlight);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * @return time from submit until a thread took the message, in microseconds
+		 */
+		public Histogram getQueueWaitMicros() {
+			return (queueWaitMicros);
+		}
+
+		/**
+		 * @return time the mailer took to send a message, in microseconds
+		 */
+		public Histogram getSendMicros() {
+			return (sendMicros);
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package com.cloudspokes.mailer.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.cloudspokes.mailer.AmazonSESMailChimpMailer;
+import com.cloudspokes.mailer.AmazonSESMailChimpMailerImpl;
+import com.cloudspokes.mailer.MailInfoDTO;
+import com.cloudspokes.mailer.MailerException;
+import com.cloudspokes.mailer.PooledHttpTransport;
+
+/**
+ * Test class for AmazonSESMailChimpMailer sendMailAsync. Like AmazonSESMailChimpMailerTest it expects
+ * MAILCHIMP_API_KEY to be set, but the messages are answered by a StubTransport.
+ */
+public class AmazonSESMailChimpMailerAsyncTest extends TestCase {
+	private final List<String> TO_EMAIL_ADDRESSES_LIST = new ArrayList<String>();
+	private ExecutorService executor;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		TO_EMAIL_ADDRESSES_LIST.add("as@as.com");
+		executor = Executors.newFixedThreadPool(4);
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		executor.shutdownNow();
+	}
+
+	public void testSendMailAsyncCompletesWithStatus() throws Exception {
+		AmazonSESMailChimpMailer mailer = new AmazonSESMailChimpMailerImpl(new StubTransport(), executor);
+		CompletableFuture<String> future = mailer.sendMailAsync(newMailInfo());
+		assertEquals(StubTransport.SENT_RESPONSE, future.get(5, TimeUnit.SECONDS));
+	}
+
+	public void testCallerIsNotBlocked() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		StubTransport transport = new StubTransport() {
+			@Override
+			protected String respond(String postData) throws IOException {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				return (super.respond(postData));
+			}
+		};
+		AmazonSESMailChimpMailer mailer = new AmazonSESMailChimpMailerImpl(transport, executor);
+		CompletableFuture<String> future = mailer.sendMailAsync(newMailInfo());
+		assertFalse(future.isDone());
+		release.countDown();
+		assertEquals(StubTransport.SENT_RESPONSE, future.get(5, TimeUnit.SECONDS));
+	}
+
+	public void testFailureCompletesExceptionally() throws Exception {
+		StubTransport transport = new StubTransport() {
+			@Override
+			protected String respond(String postData) throws IOException {
+				throw new IOException("Service Unavailable");
+			}
+		};
+		AmazonSESMailChimpMailer mailer = new AmazonSESMailChimpMailerImpl(transport, executor);
+		CompletableFuture<String> future = mailer.sendMailAsync(newMailInfo());
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			fail("Expected the future to complete exceptionally");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof MailerException);
+			assertEquals("Service Unavailable", e.getCause().getMessage());
+		}
+	}
+
+	public void testRejectedExecutionCompletesExceptionally() throws Exception {
+		Executor rejecting = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				throw new RejectedExecutionException("shut down");
+			}
+		};
+		AmazonSESMailChimpMailer mailer = new AmazonSESMailChimpMailerImpl(new StubTransport(), rejecting);
+		CompletableFuture<String> future = mailer.sendMailAsync(newMailInfo());
+		assertTrue(future.isCompletedExceptionally());
+	}
+
+	public void testDefaultExecutor() throws Exception {
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		final Set<String> threads = ConcurrentHashMap.newKeySet();
+		StubTransport transport = new StubTransport() {
+			@Override
+			protected String respond(String postData) throws IOException {
+				int now = running.incrementAndGet();
+				int max;
+				while (now > (max = maxRunning.get()) && !maxRunning.compareAndSet(max, now)) {
+					//Another send raised the maximum first
+				}
+				threads.add(Thread.currentThread().getName());
+				try {
+					Thread.sleep(5);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				} finally {
+					running.decrementAndGet();
+				}
+				return (super.respond(postData));
+			}
+		};
+		AmazonSESMailChimpMailer mailer = new AmazonSESMailChimpMailerImpl(transport);
+		List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+		for (int i = 0; i < 100; i++) {
+			futures.add(mailer.sendMailAsync(newMailInfo()));
+		}
+		for (CompletableFuture<String> future : futures) {
+			assertEquals(StubTransport.SENT_RESPONSE, future.get(5, TimeUnit.SECONDS));
+		}
+		//Without virtual threads a burst of sends does not start a thread per message
+		if (threads.iterator().next().startsWith("mailer-async")) {
+			assertTrue(String.valueOf(threads.size()), threads.size() <= PooledHttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST);
+			assertTrue(String.valueOf(maxRunning.get()), maxRunning.get() <= PooledHttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST);
+		}
+	}
+
+	private MailInfoDTO newMailInfo() throws MailerException {
+		return (new MailInfoDTO("<h1>Async</h1>", "Async mail", "Sender", "sender@as.com", TO_EMAIL_ADDRESSES_LIST, null));
+	}
+}
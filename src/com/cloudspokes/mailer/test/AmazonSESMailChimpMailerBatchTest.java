@@ -0,0 +1,243 @@
+package com.cloudspokes.mailer.test;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.cloudspokes.mailer.AmazonSESMailChimpMailer;
+import com.cloudspokes.mailer.AmazonSESMailChimpMailerImpl;
+import com.cloudspokes.mailer.BatchResult;
+import com.cloudspokes.mailer.CircuitBreaker;
+import com.cloudspokes.mailer.MailInfoDTO;
+import com.cloudspokes.mailer.MailerException;
+import com.cloudspokes.mailer.RecipientResult;
+import com.cloudspokes.mailer.ResilientMailer;
+import com.cloudspokes.mailer.RetryPolicy;
+import com.cloudspokes.mailer.SendResult;
+
+/**
+ * Test class for AmazonSESMailChimpMailer sendBatch and sendToRecipients. Like AmazonSESMailChimpMailerTest it expects
+ * MAILCHIMP_API_KEY to be set, but the messages are answered by a StubTransport.
+ */
+public class AmazonSESMailChimpMailerBatchTest extends TestCase {
+	private ExecutorService executor;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		executor = Executors.newCachedThreadPool();
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		executor.shutdownNow();
+	}
+
+	public void testResultsAreInInputOrder() throws Exception {
+		//Later messages answer faster so that they complete out of order
+		StubTransport transport = new StubTransport() {
+			@Override
+			protected String respond(String postData) throws IOException {
+				int start = postData.indexOf("message[subject]=Mail+") + "message[subject]=Mail+".length();
+				int number = Integer.parseInt(postData.substring(start, postData.indexOf('&', start)));
+				sleep(20 - number);
+				return ("[{\"status\":\"sent\",\"number\":" + number + "}]");
+			}
+		};
+		AmazonSESMailChimpMailer mailer = new AmazonSESMailChimpMailerImpl(transport, executor, 8);
+		List<MailInfoDTO> batch = newBatch(20);
+		BatchResult result = mailer.sendBatch(batch);
+
+		assertEquals(20, result.size());
+		assertEquals(20, result.getSuccessCount());
+		for (int i = 0; i < 20; i++) {
+			assertSame(batch.get(i), result.getMailData(i));
+			assertEquals("[{\"status\":\"sent\",\"number\":" + i + "}]", result.getStatus(i));
+		}
+	}
+
+	public void testPartialFailure() throws Exception {
+		final AtomicInteger count = new AtomicInteger();
+		StubTransport transport = new StubTransport() {
+			@Override
+			protected String respond(String postData) throws IOException {
+				if (postData.contains("Mail+3&") || postData.contains("Mail+7&")) {
+					throw new IOException("Internal Server Error");
+				}
+				count.incrementAndGet();
+				return (super.respond(postData));
+			}
+		};
+		AmazonSESMailChimpMailer mailer = new AmazonSESMailChimpMailerImpl(transport, executor, 4);
+		List<MailInfoDTO> batch = newBatch(10);
+		batch.add(null);
+		BatchResult result = mailer.sendBatch(batch);
+
+		assertEquals(11, result.size());
+		assertEquals(8, result.getSuccessCount());
+		assertEquals(3, result.getFailureCount());
+		assertEquals(8, count.get());
+		assertEquals("[3, 7, 10]", result.getFailedIndexes().toString());
+		assertFalse(result.isSuccess(3));
+		assertNull(result.getStatus(3));
+		assertEquals("Internal Server Error", result.getError(3).getMessage());
+		assertEquals("MailInfoDTO at position 10 is null", result.getError(10).getMessage());
+		assertEquals(StubTransport.SENT_RESPONSE, result.getStatus(0));
+	}
+
+	public void testConcurrencyIsBounded() throws Exception {
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger maxInFlight = new AtomicInteger();
+		StubTransport transport = new StubTransport() {
+			@Override
+			protected String respond(String postData) throws IOException {
+				int current = inFlight.incrementAndGet();
+				int max;
+				while (current > (max = maxInFlight.get()) && !maxInFlight.compareAndSet(max, current)) {
+					//retry
+				}
+				sleep(5);
+				inFlight.decrementAndGet();
+				return (super.respond(postData));
+			}
+		};
+		AmazonSESMailChimpMailer mailer = new AmazonSESMailChimpMailerImpl(transport, executor, 3);
+		BatchResult result = mailer.sendBatch(newBatch(30));
+
+		assertEquals(30, result.getSuccessCount());
+		assertTrue("max in flight: " + maxInFlight.get(), maxInFlight.get() <= 3);
+		assertTrue("max in flight: " + maxInFlight.get(), maxInFlight.get() > 1);
+	}
+
+	public void testEmptyBatch() {
+		AmazonSESMailChimpMailer mailer = new AmazonSESMailChimpMailerImpl(new StubTransport(), executor);
+		BatchResult result = mailer.sendBatch(new ArrayList<MailInfoDTO>());
+		assertEquals(0, result.size());
+		assertEquals(0, result.getFailureCount());
+	}
+
+	public void testSendToRecipientsInChunks() throws Exception {
+		StubTransport transport = new StubTransport() {
+			@Override
+			protected String respond(String postData) throws IOException {
+				if (postData.contains("message[to_email][0]=r100%40as.com&")) {
+					throw new IOException("Internal Server Error");
+				}
+				return (respondToEach(postData, "r7@as.com"));
+			}
+		};
+		AmazonSESMailChimpMailer mailer = new AmazonSESMailChimpMailerImpl(transport, executor, 2);
+		List<String> toEmail = new ArrayList<String>();
+		List<String> toName = new ArrayList<String>();
+		for (int i = 0; i < 120; i++) {
+			toEmail.add("r" + i + "@as.com");
+			toName.add("Recipient " + i);
+		}
+		List<String> ccEmail = new ArrayList<String>();
+		ccEmail.add("cc@as.com");
+		MailInfoDTO mailData = new MailInfoDTO("<h1>Digest</h1>", "Digest", "Sender", "sender@as.com", newBatch(1)
+				.get(0).getToEmail(), null, null, null, ccEmail, null, null, null, true, false, false, null);
+
+		RecipientResult result = mailer.sendToRecipients(mailData, toEmail, toName);
+
+		assertEquals(120, result.size());
+		assertEquals(3, result.getChunkCount());
+		assertEquals(3, transport.getRequests().size());
+		//Every recipient gets its own result, wherever it is in the response
+		assertEquals(99, result.getSuccessCount());
+		List<String> failed = new ArrayList<String>(toEmail.subList(100, 120));
+		failed.add(0, "r7@as.com");
+		assertEquals(failed, result.getFailedEmails());
+		assertEquals("hard-bounce", result.getResult(7).getErrorMessage());
+		assertEquals("r99@as.com", result.getResult(99).getEmail());
+		assertEquals(SendResult.STATUS_SENT, result.getResult(99).getStatus());
+		assertEquals("Recipient 99", result.getName(99));
+		assertEquals(1, result.getChunk(99));
+		assertNull(result.getResult(119));
+		assertEquals("Internal Server Error", result.getError(119).getMessage());
+
+		int ccCount = 0;
+		for (String postData : transport.getRequests()) {
+			assertTrue(postData.startsWith("apikey="));
+			assertTrue(postData.contains("message[html]=%3Ch1%3EDigest%3C%2Fh1%3E&"));
+			assertFalse(postData.contains("as%40as.com"));
+			assertEquals(postData.contains("message[to_email][0]=r100%40as.com&") ? 20 : 50,
+					postData.split("message\\[to_name\\]").length - 1);
+			if (postData.contains("message[cc_email][0]=cc%40as.com&")) {
+				ccCount++;
+				assertTrue(postData.contains("message[to_email][0]=r0%40as.com&"));
+			}
+		}
+		assertEquals(1, ccCount);
+	}
+
+	public void testSendToRecipientsThroughWrappingMailer() throws Exception {
+		StubTransport transport = new StubTransport() {
+			@Override
+			protected String respond(String postData) throws IOException {
+				return (respondToEach(postData));
+			}
+		};
+		AmazonSESMailChimpMailer mailer = new ResilientMailer(new AmazonSESMailChimpMailerImpl(transport, executor),
+				new RetryPolicy(), new CircuitBreaker(), executor, 4);
+		List<String> toEmail = new ArrayList<String>();
+		for (int i = 0; i < 51; i++) {
+			toEmail.add("r" + i + "@as.com");
+		}
+
+		RecipientResult result = mailer.sendToRecipients(newBatch(1).get(0), toEmail, null);
+
+		assertEquals(2, result.getChunkCount());
+		assertEquals(51, result.getSuccessCount());
+		assertNull(result.getName(0));
+		assertEquals(2, transport.getRequests().size());
+		try {
+			toEmail.set(3, "");
+			mailer.sendToRecipients(newBatch(1).get(0), toEmail, null);
+			fail("Blank addresses are refused");
+		} catch (MailerException e) {
+			assertEquals(2, transport.getRequests().size());
+		}
+	}
+
+	private List<MailInfoDTO> newBatch(int size) throws MailerException {
+		List<String> toEmail = new ArrayList<String>();
+		toEmail.add("as@as.com");
+		List<MailInfoDTO> batch = new ArrayList<MailInfoDTO>();
+		for (int i = 0; i < size; i++) {
+			batch.add(new MailInfoDTO("<h1>Digest</h1>", "Mail " + i, "Sender", "sender@as.com", toEmail, null));
+		}
+		return (batch);
+	}
+
+	/**
+	 * @param postData - url encoded request body
+	 * @param rejected - recipients refused with a hard bounce
+	 * @return one result per to recipient of the request, in reverse order
+	 */
+	private static String respondToEach(String postData, String... rejected) throws IOException {
+		List<String> results = new ArrayList<String>();
+		String field;
+		for (int i = 0; postData.contains(field = "message[to_email][" + i + "]="); i++) {
+			int start = postData.indexOf(field) + field.length();
+			String email = URLDecoder.decode(postData.substring(start, postData.indexOf('&', start)), "UTF-8");
+			results.add(0, "{\"email\":\"" + email + "\",\"status\":" + (Arrays.asList(rejected).contains(email)
+					? "\"rejected\",\"reject_reason\":\"hard-bounce\"}" : "\"sent\"}"));
+		}
+		return ("[" + String.join(",", results) + "]");
+	}
+
+	private static void sleep(long millis) throws IOException {
+		try {
+			Thread.sleep(Math.max(millis, 0));
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+	}
+}
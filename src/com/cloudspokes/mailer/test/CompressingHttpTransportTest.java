@@ -0,0 +1,147 @@
+package com.cloudspokes.mailer.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+import com.cloudspokes.mailer.AmazonSESMailChimpMailerImpl;
+import com.cloudspokes.mailer.CompressingHttpTransport;
+import com.cloudspokes.mailer.HttpTransport;
+import com.cloudspokes.mailer.MailInfoDTO;
+import com.cloudspokes.mailer.MailerException;
+import com.cloudspokes.mailer.MailerMetrics;
+import com.cloudspokes.mailer.PooledHttpTransport;
+import com.cloudspokes.mailer.RequestBody;
+import com.cloudspokes.mailer.ResponseHandler;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test class for CompressingHttpTransport. Expects MAILCHIMP_API_KEY to be set; the requests are answered by stub
+ * transports or redirected to a local stub server.
+ */
+public class CompressingHttpTransportTest extends TestCase {
+	private static final int KB = 1024;
+
+	private ExecutorService executor;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		executor = Executors.newSingleThreadExecutor();
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		executor.shutdownNow();
+	}
+
+	public void testLargeBodiesAreCompressed() throws Exception {
+		StubTransport plain = new StubTransport();
+		StubTransport stub = new StubTransport();
+		CompressingHttpTransport transport = new CompressingHttpTransport(stub, 16 * KB, 6);
+
+		MailInfoDTO small = newMail(KB);
+		MailInfoDTO large = newMail(200 * KB);
+		newMailer(plain).sendMail(small);
+		newMailer(plain).sendMail(large);
+		//Pooled Deflaters are reused for every message
+		for (int i = 0; i < 3; i++) {
+			newMailer(transport).sendMail(small);
+			newMailer(transport).sendMail(large);
+		}
+
+		assertEquals(6, stub.getRequests().size());
+		for (int i = 0; i < 6; i += 2) {
+			assertEquals(plain.getRequests().get(0), stub.getRequests().get(i));
+			assertEquals(plain.getRequests().get(1), stub.getRequests().get(i + 1));
+		}
+		assertEquals(3, transport.getCompressedCount());
+		assertEquals(3L * plain.getRequests().get(1).length(), transport.getUncompressedBytes());
+		assertTrue(transport.getCompressedBytes() * 10 < transport.getUncompressedBytes());
+		transport.close();
+	}
+
+	public void testEndpointReceivesGzipEncodedBody() throws Exception {
+		final List<String> encodings = new CopyOnWriteArrayList<String>();
+		final List<String> bodies = new CopyOnWriteArrayList<String>();
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/1.0/SendEmail", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+				encodings.add(String.valueOf(encoding));
+				InputStream in = exchange.getRequestBody();
+				if ("gzip".equals(encoding)) {
+					in = new GZIPInputStream(in);
+				}
+				ByteArrayOutputStream body = new ByteArrayOutputStream();
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					body.write(buffer, 0, read);
+				}
+				bodies.add(new String(body.toByteArray(), "UTF-8"));
+				byte[] response = StubTransport.SENT_RESPONSE.getBytes("UTF-8");
+				exchange.sendResponseHeaders(200, response.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(response);
+				out.close();
+			}
+		});
+		server.start();
+		final PooledHttpTransport pooled = new PooledHttpTransport();
+		final URL local = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/1.0/SendEmail");
+		HttpTransport localTransport = new HttpTransport() {
+			@Override
+			public <T> T post(URL url, RequestBody body, ResponseHandler<T> handler) throws IOException {
+				return (pooled.post(local, body, handler));
+			}
+
+			@Override
+			public void close() {
+				pooled.close();
+			}
+		};
+		try {
+			StubTransport plain = new StubTransport();
+			MailInfoDTO large = newMail(200 * KB);
+			newMailer(plain).sendMail(large);
+			CompressingHttpTransport transport = new CompressingHttpTransport(localTransport);
+			assertTrue(newMailer(transport).sendMailForResult(large).isAccepted());
+			assertTrue(newMailer(transport).sendMailForResult(newMail(KB)).isAccepted());
+
+			assertEquals("gzip", encodings.get(0));
+			assertEquals("null", encodings.get(1));
+			assertEquals(plain.getRequests().get(0), bodies.get(0));
+			assertEquals(1, pooled.getConnectionsOpened());
+			transport.close();
+		} finally {
+			pooled.close();
+			server.stop(0);
+		}
+	}
+
+	private AmazonSESMailChimpMailerImpl newMailer(HttpTransport transport) {
+		return (new AmazonSESMailChimpMailerImpl(transport, executor, 1, MailerMetrics.NOOP, null));
+	}
+
+	private static MailInfoDTO newMail(int htmlLength) throws MailerException {
+		StringBuilder html = new StringBuilder(htmlLength);
+		while (html.length() < htmlLength) {
+			html.append("<p>Compressed caf\u00e9 news</p>\n");
+		}
+		return (TestMails.newMail(html.toString(), "Newsletter"));
+	}
+}
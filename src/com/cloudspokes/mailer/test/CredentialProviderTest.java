@@ -0,0 +1,134 @@
+package com.cloudspokes.mailer.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+import com.cloudspokes.mailer.AmazonSESMailChimpMailerImpl;
+import com.cloudspokes.mailer.AmazonSESMailChimpMailerImpl.BodyMode;
+import com.cloudspokes.mailer.ApiCredential;
+import com.cloudspokes.mailer.EnvironmentCredentialProvider;
+import com.cloudspokes.mailer.FileCredentialProvider;
+import com.cloudspokes.mailer.InMemoryCredentialProvider;
+import com.cloudspokes.mailer.MailerException;
+import com.cloudspokes.mailer.MailerMetrics;
+import com.cloudspokes.mailer.RequestBody;
+import com.cloudspokes.mailer.ResponseHandler;
+
+/**
+ * Test class for the CredentialProvider implementations. The environment test expects MAILCHIMP_API_KEY to be set.
+ */
+public class CredentialProviderTest extends TestCase {
+	private ExecutorService executor;
+	private File file;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		executor = Executors.newSingleThreadExecutor();
+		file = File.createTempFile("mailchimp", ".properties");
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		executor.shutdownNow();
+		file.delete();
+	}
+
+	public void testEnvironmentProvider() throws Exception {
+		EnvironmentCredentialProvider provider = new EnvironmentCredentialProvider();
+		ApiCredential credential = provider.getCredential(null);
+		assertEquals(System.getenv("MAILCHIMP_API_KEY"), credential.getApiKey());
+		assertSame(credential, provider.getCredential(null));
+		assertEquals("MAILCHIMP_API_KEY_ACME_EU", provider.getVariable("acme-eu"));
+		try {
+			provider.getCredential("no such tenant");
+			fail("Expected MailerException");
+		} catch (MailerException e) {
+			assertTrue(e.getMessage().contains("MAILCHIMP_API_KEY_NO_SUCH_TENANT"));
+		}
+	}
+
+	public void testTenantKeysAndRotation() throws Exception {
+		final List<String> urls = new CopyOnWriteArrayList<String>();
+		StubTransport transport = new StubTransport() {
+			@Override
+			public <T> T post(URL url, RequestBody body, ResponseHandler<T> handler) throws IOException {
+				urls.add(url.getHost());
+				return (super.post(url, body, handler));
+			}
+		};
+		InMemoryCredentialProvider provider = new InMemoryCredentialProvider("default%key-us2");
+		provider.setKey("acme", "acme-key-us5");
+		AmazonSESMailChimpMailerImpl mailer = new AmazonSESMailChimpMailerImpl(transport, executor, 1,
+				MailerMetrics.NOOP, null, BodyMode.BUFFERED, provider);
+		AmazonSESMailChimpMailerImpl acme = mailer.forTenant("acme");
+
+		mailer.sendMail(TestMails.newMail());
+		acme.sendMail(TestMails.newMail());
+		provider.setKey("acme", "rotated-key-us7");
+		acme.sendMail(TestMails.newMail());
+		acme.sendToRecipients(TestMails.newMail(), TestMails.newMail().getToEmail(), null);
+
+		assertTrue(transport.getRequests().get(0).startsWith("apikey=default%25key-us2&message[html]="));
+		assertTrue(transport.getRequests().get(1).startsWith("apikey=acme-key-us5&"));
+		assertTrue(transport.getRequests().get(2).startsWith("apikey=rotated-key-us7&"));
+		assertTrue(transport.getRequests().get(3).startsWith("apikey=rotated-key-us7&"));
+		assertEquals("us2.sts.mailchimp.com", urls.get(0));
+		assertEquals("us5.sts.mailchimp.com", urls.get(1));
+		assertEquals("us7.sts.mailchimp.com", urls.get(2));
+
+		provider.setKey("acme", null);
+		try {
+			acme.sendMail(TestMails.newMail());
+			fail("Expected MailerException");
+		} catch (MailerException e) {
+			assertEquals(4, transport.getRequests().size());
+		}
+	}
+
+	public void testFileProviderReloadsChangedFile() throws Exception {
+		write("apikey=first-us2\napikey.acme=acme-us3\n");
+		FileCredentialProvider provider = new FileCredentialProvider(file, 0);
+		ApiCredential first = provider.getCredential(null);
+		assertEquals("first-us2", first.getApiKey());
+		assertEquals("us3", provider.getCredential("acme").getDatacenter());
+		assertSame(first, provider.getCredential(null));
+
+		write("apikey=first-us2\napikey.acme=rotated-acme-us4\napikey.globex=globex-us1\n");
+		assertEquals("rotated-acme-us4", provider.getCredential("acme").getApiKey());
+		assertEquals("globex-us1", provider.getCredential("globex").getApiKey());
+		//Unchanged keys keep their credential
+		assertSame(first, provider.getCredential(null));
+
+		//A broken file is ignored and the keys that worked stay in use
+		write("apikey=\napikey.acme=broken-us9\n");
+		assertEquals("rotated-acme-us4", provider.getCredential("acme").getApiKey());
+		assertNotNull(provider.getLastReloadError());
+		try {
+			provider.reload();
+			fail("Expected MailerException");
+		} catch (MailerException e) {
+			assertEquals("first-us2", provider.getCredential(null).getApiKey());
+		}
+	}
+
+	private void write(String content) throws IOException {
+		long previous = file.lastModified();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes("ISO-8859-1"));
+		} finally {
+			out.close();
+		}
+		//File systems with coarse timestamps would not show the change otherwise
+		file.setLastModified(Math.max(file.lastModified(), previous + 2000));
+	}
+}
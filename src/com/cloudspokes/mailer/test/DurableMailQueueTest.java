@@ -0,0 +1,218 @@
+package com.cloudspokes.mailer.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.cloudspokes.mailer.AmazonSESMailChimpMailerImpl;
+import com.cloudspokes.mailer.DurableMailQueue;
+import com.cloudspokes.mailer.DurableMailQueue.QueuedMail;
+import com.cloudspokes.mailer.MailInfoDTO;
+import com.cloudspokes.mailer.MailQueueDispatcher;
+import com.cloudspokes.mailer.MailerException;
+
+/**
+ * Test class for DurableMailQueue and MailQueueDispatcher. The queue is stored in a temporary directory and the
+ * dispatcher sends through a StubTransport.
+ */
+public class DurableMailQueueTest extends TestCase {
+	private File directory;
+	private ExecutorService executor;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		directory = File.createTempFile("mailqueue", "");
+		directory.delete();
+		executor = Executors.newCachedThreadPool();
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		executor.shutdownNow();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	public void testEnqueueTakeAcknowledge() throws Exception {
+		DurableMailQueue queue = new DurableMailQueue(directory);
+		MailInfoDTO mailData = newMail(1);
+		long id = queue.enqueue(mailData);
+		queue.enqueue(newMail(2));
+		assertEquals(2, queue.size());
+
+		QueuedMail mail = queue.take(1, TimeUnit.SECONDS);
+		assertEquals(id, mail.getId());
+		assertEquals(1, mail.getAttempts());
+		assertEquals("Mail 1", mail.getMailData().getSubject());
+		assertEquals(mailData.getToEmail(), mail.getMailData().getToEmail());
+		assertEquals(mailData.getHtmlEmailContent(), mail.getMailData().getHtmlEmailContent());
+		queue.acknowledge(mail);
+		try {
+			queue.acknowledge(mail);
+			fail("Settling twice should fail");
+		} catch (IllegalStateException e) {
+			//expected
+		}
+		assertEquals(1, queue.size());
+		queue.close();
+	}
+
+	public void testRecoversUnsettledMessages() throws Exception {
+		DurableMailQueue queue = new DurableMailQueue(directory);
+		for (int i = 0; i < 5; i++) {
+			queue.enqueue(newMail(i));
+		}
+		queue.acknowledge(queue.take(1, TimeUnit.SECONDS));
+		queue.reject(queue.take(1, TimeUnit.SECONDS));
+		//Taken but neither acknowledged nor rejected, as if the JVM died while it was being sent
+		queue.take(1, TimeUnit.SECONDS);
+		queue.close();
+
+		queue = new DurableMailQueue(directory);
+		assertEquals(3, queue.size());
+		assertEquals("Mail 2", queue.take(1, TimeUnit.SECONDS).getMailData().getSubject());
+		assertEquals("Mail 3", queue.take(1, TimeUnit.SECONDS).getMailData().getSubject());
+		assertEquals("Mail 4", queue.take(1, TimeUnit.SECONDS).getMailData().getSubject());
+		queue.enqueue(newMail(5));
+		assertEquals("Mail 5", queue.take(1, TimeUnit.SECONDS).getMailData().getSubject());
+		queue.close();
+	}
+
+	public void testTornRecordIsIgnored() throws Exception {
+		DurableMailQueue queue = new DurableMailQueue(directory, 4096, true);
+		queue.enqueue(newMail(1));
+		long id = queue.enqueue(newMail(2));
+		queue.close();
+
+		//Corrupt the payload of the second record as a crash in the middle of the write would
+		File segment = directory.listFiles()[0];
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		try {
+			file.seek((int)id + 20);
+			file.write(0x55);
+		} finally {
+			file.close();
+		}
+
+		queue = new DurableMailQueue(directory, 4096, true);
+		assertEquals(1, queue.size());
+		assertEquals("Mail 1", queue.take(1, TimeUnit.SECONDS).getMailData().getSubject());
+		//The next record overwrites the torn one
+		assertEquals(id, queue.enqueue(newMail(3)));
+		queue.close();
+	}
+
+	public void testSettledSegmentsAreDeleted() throws Exception {
+		DurableMailQueue queue = new DurableMailQueue(directory, 4096, false);
+		for (int i = 0; i < 100; i++) {
+			queue.enqueue(newMail(i));
+		}
+		int segments = queue.getSegmentCount();
+		assertTrue("segments: " + segments, segments > 2);
+
+		for (int i = 0; i < 100; i++) {
+			queue.acknowledge(queue.take(1, TimeUnit.SECONDS));
+		}
+		assertEquals(1, queue.getSegmentCount());
+		queue.close();
+
+		queue = new DurableMailQueue(directory, 4096, false);
+		assertEquals(0, queue.size());
+		queue.close();
+	}
+
+	public void testDispatcherRetriesAndRejects() throws Exception {
+		final AtomicInteger failures = new AtomicInteger();
+		StubTransport transport = new StubTransport() {
+			@Override
+			protected String respond(String postData) throws IOException {
+				//Mail 1 fails once, Mail 2 always fails
+				if ((postData.contains("Mail+1&") && failures.getAndIncrement() == 0) || postData.contains("Mail+2&")) {
+					throw new IOException("Service Unavailable");
+				}
+				return (super.respond(postData));
+			}
+		};
+		DurableMailQueue queue = new DurableMailQueue(directory);
+		for (int i = 0; i < 10; i++) {
+			queue.enqueue(newMail(i));
+		}
+		MailQueueDispatcher dispatcher = new MailQueueDispatcher(queue,
+				new AmazonSESMailChimpMailerImpl(transport, executor), 3, 3, 10);
+		dispatcher.start();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (dispatcher.getSentCount() + dispatcher.getRejectedCount() < 10 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		dispatcher.stop(1, TimeUnit.SECONDS);
+
+		assertEquals(9, dispatcher.getSentCount());
+		assertEquals(1, dispatcher.getRejectedCount());
+		assertEquals(3, dispatcher.getRetryCount());
+		assertEquals(9 + 4, transport.getRequests().size());
+		queue.close();
+
+		queue = new DurableMailQueue(directory);
+		assertEquals(0, queue.size());
+		queue.close();
+	}
+
+	public void testDispatcherReleasesWaitingRetriesOnStop() throws Exception {
+		final AtomicInteger failures = new AtomicInteger();
+		StubTransport transport = new StubTransport() {
+			@Override
+			protected String respond(String postData) throws IOException {
+				//A failure the mailer does not turn into a MailerException
+				if (failures.getAndIncrement() == 0) {
+					throw new IllegalStateException("Unexpected response");
+				}
+				return (super.respond(postData));
+			}
+		};
+		DurableMailQueue queue = new DurableMailQueue(directory);
+		queue.enqueue(newMail(1));
+		MailQueueDispatcher dispatcher = new MailQueueDispatcher(queue,
+				new AmazonSESMailChimpMailerImpl(transport, executor), 1, 3, 60000);
+		dispatcher.start();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (dispatcher.getRetryCount() < 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		//The retry is a minute away; stopping puts the message back instead of dropping it
+		dispatcher.stop(1, TimeUnit.SECONDS);
+		assertEquals(1, dispatcher.getRetryCount());
+		assertEquals(1, queue.size());
+
+		dispatcher.start();
+		while (dispatcher.getSentCount() < 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		dispatcher.stop(1, TimeUnit.SECONDS);
+		assertEquals(1, dispatcher.getSentCount());
+		assertEquals(2, transport.getRequests().size());
+		assertEquals(0, queue.size());
+		queue.close();
+	}
+
+	private MailInfoDTO newMail(int number) throws MailerException {
+		List<String> toEmail = new ArrayList<String>();
+		toEmail.add("as@as.com");
+		List<String> toName = new ArrayList<String>();
+		toName.add("\u00c5sa");
+		return (new MailInfoDTO("<h1>Digest " + number + "</h1>", "Mail " + number, "Sender", "sender@as.com",
+				toEmail, toName));
+	}
+}
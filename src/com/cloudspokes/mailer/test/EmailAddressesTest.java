@@ -0,0 +1,53 @@
+package com.cloudspokes.mailer.test;
+
+import junit.framework.TestCase;
+
+import com.cloudspokes.mailer.EmailAddresses;
+
+/**
+ * Test class for EmailAddresses.
+ */
+public class EmailAddressesTest extends TestCase {
+
+	public void testValidAddresses() {
+		String[] valid = { "as@as.com", "first.last@example.co.uk", "o'neil+tag@sub-domain.example.com",
+				"!#$%&'*+-/=?^_`{|}~@x.io", "a@b.c", "USER@EXAMPLE.COM", "1234@123.com", "j\u00fcrgen@m\u00fcller.de",
+				repeat('l', 64) + "@" + repeat('d', 63) + ".com" };
+		for (String address : valid) {
+			assertTrue(address, EmailAddresses.isValid(address));
+		}
+	}
+
+	public void testInvalidAddresses() {
+		String[] invalid = { "", "as.com", "@as.com", "as@", "as@as", "as@@as.com", "a@b@as.com", ".as@as.com",
+				"as.@as.com", "a..s@as.com", "as@.as.com", "as@as.com.", "as@as..com", "as@-as.com", "as@as-.com",
+				"as@as.-com", "a s@as.com", "as@as_x.com", "\"quoted\"@as.com", "as@[10.0.0.1]",
+				"as(comment)@as.com", "as@as.com>", repeat('l', 65) + "@as.com", "as@" + repeat('d', 64) + ".com",
+				repeat('l', 64) + "@" + repeat('d', 63) + "." + repeat('d', 63) + "." + repeat('d', 63) + ".com" };
+		for (String address : invalid) {
+			assertFalse(address, EmailAddresses.isValid(address));
+			assertNull(address, EmailAddresses.normalize(address));
+		}
+		//Surrounding spaces are only removed by normalize
+		assertFalse(EmailAddresses.isValid(" as@as.com"));
+		assertFalse(EmailAddresses.isValid(null));
+		assertNull(EmailAddresses.normalize(null));
+	}
+
+	public void testNormalize() {
+		String address = "as@as.com";
+		assertSame(address, EmailAddresses.normalize(address));
+		assertEquals("as@as.com", EmailAddresses.normalize(" \tas@as.com "));
+		assertEquals("First.Last@example.com", EmailAddresses.normalize("First.Last@Example.COM"));
+		assertEquals("J\u00fcrgen@m\u00fcller.de", EmailAddresses.normalize(" J\u00fcrgen@M\u00fcller.DE"));
+		assertNull(EmailAddresses.normalize("   "));
+	}
+
+	private static String repeat(char c, int count) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			builder.append(c);
+		}
+		return (builder.toString());
+	}
+}
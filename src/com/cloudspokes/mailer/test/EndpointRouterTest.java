@@ -0,0 +1,205 @@
+package com.cloudspokes.mailer.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.cloudspokes.mailer.AmazonSESMailChimpMailerImpl;
+import com.cloudspokes.mailer.EndpointRouter;
+import com.cloudspokes.mailer.MailerException;
+import com.cloudspokes.mailer.MailerMetrics;
+import com.cloudspokes.mailer.PooledHttpTransport;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test class for EndpointRouter against several local stub endpoints. Expects MAILCHIMP_API_KEY to be set; the
+ * mailer posts to the Mail Chimp URL and the router sends the requests to the stubs.
+ */
+public class EndpointRouterTest extends TestCase {
+	private ExecutorService executor;
+	private PooledHttpTransport transport;
+	private final List<StubEndpoint> stubs = new ArrayList<StubEndpoint>();
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		executor = Executors.newSingleThreadExecutor();
+		transport = new PooledHttpTransport();
+		//Loads the classes of the send path, so that the first measured request is not slowed down by it
+		StubEndpoint warmUp = newStub(0);
+		newMailer(new EndpointRouter(transport, Arrays.asList(warmUp.url))).sendMailForResult(TestMails.newMail());
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		transport.close();
+		for (StubEndpoint stub : stubs) {
+			stub.server.stop(0);
+		}
+		executor.shutdownNow();
+	}
+
+	public void testRoutesToFastestEndpoint() throws Exception {
+		StubEndpoint slow = newStub(100);
+		StubEndpoint fast = newStub(0);
+		EndpointRouter router = new EndpointRouter(transport, Arrays.asList(slow.url, fast.url));
+		AmazonSESMailChimpMailerImpl mailer = newMailer(router);
+
+		for (int i = 0; i < 20; i++) {
+			assertTrue(mailer.sendMailForResult(TestMails.newMail()).isAccepted());
+		}
+		//Each endpoint is measured once, then the faster one takes the traffic
+		assertEquals(1, slow.hits.get());
+		assertEquals(19, fast.hits.get());
+		assertEquals(fast.url, router.getPreferredEndpoint().getUrl());
+		assertTrue(router.getEndpoints().get(0).getLatencyMillis() > router.getEndpoints().get(1).getLatencyMillis());
+		assertEquals(0.0, router.getEndpoints().get(1).getErrorRate());
+	}
+
+	public void testFailsOverAndRecovers() throws Exception {
+		StubEndpoint fast = newStub(0);
+		StubEndpoint slow = newStub(50);
+		EndpointRouter router = new EndpointRouter(transport, Arrays.asList(fast.url, slow.url), 0.5, 0.5, 500);
+		AmazonSESMailChimpMailerImpl mailer = newMailer(router);
+		mailer.sendMailForResult(TestMails.newMail());
+		mailer.sendMailForResult(TestMails.newMail());
+		mailer.sendMailForResult(TestMails.newMail());
+		assertEquals(2, fast.hits.get());
+		assertEquals(1, slow.hits.get());
+
+		//The fast endpoint degrades: the failed request is sent again to the other one, which then takes the traffic
+		fast.status.set(503);
+		for (int i = 0; i < 5; i++) {
+			assertTrue(mailer.sendMailForResult(TestMails.newMail()).isAccepted());
+		}
+		assertEquals(3, fast.hits.get());
+		assertEquals(6, slow.hits.get());
+		assertEquals(1, router.getEndpoints().get(0).getFailureCount());
+		assertEquals(slow.url, router.getPreferredEndpoint().getUrl());
+
+		//After the probe interval one request tries the endpoint again and finds it recovered
+		fast.status.set(200);
+		Thread.sleep(550);
+		assertTrue(mailer.sendMailForResult(TestMails.newMail()).isAccepted());
+		assertTrue(mailer.sendMailForResult(TestMails.newMail()).isAccepted());
+		assertEquals(5, fast.hits.get());
+		assertEquals(6, slow.hits.get());
+	}
+
+	public void testUnreachableEndpointIsSkipped() throws Exception {
+		StubEndpoint down = newStub(0);
+		down.server.stop(0);
+		StubEndpoint up = newStub(0);
+		EndpointRouter router = new EndpointRouter(transport, Arrays.asList(down.url, up.url));
+		AmazonSESMailChimpMailerImpl mailer = newMailer(router);
+
+		for (int i = 0; i < 5; i++) {
+			assertTrue(mailer.sendMailForResult(TestMails.newMail()).isAccepted());
+		}
+		assertEquals(5, up.hits.get());
+		assertEquals(1, router.getEndpoints().get(0).getRequestCount());
+		assertEquals(1.0, router.getEndpoints().get(0).getErrorRate());
+
+		//With every endpoint failing the last error is thrown
+		up.status.set(503);
+		try {
+			mailer.sendMailForResult(TestMails.newMail());
+			fail("Expected MailerException");
+		} catch (MailerException e) {
+			assertEquals(6, up.hits.get());
+		}
+	}
+
+	public void testReadTimeoutDoesNotFailOver() throws Exception {
+		StubEndpoint hanging = newStub(500);
+		StubEndpoint up = newStub(0);
+		PooledHttpTransport impatient = new PooledHttpTransport(4, 30000, 1000, 100, 1000);
+		try {
+			EndpointRouter router = new EndpointRouter(impatient, Arrays.asList(hanging.url, up.url));
+			try {
+				newMailer(router).sendMailForResult(TestMails.newMail());
+				fail("Expected MailerException");
+			} catch (MailerException e) {
+				//The endpoint read the request and may have sent the message
+				assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof SocketTimeoutException);
+			}
+			assertEquals(1, hanging.hits.get());
+			assertEquals(0, up.hits.get());
+			assertEquals(1.0, router.getEndpoints().get(0).getErrorRate());
+		} finally {
+			impatient.close();
+		}
+	}
+
+	public void testDatacenterOfApiKey() throws Exception {
+		assertEquals("us5", AmazonSESMailChimpMailerImpl.getDatacenter("0123abcd-us5"));
+		assertEquals("us12", AmazonSESMailChimpMailerImpl.getDatacenter("a-b-us12"));
+		assertEquals("us2", AmazonSESMailChimpMailerImpl.getDatacenter("0123abcd"));
+		assertEquals("us2", AmazonSESMailChimpMailerImpl.getDatacenter("0123abcd-"));
+		assertEquals("us2", AmazonSESMailChimpMailerImpl.getDatacenter("0123abcd-us"));
+		assertEquals("us2", AmazonSESMailChimpMailerImpl.getDatacenter("0123abcd-5"));
+		assertEquals("us2", AmazonSESMailChimpMailerImpl.getDatacenter("0123abcd-us5.evil.com/x"));
+		assertEquals(new URL("http://eu1.sts.mailchimp.com/1.0/SendEmail"),
+				AmazonSESMailChimpMailerImpl.getSendMailUrl("key-eu1"));
+	}
+
+	private AmazonSESMailChimpMailerImpl newMailer(EndpointRouter router) {
+		return (new AmazonSESMailChimpMailerImpl(router, executor, 1, MailerMetrics.NOOP, null));
+	}
+
+	private StubEndpoint newStub(int delayMillis) throws IOException {
+		StubEndpoint stub = new StubEndpoint(delayMillis);
+		stubs.add(stub);
+		return (stub);
+	}
+
+	/**
+	 * Local SendEmail endpoint with a fixed delay and a status which the test can change.
+	 */
+	private static class StubEndpoint {
+		final HttpServer server;
+		final URL url;
+		final AtomicInteger hits = new AtomicInteger();
+		final AtomicInteger status = new AtomicInteger(200);
+
+		StubEndpoint(final int delayMillis) throws IOException {
+			server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+			server.createContext("/1.0/SendEmail", new HttpHandler() {
+				@Override
+				public void handle(HttpExchange exchange) throws IOException {
+					hits.incrementAndGet();
+					InputStream in = exchange.getRequestBody();
+					byte[] skip = new byte[8192];
+					while (in.read(skip) != -1) {
+						//discard
+					}
+					try {
+						Thread.sleep(delayMillis);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					byte[] response = StubTransport.SENT_RESPONSE.getBytes("UTF-8");
+					exchange.sendResponseHeaders(status.get(), response.length);
+					OutputStream out = exchange.getResponseBody();
+					out.write(response);
+					out.close();
+				}
+			});
+			server.start();
+			url = new URL("http://127.0.0.1:" + server.getAddress().getPort());
+		}
+	}
+}
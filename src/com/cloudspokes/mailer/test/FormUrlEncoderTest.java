@@ -0,0 +1,150 @@
+package com.cloudspokes.mailer.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.cloudspokes.mailer.AmazonSESMailChimpMailerImpl;
+import com.cloudspokes.mailer.FormUrlEncoder;
+import com.cloudspokes.mailer.MailInfoDTO;
+
+/**
+ * Tests FormUrlEncoder against java.net.URLEncoder and the post data produced by the mailer.
+ */
+public class FormUrlEncoderTest extends TestCase {
+	private static final String[] VALUES = { "", "plain", "with space", "a+b=c&d", "<h1 class=\"x\">Hi!</h1>",
+			"100% ~ * . - _ / ? # [ ] @", "caf\u00e9 \u00fcber", "\u20ac \u65e5\u672c\u8a9e", "emoji \ud83d\ude00!",
+			"lone \ud83d high", "lone \ude00 low", "ends with high \ud83d", "\r\n\t\u0000\u007f" };
+
+	public void testEncodingMatchesURLEncoder() throws IOException {
+		for (String value : VALUES) {
+			FormUrlEncoder encoder = new FormUrlEncoder(16);
+			encoder.writeEncoded(value);
+			assertEquals(value, URLEncoder.encode(value, "UTF-8"), new String(encoder.toByteArray(), "US-ASCII"));
+		}
+	}
+
+	public void testRandomStringsMatchURLEncoder() throws IOException {
+		Random random = new Random(42);
+		for (int i = 0; i < 200; i++) {
+			char[] chars = new char[random.nextInt(3000)];
+			for (int j = 0; j < chars.length; j++) {
+				int kind = random.nextInt(10);
+				chars[j] = (char)(kind < 6 ? random.nextInt(128) : kind < 9 ? random.nextInt(0x3000) : random.nextInt(0x10000));
+			}
+			String value = new String(chars);
+			FormUrlEncoder encoder = new FormUrlEncoder(64);
+			encoder.writeEncoded(value);
+			assertEquals(URLEncoder.encode(value, "UTF-8"), new String(encoder.toByteArray(), "US-ASCII"));
+		}
+	}
+
+	public void testStreamingMatchesBuffering() throws IOException {
+		StringBuilder html = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			html.append("<p>Line ").append(i).append(" caf\u00e9 \ud83d\ude00</p>\n");
+		}
+		List<String> emails = Arrays.asList("a@a.com", "b@b.com", "c@c.com");
+
+		FormUrlEncoder buffering = new FormUrlEncoder(32);
+		write(buffering, html.toString(), emails);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FormUrlEncoder streaming = new FormUrlEncoder(out, 100);
+		write(streaming, html.toString(), emails);
+		streaming.flush();
+
+		assertTrue(Arrays.equals(buffering.toByteArray(), out.toByteArray()));
+		assertEquals(out.size(), streaming.size());
+		assertEquals("message[html]=" + URLEncoder.encode(html.toString(), "UTF-8")
+				+ "&track_opens=true&message[to_email][0]=a%40a.com&message[to_email][1]=b%40b.com"
+				+ "&message[to_email][2]=c%40c.com&", new String(out.toByteArray(), "US-ASCII"));
+	}
+
+	public void testListIndexes() throws IOException {
+		List<String> values = new ArrayList<String>();
+		for (int i = 0; i < 120; i++) {
+			values.add("v" + i);
+		}
+		FormUrlEncoder encoder = new FormUrlEncoder(16);
+		encoder.writeListField(FormUrlEncoder.listKey("tags"), values);
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 120; i++) {
+			expected.append("tags[").append(i).append("]=v").append(i).append('&');
+		}
+		assertEquals(expected.toString(), new String(encoder.toByteArray(), "US-ASCII"));
+	}
+
+	public void testResetReusesBuffer() throws IOException {
+		FormUrlEncoder encoder = new FormUrlEncoder(16);
+		encoder.writeField(FormUrlEncoder.key("subject"), "first message");
+		byte[] buffer = encoder.buffer();
+		encoder.reset();
+		encoder.writeField(FormUrlEncoder.key("a"), "b");
+		encoder.writeField(FormUrlEncoder.key("ignored"), (String)null);
+		assertSame(buffer, encoder.buffer());
+		assertEquals("a=b&", new String(encoder.toByteArray(), "US-ASCII"));
+	}
+
+	/**
+	 * Decodes the post data sent by the mailer and checks that it carries every field of the DTO.
+	 */
+	public void testMailerPostData() throws Exception {
+		List<String> to = Arrays.asList("to1@as.com", "to2@as.com");
+		List<String> toName = Arrays.asList("T\u00f6 One", "");
+		List<String> cc = Arrays.asList("cc@as.com");
+		List<String> ccName = Arrays.asList("Cc & Co");
+		List<String> tags = Arrays.asList("tag one", "tag/two");
+		MailInfoDTO mailInfo = new MailInfoDTO("<h1>Hello \u20ac</h1>", "Subject = 100%", "Sender", "sender@as.com", to,
+				toName, "text body", Arrays.asList("reply@as.com"), cc, ccName, null, null, false, true, false, tags);
+
+		StubTransport transport = new StubTransport();
+		new AmazonSESMailChimpMailerImpl(transport).sendMail(mailInfo);
+		Map<String, String> fields = decode(transport.getRequests().get(0));
+
+		Map<String, String> expected = new LinkedHashMap<String, String>();
+		expected.put("apikey", System.getenv("MAILCHIMP_API_KEY"));
+		expected.put("message[html]", "<h1>Hello \u20ac</h1>");
+		expected.put("message[text]", "text body");
+		expected.put("message[subject]", "Subject = 100%");
+		expected.put("message[from_name]", "Sender");
+		expected.put("message[from_email]", "sender@as.com");
+		expected.put("message[autogen_html]", "false");
+		expected.put("track_opens", "true");
+		expected.put("track_clicks", "false");
+		expected.put("message[reply_to][0]", "reply@as.com");
+		expected.put("message[to_email][0]", "to1@as.com");
+		expected.put("message[to_email][1]", "to2@as.com");
+		expected.put("message[to_name][0]", "T\u00f6 One");
+		expected.put("message[to_name][1]", "");
+		expected.put("message[cc_email][0]", "cc@as.com");
+		expected.put("message[cc_name][0]", "Cc & Co");
+		expected.put("tags[0]", "tag one");
+		expected.put("tags[1]", "tag/two");
+		assertEquals(expected, fields);
+	}
+
+	private static void write(FormUrlEncoder encoder, String html, List<String> emails) throws IOException {
+		encoder.writeField(FormUrlEncoder.key("message[html]"), html);
+		encoder.writeField(FormUrlEncoder.key("track_opens"), true);
+		encoder.writeListField(FormUrlEncoder.listKey("message[to_email]"), emails);
+	}
+
+	private static Map<String, String> decode(String postData) throws IOException {
+		Map<String, String> fields = new LinkedHashMap<String, String>();
+		for (String pair : postData.split("&")) {
+			int equals = pair.indexOf('=');
+			fields.put(pair.substring(0, equals), URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+		}
+		return (fields);
+	}
+}
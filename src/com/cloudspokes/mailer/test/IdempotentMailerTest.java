@@ -0,0 +1,174 @@
+package com.cloudspokes.mailer.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.cloudspokes.mailer.AmazonSESMailChimpMailerImpl;
+import com.cloudspokes.mailer.IdempotentMailer;
+import com.cloudspokes.mailer.MailInfoDTO;
+import com.cloudspokes.mailer.MailerException;
+import com.cloudspokes.mailer.SendResult;
+
+/**
+ * Test class for IdempotentMailer. Expects MAILCHIMP_API_KEY to be set.
+ */
+public class IdempotentMailerTest extends TestCase {
+	private ExecutorService executor;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		executor = Executors.newFixedThreadPool(8);
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		executor.shutdownNow();
+	}
+
+	public void testConcurrentDuplicatesJoinOneSend() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		StubTransport transport = new StubTransport() {
+			@Override
+			protected String respond(String postData) throws IOException {
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				return (super.respond(postData));
+			}
+		};
+		final IdempotentMailer mailer = new IdempotentMailer(new AmazonSESMailChimpMailerImpl(transport, executor, 1),
+				60000, 1000, executor, 1);
+		List<Future<SendResult>> results = new ArrayList<Future<SendResult>>();
+		for (int i = 0; i < 6; i++) {
+			//Equal messages built separately have the same derived key
+			final MailInfoDTO mailData = message("as@as.com", "Hi");
+			results.add(executor.submit(new Callable<SendResult>() {
+				@Override
+				public SendResult call() throws Exception {
+					return (mailer.sendMailForResult(mailData));
+				}
+			}));
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (mailer.getJoinedCount() < 5 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		release.countDown();
+		SendResult first = results.get(0).get(5, TimeUnit.SECONDS);
+		for (Future<SendResult> result : results) {
+			assertSame(first, result.get(5, TimeUnit.SECONDS));
+		}
+		assertEquals(1, transport.getRequests().size());
+		assertEquals(5, mailer.getJoinedCount());
+
+		//After the send, duplicates get the cached result; other messages are sent
+		assertSame(first, mailer.sendMailForResult(message("as@as.com", "Hi")));
+		assertEquals(1, mailer.getReplayedCount());
+		assertTrue(mailer.sendMailForResult(message("as@as.com", "Hello")).isAccepted());
+		assertTrue(mailer.sendMailForResult(message("other@as.com", "Hi")).isAccepted());
+		//sendMail keeps its own keys
+		assertTrue(SendResult.parse(mailer.sendMail(message("as@as.com", "Hi"))).isAccepted());
+		assertEquals(4, transport.getRequests().size());
+		assertEquals(4, mailer.getSentCount());
+	}
+
+	public void testFailedSendsAreRetried() throws Exception {
+		final int[] failures = { 1 };
+		StubTransport transport = new StubTransport() {
+			@Override
+			protected String respond(String postData) throws IOException {
+				synchronized (failures) {
+					if (failures[0]-- > 0) {
+						throw new IOException("Connection reset");
+					}
+				}
+				if (postData.contains("Rejected")) {
+					return ("[{\"email\":\"as@as.com\",\"status\":\"rejected\",\"reject_reason\":\"hard-bounce\"}]");
+				}
+				return (super.respond(postData));
+			}
+		};
+		IdempotentMailer mailer = new IdempotentMailer(new AmazonSESMailChimpMailerImpl(transport, executor, 1),
+				60000, 1000, executor, 1);
+		try {
+			mailer.sendMail(message("as@as.com", "Hi"), "order-1");
+			fail("Expected MailerException");
+		} catch (MailerException e) {
+			assertEquals(0, mailer.size());
+		}
+		String status = mailer.sendMail(message("as@as.com", "Hi"), "order-1");
+		assertTrue(SendResult.parse(status).isAccepted());
+		//An explicit key is the same message whatever its content
+		assertSame(status, mailer.sendMail(message("as@as.com", "Hi again"), "order-1"));
+		assertEquals(2, transport.getRequests().size());
+
+		//Results which were not accepted are not kept either
+		assertFalse(mailer.sendMailForResult(message("as@as.com", "Rejected"), "order-2").isAccepted());
+		assertFalse(mailer.sendMailForResult(message("as@as.com", "Rejected"), "order-2").isAccepted());
+		assertEquals(4, transport.getRequests().size());
+		assertEquals(1, mailer.size());
+	}
+
+	public void testDifferentRecipientsAreNeverJoined() throws Exception {
+		StubTransport transport = new StubTransport() {
+			@Override
+			protected String respond(String postData) throws IOException {
+				return (postData.contains("Unparsable") ? "<html>Bad gateway</html>" : super.respond(postData));
+			}
+		};
+		IdempotentMailer mailer = new IdempotentMailer(new AmazonSESMailChimpMailerImpl(transport, executor, 1),
+				60000, 1000, executor, 1);
+		//"Aa" and "BB" have the same String.hashCode
+		assertEquals("Aa@x.com".hashCode(), "BB@x.com".hashCode());
+		assertTrue(mailer.sendMailForResult(message("Aa@x.com", "Hi")).isAccepted());
+		assertTrue(mailer.sendMailForResult(message("BB@x.com", "Hi")).isAccepted());
+		assertTrue(mailer.sendMailForResult(message("as@as.com", "Aa")).isAccepted());
+		assertTrue(mailer.sendMailForResult(message("as@as.com", "BB")).isAccepted());
+		assertEquals(4, transport.getRequests().size());
+
+		//A response which cannot be parsed is returned but not kept, and does not block the next send
+		String status = mailer.sendMail(message("as@as.com", "Unparsable"));
+		assertEquals("<html>Bad gateway</html>", status);
+		assertEquals(status, mailer.sendMail(message("as@as.com", "Unparsable")));
+		assertEquals(6, transport.getRequests().size());
+	}
+
+	public void testWindowIsBounded() throws Exception {
+		StubTransport transport = new StubTransport();
+		IdempotentMailer mailer = new IdempotentMailer(new AmazonSESMailChimpMailerImpl(transport, executor, 1), 50,
+				4, executor, 1);
+		for (int i = 0; i < 20; i++) {
+			mailer.sendMailForResult(message("as@as.com", "Hi"), "key-" + i);
+		}
+		assertTrue(String.valueOf(mailer.size()), mailer.size() <= 4);
+
+		mailer.sendMailForResult(message("as@as.com", "Hi"), "expiring");
+		mailer.sendMailForResult(message("as@as.com", "Hi"), "expiring");
+		assertEquals(21, transport.getRequests().size());
+		Thread.sleep(100);
+		mailer.sendMailForResult(message("as@as.com", "Hi"), "expiring");
+		assertEquals(22, transport.getRequests().size());
+
+		try {
+			new IdempotentMailer(null);
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			assertEquals("AmazonSESMailChimpMailer mailer cannot be null", e.getMessage());
+		}
+	}
+
+	private static MailInfoDTO message(String toEmail, String subject) throws MailerException {
+		return (TestMails.newMail("<p>" + subject + "</p>", subject, toEmail));
+	}
+}
@@ -5,6 +5,8 @@ import java.util.List;
 
 import junit.framework.TestCase;
 
+import com.cloudspokes.mailer.AmazonSESMailChimpMailerImpl;
+import com.cloudspokes.mailer.ImmutableMailInfoDTO;
 import com.cloudspokes.mailer.MailInfoDTO;
 import com.cloudspokes.mailer.MailerException;
 
@@ -239,4 +241,142 @@ public class MailInfoDTOTest extends TestCase {
 		}
 	}
 
+	/**
+	 * Tests that the builder of ImmutableMailInfoDTO reports the same messages as the constructors. 
+	 */
+	public void testImmutableBuilderValidation() {
+		try {
+			ImmutableMailInfoDTO.builder().build();
+			fail("Required fields are missing");
+		} catch(MailerException me) {
+			assertEquals(ALL_NULLS_MESSAGE, me.getMessage());
+		}
+
+		try {
+			ImmutableMailInfoDTO.builder().htmlEmailContent(HTML_EMAIL_CONTENT).fromName(MAIL_SENDER)
+					.toEmail(FIFTY_ONE_EMAIL_ADDRESSES_LIST).build();
+			fail("Subject and sender are missing and there are too many recipients");
+		} catch(MailerException me) {
+			assertEquals(SUBJECT_NULL_MESSAGE + ", String fromEmail is null or blank, " + EXCESS_EMAIL_ADDRESSES_51,
+					me.getMessage());
+		}
+
+		TAGS.add("_invalidTag");
+		try {
+			validBuilder().toName(EMPTY_NAME_LIST).replyTo(TO_ADDRESSES_LIST_WITH_NULL)
+					.ccEmail(FIFTY_ONE_EMAIL_ADDRESSES_LIST).bccEmail(ONE_EMAIL_ADDRESSES_LIST)
+					.bccName(EMPTY_NAME_LIST).tags(TAGS).build();
+			fail("Every optional list is invalid");
+		} catch(MailerException me) {
+			assertEquals(TO_MAIL_ADDRESS_AND_NAME_SIZE_MISMATCH + ", " + INVALID_REPLY_TO_MESSAGE + ", "
+					+ CC_EMAIL_COUNT_51 + ", " + BCC_MAIL_ADDRESS_AND_NAME_SIZE_MISMATCH + ", " + TAG_MESG_INVALID_TAG,
+					me.getMessage());
+		}
+	}
+
+	/**
+	 * Tests that an ImmutableMailInfoDTO copies the lists it was built with and cannot be changed. 
+	 */
+	public void testImmutableBuilderCopies() throws MailerException {
+		List<String> toEmail = new ArrayList<String>(ONE_EMAIL_ADDRESSES_LIST);
+		ImmutableMailInfoDTO.Builder builder = validBuilder().toEmail(toEmail).toName(ONE_NAME_LIST_WITH_BLANK)
+				.trackOpens(true);
+		MailInfoDTO mailInfoDTO = builder.build();
+		toEmail.add("other@as.com");
+
+		assertEquals(ONE_EMAIL_ADDRESSES_LIST, mailInfoDTO.getToEmail());
+		assertEquals(ONE_NAME_LIST_WITH_BLANK, mailInfoDTO.getToName());
+		assertEquals(HTML_EMAIL_CONTENT, mailInfoDTO.getHtmlEmailContent());
+		assertTrue(mailInfoDTO.isAutogenHtml());
+		assertTrue(mailInfoDTO.isTrackOpens());
+		assertNull(mailInfoDTO.getCcEmail());
+		assertEquals(2, builder.toName(null).build().getToEmail().size());
+		try {
+			mailInfoDTO.getToEmail().set(0, "other@as.com");
+			fail("Recipients cannot be changed");
+		} catch(UnsupportedOperationException e) {
+			//expected
+		}
+		try {
+			mailInfoDTO.setSubject("Changed");
+			fail("Fields cannot be changed");
+		} catch(UnsupportedOperationException e) {
+			assertEquals(SUBJECT, mailInfoDTO.getSubject());
+		}
+	}
+
+	/**
+	 * Tests that a built message is posted exactly like one created with the constructor. 
+	 */
+	public void testImmutableBuilderSerializesLikeConstructor() throws MailerException {
+		TAGS.add("digest");
+		MailInfoDTO constructed = new MailInfoDTO(HTML_EMAIL_CONTENT, SUBJECT, MAIL_SENDER, ONE_EMAIL_ADDRESS,
+				ONE_EMAIL_ADDRESSES_LIST, ONE_NAME_LIST, "text", ONE_EMAIL_ADDRESSES_LIST, ONE_EMAIL_ADDRESSES_LIST,
+				null, ONE_EMAIL_ADDRESSES_LIST, ONE_NAME_LIST, false, true, true, TAGS);
+		MailInfoDTO built = validBuilder().toName(ONE_NAME_LIST).textEmailContent("text")
+				.replyTo(ONE_EMAIL_ADDRESSES_LIST).ccEmail(ONE_EMAIL_ADDRESSES_LIST).bccEmail(ONE_EMAIL_ADDRESSES_LIST)
+				.bccName(ONE_NAME_LIST).autogenHtml(false).trackOpens(true).trackClicks(true).tags(TAGS).build();
+
+		StubTransport transport = new StubTransport();
+		AmazonSESMailChimpMailerImpl mailer = new AmazonSESMailChimpMailerImpl(transport);
+		mailer.sendMail(constructed);
+		mailer.sendMail(built);
+		assertEquals(transport.getRequests().get(0), transport.getRequests().get(1));
+	}
+
+	/**
+	 * Tests that invalid addresses are refused and that the addresses are normalized and de-duplicated across the 
+	 * to, cc and bcc recipients by the constructor and the builder alike. 
+	 */
+	public void testAddressValidationAndDuplicates() throws MailerException {
+		List<String> invalid = new ArrayList<String>(ONE_EMAIL_ADDRESSES_LIST);
+		invalid.add("as@as");
+		try {
+			new MailInfoDTO(HTML_EMAIL_CONTENT, SUBJECT, MAIL_SENDER, "sender", invalid, null);
+			fail("Invalid addresses are refused");
+		} catch(MailerException me) {
+			assertEquals("String fromEmail is not a valid email address: sender, "
+					+ "List<String> toEmailAddresses contains invalid email address: as@as", me.getMessage());
+		}
+		try {
+			validBuilder().fromEmail("sender").toEmail(invalid).build();
+			fail("Invalid addresses are refused");
+		} catch(MailerException me) {
+			assertEquals("String fromEmail is not a valid email address: sender, "
+					+ "List<String> toEmailAddresses contains invalid email address: as@as", me.getMessage());
+		}
+
+		List<String> toEmail = list("a@as.com", " B@AS.COM", "A@as.com");
+		List<String> toName = list("A", "B", "A again");
+		List<String> ccEmail = list("b@as.com", "c@as.com");
+		List<String> ccName = list("B as cc", "C");
+		List<String> bccEmail = list("C@As.com", "a@AS.com");
+		MailInfoDTO constructed = new MailInfoDTO(HTML_EMAIL_CONTENT, SUBJECT, MAIL_SENDER, ONE_EMAIL_ADDRESS,
+				toEmail, toName, null, null, ccEmail, ccName, bccEmail, null, true, false, false, null);
+		MailInfoDTO built = validBuilder().toEmail(toEmail).toName(toName).ccEmail(ccEmail).ccName(ccName)
+				.bccEmail(bccEmail).build();
+		for (MailInfoDTO mailInfoDTO : new MailInfoDTO[] { constructed, built }) {
+			assertEquals(list("a@as.com", "B@as.com"), mailInfoDTO.getToEmail());
+			assertEquals(list("A", "B"), mailInfoDTO.getToName());
+			assertEquals(list("c@as.com"), mailInfoDTO.getCcEmail());
+			assertEquals(list("C"), mailInfoDTO.getCcName());
+			assertNull(mailInfoDTO.getBccEmail());
+		}
+		//The lists of a message without changes are kept
+		assertSame(ONE_EMAIL_ADDRESSES_LIST, new MailInfoDTO(HTML_EMAIL_CONTENT, SUBJECT, MAIL_SENDER,
+				ONE_EMAIL_ADDRESS, ONE_EMAIL_ADDRESSES_LIST, null).getToEmail());
+	}
+
+	private static List<String> list(String... values) {
+		List<String> list = new ArrayList<String>();
+		for (String value : values) {
+			list.add(value);
+		}
+		return (list);
+	}
+
+	private ImmutableMailInfoDTO.Builder validBuilder() {
+		return (ImmutableMailInfoDTO.builder().htmlEmailContent(HTML_EMAIL_CONTENT).subject(SUBJECT)
+				.fromName(MAIL_SENDER).fromEmail(ONE_EMAIL_ADDRESS).toEmail(ONE_EMAIL_ADDRESSES_LIST));
+	}
 }
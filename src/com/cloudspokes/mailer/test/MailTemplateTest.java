@@ -0,0 +1,119 @@
+package com.cloudspokes.mailer.test;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.cloudspokes.mailer.AmazonSESMailChimpMailerImpl;
+import com.cloudspokes.mailer.FormUrlEncoder;
+import com.cloudspokes.mailer.MailInfoDTO;
+import com.cloudspokes.mailer.MailTemplate;
+import com.cloudspokes.mailer.MailTemplateCache;
+import com.cloudspokes.mailer.MailerException;
+
+/**
+ * Test class for MailTemplate and MailTemplateCache. The mailer test expects MAILCHIMP_API_KEY to be set and
+ * answers the message with a stub transport.
+ */
+public class MailTemplateTest extends TestCase {
+	private static final String SOURCE = "<h1>Hello *|FNAME|* *|LNAME|*!</h1><p>caf\u00e9 \ud83d\ude00 100% *|FNAME|*</p>"
+			+ "<p>*|MISSING|* *|not closed</p>";
+
+	public void testRender() throws MailerException {
+		MailTemplate template = MailTemplate.compile("welcome", SOURCE);
+		assertEquals("welcome", template.getId());
+		assertEquals(Arrays.asList("FNAME", "LNAME", "MISSING"), template.getFieldNames());
+		assertEquals("<h1>Hello Ann O'Neil!</h1><p>caf\u00e9 \ud83d\ude00 100% Ann</p><p> *|not closed</p>",
+				template.render(fields("Ann", "O'Neil")));
+		assertEquals("<h1>Hello  !</h1><p>caf\u00e9 \ud83d\ude00 100% </p><p> *|not closed</p>", template.render(null));
+		assertEquals("no tags", MailTemplate.compile("plain", "no tags").render(null));
+		assertEquals("x", MailTemplate.compile("only", "*|X|*").render(fields(null, null, "X", "x")));
+		try {
+			MailTemplate.compile("empty", "");
+			fail("A blank template cannot be compiled");
+		} catch (MailerException e) {
+			//expected
+		}
+	}
+
+	public void testWriteEncodedMatchesURLEncoder() throws IOException, MailerException {
+		MailTemplate template = MailTemplate.compile("welcome", SOURCE);
+		String[][] values = { { "Ann", "O'Neil" }, { "J\u00f6rg & <b>Co</b>", "\u65e5\u672c" }, { "", "+%" } };
+		FormUrlEncoder encoder = new FormUrlEncoder(16);
+		for (String[] value : values) {
+			Map<String, String> mergeFields = fields(value[0], value[1]);
+			encoder.reset();
+			template.writeEncoded(mergeFields, encoder);
+			assertEquals(URLEncoder.encode(template.render(mergeFields), "UTF-8"),
+					new String(encoder.toByteArray(), "US-ASCII"));
+		}
+	}
+
+	public void testCacheEvictsLeastRecentlyUsed() throws MailerException {
+		MailTemplateCache cache = new MailTemplateCache(2);
+		MailTemplate a = cache.get("a", "A *|X|*");
+		assertSame(a, cache.get("a", "ignored once cached"));
+		cache.get("b", "B");
+		cache.get("a");
+		cache.get("c", "C");
+		assertEquals(2, cache.size());
+		assertNull(cache.get("b"));
+		assertSame(a, cache.get("a"));
+		assertEquals(3, cache.getHitCount());
+		assertEquals(4, cache.getMissCount());
+
+		cache.invalidate("a");
+		assertEquals("A2 y", cache.get("a", "A2 *|X|*").render(fields(null, null, "X", "y")));
+	}
+
+	public void testMailerSendsRenderedTemplate() throws Exception {
+		StubTransport transport = new StubTransport();
+		AmazonSESMailChimpMailerImpl mailer = new AmazonSESMailChimpMailerImpl(transport);
+		MailTemplate template = MailTemplate.compile("welcome", SOURCE);
+		List<String> toEmail = new ArrayList<String>();
+		toEmail.add("as@as.com");
+		MailInfoDTO mailData = new MailInfoDTO(template, fields("Ann", "O'Neil"), "Hello", "Sender", "sender@as.com",
+				toEmail, null);
+		assertNull(new MailInfoDTO(template, null, "Hello", "Sender", "sender@as.com", toEmail, null).getMergeFields());
+
+		mailer.sendMail(mailData);
+		String html = null;
+		for (String parameter : transport.getRequests().get(0).split("&")) {
+			if (parameter.startsWith("message%5Bhtml%5D=") || parameter.startsWith("message[html]=")) {
+				html = URLDecoder.decode(parameter.substring(parameter.indexOf('=') + 1), "UTF-8");
+			}
+		}
+		assertEquals(template.render(fields("Ann", "O'Neil")), html);
+		assertEquals(html, mailData.getHtmlEmailContent());
+
+		mailData.setHtmlEmailContent("<p>plain</p>");
+		assertNull(mailData.getHtmlTemplate());
+		try {
+			new MailInfoDTO((MailTemplate)null, null, "Hello", "Sender", "sender@as.com", toEmail, null);
+			fail("A message needs html content or a template");
+		} catch (MailerException e) {
+			assertTrue(e.getMessage().contains("htmlMailContent"));
+		}
+	}
+
+	private static Map<String, String> fields(String firstName, String lastName, String... more) {
+		Map<String, String> fields = new HashMap<String, String>();
+		if (firstName != null) {
+			fields.put("FNAME", firstName);
+		}
+		if (lastName != null) {
+			fields.put("LNAME", lastName);
+		}
+		for (int i = 0; i < more.length; i += 2) {
+			fields.put(more[i], more[i + 1]);
+		}
+		return (fields);
+	}
+}
@@ -0,0 +1,193 @@
+package com.cloudspokes.mailer.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import com.cloudspokes.mailer.AmazonSESMailChimpMailerImpl;
+import com.cloudspokes.mailer.ByteArrayRequestBody;
+import com.cloudspokes.mailer.DefaultMailerMetrics;
+import com.cloudspokes.mailer.Histogram;
+import com.cloudspokes.mailer.JmxMetricsExporter;
+import com.cloudspokes.mailer.MailerException;
+import com.cloudspokes.mailer.MailerMetrics.Outcome;
+import com.cloudspokes.mailer.PooledHttpTransport;
+import com.cloudspokes.mailer.ResponseHandler;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test class for Histogram, DefaultMailerMetrics and JmxMetricsExporter. The mailer tests expect
+ * MAILCHIMP_API_KEY to be set and answer the messages with stub transports.
+ */
+public class MailerMetricsTest extends TestCase {
+	private ExecutorService executor;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		executor = Executors.newSingleThreadExecutor();
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		executor.shutdownNow();
+	}
+
+	public void testHistogramPercentiles() {
+		Histogram histogram = new Histogram();
+		for (long value = 1; value <= 100000; value++) {
+			histogram.record(value * 1000);
+		}
+		assertEquals(100000, histogram.getCount());
+		assertEquals(100000000, histogram.getMax());
+		assertEquals(50000500.0, histogram.getMean(), 1);
+		assertWithin(50000000, histogram.getValueAtPercentile(50));
+		assertWithin(99000000, histogram.getValueAtPercentile(99));
+		assertWithin(99900000, histogram.getValueAtPercentile(99.9));
+		assertEquals(100000000, histogram.getValueAtPercentile(100));
+
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getValueAtPercentile(99));
+	}
+
+	public void testHistogramSmallAndLargeValues() {
+		Histogram histogram = new Histogram();
+		Random random = new Random(7);
+		for (int i = 0; i < 1000; i++) {
+			long value = (random.nextLong() >>> 1) >>> random.nextInt(63);
+			histogram.reset();
+			histogram.record(value);
+			assertEquals(value, histogram.getValueAtPercentile(50));
+		}
+		histogram.reset();
+		histogram.record(5);
+		histogram.record(127);
+		histogram.record(-3);
+		assertEquals(0, histogram.getValueAtPercentile(10));
+		assertEquals(5, histogram.getValueAtPercentile(50));
+		assertEquals(127, histogram.getValueAtPercentile(100));
+	}
+
+	public void testMailerRecordsOutcomes() throws Exception {
+		final String[] response = { StubTransport.SENT_RESPONSE };
+		StubTransport transport = new StubTransport() {
+			@Override
+			protected String respond(String postData) throws IOException {
+				if (response[0] == null) {
+					throw new IOException("Connection reset");
+				}
+				return (response[0]);
+			}
+		};
+		DefaultMailerMetrics metrics = new DefaultMailerMetrics();
+		AmazonSESMailChimpMailerImpl mailer = new AmazonSESMailChimpMailerImpl(transport, executor, 1, metrics);
+
+		mailer.sendMail(TestMails.newMail());
+		response[0] = "[{\"email\":\"as@as.com\",\"status\":\"queued\"}]";
+		mailer.sendMailForResult(TestMails.newMail());
+		response[0] = "[{\"email\":\"as@as.com\",\"status\":\"Daily message quota exceeded.\"}]";
+		mailer.sendMail(TestMails.newMail());
+		response[0] = null;
+		try {
+			mailer.sendMailForResult(TestMails.newMail());
+			fail("The stub fails the request");
+		} catch (MailerException e) {
+			//expected
+		}
+
+		assertEquals(1, metrics.getCount(Outcome.SENT));
+		assertEquals(1, metrics.getCount(Outcome.QUEUED));
+		assertEquals(1, metrics.getCount(Outcome.REJECTED));
+		assertEquals(1, metrics.getCount(Outcome.FAILED));
+		assertEquals(0, metrics.getSendsInFlight());
+		assertEquals(4, metrics.getSendLatency().getCount());
+		assertEquals(4, metrics.getSerializationLatency().getCount());
+		assertEquals(transport.getRequests().get(0).length(), metrics.getPayloadBytes().getMax());
+	}
+
+	public void testTransportRecordsPhases() throws Exception {
+		//Read once per JVM by the server, so it must be set before the first stub server of any test starts
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				InputStream in = exchange.getRequestBody();
+				while (in.read() != -1) {
+					//consume the request
+				}
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				exchange.sendResponseHeaders(200, 2);
+				OutputStream out = exchange.getResponseBody();
+				out.write("[]".getBytes("UTF-8"));
+				out.close();
+			}
+		});
+		server.start();
+		DefaultMailerMetrics metrics = new DefaultMailerMetrics();
+		PooledHttpTransport transport = new PooledHttpTransport(2, 30000, 1000, 5000, 1000, metrics);
+		try {
+			URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+			for (int i = 0; i < 3; i++) {
+				transport.post(url, new ByteArrayRequestBody("text/plain", new byte[100]), new ResponseHandler<Integer>() {
+					@Override
+					public Integer handleResponse(int statusCode, String reasonPhrase, InputStream body) {
+						return (statusCode);
+					}
+				});
+			}
+		} finally {
+			transport.close();
+			server.stop(0);
+		}
+		assertEquals(1, metrics.getConnectLatency().getCount());
+		assertEquals(3, metrics.getWriteLatency().getCount());
+		assertEquals(3, metrics.getResponseLatency().getCount());
+		assertTrue(metrics.getResponseLatency().getValueAtPercentile(50) >= 20000000);
+		assertEquals(0, metrics.getRequestsInFlight());
+	}
+
+	public void testJmxExporter() throws Exception {
+		DefaultMailerMetrics metrics = new DefaultMailerMetrics();
+		metrics.sendStarted();
+		metrics.sendCompleted(Outcome.SENT, 3000000);
+		metrics.serialized(1000, 2048);
+		metrics.sendStarted();
+
+		ObjectName name = JmxMetricsExporter.register(metrics, "test");
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			assertEquals(1L, server.getAttribute(name, "SentCount"));
+			assertEquals(0L, server.getAttribute(name, "FailedCount"));
+			assertEquals(1L, server.getAttribute(name, "SendsInFlight"));
+			assertEquals(1L, server.getAttribute(name, "SendCount"));
+			assertEquals(3.0, (Double)server.getAttribute(name, "SendMaxMillis"), 0.001);
+			assertEquals(2048.0, (Double)server.getAttribute(name, "PayloadP99Bytes"), 32);
+			server.invoke(name, "reset", null, null);
+			assertEquals(0L, server.getAttribute(name, "SentCount"));
+		} finally {
+			JmxMetricsExporter.unregister(name);
+		}
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		assertTrue("expected about " + expected + " but was " + actual, Math.abs(actual - expected) <= expected / 64);
+	}
+}
@@ -0,0 +1,354 @@
+package com.cloudspokes.mailer.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.cloudspokes.mailer.ByteArrayRequestBody;
+import com.cloudspokes.mailer.PooledHttpTransport;
+import com.cloudspokes.mailer.ResponseHandler;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests PooledHttpTransport against a local stub server.
+ */
+public class PooledHttpTransportTest extends TestCase {
+	private static final String SENT_RESPONSE = "[{\"email\":\"as@as.com\",\"status\":\"sent\"}]";
+	private static final int REUSE_REQUESTS = 600;
+
+	private HttpServer server;
+	private ExecutorService serverExecutor;
+	private URL url;
+	private final Set<Integer> clientPorts = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger maxInFlight = new AtomicInteger();
+	private volatile long handlerDelayMillis;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		//The stub writes headers and body separately, without this Nagle's algorithm delays every kept-alive response
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/1.0/SendEmail", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				int current = inFlight.incrementAndGet();
+				int max;
+				while (current > (max = maxInFlight.get()) && !maxInFlight.compareAndSet(max, current)) {
+					//retry
+				}
+				try {
+					clientPorts.add(exchange.getRemoteAddress().getPort());
+					readFully(exchange.getRequestBody());
+					if (handlerDelayMillis > 0) {
+						Thread.sleep(handlerDelayMillis);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					//Before the response is written, the client may send its next request as soon as it arrives
+					inFlight.decrementAndGet();
+				}
+				byte[] response = SENT_RESPONSE.getBytes("UTF-8");
+				exchange.sendResponseHeaders(200, response.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(response);
+				out.close();
+			}
+		});
+		serverExecutor = Executors.newCachedThreadPool();
+		server.setExecutor(serverExecutor);
+		server.start();
+		url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/1.0/SendEmail");
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		server.stop(0);
+		serverExecutor.shutdownNow();
+	}
+
+	public void testPostReturnsResponseBody() throws IOException {
+		PooledHttpTransport transport = new PooledHttpTransport();
+		try {
+			assertEquals(SENT_RESPONSE, post(transport, "apikey=key&message[subject]=Hello&"));
+		} finally {
+			transport.close();
+		}
+	}
+
+	public void testConnectionIsReused() throws IOException {
+		PooledHttpTransport transport = new PooledHttpTransport();
+		try {
+			for (int i = 0; i < 50; i++) {
+				assertEquals(SENT_RESPONSE, post(transport, "message[subject]=" + i + "&"));
+			}
+			assertEquals(1, transport.getConnectionsOpened());
+			assertEquals(1, clientPorts.size());
+			assertEquals(1, transport.getIdleConnectionCount());
+		} finally {
+			transport.close();
+		}
+	}
+
+	public void testZeroIdleTimeoutDisablesReuse() throws IOException {
+		PooledHttpTransport transport = new PooledHttpTransport(4, 0, 1000, 1000, 1000);
+		try {
+			for (int i = 0; i < 10; i++) {
+				post(transport, "message[subject]=" + i + "&");
+			}
+			assertEquals(10, transport.getConnectionsOpened());
+			assertEquals(0, transport.getIdleConnectionCount());
+		} finally {
+			transport.close();
+		}
+	}
+
+	public void testIdleConnectionsAreEvicted() throws Exception {
+		PooledHttpTransport transport = new PooledHttpTransport(4, 50, 1000, 1000, 1000);
+		try {
+			post(transport, "a=1&");
+			assertEquals(1, transport.getIdleConnectionCount());
+			Thread.sleep(100);
+			transport.evictIdleConnections();
+			assertEquals(0, transport.getIdleConnectionCount());
+			post(transport, "a=2&");
+			assertEquals(2, transport.getConnectionsOpened());
+		} finally {
+			transport.close();
+		}
+	}
+
+	public void testConnectionsPerHostAreBounded() throws Exception {
+		final PooledHttpTransport transport = new PooledHttpTransport(2, 30000, 1000, 5000, 5000);
+		handlerDelayMillis = 50;
+		ExecutorService senders = Executors.newFixedThreadPool(8);
+		final CountDownLatch done = new CountDownLatch(16);
+		final AtomicInteger failures = new AtomicInteger();
+		try {
+			for (int i = 0; i < 16; i++) {
+				senders.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							post(transport, "a=b&");
+						} catch (IOException e) {
+							failures.incrementAndGet();
+						} finally {
+							done.countDown();
+						}
+					}
+				});
+			}
+			done.await();
+			assertEquals(0, failures.get());
+			assertTrue("max in flight: " + maxInFlight.get(), maxInFlight.get() <= 2);
+			assertTrue(transport.getConnectionsOpened() <= 2);
+		} finally {
+			senders.shutdownNow();
+			transport.close();
+		}
+	}
+
+	public void testStaleConnectionIsReplaced() throws Exception {
+		//Server that advertises keep-alive but closes every connection after one response
+		final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		final AtomicInteger accepted = new AtomicInteger();
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						Socket socket = serverSocket.accept();
+						accepted.incrementAndGet();
+						readRequest(socket.getInputStream());
+						writeResponse(socket.getOutputStream());
+						socket.close();
+					}
+				} catch (IOException e) {
+					//Server socket closed
+				}
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		PooledHttpTransport transport = new PooledHttpTransport();
+		try {
+			URL staleUrl = new URL("http://127.0.0.1:" + serverSocket.getLocalPort() + "/1.0/SendEmail");
+			assertEquals(SENT_RESPONSE, post(transport, staleUrl, "a=1&"));
+			//Idle long enough for the pooled connection to be checked before it is reused
+			Thread.sleep(PooledHttpTransport.STALE_CHECK_AFTER_MILLIS + 100);
+			assertEquals(SENT_RESPONSE, post(transport, staleUrl, "a=2&"));
+			assertEquals(2, accepted.get());
+		} finally {
+			transport.close();
+			serverSocket.close();
+		}
+	}
+
+	public void testRequestIsNotSentTwiceOnceWritten() throws Exception {
+		//Server that answers the first request on each connection, then reads the second and either closes the
+		//connection or never answers
+		final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		final AtomicInteger requests = new AtomicInteger();
+		final AtomicInteger accepted = new AtomicInteger();
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						Socket socket = serverSocket.accept();
+						int connection = accepted.incrementAndGet();
+						readRequest(socket.getInputStream());
+						requests.incrementAndGet();
+						writeResponse(socket.getOutputStream());
+						readRequest(socket.getInputStream());
+						requests.incrementAndGet();
+						if (connection == 1) {
+							socket.close();
+						}
+					}
+				} catch (IOException e) {
+					//Server socket closed
+				}
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		PooledHttpTransport transport = new PooledHttpTransport(4, 30000, 1000, 200, 1000);
+		try {
+			URL dropUrl = new URL("http://127.0.0.1:" + serverSocket.getLocalPort() + "/1.0/SendEmail");
+			assertEquals(SENT_RESPONSE, post(transport, dropUrl, "a=1&"));
+			try {
+				post(transport, dropUrl, "a=2&");
+				fail("Expected IOException");
+			} catch (IOException e) {
+				//The server read the request and closed the connection, so it is not sent again
+			}
+			assertEquals(2, requests.get());
+
+			assertEquals(SENT_RESPONSE, post(transport, dropUrl, "a=3&"));
+			try {
+				post(transport, dropUrl, "a=4&");
+				fail("Expected SocketTimeoutException");
+			} catch (SocketTimeoutException e) {
+				//A timeout after the request was written is not retried either
+			}
+			Thread.sleep(100);
+			assertEquals(4, requests.get());
+			assertEquals(2, accepted.get());
+		} finally {
+			transport.close();
+			serverSocket.close();
+		}
+	}
+
+	/**
+	 * Sends the same requests with keep-alive and with a new connection per request. The latency of both is
+	 * compared by ConnectionReuseBenchmark in the benchmarks module.
+	 */
+	public void testConnectionReuse() throws IOException {
+		PooledHttpTransport pooled = new PooledHttpTransport();
+		PooledHttpTransport unpooled = new PooledHttpTransport(4, 0, 1000, 5000, 5000);
+		String postData = "message[html]=" + repeat('x', 1024) + "&";
+		try {
+			for (int i = 0; i < REUSE_REQUESTS; i++) {
+				post(pooled, postData);
+				post(unpooled, postData);
+			}
+			assertEquals(1, pooled.getConnectionsOpened());
+			assertEquals(REUSE_REQUESTS, unpooled.getConnectionsOpened());
+		} finally {
+			pooled.close();
+			unpooled.close();
+		}
+	}
+
+	private String post(PooledHttpTransport transport, String postData) throws IOException {
+		return (post(transport, url, postData));
+	}
+
+	private String post(PooledHttpTransport transport, URL target, String postData) throws IOException {
+		byte[] body = postData.getBytes("UTF-8");
+		return (transport.post(target, new ByteArrayRequestBody("application/x-www-form-urlencoded", body),
+				new ResponseHandler<String>() {
+					@Override
+					public String handleResponse(int statusCode, String reasonPhrase, InputStream in)
+							throws IOException {
+						assertEquals(200, statusCode);
+						return (new String(readFully(in), "UTF-8"));
+					}
+				}));
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		in.close();
+		return (out.toByteArray());
+	}
+
+	/**
+	 * Reads a request head and its Content-Length body.
+	 */
+	static void readRequest(InputStream in) throws IOException {
+		int contentLength = 0;
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				String header = line.toString().trim();
+				if (header.length() == 0) {
+					break;
+				}
+				if (header.toLowerCase().startsWith("content-length:")) {
+					contentLength = Integer.parseInt(header.substring(15).trim());
+				}
+				line.setLength(0);
+			} else {
+				line.append((char)c);
+			}
+		}
+		for (int i = 0; i < contentLength; i++) {
+			in.read();
+		}
+	}
+
+	private static void writeResponse(OutputStream out) throws IOException {
+		byte[] body = SENT_RESPONSE.getBytes("UTF-8");
+		out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes("ISO-8859-1"));
+		out.write(body);
+		out.flush();
+	}
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return (new String(chars));
+	}
+}
@@ -0,0 +1,143 @@
+package com.cloudspokes.mailer.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.cloudspokes.mailer.AmazonSESMailChimpMailer;
+import com.cloudspokes.mailer.AmazonSESMailChimpMailerImpl;
+import com.cloudspokes.mailer.MailerMetrics;
+import com.cloudspokes.mailer.PrioritySendScheduler;
+import com.cloudspokes.mailer.PrioritySendScheduler.Lane;
+import com.cloudspokes.mailer.SendResult;
+
+/**
+ * Test class for PrioritySendScheduler. Expects MAILCHIMP_API_KEY to be set and answers the messages with a stub
+ * transport which takes a fixed time per message.
+ */
+public class PrioritySendSchedulerTest extends TestCase {
+	private static final long SEND_MILLIS = 30;
+
+	private ExecutorService callers;
+	private ExecutorService executor;
+	private final List<String> sendOrder = new CopyOnWriteArrayList<String>();
+	private final AtomicInteger bulkInFlight = new AtomicInteger();
+	private final AtomicInteger maxBulkInFlight = new AtomicInteger();
+	private AmazonSESMailChimpMailerImpl mailer;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		callers = Executors.newCachedThreadPool();
+		executor = Executors.newSingleThreadExecutor();
+		StubTransport transport = new StubTransport() {
+			@Override
+			protected String respond(String postData) throws IOException {
+				boolean bulk = postData.contains("message[subject]=Bulk&");
+				sendOrder.add(bulk ? "bulk" : "transactional");
+				if (bulk) {
+					int current = bulkInFlight.incrementAndGet();
+					while (maxBulkInFlight.get() < current && !maxBulkInFlight.compareAndSet(maxBulkInFlight.get(), current)) {
+						//retry
+					}
+				}
+				try {
+					Thread.sleep(SEND_MILLIS);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				} finally {
+					if (bulk) {
+						bulkInFlight.decrementAndGet();
+					}
+				}
+				return (super.respond(postData));
+			}
+		};
+		mailer = new AmazonSESMailChimpMailerImpl(transport, executor, 1, MailerMetrics.NOOP, null);
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		callers.shutdownNow();
+		executor.shutdownNow();
+	}
+
+	public void testTransactionalTakesNextSharedSlot() throws Exception {
+		PrioritySendScheduler scheduler = new PrioritySendScheduler(mailer, 2, 0, 1000, 0, 60000);
+		List<Future<SendResult>> bulk = send(scheduler.lane(Lane.BULK), "Bulk", 10);
+		waitForWaiting(scheduler, Lane.BULK, 8);
+
+		Future<SendResult> transactional = send(scheduler.lane(Lane.TRANSACTIONAL), "Reset", 1).get(0);
+		assertTrue(transactional.get(5, TimeUnit.SECONDS).isAccepted());
+		for (Future<SendResult> result : bulk) {
+			assertTrue(result.get(5, TimeUnit.SECONDS).isAccepted());
+		}
+		//Two bulk messages were being sent; the transactional one went before the eight waiting
+		assertTrue(sendOrder.toString(), sendOrder.indexOf("transactional") <= 3);
+		assertEquals(1, scheduler.getStats(Lane.TRANSACTIONAL).getSentCount());
+		assertEquals(10, scheduler.getStats(Lane.BULK).getSentCount());
+		assertTrue(scheduler.getStats(Lane.TRANSACTIONAL).getWaitMicros().getMax() < 3 * SEND_MILLIS * 1000);
+	}
+
+	public void testReservedSlots() throws Exception {
+		PrioritySendScheduler scheduler = new PrioritySendScheduler(mailer, 3, 2, 1000, 0, 60000);
+		List<Future<SendResult>> bulk = send(scheduler.lane(Lane.BULK), "Bulk", 6);
+		waitForWaiting(scheduler, Lane.BULK, 5);
+
+		//The reserved slots are free for transactional mail at once, however long the bulk queue is
+		List<Future<SendResult>> transactional = send(scheduler.lane(Lane.TRANSACTIONAL), "Reset", 2);
+		for (Future<SendResult> result : transactional) {
+			assertTrue(result.get(5, TimeUnit.SECONDS).isAccepted());
+		}
+		assertTrue(scheduler.getStats(Lane.TRANSACTIONAL).getWaitMicros().getMax() < SEND_MILLIS * 1000);
+		for (Future<SendResult> result : bulk) {
+			result.get(5, TimeUnit.SECONDS);
+		}
+		assertEquals(1, maxBulkInFlight.get());
+	}
+
+	public void testRecipientChunksAndSlo() throws Exception {
+		PrioritySendScheduler scheduler = new PrioritySendScheduler(mailer, 2, 1, 1, 1, 60000);
+		List<String> toEmail = new ArrayList<String>();
+		for (int i = 0; i < 120; i++) {
+			toEmail.add("subscriber" + i + "@as.com");
+		}
+		scheduler.lane(Lane.BULK).sendToRecipients(TestMails.newMail("<p>Priority</p>", "Bulk"), toEmail, null);
+		assertEquals(3, scheduler.getStats(Lane.BULK).getSentCount());
+		assertEquals(0, scheduler.getStats(Lane.BULK).getSloViolationCount());
+
+		//A send takes longer than the 1ms objective of the transactional lane
+		scheduler.lane(Lane.TRANSACTIONAL).sendMail(TestMails.newMail("<p>Priority</p>", "Reset"));
+		assertEquals(1, scheduler.getStats(Lane.TRANSACTIONAL).getSloViolationCount());
+		assertEquals(0, scheduler.getStats(Lane.TRANSACTIONAL).getInFlightCount());
+	}
+
+	private List<Future<SendResult>> send(final AmazonSESMailChimpMailer lane, final String subject, int count) {
+		List<Future<SendResult>> results = new ArrayList<Future<SendResult>>();
+		for (int i = 0; i < count; i++) {
+			results.add(callers.submit(new Callable<SendResult>() {
+				@Override
+				public SendResult call() throws Exception {
+					return (lane.sendMailForResult(TestMails.newMail("<p>Priority</p>", subject)));
+				}
+			}));
+		}
+		return (results);
+	}
+
+	private static void waitForWaiting(PrioritySendScheduler scheduler, Lane lane, int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (scheduler.getStats(lane).getWaitingCount() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		assertEquals(count, scheduler.getStats(lane).getWaitingCount());
+	}
+}
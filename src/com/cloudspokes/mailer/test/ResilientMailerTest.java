@@ -0,0 +1,273 @@
+package com.cloudspokes.mailer.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.cloudspokes.mailer.AmazonSESMailChimpMailerImpl;
+import com.cloudspokes.mailer.CircuitBreaker;
+import com.cloudspokes.mailer.CircuitOpenException;
+import com.cloudspokes.mailer.HttpStatusException;
+import com.cloudspokes.mailer.HttpTransport;
+import com.cloudspokes.mailer.MailerException;
+import com.cloudspokes.mailer.PooledHttpTransport;
+import com.cloudspokes.mailer.RequestBody;
+import com.cloudspokes.mailer.ResilientMailer;
+import com.cloudspokes.mailer.ResponseHandler;
+import com.cloudspokes.mailer.RetryPolicy;
+
+/**
+ * Test class for ResilientMailer, RetryPolicy and CircuitBreaker. Like AmazonSESMailChimpMailerTest it expects
+ * MAILCHIMP_API_KEY to be set, but the messages are answered by stub transports.
+ */
+public class ResilientMailerTest extends TestCase {
+	public void testRetriesTransientFailures() throws Exception {
+		final AtomicInteger count = new AtomicInteger();
+		StubTransport transport = new StubTransport() {
+			@Override
+			protected String respond(String postData) throws IOException {
+				if (count.incrementAndGet() < 3) {
+					throw new ConnectException("Connection refused");
+				}
+				return (super.respond(postData));
+			}
+		};
+		ResilientMailer mailer = new ResilientMailer(new AmazonSESMailChimpMailerImpl(transport),
+				new RetryPolicy(4, 1, 5), new CircuitBreaker(10, 1000));
+
+		assertEquals(StubTransport.SENT_RESPONSE, mailer.sendMail(TestMails.newMail()));
+		assertEquals(3, mailer.getAttemptCount());
+		assertEquals(2, mailer.getRetryCount());
+		assertEquals(1, mailer.getSuccessCount());
+		assertEquals(0, mailer.getFailureCount());
+	}
+
+	public void testPermanentFailureIsNotRetried() throws Exception {
+		StubTransport transport = new StubTransport() {
+			@Override
+			protected String respond(String postData) throws IOException {
+				throw new HttpStatusException(400, "Bad Request", "Invalid API key");
+			}
+		};
+		ResilientMailer mailer = new ResilientMailer(new AmazonSESMailChimpMailerImpl(transport),
+				new RetryPolicy(4, 1, 5), new CircuitBreaker(1, 1000));
+		try {
+			mailer.sendMail(TestMails.newMail());
+			fail("A 400 response should fail");
+		} catch (MailerException e) {
+			assertEquals("Bad Request", e.getMessage());
+		}
+		assertEquals(1, transport.getRequests().size());
+		assertEquals(CircuitBreaker.State.CLOSED, mailer.getCircuitBreaker().getState());
+	}
+
+	public void testErrorStatusIsClassified() throws Exception {
+		final AtomicInteger count = new AtomicInteger();
+		HttpTransport transport = new HttpTransport() {
+			@Override
+			public <T> T post(URL url, RequestBody body, ResponseHandler<T> handler) throws IOException {
+				count.incrementAndGet();
+				return (handler.handleResponse(503, "Service Unavailable",
+						new ByteArrayInputStream("Throttling".getBytes("UTF-8"))));
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		ResilientMailer mailer = new ResilientMailer(new AmazonSESMailChimpMailerImpl(transport),
+				new RetryPolicy(3, 1, 5), new CircuitBreaker(10, 1000));
+		try {
+			mailer.sendMail(TestMails.newMail());
+			fail("Every attempt answers 503");
+		} catch (MailerException e) {
+			HttpStatusException cause = (HttpStatusException)e.getCause();
+			assertEquals(503, cause.getStatusCode());
+			assertEquals("Throttling", cause.getResponseBody());
+		}
+		assertEquals(3, count.get());
+		assertEquals(1, mailer.getFailureCount());
+	}
+
+	public void testThrottlingAndTimeoutsAreClassified() {
+		RetryPolicy policy = new RetryPolicy();
+		//Amazon SES reports throttling with a 400 status, RateLimitedMailer and RetryPolicy agree on it
+		HttpStatusException throttled = new HttpStatusException(400, "Bad Request",
+				"{\"aws_code\":\"Throttling\",\"aws_message\":\"Maximum sending rate exceeded.\"}");
+		assertTrue(throttled.isThrottled());
+		assertTrue(policy.isRetryable(new MailerException("Bad Request", throttled)));
+		assertFalse(policy.isRetryable(new MailerException("Bad Request", new HttpStatusException(400, "Bad Request",
+				"{\"aws_code\":\"InvalidParameterValue\"}"))));
+		assertTrue(new HttpStatusException(429, "Too Many Requests", "").isThrottled());
+
+		//The request may have been processed before the response timed out
+		assertFalse(policy.isRetryable(new MailerException("Read timed out", new SocketTimeoutException(
+				"Read timed out"))));
+		assertTrue(policy.isRetryable(new MailerException("Connect timed out", new ConnectException(
+				"Connect timed out"))));
+		assertTrue(policy.isRetryable(new MailerException("mail.example", new UnknownHostException("mail.example"))));
+		assertFalse(policy.isRetryable(new MailerException("Connection closed by server", new EOFException(
+				"Connection closed by server"))));
+		assertFalse(policy.isRetryable(new MailerException("Connection reset", new IOException("Connection reset"))));
+	}
+
+	public void testConnectionClosedAfterRequestIsNotRetried() throws Exception {
+		//Server that reads the whole request, as if the message were sent, and closes without answering
+		final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		final AtomicInteger requests = new AtomicInteger();
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						Socket socket = serverSocket.accept();
+						PooledHttpTransportTest.readRequest(socket.getInputStream());
+						requests.incrementAndGet();
+						socket.close();
+					}
+				} catch (IOException e) {
+					//Server socket closed
+				}
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		PooledHttpTransport transport = new PooledHttpTransport();
+		try {
+			ResilientMailer mailer = new ResilientMailer(new AmazonSESMailChimpMailerImpl(transport).withBaseUrl(
+					new URL("http://127.0.0.1:" + serverSocket.getLocalPort())), new RetryPolicy(4, 1, 5),
+					new CircuitBreaker(10, 1000));
+			try {
+				mailer.sendMail(TestMails.newMail());
+				fail("The connection closes without a response");
+			} catch (MailerException e) {
+				assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof EOFException);
+			}
+			assertEquals(1, requests.get());
+			assertEquals(1, mailer.getAttemptCount());
+			assertEquals(0, mailer.getRetryCount());
+		} finally {
+			transport.close();
+			serverSocket.close();
+		}
+	}
+
+	public void testCircuitOpensAndRecovers() throws Exception {
+		final AtomicInteger failuresLeft = new AtomicInteger(4);
+		StubTransport transport = new StubTransport() {
+			@Override
+			protected String respond(String postData) throws IOException {
+				if (failuresLeft.getAndDecrement() > 0) {
+					throw new ConnectException("Connection refused");
+				}
+				return (super.respond(postData));
+			}
+		};
+		ResilientMailer mailer = new ResilientMailer(new AmazonSESMailChimpMailerImpl(transport),
+				new RetryPolicy(2, 1, 1), new CircuitBreaker(3, 100));
+
+		//Two attempts, then the third failure opens the circuit during the second message
+		assertFails(mailer);
+		try {
+			mailer.sendMail(TestMails.newMail());
+			fail("The circuit should open");
+		} catch (CircuitOpenException e) {
+			assertEquals("Connection refused", e.getCause().getMessage());
+		}
+		assertEquals(CircuitBreaker.State.OPEN, mailer.getCircuitBreaker().getState());
+		assertEquals(3, transport.getRequests().size());
+		try {
+			mailer.sendMail(TestMails.newMail());
+			fail("The circuit should still be open");
+		} catch (CircuitOpenException e) {
+			//expected
+		}
+		assertEquals(3, transport.getRequests().size());
+
+		//The trial request after the open time fails and opens the circuit again before the retry
+		Thread.sleep(120);
+		try {
+			mailer.sendMail(TestMails.newMail());
+			fail("The trial request should fail");
+		} catch (CircuitOpenException e) {
+			//expected
+		}
+		assertEquals(4, transport.getRequests().size());
+		assertEquals(CircuitBreaker.State.OPEN, mailer.getCircuitBreaker().getState());
+
+		Thread.sleep(120);
+		assertEquals(StubTransport.SENT_RESPONSE, mailer.sendMail(TestMails.newMail()));
+		assertEquals(CircuitBreaker.State.CLOSED, mailer.getCircuitBreaker().getState());
+		assertEquals(2, mailer.getCircuitBreaker().getOpenCount());
+		assertEquals(5, transport.getRequests().size());
+	}
+
+	public void testRuntimeExceptionInTrialReopensCircuit() throws Exception {
+		final AtomicInteger calls = new AtomicInteger();
+		StubTransport transport = new StubTransport() {
+			@Override
+			protected String respond(String postData) throws IOException {
+				switch (calls.incrementAndGet()) {
+				case 1:
+					throw new ConnectException("Connection refused");
+				case 2:
+					throw new IllegalStateException("Unexpected response");
+				default:
+					return (super.respond(postData));
+				}
+			}
+		};
+		ResilientMailer mailer = new ResilientMailer(new AmazonSESMailChimpMailerImpl(transport),
+				new RetryPolicy(1, 1, 1), new CircuitBreaker(1, 50));
+		assertFails(mailer);
+		assertEquals(CircuitBreaker.State.OPEN, mailer.getCircuitBreaker().getState());
+
+		//The trial request throws, which must not leave the circuit half open
+		Thread.sleep(70);
+		try {
+			mailer.sendMail(TestMails.newMail());
+			fail("Expected IllegalStateException");
+		} catch (IllegalStateException e) {
+			assertEquals(CircuitBreaker.State.OPEN, mailer.getCircuitBreaker().getState());
+		}
+		Thread.sleep(70);
+		assertEquals(StubTransport.SENT_RESPONSE, mailer.sendMail(TestMails.newMail()));
+		assertEquals(CircuitBreaker.State.CLOSED, mailer.getCircuitBreaker().getState());
+		assertEquals(2, mailer.getFailureCount());
+	}
+
+	public void testBackoffIsBoundedAndJittered() {
+		RetryPolicy policy = new RetryPolicy(10, 100, 1000);
+		boolean varied = false;
+		long first = policy.getBackoffMillis(4);
+		for (int i = 0; i < 100; i++) {
+			long backoff = policy.getBackoffMillis(4);
+			assertTrue(backoff >= 0 && backoff <= 800);
+			assertTrue(policy.getBackoffMillis(9) <= 1000);
+			varied |= backoff != first;
+		}
+		assertTrue(varied);
+	}
+
+	private void assertFails(ResilientMailer mailer) throws MailerException {
+		try {
+			mailer.sendMail(TestMails.newMail());
+			fail("The message should fail");
+		} catch (CircuitOpenException e) {
+			throw e;
+		} catch (MailerException e) {
+			//expected
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package com.cloudspokes.mailer.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.cloudspokes.mailer.AmazonSESMailChimpMailerImpl;
+import com.cloudspokes.mailer.MailerException;
+import com.cloudspokes.mailer.RateLimitExceededException;
+import com.cloudspokes.mailer.RateLimitedMailer;
+import com.cloudspokes.mailer.SendRateLimiter;
+
+/**
+ * Test class for SendRateLimiter and RateLimitedMailer. The mailer tests expect MAILCHIMP_API_KEY to be set and
+ * answer the messages with a StubTransport.
+ */
+public class SendRateLimiterTest extends TestCase {
+	private static final String QUOTA_RESPONSE = "[{\"email\":\"as@as.com\",\"status\":\"Daily message quota exceeded.\"}]";
+
+	public void testBurstIsBoundedByRate() {
+		SendRateLimiter limiter = new SendRateLimiter(10);
+		for (int i = 0; i < 10; i++) {
+			assertTrue("permit " + i, limiter.tryAcquire());
+		}
+		assertFalse(limiter.tryAcquire());
+	}
+
+	public void testWaitsForPermit() throws Exception {
+		SendRateLimiter limiter = new SendRateLimiter(20);
+		while (limiter.tryAcquire()) {
+			//empty the bucket
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < 5; i++) {
+			assertTrue(limiter.tryAcquire(1, TimeUnit.SECONDS));
+		}
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("elapsed " + elapsedMillis, elapsedMillis >= 200);
+		assertFalse(limiter.tryAcquire(1, TimeUnit.MILLISECONDS));
+	}
+
+	public void testDailyLimit() throws Exception {
+		SendRateLimiter limiter = new SendRateLimiter(1000, 3);
+		assertTrue(limiter.tryAcquire());
+		assertTrue(limiter.tryAcquire());
+		assertTrue(limiter.tryAcquire());
+		//The next permit is hours away, so waiting gives up at once
+		long start = System.nanoTime();
+		assertFalse(limiter.tryAcquire(10, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+	}
+
+	public void testConcurrentAcquireHandsOutEachPermitOnce() throws Exception {
+		final SendRateLimiter limiter = new SendRateLimiter(1, 500);
+		final AtomicInteger acquired = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int j = 0; j < 1000; j++) {
+						if (limiter.tryAcquire()) {
+							acquired.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(1, acquired.get());
+	}
+
+	public void testThrottlingSlowsDownAndRecovers() {
+		SendRateLimiter limiter = new SendRateLimiter(8);
+		limiter.onThrottled();
+		assertEquals(4.0, limiter.getPermitsPerSecond(), 0.01);
+		assertFalse(limiter.tryAcquire());
+		limiter.onThrottled();
+		assertEquals(2.0, limiter.getPermitsPerSecond(), 0.01);
+		for (int i = 0; i < 1000; i++) {
+			limiter.onSuccess();
+		}
+		assertEquals(8.0, limiter.getPermitsPerSecond(), 0.01);
+	}
+
+	public void testMailerFailsFast() throws Exception {
+		StubTransport transport = new StubTransport();
+		RateLimitedMailer mailer = new RateLimitedMailer(new AmazonSESMailChimpMailerImpl(transport),
+				new SendRateLimiter(2), 0);
+		mailer.sendMail(TestMails.newMail());
+		mailer.sendMail(TestMails.newMail());
+		try {
+			mailer.sendMail(TestMails.newMail());
+			fail("The third message should exceed the rate");
+		} catch (RateLimitExceededException e) {
+			//expected
+		}
+		assertEquals(2, transport.getRequests().size());
+	}
+
+	public void testMailerAdaptsToQuotaResponse() throws Exception {
+		StubTransport transport = new StubTransport() {
+			@Override
+			protected String respond(String postData) throws IOException {
+				return (QUOTA_RESPONSE);
+			}
+		};
+		RateLimitedMailer mailer = new RateLimitedMailer(new AmazonSESMailChimpMailerImpl(transport),
+				new SendRateLimiter(100, 10000), 0);
+		//The quota status is still returned to the caller, later messages are held back
+		assertEquals(QUOTA_RESPONSE, mailer.sendMail(TestMails.newMail()));
+		try {
+			mailer.sendMail(TestMails.newMail());
+			fail("The daily quota should be used up");
+		} catch (RateLimitExceededException e) {
+			//expected
+		}
+		assertEquals(1, transport.getRequests().size());
+	}
+
+	public void testMailerAdaptsToThrottling() throws Exception {
+		StubTransport transport = new StubTransport() {
+			@Override
+			protected String respond(String postData) throws IOException {
+				throw new IOException("Maximum sending rate exceeded.");
+			}
+		};
+		SendRateLimiter limiter = new SendRateLimiter(10);
+		RateLimitedMailer mailer = new RateLimitedMailer(new AmazonSESMailChimpMailerImpl(transport), limiter, 0);
+		try {
+			mailer.sendMail(TestMails.newMail());
+			fail("The stub throttles every message");
+		} catch (MailerException e) {
+			assertFalse(e instanceof RateLimitExceededException);
+		}
+		assertEquals(5.0, limiter.getPermitsPerSecond(), 0.01);
+	}
+}
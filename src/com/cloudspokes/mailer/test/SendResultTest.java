@@ -0,0 +1,143 @@
+package com.cloudspokes.mailer.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.Executor;
+
+import junit.framework.TestCase;
+
+import com.cloudspokes.mailer.AbstractAmazonSESMailChimpMailer;
+import com.cloudspokes.mailer.AmazonSESMailChimpMailer;
+import com.cloudspokes.mailer.AmazonSESMailChimpMailerImpl;
+import com.cloudspokes.mailer.HttpTransport;
+import com.cloudspokes.mailer.MailInfoDTO;
+import com.cloudspokes.mailer.MailerException;
+import com.cloudspokes.mailer.RequestBody;
+import com.cloudspokes.mailer.ResponseHandler;
+import com.cloudspokes.mailer.SendResult;
+
+/**
+ * Test class for SendResult and the streaming response parser. Like AmazonSESMailChimpMailerTest it expects
+ * MAILCHIMP_API_KEY to be set, but the messages are answered by stub transports.
+ */
+public class SendResultTest extends TestCase {
+	public void testParsesArrayResponse() throws MailerException {
+		SendResult result = SendResult.parse(StubTransport.SENT_RESPONSE);
+		assertEquals("sent", result.getStatus());
+		assertEquals("as@as.com", result.getEmail());
+		assertTrue(result.isAccepted());
+		assertNull(result.getMessageId());
+		assertEquals(1, result.getRecipientResults().size());
+	}
+
+	public void testResultPerRecipient() throws MailerException {
+		SendResult result = SendResult.parse("[{\"email\":\"a@as.com\",\"status\":\"sent\"},\n"
+				+ " {\"email\":\"b@as.com\",\"status\":\"rejected\",\"reject_reason\":\"hard-bounce\"} ]");
+		assertEquals("a@as.com", result.getEmail());
+		assertEquals(2, result.getRecipientResults().size());
+		assertTrue(result.getRecipientResult("a@as.com").isAccepted());
+		SendResult rejected = result.getRecipientResult("B@as.com");
+		assertFalse(rejected.isAccepted());
+		assertEquals("hard-bounce", rejected.getErrorMessage());
+		assertNull(result.getRecipientResult("c@as.com"));
+
+		//A response which names no recipient applies to all of them
+		result = SendResult.parse("{\"status\":\"error\",\"message\":\"Invalid API key\"}");
+		assertSame(result, result.getRecipientResult("a@as.com"));
+	}
+
+	public void testParsesObjectResponse() throws MailerException {
+		SendResult result = SendResult.parse(" {\"status\" : \"queued\", \"message_id\":\"0000012f5a7b\",\n"
+				+ "\"nested\":{\"a\":[1,{\"b\":\"}]\\\"\"}],\"c\":null},\"count\":-1.5e3,\"ok\":true}");
+		assertEquals("queued", result.getStatus());
+		assertEquals("0000012f5a7b", result.getMessageId());
+		assertTrue(result.isAccepted());
+	}
+
+	public void testParsesErrors() throws MailerException {
+		SendResult result = SendResult.parse("[{\"email\":\"as@as.com\",\"status\":\"Daily message quota exceeded.\"}]");
+		assertFalse(result.isAccepted());
+		assertEquals("Daily message quota exceeded.", result.getStatus());
+
+		result = SendResult.parse("{\"status\":\"error\",\"code\":-91,\"aws_code\":\"MessageRejected\","
+				+ "\"aws_message\":\"Email address is not verified.\",\"message\":\"Caf\\u00e9 \\\"rejected\\\"\\n\"}");
+		assertEquals("error", result.getStatus());
+		assertEquals("-91", result.getErrorCode());
+		assertEquals("Caf\u00e9 \"rejected\"\n", result.getErrorMessage());
+
+		result = SendResult.parse("{\"aws_code\":\"Throttling\",\"aws_message\":\"Maximum sending rate exceeded.\"}");
+		assertNull(result.getStatus());
+		assertEquals("Throttling", result.getErrorCode());
+		assertEquals("Maximum sending rate exceeded.", result.getErrorMessage());
+	}
+
+	public void testRejectsInvalidResponses() {
+		String[] invalid = { "", "sent", "[\"sent\"]", "{\"status\":\"sent\"", "{\"status\" \"sent\"}", "{\"status\":\"se",
+				"[{\"status\":\"sent\"} {}]", "[{\"status\":\"sent\"},", "[{\"status\":\"sent\"},\"sent\"]" };
+		for (String response : invalid) {
+			try {
+				SendResult.parse(response);
+				fail("Parsed " + response);
+			} catch (MailerException e) {
+				assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid Mail Chimp response"));
+			}
+		}
+	}
+
+	public void testMailerParsesEveryObjectFromStream() throws Exception {
+		final byte[] response = ("[{\"email\":\"as@as.com\",\"status\":\"sent\",\"_id\":\"abc123\"}"
+				+ padding(100000) + "]").getBytes("UTF-8");
+		final int[] bytesRead = new int[1];
+		HttpTransport transport = new HttpTransport() {
+			@Override
+			public <T> T post(URL url, RequestBody body, ResponseHandler<T> handler) throws IOException {
+				InputStream in = new ByteArrayInputStream(response) {
+					@Override
+					public synchronized int read(byte[] b, int off, int len) {
+						int read = super.read(b, off, len);
+						bytesRead[0] += Math.max(read, 0);
+						return (read);
+					}
+				};
+				return (handler.handleResponse(200, "OK", in));
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		SendResult result = new AmazonSESMailChimpMailerImpl(transport).sendMailForResult(TestMails.newMail());
+		assertEquals("sent", result.getStatus());
+		assertEquals("abc123", result.getMessageId());
+		assertEquals(5001, result.getRecipientResults().size());
+		assertEquals(response.length, bytesRead[0]);
+	}
+
+	public void testDefaultMethodParsesSendMail() throws Exception {
+		Executor direct = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		};
+		AmazonSESMailChimpMailer mailer = new AbstractAmazonSESMailChimpMailer(direct, 1) {
+			@Override
+			public String sendMail(MailInfoDTO mailData) {
+				return ("{\"status\":\"sent\",\"message_id\":\"42\"}");
+			}
+		};
+		SendResult result = mailer.sendMailForResult(TestMails.newMail());
+		assertTrue(result.isAccepted());
+		assertEquals("42", result.getMessageId());
+	}
+
+	private static String padding(int count) {
+		StringBuilder padding = new StringBuilder();
+		for (int i = 0; i < count / 20; i++) {
+			padding.append(",{\"status\":\"sent\"}");
+		}
+		return (padding.toString());
+	}
+}
@@ -0,0 +1,126 @@
+package com.cloudspokes.mailer.test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.cloudspokes.mailer.AmazonSESMailChimpMailerImpl;
+import com.cloudspokes.mailer.CircuitBreaker;
+import com.cloudspokes.mailer.MailInfoDTO;
+import com.cloudspokes.mailer.MailerException;
+import com.cloudspokes.mailer.MailerMetrics;
+import com.cloudspokes.mailer.ResilientMailer;
+import com.cloudspokes.mailer.RetryPolicy;
+import com.cloudspokes.mailer.SerializedMessageCache;
+
+/**
+ * Test class for SerializedMessageCache. Expects MAILCHIMP_API_KEY to be set and answers the messages with stub
+ * transports.
+ */
+public class SerializedMessageCacheTest extends TestCase {
+	private static final int KB = 1024;
+
+	private ExecutorService executor;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		executor = Executors.newSingleThreadExecutor();
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		executor.shutdownNow();
+	}
+
+	public void testResendPostsCachedPayload() throws Exception {
+		StubTransport transport = new StubTransport();
+		SerializedMessageCache cache = new SerializedMessageCache(1024 * KB, 16 * KB);
+		AmazonSESMailChimpMailerImpl mailer = newMailer(transport, cache);
+		MailInfoDTO mailData = newMail(100 * KB);
+
+		mailer.sendMail(mailData);
+		mailer.sendMail(mailData);
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.size());
+		assertEquals(transport.getRequests().get(0), transport.getRequests().get(1));
+		assertEquals(transport.getRequests().get(0).length(), cache.getBytes());
+
+		//A changed message is serialized again
+		mailData.setSubject("Changed");
+		mailer.sendMail(mailData);
+		assertEquals(2, cache.getMissCount());
+		assertTrue(transport.getRequests().get(2).contains("message[subject]=Changed&"));
+
+		//An equal message is a different message
+		mailer.sendMail(newMail(100 * KB));
+		assertEquals(3, cache.getMissCount());
+		assertEquals(3, cache.size());
+
+		cache.clear();
+		assertEquals(0, cache.getBytes());
+	}
+
+	public void testSmallAndEvictedPayloads() throws Exception {
+		StubTransport transport = new StubTransport();
+		SerializedMessageCache cache = new SerializedMessageCache(500 * KB, 16 * KB);
+		AmazonSESMailChimpMailerImpl mailer = newMailer(transport, cache);
+
+		MailInfoDTO small = newMail(KB);
+		mailer.sendMail(small);
+		mailer.sendMail(small);
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getHitCount());
+
+		List<MailInfoDTO> large = new ArrayList<MailInfoDTO>();
+		for (int i = 0; i < 3; i++) {
+			large.add(newMail(100 * KB));
+			mailer.sendMail(large.get(i));
+		}
+		assertEquals(2, cache.size());
+		assertTrue(cache.getBytes() <= 500 * KB);
+		long misses = cache.getMissCount();
+		mailer.sendMail(large.get(2));
+		mailer.sendMail(large.get(0));
+		assertEquals(misses + 1, cache.getMissCount());
+	}
+
+	public void testRetriesAreNotEncodedAgain() throws Exception {
+		final AtomicInteger attempts = new AtomicInteger();
+		StubTransport transport = new StubTransport() {
+			@Override
+			protected String respond(String postData) throws IOException {
+				if (attempts.incrementAndGet() < 3) {
+					throw new ConnectException("Connection refused");
+				}
+				return (super.respond(postData));
+			}
+		};
+		SerializedMessageCache cache = new SerializedMessageCache();
+		ResilientMailer mailer = new ResilientMailer(newMailer(transport, cache), new RetryPolicy(3, 1, 1),
+				new CircuitBreaker());
+
+		mailer.sendMail(newMail(100 * KB));
+		assertEquals(3, transport.getRequests().size());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(2, cache.getHitCount());
+	}
+
+	private AmazonSESMailChimpMailerImpl newMailer(StubTransport transport, SerializedMessageCache cache) {
+		return (new AmazonSESMailChimpMailerImpl(transport, executor, 1, MailerMetrics.NOOP, cache));
+	}
+
+	private static MailInfoDTO newMail(int htmlLength) throws MailerException {
+		StringBuilder html = new StringBuilder(htmlLength);
+		while (html.length() < htmlLength) {
+			html.append("<p>News</p>");
+		}
+		return (TestMails.newMail(html.toString(), "Newsletter"));
+	}
+}
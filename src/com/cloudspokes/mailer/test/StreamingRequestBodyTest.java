@@ -0,0 +1,121 @@
+package com.cloudspokes.mailer.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+import com.cloudspokes.mailer.AmazonSESMailChimpMailerImpl;
+import com.cloudspokes.mailer.AmazonSESMailChimpMailerImpl.BodyMode;
+import com.cloudspokes.mailer.DefaultMailerMetrics;
+import com.cloudspokes.mailer.HttpTransport;
+import com.cloudspokes.mailer.MailInfoDTO;
+import com.cloudspokes.mailer.PooledHttpTransport;
+import com.cloudspokes.mailer.RequestBody;
+import com.cloudspokes.mailer.ResponseHandler;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests the streaming body modes of AmazonSESMailChimpMailerImpl against a local stub server. Expects
+ * MAILCHIMP_API_KEY to be set; the requests for Mail Chimp are redirected to the stub.
+ */
+public class StreamingRequestBodyTest extends TestCase {
+	private HttpServer server;
+	private ExecutorService executor;
+	private final List<String> bodies = new CopyOnWriteArrayList<String>();
+	private final List<String> framing = new CopyOnWriteArrayList<String>();
+	private PooledHttpTransport transport;
+	private HttpTransport localTransport;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/1.0/SendEmail", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+				framing.add(contentLength != null ? "length " + contentLength
+						: String.valueOf(exchange.getRequestHeaders().getFirst("Transfer-Encoding")));
+				ByteArrayOutputStream body = new ByteArrayOutputStream();
+				InputStream in = exchange.getRequestBody();
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					body.write(buffer, 0, read);
+				}
+				bodies.add(new String(body.toByteArray(), "UTF-8"));
+				byte[] response = StubTransport.SENT_RESPONSE.getBytes("UTF-8");
+				exchange.sendResponseHeaders(200, response.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(response);
+				out.close();
+			}
+		});
+		server.start();
+		executor = Executors.newSingleThreadExecutor();
+		transport = new PooledHttpTransport();
+		final URL local = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/1.0/SendEmail");
+		localTransport = new HttpTransport() {
+			@Override
+			public <T> T post(URL url, RequestBody body, ResponseHandler<T> handler) throws IOException {
+				return (transport.post(local, body, handler));
+			}
+
+			@Override
+			public void close() {
+				transport.close();
+			}
+		};
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		transport.close();
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	public void testStreamingModesPostTheSameBody() throws Exception {
+		MailInfoDTO mailData = newMail();
+		DefaultMailerMetrics metrics = new DefaultMailerMetrics();
+		for (BodyMode mode : BodyMode.values()) {
+			AmazonSESMailChimpMailerImpl mailer = new AmazonSESMailChimpMailerImpl(localTransport, executor, 1,
+					metrics, null, mode);
+			assertTrue(mailer.sendMailForResult(mailData).isAccepted());
+		}
+
+		assertEquals(3, bodies.size());
+		String expected = bodies.get(0);
+		assertTrue(expected.length() > 400000);
+		assertEquals(expected, bodies.get(1));
+		assertEquals(expected, bodies.get(2));
+		assertEquals("length " + expected.length(), framing.get(0));
+		assertEquals("length " + expected.length(), framing.get(1));
+		assertEquals("chunked", framing.get(2));
+		//Every mode reports the size of the body, the chunked one without a serialization time, and the connection
+		//is kept alive
+		assertEquals(3, metrics.getPayloadBytes().getCount());
+		assertEquals(2, metrics.getSerializationLatency().getCount());
+		assertEquals(expected.length(), metrics.getPayloadBytes().getMax());
+		assertEquals(1, transport.getConnectionsOpened());
+	}
+
+	private static MailInfoDTO newMail() throws Exception {
+		StringBuilder html = new StringBuilder();
+		while (html.length() < 400000) {
+			html.append("<p>Streaming caf\u00e9 \ud83d\ude00</p>\n");
+		}
+		return (TestMails.newMail(html.toString(), "Newsletter"));
+	}
+}
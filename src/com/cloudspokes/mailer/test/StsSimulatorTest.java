@@ -0,0 +1,153 @@
+package com.cloudspokes.mailer.test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.cloudspokes.mailer.AmazonSESMailChimpMailerImpl;
+import com.cloudspokes.mailer.AmazonSESMailChimpMailerImpl.BodyMode;
+import com.cloudspokes.mailer.CompressingHttpTransport;
+import com.cloudspokes.mailer.HttpStatusException;
+import com.cloudspokes.mailer.HttpTransport;
+import com.cloudspokes.mailer.MailerException;
+import com.cloudspokes.mailer.MailerMetrics;
+import com.cloudspokes.mailer.PooledHttpTransport;
+import com.cloudspokes.mailer.SendResult;
+import com.cloudspokes.mailer.StsSimulator;
+import com.cloudspokes.mailer.StsSimulator.Latency;
+import com.cloudspokes.mailer.StsSimulator.Response;
+
+/**
+ * Test class for StsSimulator and mailers posting to it through their base URL. Expects MAILCHIMP_API_KEY to be
+ * set; nothing is sent to Mail Chimp.
+ */
+public class StsSimulatorTest extends TestCase {
+	private ExecutorService executor;
+	private PooledHttpTransport transport;
+	private StsSimulator simulator;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		executor = Executors.newSingleThreadExecutor();
+		transport = new PooledHttpTransport();
+		simulator = new StsSimulator();
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		simulator.close();
+		transport.close();
+		executor.shutdownNow();
+	}
+
+	public void testSentAndQueued() throws Exception {
+		AmazonSESMailChimpMailerImpl mailer = newMailer(transport, BodyMode.BUFFERED);
+		String status = mailer.sendMail(TestMails.newMail("<p>Hi</p>", "Hi", "as@as.com", "j\u00fcrgen@m\u00fcller.de"));
+		assertTrue(status, status.startsWith("[{\"email\":\"as@as.com\",\"status\":\"sent\",\"_id\":\""));
+		assertTrue(status, status.contains("{\"email\":\"j\u00fcrgen@m\u00fcller.de\",\"status\":\"sent\""));
+		SendResult result = mailer.sendMailForResult(TestMails.newMail());
+		assertEquals(SendResult.STATUS_SENT, result.getStatus());
+		assertEquals(32, result.getMessageId().length());
+
+		//Chunked and compressed bodies are read like the others
+		simulator.setQueuedRate(1);
+		assertEquals(SendResult.STATUS_QUEUED, newMailer(transport, BodyMode.CHUNKED).sendMailForResult(
+				TestMails.newMail()).getStatus());
+		assertEquals(SendResult.STATUS_QUEUED, newMailer(new CompressingHttpTransport(transport, 0, 6),
+				BodyMode.BUFFERED).sendMailForResult(TestMails.newMail()).getStatus());
+
+		assertEquals(2, simulator.getCount(Response.SENT));
+		assertEquals(2, simulator.getCount(Response.QUEUED));
+		assertEquals(4, simulator.getRequestCount());
+		assertEquals(5, simulator.getRecipientCount());
+		//The connection was kept alive
+		assertEquals(1, transport.getConnectionsOpened());
+	}
+
+	public void testFailureInjection() throws Exception {
+		AmazonSESMailChimpMailerImpl mailer = newMailer(transport, BodyMode.BUFFERED);
+		simulator.setErrorRate(1);
+		HttpStatusException error = (HttpStatusException)sendFailing(mailer).getCause();
+		assertEquals(500, error.getStatusCode());
+		assertTrue(error.isRetryable());
+		assertTrue(error.getResponseBody(), error.getResponseBody().contains("\"aws_code\":\"InternalFailure\""));
+		simulator.setErrorRate(0);
+
+		simulator.setResetRate(1);
+		MailerException reset = sendFailing(mailer);
+		assertTrue(String.valueOf(reset.getCause()), reset.getCause() instanceof IOException
+				&& !(reset.getCause() instanceof HttpStatusException));
+		simulator.setResetRate(0);
+		assertTrue(mailer.sendMailForResult(TestMails.newMail()).isAccepted());
+
+		simulator.setMaxSendRate(2);
+		assertTrue(mailer.sendMailForResult(TestMails.newMail()).isAccepted());
+		assertTrue(mailer.sendMailForResult(TestMails.newMail()).isAccepted());
+		HttpStatusException throttled = (HttpStatusException)sendFailing(mailer).getCause();
+		assertEquals(400, throttled.getStatusCode());
+		assertTrue(throttled.getResponseBody(), throttled.getResponseBody().contains("Maximum sending rate exceeded."));
+		simulator.setMaxSendRate(StsSimulator.UNLIMITED);
+
+		simulator.setDailyQuota(1);
+		assertTrue(mailer.sendMailForResult(TestMails.newMail()).isAccepted());
+		SendResult quotaExceeded = mailer.sendMailForResult(TestMails.newMail());
+		assertEquals(StsSimulator.QUOTA_EXCEEDED_STATUS, quotaExceeded.getStatus());
+		assertFalse(quotaExceeded.isAccepted());
+		simulator.setDailyQuota(StsSimulator.UNLIMITED);
+		assertTrue(mailer.sendMailForResult(TestMails.newMail()).isAccepted());
+
+		assertEquals(1, simulator.getCount(Response.ERROR));
+		assertEquals(1, simulator.getCount(Response.THROTTLED));
+		assertEquals(1, simulator.getCount(Response.QUOTA_EXCEEDED));
+		assertEquals(5, simulator.getCount(Response.SENT));
+		assertEquals(1, simulator.getCount(Response.RESET));
+		simulator.resetCounts();
+		assertEquals(0, simulator.getRequestCount());
+	}
+
+	public void testLatency() throws Exception {
+		AmazonSESMailChimpMailerImpl mailer = newMailer(transport, BodyMode.BUFFERED);
+		simulator.setLatency(Latency.fixed(50));
+		long start = System.nanoTime();
+		mailer.sendMailForResult(TestMails.newMail());
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		Latency uniform = Latency.uniform(10, 20);
+		for (int i = 0; i < 1000; i++) {
+			long nanos = uniform.nextNanos(random);
+			assertTrue(nanos >= TimeUnit.MILLISECONDS.toNanos(10) && nanos <= TimeUnit.MILLISECONDS.toNanos(20));
+		}
+		Latency logNormal = Latency.logNormal(20, 200);
+		long[] samples = new long[100000];
+		for (int i = 0; i < samples.length; i++) {
+			samples[i] = logNormal.nextNanos(random);
+		}
+		Arrays.sort(samples);
+		double median = samples[samples.length / 2] / 1e6;
+		double p99 = samples[samples.length * 99 / 100] / 1e6;
+		assertTrue(String.valueOf(median), median > 18 && median < 22);
+		assertTrue(String.valueOf(p99), p99 > 170 && p99 < 230);
+	}
+
+	private AmazonSESMailChimpMailerImpl newMailer(HttpTransport transport, BodyMode bodyMode) {
+		return (new AmazonSESMailChimpMailerImpl(transport, executor, 1, MailerMetrics.NOOP, null, bodyMode)
+				.withBaseUrl(simulator.getBaseUrl()));
+	}
+
+	private static MailerException sendFailing(AmazonSESMailChimpMailerImpl mailer) throws MailerException {
+		try {
+			mailer.sendMailForResult(TestMails.newMail());
+		} catch (MailerException e) {
+			return (e);
+		}
+		fail("Expected MailerException");
+		return (null);
+	}
+}
@@ -0,0 +1,65 @@
+package com.cloudspokes.mailer.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+
+import com.cloudspokes.mailer.HttpTransport;
+import com.cloudspokes.mailer.RequestBody;
+import com.cloudspokes.mailer.ResponseHandler;
+
+/**
+ * In-memory HttpTransport for tests. Records every request body, decompressed if it is gzip encoded, and answers with the response produced by
+ * {@link #respond(String)}, which by default is a single "sent" status.
+ */
+public class StubTransport implements HttpTransport {
+	public static final String SENT_RESPONSE = "[{\"email\":\"as@as.com\",\"status\":\"sent\"}]";
+
+	private final List<String> requests = new CopyOnWriteArrayList<String>();
+
+	@Override
+	public <T> T post(URL url, RequestBody body, ResponseHandler<T> handler) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		body.writeTo(out);
+		if ("gzip".equals(body.getContentEncoding())) {
+			InputStream in = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()));
+			out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		}
+		String postData = new String(out.toByteArray(), "UTF-8");
+		requests.add(postData);
+
+		String response = respond(postData);
+		return (handler.handleResponse(200, "OK", new ByteArrayInputStream(response.getBytes("UTF-8"))));
+	}
+
+	/**
+	 * Produces the response body for a request. Subclasses override this to fail or delay requests.
+	 * @param postData - the url encoded request body
+	 * @return response body
+	 * @throws IOException
+	 */
+	protected String respond(String postData) throws IOException {
+		return (SENT_RESPONSE);
+	}
+
+	/**
+	 * @return url encoded bodies of all requests received so far
+	 */
+	public List<String> getRequests() {
+		return (requests);
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,194 @@
+package com.cloudspokes.mailer.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+import com.cloudspokes.mailer.AmazonSESMailChimpMailerImpl;
+import com.cloudspokes.mailer.CircuitBreaker;
+import com.cloudspokes.mailer.DefaultMailerMetrics;
+import com.cloudspokes.mailer.MailInfoDTO;
+import com.cloudspokes.mailer.MailerMetrics.Outcome;
+import com.cloudspokes.mailer.ResilientMailer;
+import com.cloudspokes.mailer.RetryPolicy;
+import com.cloudspokes.mailer.SendResult;
+import com.cloudspokes.mailer.SuppressionList;
+
+/**
+ * Test class for SuppressionList and the mailer dropping suppressed recipients. Expects MAILCHIMP_API_KEY to be set.
+ */
+public class SuppressionListTest extends TestCase {
+	private ExecutorService executor;
+	private File file;
+	private SuppressionList suppressionList;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		executor = Executors.newSingleThreadExecutor();
+		file = File.createTempFile("suppressed", ".txt");
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		executor.shutdownNow();
+		if (suppressionList != null) {
+			suppressionList.close();
+		}
+		file.delete();
+	}
+
+	public void testLoadAndLookup() throws Exception {
+		write("# bounced\r\nbounced@as.com\r\n\r\n  Complained@AS.com \r\nj\u00dcrgen@m\u00fcller.de\r\nbounced@as.com\r\nlast@as.com");
+		suppressionList = new SuppressionList(file);
+
+		assertEquals(4, suppressionList.size());
+		assertTrue(suppressionList.isSuppressed("bounced@as.com"));
+		assertTrue(suppressionList.isSuppressed("BOUNCED@as.com"));
+		assertTrue(suppressionList.isSuppressed("complained@as.com"));
+		assertTrue(suppressionList.isSuppressed("J\u00fcrgen@m\u00fcller.de"));
+		assertTrue(suppressionList.isSuppressed("last@as.com"));
+		assertFalse(suppressionList.isSuppressed("bounced@as.co"));
+		assertFalse(suppressionList.isSuppressed("ounced@as.com"));
+		assertFalse(suppressionList.isSuppressed("# bounced"));
+		assertFalse(suppressionList.isSuppressed(null));
+		//Addresses which are not suppressed are nearly always answered by the Bloom filter; a few may reach the table
+		for (int i = 0; i < 10000; i++) {
+			assertFalse(suppressionList.isSuppressed("subscriber" + i + "@as.com"));
+		}
+	}
+
+	public void testAppendsAreKeptAndReloaded() throws Exception {
+		write("first@as.com");
+		suppressionList = new SuppressionList(file);
+		assertTrue(suppressionList.add("Second@AS.COM"));
+		assertFalse(suppressionList.add("second@as.com"));
+		List<String> addresses = new ArrayList<String>();
+		for (int i = 0; i < 5000; i++) {
+			addresses.add("unsubscribed" + i + "@as.com");
+		}
+		//More than the first index holds, so it is rebuilt larger
+		assertEquals(5000, suppressionList.addAll(addresses));
+		assertEquals(5002, suppressionList.size());
+		assertTrue(suppressionList.isSuppressed("first@as.com"));
+		assertTrue(suppressionList.isSuppressed("second@as.com"));
+		assertTrue(suppressionList.isSuppressed("unsubscribed4999@as.com"));
+		try {
+			suppressionList.add("not an address");
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			assertEquals(5002, suppressionList.size());
+		}
+		//Duplicates within one call are added once
+		assertEquals(1, suppressionList.addAll(Arrays.asList("dup@as.com", "DUP@as.com", "first@as.com")));
+
+		//Single appends are read from the heap until they outgrow the mapping and the file is mapped again
+		assertTrue(suppressionList.add("j\u00fcrgen@m\u00fcller.de"));
+		for (int i = 0; i < 4000; i++) {
+			assertTrue(suppressionList.add("bounced" + i + "@as.com"));
+			assertTrue(suppressionList.isSuppressed("bounced" + (i / 2) + "@as.com"));
+		}
+		assertTrue(suppressionList.isSuppressed("J\u00fcrgen@m\u00fcller.de"));
+		assertTrue(suppressionList.isSuppressed("unsubscribed4999@as.com"));
+		assertEquals(9004, suppressionList.size());
+		suppressionList.close();
+
+		suppressionList = new SuppressionList(file);
+		assertEquals(9004, suppressionList.size());
+		assertTrue(suppressionList.isSuppressed("Second@as.com"));
+		assertTrue(suppressionList.isSuppressed("unsubscribed0@as.com"));
+		assertTrue(suppressionList.isSuppressed("bounced3999@as.com"));
+		assertTrue(suppressionList.isSuppressed("j\u00fcrgen@m\u00fcller.de"));
+	}
+
+	public void testMailerDropsSuppressedRecipients() throws Exception {
+		write("bounced@as.com\nunsubscribed@as.com\n");
+		suppressionList = new SuppressionList(file);
+		StubTransport transport = new StubTransport();
+		DefaultMailerMetrics metrics = new DefaultMailerMetrics();
+		AmazonSESMailChimpMailerImpl mailer = new AmazonSESMailChimpMailerImpl(transport, executor, 1, metrics)
+				.withSuppressionList(suppressionList);
+
+		List<String> toEmail = new ArrayList<String>();
+		toEmail.add("Bounced@as.com");
+		toEmail.add("as@as.com");
+		List<String> toName = new ArrayList<String>();
+		toName.add("Bounced");
+		toName.add("As");
+		List<String> ccEmail = new ArrayList<String>();
+		ccEmail.add("unsubscribed@as.com");
+		MailInfoDTO mailData = new MailInfoDTO("<p>Hi</p>", "Hi", "Sender", "sender@as.com", toEmail, toName, null,
+				null, ccEmail, null, null, null, true, false, false, null);
+		assertTrue(mailer.sendMailForResult(mailData).isAccepted());
+		String postData = transport.getRequests().get(0);
+		assertTrue(postData.contains("message[to_email][0]=as%40as.com&message[to_name][0]=As&"));
+		assertFalse(postData.contains("ounced"));
+		assertFalse(postData.contains("cc_email"));
+		assertEquals(2, metrics.getSuppressedRecipients());
+		//The message itself is not changed
+		assertEquals(2, mailData.getToEmail().size());
+
+		toEmail.remove(1);
+		SendResult result = mailer.sendMailForResult(new MailInfoDTO("<p>Hi</p>", "Hi", "Sender", "sender@as.com",
+				toEmail, null));
+		assertEquals(SendResult.STATUS_SUPPRESSED, result.getStatus());
+		assertFalse(result.isAccepted());
+		assertEquals(SendResult.STATUS_SUPPRESSED, SendResult.parse(mailer.sendMail(new MailInfoDTO("<p>Hi</p>",
+				"Hi", "Sender", "sender@as.com", toEmail, null))).getStatus());
+		assertEquals(1, transport.getRequests().size());
+		assertEquals(2, metrics.getCount(Outcome.SUPPRESSED));
+		assertEquals(4, metrics.getSuppressedRecipients());
+	}
+
+	public void testCopiesGoWithFirstChunkLeft() throws Exception {
+		StringBuilder suppressed = new StringBuilder();
+		List<String> toEmail = new ArrayList<String>();
+		for (int i = 0; i < 60; i++) {
+			toEmail.add("r" + i + "@as.com");
+			if (i < 50) {
+				suppressed.append("r" + i + "@as.com\n");
+			}
+		}
+		write(suppressed.toString());
+		suppressionList = new SuppressionList(file);
+		StubTransport transport = new StubTransport();
+		AmazonSESMailChimpMailerImpl mailer = new AmazonSESMailChimpMailerImpl(transport, executor, 1)
+				.withSuppressionList(suppressionList);
+		List<String> ccEmail = new ArrayList<String>();
+		ccEmail.add("cc@as.com");
+		List<String> bccEmail = new ArrayList<String>();
+		bccEmail.add("bcc@as.com");
+		MailInfoDTO mailData = new MailInfoDTO("<p>Hi</p>", "Hi", "Sender", "sender@as.com",
+				toEmail.subList(0, 1), null, null, null, ccEmail, null, bccEmail, null, true, false, false, null);
+
+		//Every to recipient of the first chunk is suppressed, the copies are sent with the second
+		mailer.sendToRecipients(mailData, toEmail, null);
+		assertEquals(1, transport.getRequests().size());
+		String postData = transport.getRequests().get(0);
+		assertTrue(postData.contains("message[to_email][0]=r50%40as.com&"));
+		assertTrue(postData.contains("message[cc_email][0]=cc%40as.com&"));
+		assertTrue(postData.contains("message[bcc_email][0]=bcc%40as.com&"));
+
+		//Also through a mailer which wraps the one with the suppression list
+		new ResilientMailer(mailer, new RetryPolicy(), new CircuitBreaker(), executor, 1).sendToRecipients(mailData,
+				toEmail, null);
+		assertEquals(2, transport.getRequests().size());
+		assertTrue(transport.getRequests().get(1).contains("message[cc_email][0]=cc%40as.com&"));
+	}
+
+	private void write(String content) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package com.cloudspokes.mailer.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.cloudspokes.mailer.AmazonSESMailChimpMailerImpl;
+import com.cloudspokes.mailer.AmazonSESMailChimpMailerImpl.BodyMode;
+import com.cloudspokes.mailer.InMemoryCredentialProvider;
+import com.cloudspokes.mailer.MailerException;
+import com.cloudspokes.mailer.MailerMetrics;
+import com.cloudspokes.mailer.QueueFullException;
+import com.cloudspokes.mailer.SendResult;
+import com.cloudspokes.mailer.TenantDispatcher;
+
+/**
+ * Test class for TenantDispatcher. The tenants send through stub transports with the keys of an
+ * InMemoryCredentialProvider.
+ */
+public class TenantDispatcherTest extends TestCase {
+	private ExecutorService executor;
+	private TenantDispatcher dispatcher;
+	private final List<String> sendOrder = new CopyOnWriteArrayList<String>();
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		executor = Executors.newSingleThreadExecutor();
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		if (dispatcher != null) {
+			dispatcher.stop(5, TimeUnit.SECONDS);
+		}
+		executor.shutdownNow();
+	}
+
+	public void testNoisyTenantDoesNotDelayOthers() throws Exception {
+		dispatcher = new TenantDispatcher(4);
+		dispatcher.addTenant("noisy", newMailer("noisy", 5), 1, 1000, 2);
+		dispatcher.addTenant("quiet", newMailer("quiet", 5), 1, 1000, 2);
+		dispatcher.start();
+
+		List<CompletableFuture<SendResult>> noisy = new ArrayList<CompletableFuture<SendResult>>();
+		for (int i = 0; i < 200; i++) {
+			noisy.add(dispatcher.submit("noisy", TestMails.newMail()));
+		}
+		List<CompletableFuture<SendResult>> quiet = new ArrayList<CompletableFuture<SendResult>>();
+		for (int i = 0; i < 4; i++) {
+			quiet.add(dispatcher.submit("quiet", TestMails.newMail()));
+		}
+		for (CompletableFuture<SendResult> result : quiet) {
+			assertTrue(result.get(5, TimeUnit.SECONDS).isAccepted());
+		}
+		//The backlog of the noisy tenant is far from drained, and it never had more than its bulkhead in flight
+		assertTrue(dispatcher.getStats("noisy").getQueuedCount() > 100);
+		assertTrue(dispatcher.getStats("noisy").getInFlightCount() <= 2);
+		assertTrue(dispatcher.getStats("quiet").getQueueWaitMicros().getMax() < 1000000);
+		for (CompletableFuture<SendResult> result : noisy) {
+			result.get(10, TimeUnit.SECONDS);
+		}
+		assertEquals(200, dispatcher.getStats("noisy").getSentCount());
+		assertEquals(4, dispatcher.getStats("quiet").getSentCount());
+	}
+
+	public void testWeightedShares() throws Exception {
+		dispatcher = new TenantDispatcher(1);
+		dispatcher.addTenant("gold", newMailer("gold", 0), 3, 1000, 1);
+		dispatcher.addTenant("basic", newMailer("basic", 0), 1, 1000, 1);
+		List<CompletableFuture<SendResult>> results = new ArrayList<CompletableFuture<SendResult>>();
+		for (int i = 0; i < 100; i++) {
+			results.add(dispatcher.submit("gold", TestMails.newMail()));
+			results.add(dispatcher.submit("basic", TestMails.newMail()));
+		}
+		dispatcher.start();
+		for (CompletableFuture<SendResult> result : results) {
+			result.get(10, TimeUnit.SECONDS);
+		}
+
+		int gold = 0;
+		for (String tenant : sendOrder.subList(0, 80)) {
+			if (tenant.equals("gold")) {
+				gold++;
+			}
+		}
+		assertTrue("gold sent " + gold + " of the first 80", gold >= 58 && gold <= 62);
+	}
+
+	public void testFullQueueAndFailures() throws Exception {
+		dispatcher = new TenantDispatcher(1);
+		InMemoryCredentialProvider keys = new InMemoryCredentialProvider();
+		dispatcher.addTenant("unknown-key", new AmazonSESMailChimpMailerImpl(new StubTransport(), executor, 1,
+				MailerMetrics.NOOP, null, BodyMode.BUFFERED, keys).forTenant("unknown-key"), 1, 2, 1);
+
+		CompletableFuture<SendResult> first = dispatcher.submit("unknown-key", TestMails.newMail());
+		dispatcher.submit("unknown-key", TestMails.newMail());
+		try {
+			dispatcher.submit("unknown-key", TestMails.newMail());
+			fail("Expected QueueFullException");
+		} catch (QueueFullException e) {
+			assertEquals(1, dispatcher.getStats("unknown-key").getRejectedCount());
+		}
+		try {
+			dispatcher.submit("other", TestMails.newMail());
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			assertEquals(2, dispatcher.getStats("unknown-key").getSubmittedCount());
+		}
+
+		dispatcher.start();
+		try {
+			first.get(5, TimeUnit.SECONDS);
+			fail("Expected ExecutionException");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof MailerException);
+		}
+	}
+
+	private AmazonSESMailChimpMailerImpl newMailer(final String tenant, final long delayMillis) {
+		InMemoryCredentialProvider keys = new InMemoryCredentialProvider();
+		keys.setKey(tenant, tenant + "-key-us2");
+		StubTransport transport = new StubTransport() {
+			@Override
+			protected String respond(String postData) throws IOException {
+				sendOrder.add(tenant);
+				try {
+					Thread.sleep(delayMillis);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				return (super.respond(postData));
+			}
+		};
+		return (new AmazonSESMailChimpMailerImpl(transport, executor, 1, MailerMetrics.NOOP, null, BodyMode.BUFFERED,
+				keys).forTenant(tenant));
+	}
+}
@@ -0,0 +1,44 @@
+package com.cloudspokes.mailer.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.cloudspokes.mailer.MailInfoDTO;
+import com.cloudspokes.mailer.MailerException;
+
+/**
+ * Messages for tests, sent by Sender &lt;sender@as.com&gt; to as@as.com unless other recipients are given. Their
+ * recipients are in lists of their own, which the messages may change.
+ */
+public final class TestMails {
+	private TestMails() {
+	}
+
+	/**
+	 * @return a short message to as@as.com
+	 */
+	public static MailInfoDTO newMail() throws MailerException {
+		return (newMail("<h1>Hello</h1>", "Hello"));
+	}
+
+	/**
+	 * @param html - html content
+	 * @param subject
+	 * @return a message to as@as.com
+	 */
+	public static MailInfoDTO newMail(String html, String subject) throws MailerException {
+		return (newMail(html, subject, "as@as.com"));
+	}
+
+	/**
+	 * @param html - html content
+	 * @param subject
+	 * @param toEmail - to addresses, without names
+	 * @return the message
+	 */
+	public static MailInfoDTO newMail(String html, String subject, String... toEmail) throws MailerException {
+		List<String> to = new ArrayList<String>(Arrays.asList(toEmail));
+		return (new MailInfoDTO(html, subject, "Sender", "sender@as.com", to, null));
+	}
+}